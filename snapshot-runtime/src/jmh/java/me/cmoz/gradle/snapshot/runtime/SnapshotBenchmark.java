@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot.runtime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading the build information with {@code Snapshot} to the
+ * {@code java.util.Properties} approach of the sample project, both to load
+ * the file and to look up a value on every call, with one thread and with
+ * several threads contending for the same instance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SnapshotBenchmark {
+
+    private byte[] file;
+
+    private Properties properties;
+
+    private Snapshot snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Properties source = new Properties();
+        source.setProperty("build.time", "20.11.2014 @ 12:00:00 GMT");
+        source.setProperty("build.user.name", "Snapshot Benchmark");
+        source.setProperty("build.user.email", "benchmark@cmoz.me");
+        source.setProperty("branch", "master");
+        source.setProperty("commit.id", "7c252556ba9471b42ec648fb2d27df464e5d4ad8");
+        source.setProperty("commit.id.abbrev", "7c25255");
+        source.setProperty("commit.time", "20.11.2014 @ 12:00:00 GMT");
+        source.setProperty("commit.timestamp", "1416484800000");
+        source.setProperty("commit.user.name", "Snapshot Benchmark");
+        source.setProperty("commit.user.email", "benchmark@cmoz.me");
+        source.setProperty("commit.message", "Add a feature. With a longer description\nover two lines.");
+        source.setProperty("commit.message.short", "Add a feature");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        source.store(out, "Snapshot Benchmark");
+        file = out.toByteArray();
+
+        properties = loadProperties();
+        snapshot = loadSnapshot();
+    }
+
+    @Benchmark
+    public Properties loadProperties() throws IOException {
+        final Properties result = new Properties();
+        result.load(new ByteArrayInputStream(file));
+        return result;
+    }
+
+    @Benchmark
+    public Snapshot loadSnapshot() throws IOException {
+        return Snapshot.parse(new ByteArrayInputStream(file));
+    }
+
+    @Benchmark
+    public String getProperty() {
+        return properties.getProperty("commit.id.abbrev");
+    }
+
+    @Benchmark
+    public String getSnapshotByName() {
+        return snapshot.get(Snapshot.COMMIT_ID_ABBREV);
+    }
+
+    @Benchmark
+    public String getSnapshot() {
+        return snapshot.commitIdAbbrev();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getPropertyThreads() {
+        return properties.getProperty("commit.id.abbrev");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getSnapshotThreads() {
+        return snapshot.commitIdAbbrev();
+    }
+
+}
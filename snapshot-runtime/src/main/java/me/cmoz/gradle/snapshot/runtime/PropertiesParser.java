@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A parser for the {@code .properties} format read by
+ * {@code java.util.Properties.load(InputStream)}, i.e. ISO 8859-1 with
+ * {@code \}{@code uXXXX} escapes, which works directly on the bytes of the
+ * file.
+ *
+ * <p>The keys and values are decoded into a single scratch buffer, the only
+ * objects created for each entry are its key and value {@code String}s. A
+ * key which appears more than once keeps its last value, as with
+ * {@code Properties}.
+ */
+final class PropertiesParser {
+
+    private final byte[] buf;
+
+    private final int limit;
+
+    private int pos;
+
+    /** The decoded key or value of the current entry. */
+    private char[] scratch = new char[128];
+
+    private int length;
+
+    private String[] keys = new String[16];
+
+    private String[] values = new String[16];
+
+    private int size;
+
+    private PropertiesParser(final byte[] buf, final int limit) {
+        this.buf = buf;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses the whole stream, which is not closed.
+     *
+     * @param in The stream of the properties file.
+     * @return The parser with the entries of the file.
+     * @throws IOException If the stream could not be read or has a malformed
+     *                     escape.
+     */
+    static PropertiesParser parse(final InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        int limit = 0;
+        int n;
+        while ((n = in.read(buf, limit, buf.length - limit)) != -1) {
+            limit += n;
+            if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+
+        final PropertiesParser parser = new PropertiesParser(buf, limit);
+        parser.parseEntries();
+        return parser;
+    }
+
+    /** The number of distinct keys. */
+    int size() {
+        return size;
+    }
+
+    /** The keys, in the order they first appear in the file. */
+    String[] keys() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    /** The values, in the same order as the keys. */
+    String[] values() {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void parseEntries() throws IOException {
+        while (pos < limit) {
+            skipWhitespace();
+            if (pos >= limit) {
+                break;
+            }
+
+            final int c = buf[pos] & 0xff;
+            if (c == '\n' || c == '\r') {
+                pos++;
+            } else if (c == '#' || c == '!') {
+                skipLine();
+            } else {
+                readKey();
+                final String key = new String(scratch, 0, length).intern();
+                skipSeparator();
+                readValue();
+                put(key, new String(scratch, 0, length));
+            }
+        }
+    }
+
+    private void put(final String key, final String value) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+    }
+
+    /** Decodes the key, stopping before an unescaped separator or the end of the line. */
+    private void readKey() throws IOException {
+        length = 0;
+        while (pos < limit) {
+            final int c = buf[pos] & 0xff;
+            if (c == '=' || c == ':' || c == ' ' || c == '\t' || c == '\f' || c == '\n' || c == '\r') {
+                return;
+            }
+            pos++;
+            if (c == '\\') {
+                readEscape();
+            } else {
+                append((char) c);
+            }
+        }
+    }
+
+    /** Decodes the value up to the end of the logical line. */
+    private void readValue() throws IOException {
+        length = 0;
+        while (pos < limit) {
+            final int c = buf[pos] & 0xff;
+            if (c == '\n' || c == '\r') {
+                return;
+            }
+            pos++;
+            if (c == '\\') {
+                readEscape();
+            } else {
+                append((char) c);
+            }
+        }
+    }
+
+    /** Skips the whitespace around the separator, and the first {@code =} or {@code :}. */
+    private void skipSeparator() {
+        skipWhitespace();
+        if (pos < limit && (buf[pos] == '=' || buf[pos] == ':')) {
+            pos++;
+            skipWhitespace();
+        }
+    }
+
+    /** Decodes the escape after a backslash, which may continue the line. */
+    private void readEscape() throws IOException {
+        if (pos >= limit) {
+            return;
+        }
+
+        final int c = buf[pos++] & 0xff;
+        switch (c) {
+            case '\r':
+                if (pos < limit && buf[pos] == '\n') {
+                    pos++;
+                }
+                skipWhitespace();
+                break;
+            case '\n':
+                skipWhitespace();
+                break;
+            case 't':
+                append('\t');
+                break;
+            case 'n':
+                append('\n');
+                break;
+            case 'r':
+                append('\r');
+                break;
+            case 'f':
+                append('\f');
+                break;
+            case 'u':
+                append(readUnicode());
+                break;
+            default:
+                append((char) c);
+        }
+    }
+
+    private char readUnicode() throws IOException {
+        if (pos + 4 > limit) {
+            throw new IOException("Malformed \\uxxxx encoding.");
+        }
+
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int digit = Character.digit(buf[pos++], 16);
+            if (digit < 0) {
+                throw new IOException("Malformed \\uxxxx encoding.");
+            }
+            value = (value << 4) | digit;
+        }
+        return (char) value;
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit && (buf[pos] == ' ' || buf[pos] == '\t' || buf[pos] == '\f')) {
+            pos++;
+        }
+    }
+
+    /** Skips a comment line, which can't be continued. */
+    private void skipLine() {
+        while (pos < limit && buf[pos] != '\n' && buf[pos] != '\r') {
+            pos++;
+        }
+    }
+
+    private void append(final char c) {
+        if (length == scratch.length) {
+            scratch = Arrays.copyOf(scratch, length * 2);
+        }
+        scratch[length++] = c;
+    }
+
+}
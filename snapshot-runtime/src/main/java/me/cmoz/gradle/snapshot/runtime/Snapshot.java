@@ -0,0 +1,343 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot.runtime;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The build information recorded by the Snapshot plugin, read from the
+ * {@code snapshot.properties} resource.
+ *
+ * <p>An instance is immutable, so it's safe to share between threads without
+ * the locking of {@code java.util.Properties}. The common properties are
+ * decoded once when the file is read and each accessor is a field read, e.g.
+ * for a version endpoint or a response header on every request:
+ *
+ * <pre>
+ * response.setHeader("X-Commit", Snapshot.get().commitIdAbbrev());
+ * </pre>
+ *
+ * <p>Any other property can be looked up by name with {@code get(String)}.
+ * The keys are interned, so a lookup with a string constant is usually
+ * decided by reference.
+ */
+public final class Snapshot {
+
+    /** The name of the resource written by the plugin with the default configuration. */
+    public static final String RESOURCE_NAME = "snapshot.properties";
+
+    /** Property key names recorded by the plugin. */
+    public static final String BUILD_TIME = "build.time";
+    public static final String BUILD_USER_NAME = "build.user.name";
+    public static final String BUILD_USER_EMAIL = "build.user.email";
+    public static final String BRANCH = "branch";
+    public static final String COMMIT_ID = "commit.id";
+    public static final String COMMIT_ID_ABBREV = "commit.id.abbrev";
+    public static final String COMMIT_TIME = "commit.time";
+    public static final String COMMIT_TIMESTAMP = "commit.timestamp";
+    public static final String COMMIT_USER_NAME = "commit.user.name";
+    public static final String COMMIT_USER_EMAIL = "commit.user.email";
+    public static final String COMMIT_MESSAGE = "commit.message";
+    public static final String COMMIT_MESSAGE_SHORT = "commit.message.short";
+    public static final String COMMIT_DIRTY = "commit.dirty";
+    public static final String COMMIT_DIRTY_COUNT = "commit.dirty.count";
+    public static final String COMMIT_DESCRIBE = "commit.describe";
+    public static final String TAG_NEAREST = "tag.nearest";
+    public static final String TAG_DISTANCE = "tag.distance";
+
+    /** The marker for a number which wasn't recorded. */
+    public static final int UNKNOWN = -1;
+
+    /** A snapshot without any properties. */
+    public static final Snapshot EMPTY = new Snapshot(new String[0], new String[0]);
+
+    /** The interned keys, in the order of the file. */
+    private final String[] keys;
+
+    /** The values, in the same order as the keys. */
+    private final String[] values;
+
+    private final String buildTime;
+
+    private final String buildUserName;
+
+    private final String buildUserEmail;
+
+    private final String branch;
+
+    private final String commitId;
+
+    private final String commitIdAbbrev;
+
+    private final long commitTime;
+
+    private final String commitUserName;
+
+    private final String commitUserEmail;
+
+    private final String commitMessage;
+
+    private final String commitMessageShort;
+
+    private final boolean dirty;
+
+    private final int dirtyCount;
+
+    private final String describe;
+
+    private final String nearestTag;
+
+    private final int tagDistance;
+
+    private Snapshot(final String[] keys, final String[] values) {
+        this.keys = keys;
+        this.values = values;
+
+        buildTime = get(BUILD_TIME);
+        buildUserName = get(BUILD_USER_NAME);
+        buildUserEmail = get(BUILD_USER_EMAIL);
+        branch = get(BRANCH);
+        commitId = get(COMMIT_ID);
+        commitIdAbbrev = get(COMMIT_ID_ABBREV);
+        commitTime = parseLong(get(COMMIT_TIMESTAMP));
+        commitUserName = get(COMMIT_USER_NAME);
+        commitUserEmail = get(COMMIT_USER_EMAIL);
+        commitMessage = get(COMMIT_MESSAGE);
+        commitMessageShort = get(COMMIT_MESSAGE_SHORT);
+        dirty = Boolean.parseBoolean(get(COMMIT_DIRTY));
+        dirtyCount = (int) parseLong(get(COMMIT_DIRTY_COUNT));
+        describe = get(COMMIT_DESCRIBE);
+        nearestTag = get(TAG_NEAREST);
+        tagDistance = (int) parseLong(get(TAG_DISTANCE));
+    }
+
+    /**
+     * Returns the build information from the {@code snapshot.properties}
+     * resource of the classloader which loaded this class. The resource is
+     * read on the first call, every later call returns the same instance.
+     *
+     * @return The build information, or {@code EMPTY} if there is no
+     *         resource or it couldn't be read.
+     */
+    public static Snapshot get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Reads the build information from a resource.
+     *
+     * @param classLoader The classloader to find the resource with.
+     * @param name The name of the resource, e.g. {@code RESOURCE_NAME}.
+     * @return The build information.
+     * @throws FileNotFoundException If there is no resource with the name.
+     * @throws IOException If the resource could not be read.
+     */
+    public static Snapshot load(final ClassLoader classLoader, final String name) throws IOException {
+        final InputStream in = classLoader.getResourceAsStream(name);
+        if (in == null) {
+            throw new FileNotFoundException("No resource '" + name + "' found.");
+        }
+        try {
+            return parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the build information from a stream in the {@code .properties}
+     * format. The stream is read to the end but not closed.
+     *
+     * @param in The stream to read.
+     * @return The build information.
+     * @throws IOException If the stream could not be read.
+     */
+    public static Snapshot parse(final InputStream in) throws IOException {
+        final PropertiesParser parser = PropertiesParser.parse(in);
+        return new Snapshot(parser.keys(), parser.values());
+    }
+
+    /**
+     * Returns the value of a property.
+     *
+     * @param key The name of the property.
+     * @return The value, or {@code null} if the property wasn't recorded.
+     */
+    public String get(final String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /** The names of the recorded properties, in the order of the file. */
+    public List<String> keys() {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /** The number of recorded properties. */
+    public int size() {
+        return keys.length;
+    }
+
+    /** Whether no properties were recorded. */
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * Returns a copy of the properties, e.g. to print them. The typed
+     * accessors should be preferred on hot paths.
+     *
+     * @return A new map of the properties, in the order of the file.
+     */
+    public Map<String, String> toMap() {
+        final Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], values[i]);
+        }
+        return map;
+    }
+
+    /** The value of {@code build.time}, in the date format of the build. */
+    public String buildTime() {
+        return buildTime;
+    }
+
+    /** The value of {@code build.user.name}. */
+    public String buildUserName() {
+        return buildUserName;
+    }
+
+    /** The value of {@code build.user.email}. */
+    public String buildUserEmail() {
+        return buildUserEmail;
+    }
+
+    /** The value of {@code branch}. */
+    public String branch() {
+        return branch;
+    }
+
+    /** The value of {@code commit.id}. */
+    public String commitId() {
+        return commitId;
+    }
+
+    /** The value of {@code commit.id.abbrev}. */
+    public String commitIdAbbrev() {
+        return commitIdAbbrev;
+    }
+
+    /** The value of {@code commit.timestamp} in milliseconds since the epoch, or {@code UNKNOWN}. */
+    public long commitTime() {
+        return commitTime;
+    }
+
+    /** The value of {@code commit.user.name}. */
+    public String commitUserName() {
+        return commitUserName;
+    }
+
+    /** The value of {@code commit.user.email}. */
+    public String commitUserEmail() {
+        return commitUserEmail;
+    }
+
+    /** The value of {@code commit.message}. */
+    public String commitMessage() {
+        return commitMessage;
+    }
+
+    /** The value of {@code commit.message.short}. */
+    public String commitMessageShort() {
+        return commitMessageShort;
+    }
+
+    /** The value of {@code commit.dirty}, {@code false} if it wasn't recorded. */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /** The value of {@code commit.dirty.count}, or {@code UNKNOWN}. */
+    public int dirtyCount() {
+        return dirtyCount;
+    }
+
+    /** The value of {@code commit.describe}. */
+    public String describe() {
+        return describe;
+    }
+
+    /** The value of {@code tag.nearest}. */
+    public String nearestTag() {
+        return nearestTag;
+    }
+
+    /** The value of {@code tag.distance}, or {@code UNKNOWN}. */
+    public int tagDistance() {
+        return tagDistance;
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot" + toMap();
+    }
+
+    private static long parseLong(final String value) {
+        if (value == null) {
+            return UNKNOWN;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /** Reads the default resource on first use. */
+    private static final class Holder {
+
+        static final Snapshot INSTANCE = loadDefault();
+
+        private static Snapshot loadDefault() {
+            final ClassLoader classLoader = (Snapshot.class.getClassLoader() != null)
+                    ? Snapshot.class.getClassLoader()
+                    : ClassLoader.getSystemClassLoader();
+            try {
+                return load(classLoader, RESOURCE_NAME);
+            } catch (final IOException e) {
+                return EMPTY;
+            }
+        }
+
+    }
+
+}
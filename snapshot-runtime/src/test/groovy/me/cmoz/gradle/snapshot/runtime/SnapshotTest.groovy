@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot.runtime
+
+import org.junit.Test
+
+import static org.junit.Assert.*
+
+class SnapshotTest {
+
+    @Test
+    void "Typed accessors return the recorded values"() {
+        def snapshot = parse([
+                'commit.id': '7c252556ba9471b42ec648fb2d27df464e5d4ad8',
+                'commit.id.abbrev': '7c25255',
+                'commit.timestamp': '1416484800000',
+                'commit.message': 'Add a feature.\nWith a description.',
+                'commit.dirty': 'true',
+                'commit.dirty.count': '3',
+                'tag.nearest': 'v1.0',
+                'tag.distance': '2',
+                'branch': 'master'])
+
+        assertEquals('7c252556ba9471b42ec648fb2d27df464e5d4ad8', snapshot.commitId())
+        assertEquals('7c25255', snapshot.commitIdAbbrev())
+        assertEquals(1416484800000L, snapshot.commitTime())
+        assertEquals('Add a feature.\nWith a description.', snapshot.commitMessage())
+        assertTrue(snapshot.isDirty())
+        assertEquals(3, snapshot.dirtyCount())
+        assertEquals('v1.0', snapshot.nearestTag())
+        assertEquals(2, snapshot.tagDistance())
+        assertEquals('master', snapshot.branch())
+    }
+
+    @Test
+    void "Missing values are null or unknown"() {
+        def snapshot = parse(['commit.id': 'abc'])
+
+        assertNull(snapshot.branch())
+        assertEquals(Snapshot.UNKNOWN, snapshot.commitTime())
+        assertEquals(Snapshot.UNKNOWN, snapshot.dirtyCount())
+        assertFalse(snapshot.isDirty())
+        assertNull(snapshot.get('no.such.key'))
+    }
+
+    @Test
+    void "Values match those read by Properties"() {
+        def text = '''# a comment
+            ! another comment
+            commit.message = line one\\n\\
+                             line two
+            build.time:20.11.2014 @ 12\\:00\\:00 GMT
+            commit.user.name   Chris M\\u00f6lozian
+            key\\ with\\ spaces=value
+            empty
+            duplicate=first
+            duplicate=second
+            '''
+        def bytes = text.getBytes('ISO-8859-1')
+
+        def properties = new Properties()
+        properties.load(new ByteArrayInputStream(bytes))
+        def snapshot = Snapshot.parse(new ByteArrayInputStream(bytes))
+
+        assertEquals(new TreeMap(properties), new TreeMap(snapshot.toMap()))
+        assertEquals('Chris M\u00f6lozian', snapshot.commitUserName())
+    }
+
+    @Test
+    void "Keys are interned"() {
+        def snapshot = parse(['commit.id': 'abc'])
+        def key = new String('commit.id'.toCharArray())
+
+        assertSame(Snapshot.COMMIT_ID, snapshot.keys()[0])
+        assertEquals('abc', snapshot.get(key))
+    }
+
+    @Test(expected = IOException)
+    void "Malformed escape is rejected"() {
+        Snapshot.parse(new ByteArrayInputStream('key=\\u00zz'.getBytes('ISO-8859-1')))
+    }
+
+    @Test
+    void "Resource is read from the classloader"() {
+        def dir = File.createTempDir()
+        try {
+            new File(dir, Snapshot.RESOURCE_NAME).text = 'commit.id.abbrev=7c25255\n'
+            def loader = new URLClassLoader([dir.toURI().toURL()] as URL[], (ClassLoader) null)
+
+            assertEquals('7c25255', Snapshot.load(loader, Snapshot.RESOURCE_NAME).commitIdAbbrev())
+        } finally {
+            dir.deleteDir()
+        }
+    }
+
+    private static Snapshot parse(final Map<String, String> values) {
+        def properties = new Properties()
+        properties.putAll(values)
+        def out = new ByteArrayOutputStream()
+        properties.store(out, null)
+        Snapshot.parse(new ByteArrayInputStream(out.toByteArray()))
+    }
+
+}
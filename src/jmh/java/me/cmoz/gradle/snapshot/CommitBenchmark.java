@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures converting a {@code Commit} into the map of snapshot properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CommitBenchmark {
+
+    /** The length of the commit message. */
+    @Param({"100", "65536"})
+    public int messageSize;
+
+    private Commit commit;
+
+    @Setup
+    public void setUp() {
+        final char[] message = new char[messageSize];
+        Arrays.fill(message, 'x');
+        commit = Commit.builder()
+                .buildTime("2014-11-20T12:00:00+0000")
+                .buildAuthorName("Snapshot Benchmark")
+                .buildAuthorEmail("benchmark@cmoz.me")
+                .branchName("master")
+                .commitId("7c252556ba9471b42ec648fb2d27df464e5d4ad8")
+                .commitTime("2014-11-20T12:00:00+0000")
+                .commitUserName("Snapshot Benchmark")
+                .commitUserEmail("benchmark@cmoz.me")
+                .commitMessage(new String(message))
+                .build();
+    }
+
+    @Benchmark
+    public Map<String, String> asMap() {
+        return commit.asMap();
+    }
+
+}
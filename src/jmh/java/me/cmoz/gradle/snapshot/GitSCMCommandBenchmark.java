@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the latest commit from Git repositories of different
+ * shapes with {@code GitSCMCommand}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class GitSCMCommandBenchmark {
+
+    /** The depth of the history of {@code master}. */
+    @Param({"10", "10000"})
+    public int commits;
+
+    /** The number of loose branches. */
+    @Param({"0", "1000"})
+    public int branches;
+
+    /** The number of tags in {@code packed-refs}. */
+    @Param({"0", "100000"})
+    public int tags;
+
+    /** The length of the message of the {@code HEAD} commit. */
+    @Param({"100", "65536"})
+    public int messageSize;
+
+    /** Whether the objects are packed or loose. */
+    @Param({"false", "true"})
+    public boolean packed;
+
+    private File workDir;
+
+    private GitSCMCommand scmCmd;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = SyntheticRepositories.newTempDir("git-benchmark");
+        scmCmd = new GitSCMCommand(
+                SyntheticRepositories.createGit(workDir, commits, branches, tags, messageSize, packed));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticRepositories.delete(workDir);
+    }
+
+    @Benchmark
+    public Commit getLatestCommit() {
+        return scmCmd.getLatestCommit(SnapshotPluginExtension.DEFAULT_DATEFORMAT);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the SCM repository of a project nested {@code depth}
+ * directories below the working copy root. A cold scan searches every
+ * directory, a warm scan is answered by the build's {@code ScanCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SCMUtilBenchmark {
+
+    /** The number of directories between the project and the repository. */
+    @Param({"0", "8", "32"})
+    public int depth;
+
+    private File workDir;
+
+    private Project project;
+
+    private SCMUtil.ScanCache scanCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = SyntheticRepositories.newTempDir("scan-benchmark");
+        SyntheticRepositories.createGit(workDir, 1, 0, 0, 100, false);
+
+        File projectDir = workDir;
+        for (int i = 0; i < depth; i++) {
+            projectDir = new File(projectDir, "module" + i);
+        }
+        if (!projectDir.isDirectory() && !projectDir.mkdirs()) {
+            throw new IOException("Could not create " + projectDir);
+        }
+        project = ProjectBuilder.builder().withProjectDir(projectDir).build();
+        scanCache = SCMUtil.forBuild(project, SCMUtil.ScanCache.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticRepositories.delete(workDir);
+    }
+
+    @Benchmark
+    public File scanDirCold() {
+        scanCache.getDirs().clear();
+        return SCMUtil.scanDir(project, HgSCMCommand.REPO_DIRNAME, GitSCMCommand.REPO_DIRNAME);
+    }
+
+    @Benchmark
+    public File scanDirWarm() {
+        return SCMUtil.scanDir(project, HgSCMCommand.REPO_DIRNAME, GitSCMCommand.REPO_DIRNAME);
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import org.gradle.tooling.BuildLauncher;
+import org.gradle.tooling.GradleConnector;
+import org.gradle.tooling.ProjectConnection;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the cost of the plugin in multi-project builds of different
+ * sizes, run by a real Gradle daemon.
+ *
+ * <p>A build with every project applying the plugin is generated over a
+ * synthetic Git or Mercurial repository, with its projects either side by
+ * side or nested in groups of ten. For each build three phases are measured,
+ * with and without {@code --parallel}:
+ * <ul>
+ *   <li>{@code configuration}: configuring the projects and the task graph,
+ *       with {@code --dry-run}.</li>
+ *   <li>{@code execution}: running every {@code snapshot} task, with
+ *       {@code --rerun-tasks}.</li>
+ *   <li>{@code no-op}: a build in which every {@code snapshot} task is
+ *       up-to-date, with the {@code on_change} build time policy.</li>
+ * </ul>
+ *
+ * <p>The builds are run through the Tooling API with the Gradle installation
+ * which runs the benchmark, and the plugin is put on their buildscript
+ * classpath. The results are printed as a table and written as CSV, and when
+ * the results of an earlier run are given they are compared with them.
+ *
+ * <p>Run with {@code gradle scaleBenchmark}, the options are system
+ * properties:
+ * <pre>
+ * {@code
+ *   snapshot.gradleHome      = <the Gradle installation to run the builds with>
+ *   snapshot.pluginClasspath = <the plugin jar and its dependencies>
+ *   snapshot.reportDir       = <where to write results.csv>
+ *   snapshot.sizes           = <numbers of subprojects, default 10,100,500>
+ *   snapshot.iterations      = <measured builds of each phase, default 5>
+ *   snapshot.baseline        = <a results.csv to compare with, optional>
+ * }
+ * </pre>
+ */
+public final class ScaleBenchmark {
+
+    /** The header of the CSV report. */
+    private static final String CSV_HEADER = "scm,layout,projects,parallel,phase,median_ms,min_ms,max_ms";
+
+    /** The depth of the generated history. */
+    private static final int COMMITS = 1000;
+
+    /** How the subprojects of a generated build are laid out. */
+    enum Layout {
+
+        /** Every subproject is a child of the root project. */
+        FLAT,
+
+        /** The subprojects are in groups of ten, in groups of a hundred. */
+        NESTED
+
+    }
+
+    /** A phase of the build which is measured. */
+    enum Phase {
+
+        CONFIGURATION("--dry-run"),
+        EXECUTION("--rerun-tasks"),
+        NO_OP();
+
+        private final String[] arguments;
+
+        Phase(final String... arguments) {
+            this.arguments = arguments;
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+        }
+
+    }
+
+    private final File gradleHome;
+
+    private final String pluginClasspath;
+
+    private final int iterations;
+
+    private final File workDir;
+
+    private final List<String> rows = new ArrayList<String>();
+
+    private ScaleBenchmark(
+            final File gradleHome,
+            final String pluginClasspath,
+            final int iterations,
+            final File workDir) {
+        this.gradleHome = gradleHome;
+        this.pluginClasspath = pluginClasspath;
+        this.iterations = iterations;
+        this.workDir = workDir;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final File gradleHome = new File(required("snapshot.gradleHome"));
+        final String pluginClasspath = required("snapshot.pluginClasspath");
+        final File reportDir = new File(System.getProperty("snapshot.reportDir", "build/reports/scale"));
+        final int iterations = Integer.parseInt(System.getProperty("snapshot.iterations", "5"));
+        final String baseline = System.getProperty("snapshot.baseline");
+        final List<Integer> sizes = new ArrayList<Integer>();
+        for (final String size : System.getProperty("snapshot.sizes", "10,100,500").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+
+        final File workDir = SyntheticRepositories.newTempDir("scale-benchmark");
+        try {
+            final ScaleBenchmark benchmark = new ScaleBenchmark(gradleHome, pluginClasspath, iterations, workDir);
+            for (final String scm : Arrays.asList("git", "hg")) {
+                for (final Layout layout : Layout.values()) {
+                    for (final int size : sizes) {
+                        benchmark.run(scm, layout, size);
+                    }
+                }
+            }
+            benchmark.report(reportDir, (baseline != null) ? new File(baseline) : null);
+        } finally {
+            SyntheticRepositories.delete(workDir);
+        }
+    }
+
+    private static String required(final String name) {
+        final String value = System.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("The system property '" + name + "' is required.");
+        }
+        return value;
+    }
+
+    /** Generates a build and measures each phase of it, with and without {@code --parallel}. */
+    private void run(final String scm, final Layout layout, final int size) throws IOException {
+        final String name = scm + "-" + layout.name().toLowerCase(Locale.ENGLISH) + "-" + size;
+        final File buildDir = new File(workDir, name);
+        if (!buildDir.mkdirs()) {
+            throw new IOException("Could not create " + buildDir);
+        }
+        if (scm.equals("git")) {
+            SyntheticRepositories.createGit(buildDir, COMMITS, 0, 0, 100, true);
+        } else {
+            SyntheticRepositories.createHg(buildDir, COMMITS, 100);
+        }
+        writeBuild(buildDir, layout, size);
+
+        final ProjectConnection connection = GradleConnector.newConnector()
+                .useInstallation(gradleHome)
+                .useGradleUserHomeDir(new File(workDir, "gradle-home"))
+                .forProjectDirectory(buildDir)
+                .connect();
+        try {
+            for (final boolean parallel : new boolean[] {false, true}) {
+                System.out.println("Running " + name + (parallel ? " --parallel" : "") + "...");
+                // the first build warms up the daemon and writes the outputs and the caches
+                build(connection, parallel, Phase.EXECUTION);
+                for (final Phase phase : Phase.values()) {
+                    final long[] samples = new long[iterations];
+                    for (int i = 0; i < iterations; i++) {
+                        samples[i] = build(connection, parallel, phase);
+                    }
+                    Arrays.sort(samples);
+                    rows.add(scm + "," + layout.name().toLowerCase(Locale.ENGLISH) + "," + size + ","
+                            + parallel + "," + phase.label() + "," + samples[samples.length / 2] + ","
+                            + samples[0] + "," + samples[samples.length - 1]);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /** Runs the {@code snapshot} tasks of a build, returns how long it took in milliseconds. */
+    private long build(final ProjectConnection connection, final boolean parallel, final Phase phase) {
+        final List<String> arguments = new ArrayList<String>(Arrays.asList(phase.arguments));
+        if (parallel) {
+            arguments.add("--parallel");
+        }
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final BuildLauncher launcher = connection.newBuild()
+                .forTasks(SnapshotPlugin.SNAPSHOT_TASK_NAME)
+                .withArguments(arguments.toArray(new String[arguments.size()]));
+        launcher.setStandardOutput(output);
+        launcher.setStandardError(output);
+
+        final long start = System.nanoTime();
+        launcher.run();
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    /** Writes the settings and build script of a generated build. */
+    private void writeBuild(final File buildDir, final Layout layout, final int size) throws IOException {
+        final StringBuilder settings = new StringBuilder("rootProject.name = 'scale'\n");
+        for (int i = 0; i < size; i++) {
+            final String path = (layout == Layout.FLAT)
+                    ? "p" + i
+                    : "g" + (i / 100) + ":g" + (i / 100) + "-" + ((i / 10) % 10) + ":p" + i;
+            settings.append("include '").append(path).append("'\n");
+            if (!new File(buildDir, path.replace(':', '/')).mkdirs()) {
+                throw new IOException("Could not create the directory of " + path);
+            }
+        }
+        write(new File(buildDir, "settings.gradle"), settings.toString());
+
+        final StringBuilder classpath = new StringBuilder();
+        for (final String entry : pluginClasspath.split(File.pathSeparator)) {
+            if (classpath.length() > 0) {
+                classpath.append(", ");
+            }
+            classpath.append('\'').append(entry.replace('\\', '/').replace("'", "\\'")).append('\'');
+        }
+        write(new File(buildDir, "build.gradle"), ""
+                + "buildscript {\n"
+                + "    dependencies {\n"
+                + "        classpath files(" + classpath + ")\n"
+                + "    }\n"
+                + "}\n"
+                + "\n"
+                + "allprojects {\n"
+                + "    apply plugin: 'snapshot'\n"
+                + "    snapshot.buildTimePolicy = 'on_change'\n"
+                + "}\n");
+    }
+
+    /** Prints the results and writes them to {@code results.csv}, compared with a baseline if there is one. */
+    private void report(final File reportDir, final File baselineFile) throws IOException {
+        final Map<String, Long> baseline = (baselineFile != null)
+                ? readBaseline(baselineFile)
+                : Collections.<String, Long>emptyMap();
+
+        final StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-4s %-7s %8s %-8s %-14s %10s %10s %10s %10s",
+                "scm", "layout", "projects", "parallel", "phase", "median ms", "min ms", "max ms", "vs base"));
+        for (final String row : rows) {
+            csv.append(row).append('\n');
+
+            final String[] fields = row.split(",");
+            final Long base = baseline.get(key(fields));
+            final long median = Long.parseLong(fields[5]);
+            final String change = (base != null && base > 0)
+                    ? String.format(Locale.ROOT, "%+.1f%%", (median - base) * 100.0 / base)
+                    : "";
+            System.out.println(String.format(Locale.ROOT, "%-4s %-7s %8s %-8s %-14s %10s %10s %10s %10s",
+                    fields[0], fields[1], fields[2], fields[3], fields[4], fields[5], fields[6], fields[7], change));
+        }
+
+        if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+            throw new IOException("Could not create " + reportDir);
+        }
+        final File resultFile = new File(reportDir, "results.csv");
+        write(resultFile, csv.toString());
+        System.out.println();
+        System.out.println("Results written to " + resultFile);
+    }
+
+    /** Reads the medians of an earlier {@code results.csv}, keyed by everything but the times. */
+    private static Map<String, Long> readBaseline(final File file) throws IOException {
+        final Map<String, Long> medians = new HashMap<String, Long>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(",");
+                if (fields.length == 8 && !line.equals(CSV_HEADER)) {
+                    medians.put(key(fields), Long.parseLong(fields[5]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return medians;
+    }
+
+    private static String key(final String[] fields) {
+        return fields[0] + ',' + fields[1] + ',' + fields[2] + ',' + fields[3] + ',' + fields[4];
+    }
+
+    private static void write(final File file, final String text) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+
+/**
+ * Generates Git and Mercurial repositories of a given shape for the
+ * benchmarks. The repositories are written directly (without the {@code git}
+ * or {@code hg} tools) so the benchmarks can run anywhere.
+ */
+final class SyntheticRepositories {
+
+    /** The time of the first generated commit, later commits are a minute apart. */
+    private static final long EPOCH = 1400000000000L;
+
+    /** The user of every generated commit. */
+    private static final String NAME = "Snapshot Benchmark";
+    private static final String EMAIL = "benchmark@cmoz.me";
+
+    /** The largest Mercurial revlog which is stored inline with its index. */
+    private static final int MAX_INLINE_REVLOG = 128 * 1024;
+
+    /** The revlog version and flags. */
+    private static final int REVLOGV1 = 1;
+    private static final int REVLOG_INLINE = 1 << 16;
+
+    /** The id of a missing Mercurial parent. */
+    private static final byte[] NULL_NODE = new byte[20];
+
+    private SyntheticRepositories() {}
+
+    /**
+     * Creates a Git repository in {@code dir} with a linear history.
+     *
+     * @param dir The working copy directory, the {@code .git} directory is
+     *            created inside it.
+     * @param commits The number of commits on {@code master}.
+     * @param branches The number of extra (loose) branches.
+     * @param tags The number of lightweight tags in {@code packed-refs}.
+     * @param messageSize The length of the message of the {@code HEAD} commit.
+     * @param packed Whether the objects are packed or left loose.
+     * @return The {@code .git} directory.
+     * @throws IOException If the repository could not be written.
+     */
+    public static File createGit(
+            final File dir,
+            final int commits,
+            final int branches,
+            final int tags,
+            final int messageSize,
+            final boolean packed) throws IOException {
+        final File gitDir = new File(dir, Constants.DOT_GIT);
+        final Repository repo = FileRepositoryBuilder.create(gitDir);
+        repo.create();
+
+        final List<ObjectId> history = new ArrayList<ObjectId>(commits);
+        final ObjectInserter inserter = repo.newObjectInserter();
+        try {
+            final ObjectId blob = inserter.insert(Constants.OBJ_BLOB, Constants.encode("Synthetic README\n"));
+            final TreeFormatter tree = new TreeFormatter();
+            tree.append("README", FileMode.REGULAR_FILE, blob);
+            final ObjectId treeId = inserter.insert(tree);
+
+            ObjectId parent = null;
+            for (int i = 0; i < commits; i++) {
+                final PersonIdent ident = new PersonIdent(
+                        NAME, EMAIL, new Date(EPOCH + i * 60000L), TimeZone.getTimeZone("UTC"));
+                final CommitBuilder commit = new CommitBuilder();
+                commit.setTreeId(treeId);
+                if (parent != null) {
+                    commit.setParentId(parent);
+                }
+                commit.setAuthor(ident);
+                commit.setCommitter(ident);
+                commit.setMessage((i == commits - 1)
+                        ? message(i, messageSize)
+                        : "Commit " + i + ". Generated for benchmarks.\n");
+                parent = inserter.insert(commit);
+                history.add(parent);
+            }
+            inserter.flush();
+        } finally {
+            inserter.release();
+        }
+
+        updateRef(repo, Constants.R_HEADS + Constants.MASTER, history.get(history.size() - 1));
+        for (int i = 0; i < branches; i++) {
+            updateRef(repo, Constants.R_HEADS + "branch-" + i, history.get(i % history.size()));
+        }
+
+        if (packed) {
+            try {
+                Git.wrap(repo).gc().call();
+            } catch (final GitAPIException e) {
+                throw new IOException("Could not pack " + gitDir, e);
+            }
+        }
+        repo.close();
+
+        if (tags > 0) {
+            addPackedTags(gitDir, history, tags);
+        }
+        return gitDir;
+    }
+
+    /**
+     * Creates a Mercurial repository in {@code dir} with a linear history on
+     * the {@code default} branch. Only the changelog and dirstate are written,
+     * which is all that's read to describe the tip.
+     *
+     * @param dir The working copy directory, the {@code .hg} directory is
+     *            created inside it.
+     * @param changesets The number of changesets.
+     * @param messageSize The length of the message of the tip changeset.
+     * @return The {@code .hg} directory.
+     * @throws IOException If the repository could not be written.
+     */
+    public static File createHg(final File dir, final int changesets, final int messageSize)
+            throws IOException {
+        final File hgDir = new File(dir, ".hg");
+        final File storeDir = new File(hgDir, "store");
+        if (!storeDir.mkdirs()) {
+            throw new IOException("Could not create " + storeDir);
+        }
+        write(new File(hgDir, "requires"), "revlogv1\nstore\nfncache\ndotencode\n".getBytes("UTF-8"));
+        write(new File(storeDir, "00manifest.i"), new byte[0]);
+
+        final ByteArrayOutputStream index = new ByteArrayOutputStream(changesets * 64);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final List<byte[]> chunks = new ArrayList<byte[]>(changesets);
+        byte[] parent = NULL_NODE;
+        for (int i = 0; i < changesets; i++) {
+            final String description = (i == changesets - 1)
+                    ? message(i, messageSize)
+                    : "Changeset " + i + ". Generated for benchmarks.";
+            final byte[] text = (repeat('0', 40) + "\n"
+                    + NAME + " <" + EMAIL + ">\n"
+                    + ((EPOCH / 1000) + i * 60) + " 0\n"
+                    + "README\n"
+                    + "\n"
+                    + description).getBytes("UTF-8");
+            final byte[] node = nodeid(parent, text);
+            final byte[] chunk = compress(text);
+
+            final DataOutputStream entry = new DataOutputStream(index);
+            final long offset = data.size();
+            entry.writeLong((i == 0) ? 0 : (offset << 16));
+            entry.writeInt(chunk.length);
+            entry.writeInt(text.length);
+            entry.writeInt(i);                       // base, every revision is a full text
+            entry.writeInt(i);                       // link
+            entry.writeInt(i - 1);                   // p1, -1 is the null revision
+            entry.writeInt(-1);                      // p2
+            entry.write(node);
+            entry.write(new byte[12]);
+            data.write(chunk);
+            chunks.add(chunk);
+            parent = node;
+        }
+
+        final byte[] indexBytes = index.toByteArray();
+        final boolean inline = (indexBytes.length + data.size()) < MAX_INLINE_REVLOG;
+        writeVersion(indexBytes, inline ? (REVLOGV1 | REVLOG_INLINE) : REVLOGV1);
+        if (inline) {
+            final ByteArrayOutputStream revlog = new ByteArrayOutputStream();
+            for (int i = 0; i < chunks.size(); i++) {
+                revlog.write(indexBytes, i * 64, 64);
+                revlog.write(chunks.get(i));
+            }
+            write(new File(storeDir, "00changelog.i"), revlog.toByteArray());
+        } else {
+            write(new File(storeDir, "00changelog.i"), indexBytes);
+            write(new File(storeDir, "00changelog.d"), data.toByteArray());
+        }
+
+        final ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+        dirstate.write(parent);
+        dirstate.write(NULL_NODE);
+        write(new File(hgDir, "dirstate"), dirstate.toByteArray());
+        return hgDir;
+    }
+
+    /**
+     * Creates an empty temporary directory for a generated repository.
+     *
+     * @param prefix The prefix of the directory name.
+     * @return The new directory.
+     * @throws IOException If the directory could not be created.
+     */
+    public static File newTempDir(final String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes a generated repository.
+     *
+     * @param file The directory (or file) to delete.
+     */
+    public static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            throw new IllegalStateException("Could not delete " + file);
+        }
+    }
+
+    private static void updateRef(final Repository repo, final String name, final ObjectId id)
+            throws IOException {
+        final RefUpdate update = repo.updateRef(name);
+        update.setNewObjectId(id);
+        update.forceUpdate();
+    }
+
+    /** Adds lightweight tags to the (possibly existing) sorted {@code packed-refs} file. */
+    private static void addPackedTags(final File gitDir, final List<ObjectId> history, final int tags)
+            throws IOException {
+        final File packedRefs = new File(gitDir, Constants.PACKED_REFS);
+        final List<String> lines = new ArrayList<String>();
+        if (packedRefs.isFile()) {
+            for (final String line : new String(read(packedRefs), "UTF-8").split("\n")) {
+                if (line.length() > 0 && line.charAt(0) != '#' && line.charAt(0) != '^') {
+                    lines.add(line);
+                }
+            }
+        }
+        for (int i = 0; i < tags; i++) {
+            lines.add(history.get(i % history.size()).name() + " " + Constants.R_TAGS + "v" + i);
+        }
+        Collections.sort(lines, new java.util.Comparator<String>() {
+            @Override
+            public int compare(final String a, final String b) {
+                return a.substring(41).compareTo(b.substring(41));
+            }
+        });
+
+        final Writer out = new OutputStreamWriter(new FileOutputStream(packedRefs), "UTF-8");
+        try {
+            out.write("# pack-refs with: peeled fully-peeled sorted \n");
+            for (final String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String message(final int i, final int size) {
+        final StringBuilder message = new StringBuilder("Commit " + i + ". ");
+        while (message.length() < size) {
+            message.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        return message.append('\n').toString();
+    }
+
+    private static byte[] nodeid(final byte[] parent, final byte[] text) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            // the parents are hashed in sorted order, the null node sorts first
+            sha1.update(NULL_NODE);
+            sha1.update(parent);
+            sha1.update(text);
+            return sha1.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] compress(final byte[] text) {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(text);
+        deflater.finish();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(text.length);
+        final byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static void writeVersion(final byte[] index, final int version) {
+        index[0] = (byte) (version >>> 24);
+        index[1] = (byte) (version >>> 16);
+        index[2] = (byte) (version >>> 8);
+        index[3] = (byte) version;
+    }
+
+    private static String repeat(final char c, final int n) {
+        final char[] chars = new char[n];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final java.io.InputStream in = new java.io.FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(final File file, final byte[] bytes) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the build information as the source of a Java class with a {@code
+ * public static final String} constant for each property, e.g. {@code
+ * commit.id.abbrev} becomes {@code COMMIT_ID_ABBREV}.
+ */
+final class BuildInfoWriter {
+
+    /** A Java identifier, one part of a package name. */
+    private static final Pattern IDENTIFIER = Pattern.compile("[\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String packageName;
+
+    private final String className;
+
+    /**
+     * Creates a writer for a class.
+     *
+     * @param packageName The package of the class, may be empty.
+     * @param className The simple name of the class.
+     * @throws IllegalArgumentException If the names aren't valid Java names.
+     */
+    public BuildInfoWriter(@NonNull final String packageName, @NonNull final String className) {
+        if (packageName.length() > 0) {
+            for (final String part : packageName.split("\\.", -1)) {
+                if (!IDENTIFIER.matcher(part).matches()) {
+                    throw new IllegalArgumentException("Invalid package name '" + packageName + "'.");
+                }
+            }
+        }
+        if (!IDENTIFIER.matcher(className).matches()) {
+            throw new IllegalArgumentException("Invalid class name '" + className + "'.");
+        }
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    /**
+     * The source file of the class in a source directory.
+     *
+     * @param sourceDir The root of the source directory.
+     * @return The {@code .java} file below the directory of the package.
+     */
+    public File getSourceFile(@NonNull final File sourceDir) {
+        final File packageDir = (packageName.length() > 0)
+                ? new File(sourceDir, packageName.replace('.', File.separatorChar))
+                : sourceDir;
+        return new File(packageDir, className + ".java");
+    }
+
+    /**
+     * Writes the class to its source file in {@code sourceDir}, unless the
+     * file already has the same source.
+     *
+     * @param sourceDir The root of the source directory.
+     * @param properties The build information.
+     * @param label A comment for the top of the file.
+     * @return {@code true} if the file was written.
+     * @throws IOException If the file could not be written.
+     */
+    public boolean write(
+            @NonNull final File sourceDir,
+            @NonNull final Map<String, String> properties,
+            @NonNull final String label) throws IOException {
+        return SCMUtil.writeIfChanged(getSourceFile(sourceDir), render(properties, label));
+    }
+
+    /**
+     * Renders the source of the class, with the constants sorted by name.
+     *
+     * @param properties The build information.
+     * @param label A comment for the top of the file.
+     * @return The source of the class.
+     */
+    public byte[] render(@NonNull final Map<String, String> properties, @NonNull final String label) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("// ").append(label).append('\n');
+        if (packageName.length() > 0) {
+            sb.append("package ").append(packageName).append(";\n");
+        }
+        sb.append("\n/**\n * Build information from the SCM repository.\n */\n");
+        sb.append("public final class ").append(className).append(" {\n");
+
+        final Set<String> names = new HashSet<String>();
+        for (final Map.Entry<String, String> property : new TreeMap<String, String>(properties).entrySet()) {
+            if (!names.add(constantName(property.getKey()))) {
+                throw new IllegalArgumentException(
+                        "Property '" + property.getKey() + "' has the same constant name as another property.");
+            }
+            sb.append("\n    /** The value of {@code ").append(property.getKey()).append("}. */\n");
+            sb.append("    public static final String ").append(constantName(property.getKey())).append(" = ");
+            sb.append(literal(property.getValue()));
+            sb.append(";\n");
+        }
+        sb.append("\n    private ").append(className).append("() {}\n\n}\n");
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /** Turns a property name into a constant name, e.g. {@code commit.id} into {@code COMMIT_ID}. */
+    static String constantName(final String key) {
+        final StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+            sb.insert(0, '_');
+        }
+        return sb.toString().toUpperCase(Locale.ENGLISH);
+    }
+
+    /** Quotes a value as a Java string literal, with anything but printable ASCII escaped. */
+    static String literal(final String value) {
+        final StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
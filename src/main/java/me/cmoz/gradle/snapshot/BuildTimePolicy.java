@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * Controls how the {@code build.time} property affects whether the
+ * {@code SnapshotTask} is up-to-date.
+ */
+public enum BuildTimePolicy {
+
+    /**
+     * The task runs on every build so {@code build.time} is always the time of
+     * the current build.
+     */
+    ALWAYS,
+
+    /**
+     * The task is skipped when the SCM repository state is unchanged, so
+     * {@code build.time} is the time of the last build which changed it.
+     */
+    ON_CHANGE
+
+}
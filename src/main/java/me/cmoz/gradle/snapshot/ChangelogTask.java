@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.Task;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A task to write the commits since the most recent tag (or another
+ * revision) in an SCM repository to a changelog file, e.g. for release
+ * notes.
+ *
+ * <p>The commits are written as they're read, so a changelog of tens of
+ * thousands of commits is written in the same memory as a short one.
+ *
+ * <p>As with the {@code SnapshotTask}, the configuration and the SCM
+ * repository are resolved once the task graph is ready, and the action
+ * doesn't look up the project or the {@code snapshot} extension.
+ */
+public class ChangelogTask extends DefaultTask {
+
+    /** A full Git or Mercurial commit id. */
+    private static final Pattern COMMIT_ID = Pattern.compile("[0-9a-fA-F]{40}");
+
+    /** The time spent and data read by this task, for the {@code SnapshotReport}. */
+    private final Metrics metrics = new Metrics();
+
+    /** The configuration of the task, once it's final. */
+    private SnapshotSettings settings;
+
+    /** Whether the build script can no longer change the configuration. */
+    private boolean configured;
+
+    /** The command for the SCM repository of the project, {@code null} if there is none. */
+    private SCMCommand scmCmd;
+
+    /** The metrics of this build, shared by every project. */
+    private SnapshotReport report;
+
+    public ChangelogTask() {
+        getOutputs().upToDateWhen(new Spec<Task>() {
+            @Override
+            public boolean isSatisfiedBy(final Task task) {
+                // a new tag, or a branch or relative revision which moved, changes the start of the
+                // changelog without changing the state files
+                return isCommitId(getSince());
+            }
+        });
+    }
+
+    /**
+     * Whether a revision is a full commit id, which always names the same
+     * commit.
+     *
+     * @param revision The revision, may be {@code null}.
+     * @return {@code true} if the revision can't move.
+     */
+    static boolean isCommitId(@Nullable final String revision) {
+        return revision != null && COMMIT_ID.matcher(revision).matches();
+    }
+
+    /**
+     * Resolves the configuration of the task from the project, together with
+     * the SCM repository. Once the configuration is final this is done only
+     * the first time it's needed, before then it's done every time, since
+     * the build script may still change it.
+     *
+     * @return The {@code SnapshotSettings} of the task.
+     */
+    synchronized SnapshotSettings resolve() {
+        if (settings != null) {
+            return settings;
+        }
+
+        final SnapshotPluginExtension ext = getProject().getExtensions().getByType(SnapshotPluginExtension.class);
+        final SnapshotSettings resolved = SnapshotSettings.of(getProject(), ext);
+
+        final Metrics previous = metrics.enter();
+        try {
+            scmCmd = SCMUtil.findCommand(getProject(), resolved.getIsolation());
+        } finally {
+            Metrics.exit(previous);
+        }
+        report = SnapshotReport.forBuild(getProject());
+        if (configured) {
+            settings = resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * Takes the configuration as final, it's resolved the next time it's
+     * needed and kept from then on. This is called when the task graph is
+     * ready, or when the task runs without one.
+     */
+    synchronized void configured() {
+        configured = true;
+    }
+
+    @Input
+    public String getDateFormat() {
+        return resolve().getDateFormat();
+    }
+
+    @Input
+    @Optional
+    @Nullable
+    public String getSince() {
+        return resolve().getChangelogSince();
+    }
+
+    @Input
+    public int getLimit() {
+        return resolve().getChangelogLimit();
+    }
+
+    /**
+     * The files which record the state of the SCM repository, the task is
+     * up-to-date unless one of these changes.
+     */
+    @InputFiles
+    public List<File> getStateFiles() {
+        resolve();
+        return (scmCmd != null)
+                ? scmCmd.getStateFiles()
+                : Collections.<File>emptyList();
+    }
+
+    @OutputFile
+    public File getOutputFile() {
+        return resolve().getChangelogFile();
+    }
+
+    /**
+     * The main action for this task.
+     *
+     * <p>The task walks the history from the checked out revision back to the
+     * start of the changelog and writes a line for each commit.
+     */
+    @TaskAction
+    public void action() throws IOException {
+        configured();
+        final SnapshotSettings settings = resolve();
+        final Metrics previous = metrics.enter();
+        try {
+            if (scmCmd == null) {
+                this.getLogger().warn("No supported SCM repository found.");
+                new ChangelogWriter(settings.getChangelogFile(), settings.getDateFormat(),
+                        settings.getChangelogLimit()).close();
+            } else {
+                final int count = scmCmd.writeChangelog(settings.getChangelogSince(),
+                        settings.getChangelogLimit(), settings.getDateFormat(), settings.getChangelogFile());
+                this.getLogger().info("Wrote {} commits to the changelog {}.", count, settings.getChangelogFile());
+            }
+        } finally {
+            Metrics.exit(previous);
+        }
+
+        report.add(getPath(), metrics, settings.isVerbose());
+    }
+
+}
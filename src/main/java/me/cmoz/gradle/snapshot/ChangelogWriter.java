@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes changelog entries to a file as they're read from the repository, so
+ * no commit has to be kept in memory once its line is written.
+ *
+ * <p>Each entry is one line:
+ * <pre>
+ * {@code * <summary> (<abbrev id>, <author>, <commit time>)}
+ * </pre>
+ * where the summary is the first line of the commit message.
+ */
+final class ChangelogWriter implements Closeable {
+
+    private final Writer writer;
+
+    private final SimpleDateFormat sdf;
+
+    /** The most entries to write, {@code 0} for no limit. */
+    private final int limit;
+
+    /** The number of entries written so far. */
+    @Getter
+    private int count;
+
+    /**
+     * Creates a writer which replaces the contents of {@code outputFile}.
+     *
+     * @param outputFile The file to write the changelog to.
+     * @param dateFormat The format of the commit times.
+     * @param limit The most entries to write, {@code 0} for no limit.
+     * @throws IOException If the file could not be created.
+     */
+    public ChangelogWriter(@NonNull final File outputFile, @NonNull final String dateFormat, final int limit)
+            throws IOException {
+        final File parent = outputFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create the directory '" + parent + "'.");
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
+        this.sdf = new SimpleDateFormat(dateFormat);
+        this.limit = limit;
+    }
+
+    /**
+     * Whether the limit of entries has been written, the caller should stop
+     * reading commits.
+     */
+    public boolean isFull() {
+        return (limit > 0) && (count >= limit);
+    }
+
+    /**
+     * Writes an entry.
+     *
+     * @param id The full id of the commit.
+     * @param message The commit message.
+     * @param author The name of the author.
+     * @param time The commit time in milliseconds since the epoch.
+     * @throws IOException If the entry could not be written.
+     */
+    public void write(
+            @NonNull final String id,
+            @NonNull final String message,
+            @NonNull final String author,
+            final long time) throws IOException {
+        final String trimmed = message.trim();
+        final int endIndex = trimmed.indexOf('\n');
+        final String summary = (endIndex != -1) ? trimmed.substring(0, endIndex).trim() : trimmed;
+
+        writer.write("* ");
+        writer.write(summary);
+        writer.write(" (");
+        writer.write(id.substring(0, Math.min(Commit.ABBREV_LENGTH, id.length())));
+        writer.write(", ");
+        writer.write(author);
+        writer.write(", ");
+        writer.write(sdf.format(new Date(time)));
+        writer.write(")\n");
+        count++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+}
@@ -20,7 +20,10 @@ import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.Builder;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -44,11 +47,21 @@ final class Commit {
     public static final String ID = "commit.id";
     public static final String ID_ABBREV = "commit.id.abbrev";
     public static final String TIME = "commit.time";
+    public static final String TIMESTAMP = "commit.timestamp";
     public static final String USER_NAME = "commit.user.name";
     public static final String USER_EMAIL = "commit.user.email";
     public static final String MESSAGE_FULL = "commit.message";
     public static final String MESSAGE_SHORT = "commit.message.short";
 
+    /** The property keys which describe the build rather than the commit. */
+    public static final List<String> BUILD_KEYS = Collections.unmodifiableList(Arrays.asList(
+            BUILD_TIME, BUILD_USER_NAME, BUILD_USER_EMAIL));
+
+    /** All of the property keys in a {@code Commit}. */
+    public static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(
+            BUILD_TIME, BUILD_USER_NAME, BUILD_USER_EMAIL, BRANCH, ID, ID_ABBREV, TIME,
+            TIMESTAMP, USER_NAME, USER_EMAIL, MESSAGE_FULL, MESSAGE_SHORT));
+
     /** The value for the {@code build.time} key. */
     private final String buildTime;
 
@@ -67,6 +80,9 @@ final class Commit {
     /** The value for the {@code commit.time} key. */
     private final String commitTime;
 
+    /** The value for the {@code commit.timestamp} key, in milliseconds since the epoch. */
+    private final String commitTimestamp;
+
     /** The value for the {@code commit.user.name} key. */
     private final String commitUserName;
 
@@ -86,6 +102,9 @@ final class Commit {
         map.put(ID, getCommitId());
         map.put(ID_ABBREV, getCommitId().substring(0, ABBREV_LENGTH));
         map.put(TIME, getCommitTime());
+        if (getCommitTimestamp() != null) {
+            map.put(TIMESTAMP, getCommitTimestamp());
+        }
         map.put(USER_NAME, getCommitUserName());
         map.put(USER_EMAIL, getCommitUserEmail());
         map.put(MESSAGE_FULL, getCommitMessage());
@@ -98,4 +117,25 @@ final class Commit {
         return map;
     }
 
+    /**
+     * Creates a {@code Commit} from the properties produced by {@code asMap()}.
+     *
+     * @param map The commit properties.
+     * @return The {@code Commit} with the values from the properties.
+     */
+    public static Commit fromMap(final Map<String, String> map) {
+        return Commit.builder()
+                .buildTime(map.get(BUILD_TIME))
+                .buildAuthorName(map.get(BUILD_USER_NAME))
+                .buildAuthorEmail(map.get(BUILD_USER_EMAIL))
+                .branchName(map.get(BRANCH))
+                .commitId(map.get(ID))
+                .commitTime(map.get(TIME))
+                .commitTimestamp(map.get(TIMESTAMP))
+                .commitUserName(map.get(USER_NAME))
+                .commitUserEmail(map.get(USER_EMAIL))
+                .commitMessage(map.get(MESSAGE_FULL))
+                .build();
+    }
+
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.gradle.api.Project;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A build-scoped cache of the {@code Commit} read from each SCM repository.
+ *
+ * <p>One instance is shared by every project in a build so that the
+ * repository behind a multi-project build is only read once, no matter how
+ * many {@code SnapshotTask}s ask for it. Concurrent requests for the same
+ * repository (e.g. with {@code --parallel}) wait on the first read rather
+ * than starting their own.
+ *
+ * <p>A read can be started in the background before any task needs it, in
+ * the same way that a Gradle worker action runs alongside other work.
+ *
+ * <p>A read first looks in a {@code HeadCache} kept between builds, so
+ * while {@code HEAD} hasn't moved the repository isn't opened at all.
+ *
+ * <p>Each read records its own {@code Metrics}. They're added to the current
+ * metrics of the first caller of {@code get} which counts as a miss, every
+ * other caller counts as a hit.
+ */
+final class CommitCache {
+
+    /** The name of this cache in the {@code Metrics}. */
+    static final String CACHE_NAME = "commit";
+
+    /** The name of the working copy status cache in the {@code Metrics}. */
+    static final String STATUS_CACHE_NAME = "status";
+
+    /** The name of the nearest tag cache in the {@code Metrics}. */
+    static final String NEAREST_TAG_CACHE_NAME = "tag";
+
+    /** The name of the submodule cache in the {@code Metrics}. */
+    static final String SUBMODULES_CACHE_NAME = "submodules";
+
+    /** The name of the project commits cache in the {@code Metrics}. */
+    static final String PROJECTS_CACHE_NAME = "projects";
+
+    /** The commits being (or already) read, keyed by repository and date format. */
+    private final ConcurrentMap<String, Read> commits = new ConcurrentHashMap<String, Read>();
+
+    /** The working copy statuses, nearest tags and submodules being (or already) read, keyed by repository and kind. */
+    private final ConcurrentMap<String, FutureTask<?>> values = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    /** Keeps the commits in memory between the builds of a daemon. */
+    private final StateWatcher watcher;
+
+    /** Runs background reads on a single daemon thread that exits when idle. */
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "snapshot-scm-reader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public CommitCache() {
+        this(StateWatcher.getInstance());
+    }
+
+    CommitCache(@NonNull final StateWatcher watcher) {
+        this.watcher = watcher;
+    }
+
+    /**
+     * Returns the cache for the build the {@code project} belongs to, creating
+     * it on first use.
+     *
+     * @param project Any project in the build.
+     * @return The {@code CommitCache} shared by all projects in the build.
+     */
+    public static CommitCache forBuild(@NonNull final Project project) {
+        return SCMUtil.forBuild(project, CommitCache.class);
+    }
+
+    /**
+     * Returns the latest commit from the repository of {@code scmCmd}, reading
+     * it from the repository only if no other task in the build has already
+     * done so.
+     *
+     * @param scmCmd The command to read the repository with.
+     * @param dateFormat The format of the dates in the commit.
+     * @param headCacheFile The file to keep the commit in between builds,
+     *                      may be {@code null}.
+     * @return The {@code Commit} reported by the SCM for most recent commit
+     *         information.
+     */
+    public Commit get(
+            @NonNull final SCMCommand scmCmd,
+            @NonNull final String dateFormat,
+            @Nullable final File headCacheFile) {
+        final Read read = new Read(scmCmd, dateFormat, headCacheFile, watcher);
+        Read commit = commits.putIfAbsent(key(scmCmd, dateFormat), read);
+        if (commit == null) {
+            commit = read;
+            read.run();
+        }
+
+        final Commit result = await(commit);
+        final Metrics metrics = Metrics.current();
+        if (commit.claimed.compareAndSet(false, true)) {
+            metrics.miss(CACHE_NAME);
+            metrics.add(commit.metrics);
+        } else {
+            metrics.hit(CACHE_NAME);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the status of the working copy of {@code scmCmd}, checking it
+     * only if no other task in the build has already done so.
+     *
+     * @param scmCmd The command to check the working copy with.
+     * @param check Whether to stop at the first change or count them all.
+     * @param statCacheFile The file to keep the hashes of the working copy
+     *                      files in between builds, may be {@code null}.
+     * @return The {@code WorkingTreeStatus} of the working copy.
+     */
+    public WorkingTreeStatus getStatus(
+            @NonNull final SCMCommand scmCmd,
+            @NonNull final DirtyCheck check,
+            @Nullable final File statCacheFile) {
+        return memoize(key(scmCmd, check.name()), STATUS_CACHE_NAME, new Callable<WorkingTreeStatus>() {
+            @Override
+            public WorkingTreeStatus call() {
+                return scmCmd.getStatus(check, statCacheFile);
+            }
+        });
+    }
+
+    /**
+     * Returns the nearest tag of the checked out commit of {@code scmCmd},
+     * finding it only if no other task in the build has already done so.
+     *
+     * @param scmCmd The command to read the repository with.
+     * @param cacheFile The file to keep the tags in between builds, may be
+     *                  {@code null}.
+     * @return The {@code NearestTag} of the checked out commit.
+     */
+    public NearestTag getNearestTag(@NonNull final SCMCommand scmCmd, @Nullable final File cacheFile) {
+        return memoize(key(scmCmd, NEAREST_TAG_CACHE_NAME), NEAREST_TAG_CACHE_NAME, new Callable<NearestTag>() {
+            @Override
+            public NearestTag call() {
+                return scmCmd.getNearestTag(cacheFile);
+            }
+        });
+    }
+
+    /**
+     * Returns the commits of the submodules of the working copy of {@code
+     * scmCmd}, reading them only if no other task in the build has already
+     * done so.
+     *
+     * @param scmCmd The command to read the repository with.
+     * @param dateFormat The format of the dates in the commits.
+     * @return The properties and state files of the submodules.
+     */
+    public SubmoduleReader.Result getSubmodules(@NonNull final SCMCommand scmCmd, @NonNull final String dateFormat) {
+        return memoize(key(scmCmd, SUBMODULES_CACHE_NAME + '\n' + dateFormat), SUBMODULES_CACHE_NAME,
+                new Callable<SubmoduleReader.Result>() {
+                    @Override
+                    public SubmoduleReader.Result call() {
+                        return SubmoduleReader.read(scmCmd, dateFormat);
+                    }
+                });
+    }
+
+    /**
+     * Returns the last commit which changed each of the project directories,
+     * reading the history only if no other task in the build has already done
+     * so. Every project of a build asks for the same directories, so the
+     * history is walked once for all of them.
+     *
+     * @param scmCmd The command to read the repository with.
+     * @param dateFormat The format of the dates in the commits.
+     * @param dirs The directories of all the projects in the build.
+     * @param indexFile The file the path index is kept in between builds, may
+     *                  be {@code null}.
+     * @return The commit of each directory.
+     */
+    public Map<File, Commit> getPathCommits(
+            @NonNull final SCMCommand scmCmd,
+            @NonNull final String dateFormat,
+            @NonNull final List<File> dirs,
+            @Nullable final File indexFile) {
+        return memoize(key(scmCmd, PROJECTS_CACHE_NAME + '\n' + dateFormat + '\n' + dirs), PROJECTS_CACHE_NAME,
+                new Callable<Map<File, Commit>>() {
+                    @Override
+                    public Map<File, Commit> call() {
+                        return scmCmd.getPathCommits(dirs, dateFormat, indexFile);
+                    }
+                });
+    }
+
+    /** Runs a read unless another caller has already started it, and waits for it. */
+    @SuppressWarnings("unchecked")
+    private <T> T memoize(final String key, final String cacheName, final Callable<T> callable) {
+        final FutureTask<T> read = new FutureTask<T>(callable);
+        FutureTask<T> value = (FutureTask<T>) values.putIfAbsent(key, read);
+        if (value == null) {
+            Metrics.current().miss(cacheName);
+            value = read;
+            read.run();
+        } else {
+            Metrics.current().hit(cacheName);
+        }
+        return await(value);
+    }
+
+    /** Waits for a read, rethrowing the exception it failed with. */
+    private static <T> T await(final FutureTask<T> read) {
+        try {
+            return read.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the SCM repository.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not read the SCM repository.", e.getCause());
+        }
+    }
+
+    /**
+     * Starts reading the latest commit from the repository of {@code scmCmd}
+     * in the background, unless it's already been read. A later call to
+     * {@code get} waits for the read to finish.
+     *
+     * @param scmCmd The command to read the repository with.
+     * @param dateFormat The format of the dates in the commit.
+     * @param headCacheFile The file to keep the commit in between builds,
+     *                      may be {@code null}.
+     */
+    public void prefetch(
+            @NonNull final SCMCommand scmCmd,
+            @NonNull final String dateFormat,
+            @Nullable final File headCacheFile) {
+        final Read read = new Read(scmCmd, dateFormat, headCacheFile, watcher);
+        if (commits.putIfAbsent(key(scmCmd, dateFormat), read) == null) {
+            executor.execute(read);
+        }
+    }
+
+    private static String key(final SCMCommand scmCmd, final String option) {
+        final File repoDir = scmCmd.getRepositoryDir();
+        if (repoDir == null) {
+            throw new IllegalArgumentException("SCM command has no repository directory.");
+        }
+        return repoDir.getAbsolutePath() + '\n' + option;
+    }
+
+    /**
+     * A read of the latest commit which records its own metrics, from the
+     * {@code StateWatcher} or the {@code HeadCache} if the repository hasn't
+     * changed since it was kept.
+     */
+    private static final class Read extends FutureTask<Commit> {
+
+        private final Metrics metrics;
+
+        /** Whether a caller of {@code get} has taken the metrics of the read. */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Read(
+                final SCMCommand scmCmd,
+                final String dateFormat,
+                @Nullable final File headCacheFile,
+                final StateWatcher watcher) {
+            this(scmCmd, dateFormat, headCacheFile, watcher, new Metrics());
+        }
+
+        private Read(
+                final SCMCommand scmCmd,
+                final String dateFormat,
+                @Nullable final File headCacheFile,
+                final StateWatcher watcher,
+                final Metrics metrics) {
+            super(new Callable<Commit>() {
+                @Override
+                @SneakyThrows(IOException.class)
+                public Commit call() {
+                    final Metrics previous = metrics.enter();
+                    try {
+                        if (headCacheFile == null) {
+                            return scmCmd.getLatestCommit(dateFormat);
+                        }
+
+                        // a daemon keeps the commit in memory while the state files are unchanged
+                        final String watchKey = key(scmCmd, dateFormat);
+                        final List<File> stateFiles = scmCmd.getStateFiles();
+                        final Commit hot = watcher.get(watchKey, stateFiles, dateFormat);
+                        if (hot != null) {
+                            return hot;
+                        }
+
+                        // the stamp is taken first, a change during the read makes it stale
+                        final HeadCache headCache = new HeadCache(headCacheFile, dateFormat);
+                        final String stamp = HeadCache.stamp(stateFiles, System.currentTimeMillis());
+                        Commit commit = (stamp != null) ? headCache.get(stamp) : null;
+                        if (commit == null) {
+                            commit = scmCmd.getLatestCommit(dateFormat);
+                            if (stamp != null) {
+                                headCache.put(stamp, commit);
+                            }
+                        }
+                        watcher.put(watchKey, commit);
+                        return commit;
+                    } finally {
+                        Metrics.exit(previous);
+                    }
+                }
+            });
+            this.metrics = metrics;
+        }
+
+    }
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the parents and generation numbers of commits from the commit-graph
+ * file that {@code git gc} (or {@code git commit-graph write}) keeps in
+ * {@code objects/info}, without inflating any commit objects.
+ *
+ * <p>The fanout table is read when the file is opened, the ids and commit
+ * data are read in blocks with positional reads as they're looked up. Only a
+ * single version 1 file with SHA-1 ids and generation numbers is supported, a
+ * split graph chain or a file written without generation numbers is ignored.
+ */
+final class CommitGraph implements Closeable {
+
+    /** The location of the commit-graph in the objects directory. */
+    static final String FILENAME = "info/commit-graph";
+
+    private static final int SIGNATURE = 0x43475048; // "CGPH"
+    private static final int CHUNK_OID_FANOUT = 0x4f494446; // "OIDF"
+    private static final int CHUNK_OID_LOOKUP = 0x4f49444c; // "OIDL"
+    private static final int CHUNK_COMMIT_DATA = 0x43444154; // "CDAT"
+    private static final int CHUNK_EXTRA_EDGES = 0x45444745; // "EDGE"
+
+    /** The length of a commit id. */
+    private static final int ID_LENGTH = 20;
+
+    /** The length of a commit in the commit data chunk. */
+    private static final int COMMIT_DATA_LENGTH = ID_LENGTH + 16;
+
+    /** The parent value of a commit without that parent. */
+    private static final int NO_PARENT = 0x70000000;
+
+    /** The flag of a second parent which points into the extra edges. */
+    private static final int EXTRA_EDGES = 0x80000000;
+
+    /** The size of the blocks the file is read in. */
+    private static final int BLOCK_SIZE = 4096;
+
+    private final RandomAccessFile file;
+
+    /** The modification time and size of the file when it was opened. */
+    private final String stamp;
+
+    /** The number of commits with a first id byte up to each value. */
+    private final int[] fanout;
+
+    /** The blocks of the id lookup chunk. */
+    private final Blocks ids;
+
+    /** The blocks of the commit data and extra edges chunks. */
+    private final Blocks data;
+
+    private final int lookup;
+
+    private final int commitData;
+
+    /** The offset of the extra edges chunk, or {@code -1} if there are no octopus merges. */
+    private final int extraEdges;
+
+    private final int commitCount;
+
+    private CommitGraph(final RandomAccessFile file, final String stamp, final int length, final int[] fanout,
+                        final int lookup, final int commitData, final int extraEdges) {
+        this.file = file;
+        this.stamp = stamp;
+        this.fanout = fanout;
+        this.lookup = lookup;
+        this.commitData = commitData;
+        this.extraEdges = extraEdges;
+        this.commitCount = fanout[255];
+        this.ids = new Blocks(file.getChannel(), length);
+        this.data = new Blocks(file.getChannel(), length);
+    }
+
+    /**
+     * Opens the commit-graph of a repository.
+     *
+     * @param objectsDir The objects directory of the repository.
+     * @return The graph, which must be closed, or {@code null} if there is no
+     *         commit-graph or it can't be used.
+     * @throws IOException If the commit-graph could not be read.
+     */
+    @Nullable
+    public static CommitGraph open(@NonNull final File objectsDir) throws IOException {
+        final File graphFile = new File(objectsDir, FILENAME);
+        if (!graphFile.isFile() || graphFile.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        final String stamp = graphFile.lastModified() + ":" + graphFile.length();
+        final RandomAccessFile file = new RandomAccessFile(graphFile, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final int length = (int) file.length();
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            if (length < 8 || !read(channel, header, 0) || header.getInt(0) != SIGNATURE
+                    || header.get(4) != 1 || header.get(5) != 1 || header.get(7) != 0) {
+                file.close();
+                return null;
+            }
+
+            int fanout = -1;
+            int lookup = -1;
+            int commitData = -1;
+            int extraEdges = -1;
+            final int chunkCount = header.get(6) & 0xff;
+            final ByteBuffer chunks = ByteBuffer.allocate(chunkCount * 12);
+            if (!read(channel, chunks, 8)) {
+                file.close();
+                return null;
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                final int id = chunks.getInt(i * 12);
+                final long offset = chunks.getLong(i * 12 + 4);
+                if (offset < 0 || offset > length) {
+                    continue;
+                }
+                if (id == CHUNK_OID_FANOUT) {
+                    fanout = (int) offset;
+                } else if (id == CHUNK_OID_LOOKUP) {
+                    lookup = (int) offset;
+                } else if (id == CHUNK_COMMIT_DATA) {
+                    commitData = (int) offset;
+                } else if (id == CHUNK_EXTRA_EDGES) {
+                    extraEdges = (int) offset;
+                }
+            }
+            final ByteBuffer fanoutChunk = ByteBuffer.allocate(256 * 4);
+            if (fanout < 0 || lookup < 0 || commitData < 0 || !read(channel, fanoutChunk, fanout)) {
+                file.close();
+                return null;
+            }
+            final int[] fanoutTable = new int[256];
+            fanoutChunk.asIntBuffer().get(fanoutTable);
+
+            // a truncated file can't be looked up
+            final long commitCount = fanoutTable[255];
+            if (commitCount <= 0 || lookup + commitCount * ID_LENGTH > length
+                    || commitData + commitCount * COMMIT_DATA_LENGTH > length) {
+                file.close();
+                return null;
+            }
+
+            final CommitGraph graph = new CommitGraph(file, stamp, length, fanoutTable, lookup, commitData, extraEdges);
+            // a graph written without generation numbers has them all as zero
+            if (graph.getGeneration(0) == 0) {
+                file.close();
+                return null;
+            }
+            return graph;
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a buffer in full from a position in a file.
+     *
+     * @return {@code false} if the file ends first.
+     */
+    private static boolean read(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+
+    /**
+     * The modification time and size of the file, which change whenever git
+     * writes it again and so change the positions of the commits.
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * The number of commits in the graph.
+     */
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Finds the position of a commit in the graph.
+     *
+     * @param id The id of the commit.
+     * @return The position of the commit, or {@code -1} if it's not in the
+     *         graph.
+     * @throws IOException If the commit-graph could not be read.
+     */
+    public int findCommit(@NonNull final AnyObjectId id) throws IOException {
+        final int first = id.getFirstByte();
+        int low = (first == 0) ? 0 : fanout[first - 1];
+        int high = fanout[first] - 1;
+
+        final byte[] raw = new byte[ID_LENGTH];
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            ids.get(lookup + mid * ID_LENGTH, raw);
+            final int cmp = id.compareTo(raw, 0);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The id of the commit at a position.
+     */
+    public ObjectId getId(final int position) throws IOException {
+        final byte[] raw = new byte[ID_LENGTH];
+        ids.get(lookup + position * ID_LENGTH, raw);
+        return ObjectId.fromRaw(raw);
+    }
+
+    /**
+     * The generation number of a commit, which is greater than the
+     * generation number of each of its parents.
+     */
+    public int getGeneration(final int position) throws IOException {
+        return data.getInt(commitData + position * COMMIT_DATA_LENGTH + ID_LENGTH + 8) >>> 2;
+    }
+
+    /**
+     * The positions of the parents of a commit.
+     */
+    public int[] getParents(final int position) throws IOException {
+        final int entry = commitData + position * COMMIT_DATA_LENGTH + ID_LENGTH;
+        final int first = data.getInt(entry);
+        final int second = data.getInt(entry + 4);
+        if (first == NO_PARENT) {
+            return new int[0];
+        }
+        if (second == NO_PARENT) {
+            return new int[] {first};
+        }
+        if ((second & EXTRA_EDGES) == 0) {
+            return new int[] {first, second};
+        }
+
+        // an octopus merge lists the rest of its parents in the extra edges
+        int count = 0;
+        int edge = extraEdges + (second & ~EXTRA_EDGES) * 4;
+        while ((data.getInt(edge + count * 4) & EXTRA_EDGES) == 0) {
+            count++;
+        }
+        final int[] parents = new int[count + 2];
+        parents[0] = first;
+        for (int i = 0; i <= count; i++) {
+            parents[i + 1] = data.getInt(edge + i * 4) & ~EXTRA_EDGES;
+        }
+        return parents;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * The last block read from a chunk of the file. A walk reads the commits
+     * close to each other, so most lookups are served from the block.
+     */
+    private static final class Blocks {
+
+        private final FileChannel channel;
+
+        private final int limit;
+
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        /** The position in the file of the first byte in {@code block}. */
+        private int offset = -1;
+
+        Blocks(final FileChannel channel, final int limit) {
+            this.channel = channel;
+            this.limit = limit;
+        }
+
+        int getInt(final int pos) throws IOException {
+            fill(pos, 4);
+            return block.getInt(pos - offset);
+        }
+
+        void get(final int pos, final byte[] dst) throws IOException {
+            fill(pos, dst.length);
+            block.position(pos - offset);
+            block.get(dst);
+        }
+
+        /** Loads the block which holds {@code length} bytes from {@code pos}. */
+        private void fill(final int pos, final int length) throws IOException {
+            if (offset >= 0 && pos >= offset && pos + length <= offset + block.limit()) {
+                return;
+            }
+            if (pos < 0 || pos + length > limit) {
+                throw new IOException("Unexpected end of commit-graph.");
+            }
+
+            // a value across the end of an aligned block starts a block of its own
+            final int aligned = pos - (pos % BLOCK_SIZE);
+            final int position = (pos + length <= aligned + BLOCK_SIZE) ? aligned : pos;
+            block.clear();
+            block.limit(Math.min(BLOCK_SIZE, limit - position));
+            if (!read(channel, block, position)) {
+                throw new IOException("Unexpected end of commit-graph.");
+            }
+            offset = position;
+        }
+
+    }
+
+}
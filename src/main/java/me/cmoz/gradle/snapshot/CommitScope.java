@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * Controls which commit the {@code commit.*} properties of a project
+ * describe.
+ */
+public enum CommitScope {
+
+    /** The checked out commit of the repository. */
+    REPOSITORY,
+
+    /**
+     * The most recent commit which changed a file in the directory of the
+     * project, so a project in a large repository only looks new when it has
+     * changed.
+     */
+    PROJECT
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the tags of a repository and of the nearest tag found for
+ * recent commits, kept between builds.
+ *
+ * <p>Peeling every tag and walking the history back to the nearest one is
+ * the slow part of describing a commit in a repository with many tags and a
+ * deep history. With this cache the tags are only read again when the refs
+ * change, and a commit whose first-parent chain reaches a described commit
+ * is described by counting the commits in between.
+ *
+ * <p>The cache is written as text:
+ * <pre>
+ * {@code
+ *   stamp <refs stamp>
+ *   tag <commit id> <tag name>
+ *   graph <commit-graph stamp>
+ *   position <position in the commit-graph> <tag name>
+ *   describe <commit id> <distance> [<tag name>]
+ * }
+ * </pre>
+ * The positions of the tagged commits and the nearest tags are only valid for
+ * the tags they were found with, so they're dropped whenever the tags change.
+ */
+final class DescribeCache {
+
+    /** The name of this cache in the {@code Metrics}. */
+    static final String CACHE_NAME = "describe";
+
+    /** The first line of the cache file, a file with another header is ignored. */
+    private static final String HEADER = "# snapshot describe cache v1";
+
+    /** The most commits to keep the nearest tag of, the oldest are dropped first. */
+    private static final int MAX_RESULTS = 256;
+
+    /** The file the cache is loaded from and saved to, may be {@code null}. */
+    @Nullable
+    private final File file;
+
+    /** The stamp of the refs the tags were read from, {@code null} if not read. */
+    @Nullable
+    private String stamp;
+
+    /** The tag names keyed by the id of the tagged commit. */
+    private Map<String, String> tags = new HashMap<String, String>();
+
+    /** The stamp of the commit-graph the tag positions were found in, {@code null} if not found. */
+    @Nullable
+    private String graphStamp;
+
+    /** The tag names keyed by the position of the tagged commit in the commit-graph. */
+    private Map<Integer, String> tagPositions = new HashMap<Integer, String>();
+
+    /** The nearest tags keyed by commit id, in the order they were found. */
+    private final Map<String, NearestTagWalk.Result> results =
+            new LinkedHashMap<String, NearestTagWalk.Result>(16, 0.75f, false) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, NearestTagWalk.Result> eldest) {
+                    return size() > MAX_RESULTS;
+                }
+            };
+
+    /** Whether an entry changed since the cache was loaded. */
+    private boolean changed;
+
+    /**
+     * Creates a cache backed by {@code file}, loading any entries in it.
+     *
+     * @param file The cache file, or {@code null} for a cache which is not
+     *             persisted.
+     */
+    public DescribeCache(@Nullable final File file) {
+        this.file = file;
+        if (file != null) {
+            load(file);
+        }
+    }
+
+    /**
+     * Returns the tags read with the same refs.
+     *
+     * @param refsStamp The stamp of the current refs.
+     * @return The tag names keyed by commit id, or {@code null} if the refs
+     *         have changed since the tags were read.
+     */
+    @Nullable
+    public Map<String, String> getTags(@NonNull final String refsStamp) {
+        if (refsStamp.equals(stamp)) {
+            Metrics.current().hit(CACHE_NAME);
+            return tags;
+        }
+        Metrics.current().miss(CACHE_NAME);
+        return null;
+    }
+
+    /**
+     * Records the tags of the current refs, which drops the nearest tags
+     * found with the old ones.
+     *
+     * @param refsStamp The stamp of the current refs.
+     * @param commitTags The tag names keyed by commit id.
+     */
+    public void putTags(@NonNull final String refsStamp, @NonNull final Map<String, String> commitTags) {
+        stamp = refsStamp;
+        tags = commitTags;
+        graphStamp = null;
+        tagPositions = new HashMap<Integer, String>();
+        results.clear();
+        changed = true;
+    }
+
+    /**
+     * Returns the positions of the tagged commits found in the same
+     * commit-graph with the current tags.
+     *
+     * @param commitGraphStamp The stamp of the current commit-graph.
+     * @return The tag names keyed by the position of the tagged commit, or
+     *         {@code null} if the commit-graph has changed since they were
+     *         found.
+     */
+    @Nullable
+    public Map<Integer, String> getTagPositions(@NonNull final String commitGraphStamp) {
+        return commitGraphStamp.equals(graphStamp) ? tagPositions : null;
+    }
+
+    /**
+     * Records the positions of the tagged commits in the current
+     * commit-graph.
+     *
+     * @param commitGraphStamp The stamp of the current commit-graph.
+     * @param positions The tag names keyed by the position of the tagged
+     *                  commit.
+     */
+    public void putTagPositions(@NonNull final String commitGraphStamp,
+                                @NonNull final Map<Integer, String> positions) {
+        graphStamp = commitGraphStamp;
+        tagPositions = positions;
+        changed = true;
+    }
+
+    /**
+     * Returns the nearest tag found for a commit.
+     *
+     * @param commitId The id of the commit.
+     * @return The nearest tag or {@code null} if the commit hasn't been
+     *         described with the current tags.
+     */
+    @Nullable
+    public NearestTagWalk.Result get(@NonNull final String commitId) {
+        return results.get(commitId);
+    }
+
+    /**
+     * Records the nearest tag of a commit.
+     *
+     * @param commitId The id of the commit.
+     * @param result The nearest tag.
+     */
+    public void put(@NonNull final String commitId, @NonNull final NearestTagWalk.Result result) {
+        if (!result.equals(results.get(commitId))) {
+            results.put(commitId, result);
+            changed = true;
+        }
+    }
+
+    /**
+     * Saves the cache to its file if any entries changed. The file is
+     * replaced in one step so a concurrent build never reads half of it.
+     *
+     * @throws IOException If the cache could not be written.
+     */
+    public void save() throws IOException {
+        if (file == null || !changed || stamp == null) {
+            return;
+        }
+
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write("stamp " + stamp + '\n');
+            for (final Map.Entry<String, String> tag : tags.entrySet()) {
+                writer.write("tag " + tag.getKey() + ' ' + tag.getValue() + '\n');
+            }
+            if (graphStamp != null) {
+                writer.write("graph " + graphStamp + '\n');
+                for (final Map.Entry<Integer, String> position : tagPositions.entrySet()) {
+                    writer.write("position " + position.getKey() + ' ' + position.getValue() + '\n');
+                }
+            }
+            for (final Map.Entry<String, NearestTagWalk.Result> result : results.entrySet()) {
+                final NearestTagWalk.Result value = result.getValue();
+                writer.write("describe " + result.getKey() + ' ' + value.getDistance());
+                if (value.getTagName() != null) {
+                    writer.write(' ' + value.getTagName());
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+        changed = false;
+    }
+
+    /** Loads the entries of a cache file, an unreadable file is ignored. */
+    private void load(final File file) {
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ", 4);
+                if (fields[0].equals("stamp") && fields.length == 2) {
+                    stamp = fields[1];
+                } else if (fields[0].equals("tag") && fields.length == 3) {
+                    tags.put(fields[1], fields[2]);
+                } else if (fields[0].equals("graph") && fields.length == 2) {
+                    graphStamp = fields[1];
+                } else if (fields[0].equals("position") && fields.length == 3) {
+                    tagPositions.put(Integer.valueOf(fields[1]), fields[2]);
+                } else if (fields[0].equals("describe") && fields.length >= 3) {
+                    results.put(fields[1], new NearestTagWalk.Result(
+                            (fields.length == 4) ? fields[3] : null, Integer.parseInt(fields[2])));
+                }
+            }
+            Metrics.current().read(file.length());
+        } catch (final IOException e) {
+            clear();
+        } catch (final NumberFormatException e) {
+            clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException ignored) {
+                    // nothing useful can be done
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        stamp = null;
+        tags.clear();
+        graphStamp = null;
+        tagPositions.clear();
+        results.clear();
+    }
+
+}
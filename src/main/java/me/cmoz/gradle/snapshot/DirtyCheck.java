@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * Controls whether the {@code SnapshotTask} checks the working copy for
+ * changes which have not been committed.
+ */
+public enum DirtyCheck {
+
+    /** The working copy is not checked. */
+    NONE,
+
+    /**
+     * The {@code commit.dirty} property is recorded, the check stops at the
+     * first modified file.
+     */
+    FLAG,
+
+    /**
+     * The {@code commit.dirty} and {@code commit.dirty.count} properties are
+     * recorded, every tracked file is checked.
+     */
+    COUNT
+
+}
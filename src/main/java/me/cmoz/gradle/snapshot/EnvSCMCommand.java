@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@code SCMCommand} which reads the commit from environment variables
+ * and system properties rather than from a repository.
+ *
+ * <p>Continuous integration servers export the commit they build, so on an
+ * agent the repository doesn't need to be opened at all, and it doesn't
+ * matter that a shallow clone is missing most of the history. The names
+ * read for each property are configurable, the first one which is set is
+ * used and a system property is looked at before the environment variable
+ * of the same name.
+ *
+ * <p>Only the commit can be read this way, everything else needs the
+ * repository.
+ */
+final class EnvSCMCommand implements SCMCommand {
+
+    /**
+     * The names read for each property by default, separated by commas and
+     * in the order they're looked at.
+     */
+    static final Map<String, String> DEFAULT_NAMES;
+
+    static {
+        final Map<String, String> names = new LinkedHashMap<String, String>();
+        names.put(Commit.ID, "GIT_COMMIT,CI_COMMIT_SHA,GITHUB_SHA,TRAVIS_COMMIT");
+        names.put(Commit.BRANCH, "GIT_LOCAL_BRANCH,BRANCH_NAME,CI_COMMIT_REF_NAME,GITHUB_REF_NAME,TRAVIS_BRANCH");
+        names.put(Commit.TIMESTAMP, SnapshotSettings.SOURCE_DATE_EPOCH);
+        names.put(Commit.MESSAGE_FULL, "CI_COMMIT_MESSAGE,TRAVIS_COMMIT_MESSAGE");
+        names.put(Commit.USER_NAME, "GIT_AUTHOR_NAME");
+        names.put(Commit.USER_EMAIL, "GIT_AUTHOR_EMAIL");
+        names.put(Commit.BUILD_USER_NAME, "GIT_COMMITTER_NAME");
+        names.put(Commit.BUILD_USER_EMAIL, "GIT_COMMITTER_EMAIL,EMAIL");
+        DEFAULT_NAMES = Collections.unmodifiableMap(names);
+    }
+
+    /** The properties which must be set for the environment to be used with {@code AUTO}. */
+    private static final List<String> REQUIRED_KEYS = Collections.unmodifiableList(Arrays.asList(
+            Commit.ID, Commit.TIMESTAMP, Commit.MESSAGE_FULL));
+
+    /** The directory of the build, which stands in for the repository in the caches of the build. */
+    private final File buildDir;
+
+    /** The value of each property which is set. */
+    private final Map<String, String> values;
+
+    /**
+     * Creates a command for the values read from the environment.
+     *
+     * @param buildDir The root directory of the build.
+     * @param values The values read with {@code read}.
+     */
+    public EnvSCMCommand(@NonNull final File buildDir, @NonNull final Map<String, String> values) {
+        this.buildDir = buildDir;
+        this.values = values;
+    }
+
+    /**
+     * Reads the value of each property from the system properties and the
+     * environment.
+     *
+     * @param names The names to read for each property, separated by commas.
+     * @return The value of each property which is set, a property which is
+     *         not set is left out.
+     */
+    public static Map<String, String> read(@NonNull final Map<String, String> names) {
+        final Map<String, String> values = new LinkedHashMap<String, String>();
+        for (final Map.Entry<String, String> property : names.entrySet()) {
+            for (final String name : property.getValue().split(",")) {
+                final String key = name.trim();
+                if (key.length() == 0) {
+                    continue;
+                }
+
+                String value = System.getProperty(key);
+                if (value == null || value.length() == 0) {
+                    value = SCMUtil.getenv(key);
+                }
+                if (value != null && value.length() > 0) {
+                    values.put(property.getKey(), value);
+                    break;
+                }
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Whether the values describe a commit as fully as a repository would,
+     * with its id, time and message.
+     *
+     * @param values The values read with {@code read}.
+     * @return {@code true} if all of the required properties are set.
+     */
+    public static boolean isComplete(@NonNull final Map<String, String> values) {
+        return values.keySet().containsAll(REQUIRED_KEYS);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>There is no repository, this is the root directory of the build.
+     */
+    @Override
+    public File getRepositoryDir() {
+        return buildDir;
+    }
+
+    @Override
+    public Commit getLatestCommit(@NonNull final String dateFormat) {
+        final String commitId = values.get(Commit.ID);
+        if (commitId == null) {
+            throw new IllegalStateException("The commit id could not be read from the environment.");
+        }
+        if (commitId.length() < Commit.ABBREV_LENGTH) {
+            throw new IllegalArgumentException("The commit id '" + commitId + "' from the environment is too short.");
+        }
+
+        final Long timestamp = getTimestamp(values.get(Commit.TIMESTAMP));
+        final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
+        return Commit.builder()
+                .buildTime(sdf.format(new Date()))
+                .buildAuthorName(get(Commit.BUILD_USER_NAME))
+                .buildAuthorEmail(get(Commit.BUILD_USER_EMAIL))
+                .branchName(getBranch(get(Commit.BRANCH)))
+                .commitId(commitId)
+                .commitTime((timestamp != null) ? sdf.format(new Date(timestamp)) : "")
+                .commitTimestamp((timestamp != null) ? timestamp.toString() : null)
+                .commitUserName(get(Commit.USER_NAME))
+                .commitUserEmail(get(Commit.USER_EMAIL))
+                .commitMessage(get(Commit.MESSAGE_FULL).trim())
+                .build();
+    }
+
+    /** Returns the value of a property, or an empty string if it isn't set. */
+    private String get(final String key) {
+        final String value = values.get(key);
+        return (value != null) ? value : "";
+    }
+
+    /** Converts a time in seconds since the epoch, as {@code SOURCE_DATE_EPOCH}, to milliseconds. */
+    @Nullable
+    private static Long getTimestamp(@Nullable final String seconds) {
+        if (seconds == null) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(seconds.trim()) * 1000L;
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "The commit time must be a number of seconds, not '" + seconds + "'.", e);
+        }
+    }
+
+    /** Removes the {@code refs/heads/} prefix some servers give the branch with. */
+    private static String getBranch(final String branch) {
+        return branch.startsWith("refs/heads/") ? branch.substring("refs/heads/".length()) : branch;
+    }
+
+    /** The state is in the environment, which is an input of the task. */
+    @Override
+    public List<File> getStateFiles() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<File, Commit> getPathCommits(
+            @NonNull final List<File> dirs,
+            @NonNull final String dateFormat,
+            @Nullable final File indexFile) {
+        throw unsupported("commitScope 'project'");
+    }
+
+    @Override
+    public WorkingTreeStatus getStatus(@NonNull final DirtyCheck check, @Nullable final File statCacheFile) {
+        throw unsupported("dirtyCheck");
+    }
+
+    @Override
+    public Map<String, File> getSubmodules() {
+        throw unsupported("submodules");
+    }
+
+    @Override
+    public NearestTag getNearestTag(@Nullable final File cacheFile) {
+        throw unsupported("describe");
+    }
+
+    @Override
+    public int writeChangelog(
+            @Nullable final String since,
+            final int limit,
+            @NonNull final String dateFormat,
+            @NonNull final File outputFile) {
+        throw unsupported("The changelog");
+    }
+
+    private static UnsupportedOperationException unsupported(final String option) {
+        return new UnsupportedOperationException(
+                option + " needs the SCM repository, it can't be used with scmProvider 'environment'.");
+    }
+
+}
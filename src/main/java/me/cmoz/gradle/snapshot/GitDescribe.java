@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the nearest tag of a commit in a Git repository and the number of
+ * commits since, like {@code git describe --tags}.
+ *
+ * <p>The first-parent chain of the commit is followed back to a commit that
+ * can be described quickly: a tagged commit, a commit in the
+ * {@code DescribeCache}, or a commit in the commit-graph whose generation
+ * numbers let a {@code NearestTagWalk} find the tag without reading any
+ * commit objects. Each commit on the chain adds one to the distance. Only
+ * when the chain reaches a merge (or root) commit which is none of these is
+ * the history walked with JGit.
+ */
+final class GitDescribe {
+
+    /** The objects directory in the common directory. */
+    private static final String OBJECTS_DIRNAME = "objects";
+
+    private final Repository repo;
+
+    /** The directory with the refs and objects shared by all worktrees. */
+    private final File commonDir;
+
+    private final DescribeCache cache;
+
+    public GitDescribe(@NonNull final Repository repo, @NonNull final File commonDir,
+                       @NonNull final DescribeCache cache) {
+        this.repo = repo;
+        this.commonDir = commonDir;
+        this.cache = cache;
+    }
+
+    /**
+     * Describes a commit.
+     *
+     * @param head The id of the commit.
+     * @return The nearest tag of the commit.
+     * @throws IOException If the repository could not be read.
+     */
+    public NearestTag describe(@NonNull final ObjectId head) throws IOException {
+        final String abbrevId = "g" + head.abbreviate(Commit.ABBREV_LENGTH).name();
+        final Map<String, String> tags = readTags();
+        if (tags.isEmpty()) {
+            return NearestTag.of(null, NearestTag.NONE, abbrevId);
+        }
+
+        final RevWalk revWalk = new RevWalk(repo);
+        revWalk.setRetainBody(false);
+        final CommitGraph graph = CommitGraph.open(new File(commonDir, OBJECTS_DIRNAME));
+        try {
+            int chain = 0;
+            RevCommit commit = revWalk.parseCommit(head);
+            NearestTagWalk.Result result;
+            while (true) {
+                final String id = commit.name();
+                final String tagName = tags.get(id);
+                if (tagName != null) {
+                    result = new NearestTagWalk.Result(tagName, 0);
+                    break;
+                }
+                result = cache.get(id);
+                if (result != null) {
+                    break;
+                }
+                final int position = (graph != null) ? graph.findCommit(commit) : -1;
+                if (position >= 0) {
+                    result = walkGraph(graph, position, tags);
+                    cache.put(id, result);
+                    break;
+                }
+                if (commit.getParentCount() != 1) {
+                    result = walkCommits(commit, tags);
+                    cache.put(id, result);
+                    break;
+                }
+                commit = revWalk.parseCommit(commit.getParent(0));
+                chain++;
+            }
+
+            if (result.getTagName() != null) {
+                result = new NearestTagWalk.Result(result.getTagName(), result.getDistance() + chain);
+            }
+            cache.put(head.name(), result);
+            return NearestTag.of(result.getTagName(), result.getDistance(), abbrevId);
+        } finally {
+            revWalk.dispose();
+            if (graph != null) {
+                graph.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the tags of the repository, or takes them from the cache when the
+     * refs haven't changed since they were read.
+     *
+     * @return The tag names keyed by the id of the tagged commit.
+     */
+    private Map<String, String> readTags() throws IOException {
+        final String stamp = stampRefs();
+        final Map<String, String> cached = cache.getTags(stamp);
+        if (cached != null) {
+            return cached;
+        }
+
+        // sorted so the same tag wins every time when a commit has more than one
+        final Map<String, Ref> refs = new TreeMap<String, Ref>(repo.getTags());
+        final Map<String, String> tags = new HashMap<String, String>();
+        for (final Map.Entry<String, Ref> ref : refs.entrySet()) {
+            final Ref peeled = repo.peel(ref.getValue());
+            final ObjectId id = (peeled.getPeeledObjectId() != null)
+                    ? peeled.getPeeledObjectId()
+                    : peeled.getObjectId();
+            if (id != null) {
+                tags.put(id.name(), ref.getKey());
+            }
+        }
+        cache.putTags(stamp, tags);
+        return tags;
+    }
+
+    /**
+     * Stamps the files which hold the tags, the packed refs and the loose
+     * tags, with their modification times and sizes.
+     */
+    private String stampRefs() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final File packedRefs = new File(commonDir, Constants.PACKED_REFS);
+        sb.append(packedRefs.lastModified()).append(':').append(packedRefs.length()).append('\n');
+        stampDir(new File(commonDir, Constants.R_TAGS), sb);
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return SCMUtil.toHex(digest.digest(sb.toString().getBytes("UTF-8")));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not supported.", e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IOException("UTF-8 is not supported.", e);
+        }
+    }
+
+    private static void stampDir(final File dir, final StringBuilder sb) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                stampDir(file, sb);
+            } else {
+                sb.append(file.getPath()).append(':').append(file.lastModified()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Finds the nearest tag of a commit in the commit-graph. The graph holds
+     * every ancestor of its commits, so tags on newer commits can't be
+     * reachable and are left out. The positions of the tagged commits are
+     * kept in the cache until the tags or the commit-graph change.
+     */
+    private NearestTagWalk.Result walkGraph(
+            final CommitGraph graph,
+            final int position,
+            final Map<String, String> tags) throws IOException {
+        Map<Integer, String> positions = cache.getTagPositions(graph.getStamp());
+        if (positions == null) {
+            positions = new HashMap<Integer, String>();
+            for (final Map.Entry<String, String> tag : tags.entrySet()) {
+                final int tagPosition = graph.findCommit(ObjectId.fromString(tag.getKey()));
+                if (tagPosition >= 0) {
+                    positions.put(tagPosition, tag.getValue());
+                }
+            }
+            cache.putTagPositions(graph.getStamp(), positions);
+        }
+
+        final Map<Integer, String> tagged = positions;
+        return NearestTagWalk.walk(new NearestTagWalk.Graph() {
+            @Override
+            @SneakyThrows(IOException.class)
+            public int[] getParents(final int commit) {
+                return graph.getParents(commit);
+            }
+
+            @Override
+            @SneakyThrows(IOException.class)
+            public int getGeneration(final int commit) {
+                return graph.getGeneration(commit);
+            }
+
+            @Override
+            @Nullable
+            public String getTag(final int commit) {
+                return tagged.get(commit);
+            }
+        }, position);
+    }
+
+    /**
+     * Finds the nearest tag of a commit by walking the history with JGit: the
+     * most recent tagged commit first, then the commits which aren't its
+     * ancestors are counted.
+     */
+    private NearestTagWalk.Result walkCommits(final RevCommit start, final Map<String, String> tags)
+            throws IOException {
+        RevCommit tagged = null;
+        RevWalk revWalk = new RevWalk(repo);
+        try {
+            revWalk.setRetainBody(false);
+            revWalk.markStart(revWalk.parseCommit(start));
+            for (final RevCommit commit : revWalk) {
+                if (tags.containsKey(commit.name())) {
+                    tagged = commit;
+                    break;
+                }
+            }
+        } finally {
+            revWalk.dispose();
+        }
+        if (tagged == null) {
+            return new NearestTagWalk.Result(null, NearestTag.NONE);
+        }
+
+        int distance = 0;
+        revWalk = new RevWalk(repo);
+        try {
+            revWalk.setRetainBody(false);
+            revWalk.markStart(revWalk.parseCommit(start));
+            revWalk.markUninteresting(revWalk.parseCommit(tagged));
+            while (revWalk.next() != null) {
+                distance++;
+            }
+        } finally {
+            revWalk.dispose();
+        }
+        return new NearestTagWalk.Result(tags.get(tagged.name()), distance);
+    }
+
+}
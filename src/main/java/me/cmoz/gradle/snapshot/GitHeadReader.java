@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.SystemReader;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the commit at {@code HEAD} straight from the files in a Git
+ * repository without opening a JGit {@code Repository}.
+ *
+ * <p>Only {@code HEAD}, the ref it points to and the commit object itself are
+ * read. The common layouts are supported: loose and packed refs and a loose
+ * commit object. When something else is found, most often because the
+ * commit has been packed, {@code null} is returned and the caller should fall
+ * back to JGit.
+ *
+ * <p>Linked worktrees are supported: {@code HEAD} is read from the worktree's
+ * own Git directory and everything else from the common directory it shares
+ * with the main worktree.
+ */
+final class GitHeadReader {
+
+    /** The prefix of a {@code .git} file that points to the Git directory. */
+    private static final String GITDIR_PREFIX = "gitdir:";
+
+    /** The file in a worktree's Git directory that points back to its {@code .git} file. */
+    private static final String GITDIR_FILENAME = "gitdir";
+
+    /** The file in a worktree's Git directory that points to the common directory. */
+    private static final String COMMONDIR_FILENAME = "commondir";
+
+    /** The prefix of a symbolic ref file. */
+    private static final String SYMREF_PREFIX = "ref: ";
+
+    /** The maximum number of symbolic refs followed from {@code HEAD}. */
+    private static final int MAX_SYMREF_DEPTH = 5;
+
+    /** The environment variable which moves the object database. */
+    private static final String GIT_OBJECT_DIRECTORY = "GIT_OBJECT_DIRECTORY";
+
+    /** The directory of the object database in the Git directory. */
+    private static final String OBJECTS_DIRNAME = "objects";
+
+    /** The header of a loose commit object, followed by its length. */
+    private static final String COMMIT_HEADER = Constants.TYPE_COMMIT + " ";
+
+    /** The Git directory of the repository. */
+    @Getter
+    private final File gitDir;
+
+    /** The directory with the refs, objects and config shared by all worktrees. */
+    @Getter
+    private final File commonDir;
+
+    public GitHeadReader(@NonNull final File gitDir) {
+        this.gitDir = gitDir;
+        this.commonDir = commonDir(gitDir);
+    }
+
+    /**
+     * Resolves the Git directory from a {@code .git} directory or the
+     * {@code .git} file of a linked worktree or submodule.
+     *
+     * @param dotGit The {@code .git} directory or file.
+     * @return The Git directory of the repository.
+     */
+    public static File resolveGitDir(@NonNull final File dotGit) {
+        if (!dotGit.isFile()) {
+            return dotGit;
+        }
+
+        final String content = SCMUtil.readFirstLine(dotGit);
+        if (content == null || !content.startsWith(GITDIR_PREFIX)) {
+            return dotGit;
+        }
+        return resolve(dotGit.getParentFile(), content.substring(GITDIR_PREFIX.length()).trim());
+    }
+
+    /**
+     * Returns the directory with the refs, objects and config for a Git
+     * directory, this is the Git directory itself except in linked worktrees.
+     *
+     * @param gitDir The Git directory of the repository.
+     * @return The common directory of the repository.
+     */
+    public static File commonDir(@NonNull final File gitDir) {
+        final String content = SCMUtil.readFirstLine(new File(gitDir, COMMONDIR_FILENAME));
+        return (content != null) ? resolve(gitDir, content.trim()) : gitDir;
+    }
+
+    /**
+     * Returns the working copy of the repository. In a linked worktree this
+     * is recorded in the worktree's Git directory, in a submodule kept in
+     * {@code .git/modules} of its parent it's the {@code core.worktree} of
+     * its config, otherwise it's the directory which contains the Git
+     * directory.
+     *
+     * @return The working copy directory.
+     */
+    @SneakyThrows({IOException.class, ConfigInvalidException.class})
+    public File getWorkTree() {
+        final String dotGit = SCMUtil.readFirstLine(new File(gitDir, GITDIR_FILENAME));
+        if (dotGit != null && !gitDir.equals(commonDir)) {
+            return resolve(gitDir, dotGit.trim()).getParentFile();
+        }
+
+        final FileBasedConfig config = new FileBasedConfig(new File(commonDir, Constants.CONFIG), FS.DETECTED);
+        config.load();
+        final String workTree = config.getString(
+                ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_WORKTREE);
+        return (workTree != null)
+                ? resolve(gitDir, workTree)
+                : gitDir.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Returns the file (or directory) in the repository which stores a ref.
+     *
+     * @param refName The full name of the ref.
+     * @return The loose ref file, it may not exist.
+     */
+    public File refFile(@NonNull final String refName) {
+        // only HEAD and the other pseudo-refs belong to a worktree
+        return new File(refName.startsWith(Constants.R_REFS) ? commonDir : gitDir, refName);
+    }
+
+    private static File resolve(final File base, final String path) {
+        final File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    /**
+     * Resolves {@code HEAD} through any symbolic refs to the object id of the
+     * checked out commit.
+     *
+     * @return The {@code HEAD} ref with its object id, or {@code null} if it
+     *         could not be resolved from the loose or packed refs.
+     * @throws IOException If a ref file could not be read.
+     */
+    @Nullable
+    public Ref readHead() throws IOException {
+        return readRef(Constants.HEAD, 0);
+    }
+
+    @Nullable
+    private Ref readRef(final String name, final int depth) throws IOException {
+        if (depth > MAX_SYMREF_DEPTH) {
+            return null;
+        }
+
+        final String content = SCMUtil.readFirstLine(refFile(name));
+        if (content == null) {
+            final ObjectId packed = PackedRefs.find(new File(commonDir, Constants.PACKED_REFS), name);
+            return (packed != null)
+                    ? new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, name, packed)
+                    : null;
+        }
+
+        if (content.startsWith(SYMREF_PREFIX)) {
+            final Ref target = readRef(content.substring(SYMREF_PREFIX.length()).trim(), depth + 1);
+            return (target != null) ? new SymbolicRef(name, target) : null;
+        }
+
+        final String id = content.trim();
+        return ObjectId.isId(id)
+                ? new ObjectIdRef.Unpeeled(Ref.Storage.LOOSE, name, ObjectId.fromString(id))
+                : null;
+    }
+
+    /**
+     * Inflates and parses a loose commit object.
+     *
+     * @param id The id of the commit.
+     * @return The parsed commit, or {@code null} if the commit is not stored as
+     *         a loose object.
+     * @throws IOException If the object could not be read or isn't a commit.
+     */
+    @Nullable
+    public RevCommit readCommit(@NonNull final ObjectId id) throws IOException {
+        if (SystemReader.getInstance().getenv(GIT_OBJECT_DIRECTORY) != null) {
+            return null;
+        }
+
+        final String name = id.name();
+        final File objectFile = new File(new File(new File(commonDir, OBJECTS_DIRNAME),
+                name.substring(0, 2)), name.substring(2));
+        if (!objectFile.isFile()) {
+            return null;
+        }
+        Metrics.current().read(objectFile.length());
+
+        final InputStream in = new InflaterInputStream(new FileInputStream(objectFile));
+        try {
+            final String header = readHeader(in);
+            if (!header.startsWith(COMMIT_HEADER)) {
+                throw new IOException("Object " + name + " is not a commit.");
+            }
+
+            final int length;
+            try {
+                length = Integer.parseInt(header.substring(COMMIT_HEADER.length()));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Object " + name + " has an invalid header.");
+            }
+
+            final ByteArrayOutputStream raw = new ByteArrayOutputStream(length);
+            final byte[] buf = new byte[Math.min(Math.max(length, 1), 8192)];
+            int n;
+            while (raw.size() < length && (n = in.read(buf, 0, Math.min(buf.length, length - raw.size()))) != -1) {
+                raw.write(buf, 0, n);
+            }
+            if (raw.size() != length) {
+                throw new IOException("Object " + name + " is truncated.");
+            }
+            return RevCommit.parse(raw.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the system, user and repository configuration in the same order
+     * that JGit layers them for a {@code Repository}.
+     *
+     * @return The repository configuration backed by the user and system
+     *         configuration.
+     * @throws IOException If a configuration file could not be read.
+     * @throws ConfigInvalidException If a configuration file is invalid.
+     */
+    public FileBasedConfig readConfig() throws IOException, ConfigInvalidException {
+        final FS fs = FS.DETECTED;
+        final SystemReader system = SystemReader.getInstance();
+
+        final FileBasedConfig systemConfig = system.openSystemConfig(null, fs);
+        systemConfig.load();
+        final FileBasedConfig userConfig = system.openUserConfig(systemConfig, fs);
+        userConfig.load();
+        final FileBasedConfig repoConfig =
+                new FileBasedConfig(userConfig, new File(commonDir, Constants.CONFIG), fs);
+        repoConfig.load();
+        return repoConfig;
+    }
+
+    /** Reads the object header up to the terminating {@code NUL} byte. */
+    private static String readHeader(final InputStream in) throws IOException {
+        final StringBuilder header = new StringBuilder(16);
+        int b;
+        while ((b = in.read()) > 0) {
+            header.append((char) b);
+            if (header.length() > 32) {
+                break;
+            }
+        }
+        if (b != 0) {
+            throw new IOException("Invalid loose object header.");
+        }
+        return header.toString();
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The most recent commit which changed each of a set of paths in a Git
+ * repository, kept between builds and brought up to date from the commits
+ * made since.
+ *
+ * <p>Finding the last commit which changed a directory means walking the
+ * history back until the directory differs from the parents of a commit,
+ * which in a large repository can be a long way. With this index only the
+ * commits between the {@code HEAD} it was last updated to and the current
+ * {@code HEAD} are walked, and a path none of them changed keeps its commit.
+ * The history is walked again only for new paths, or when the old {@code
+ * HEAD} is no longer an ancestor of the new one (e.g. after a rebase).
+ *
+ * <p>All of the paths are looked for in the same walk, so the cost doesn't
+ * grow with the number of projects in the build.
+ *
+ * <p>The index is written as text:
+ * <pre>
+ * {@code
+ *   head <commit id>
+ *   path <commit id> <path>
+ * }
+ * </pre>
+ * The root of the working copy is the path {@code .}. A path which no commit
+ * has changed has the zero id.
+ */
+final class GitPathIndex {
+
+    /** The name of this cache in the {@code Metrics}. */
+    static final String CACHE_NAME = "paths";
+
+    /** The first line of the index file, a file with another header is ignored. */
+    private static final String HEADER = "# snapshot path index v1";
+
+    /** The path written for the root of the working copy. */
+    private static final String ROOT_PATH = ".";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The file the index is loaded from and saved to, may be {@code null}. */
+    @Nullable
+    private final File file;
+
+    /** The {@code HEAD} the index was last updated to, {@code null} if never. */
+    @Nullable
+    private ObjectId head;
+
+    /** The last commit which changed each path, by path. */
+    private Map<String, ObjectId> commits = new TreeMap<String, ObjectId>();
+
+    /** Whether the index changed since it was loaded. */
+    private boolean changed;
+
+    /**
+     * Creates an index backed by {@code file}, loading the entries in it.
+     *
+     * @param file The index file, or {@code null} for an index which is not
+     *             persisted.
+     */
+    public GitPathIndex(@Nullable final File file) {
+        this.file = file;
+        if (file != null) {
+            load(file);
+        }
+    }
+
+    /**
+     * Finds the most recent commit reachable from {@code headId} which
+     * changed each path, and records the result in the index.
+     *
+     * @param repo The repository.
+     * @param headId The id of the checked out commit.
+     * @param paths The paths relative to the working copy, with {@code /}
+     *              separators and {@code ""} for the root.
+     * @return The id of the last commit which changed each path, or the zero
+     *         id if none did, keyed by path.
+     * @throws IOException If the history could not be read.
+     */
+    public Map<String, ObjectId> update(
+            @NonNull final Repository repo,
+            @NonNull final ObjectId headId,
+            @NonNull final Collection<String> paths) throws IOException {
+        final Map<String, ObjectId> result = new TreeMap<String, ObjectId>();
+        final Set<String> missing = new LinkedHashSet<String>();
+        for (final String path : paths) {
+            final ObjectId commit = commits.get(path);
+            if (commit != null) {
+                result.put(path, commit);
+            } else {
+                missing.add(path);
+            }
+        }
+
+        if (headId.equals(head) && missing.isEmpty()) {
+            Metrics.current().hit(CACHE_NAME);
+            return result;
+        }
+        Metrics.current().miss(CACHE_NAME);
+
+        if (!headId.equals(head) && !result.isEmpty()) {
+            if (head != null && isAncestor(repo, head, headId)) {
+                // only the commits since the last update can have changed the paths
+                result.putAll(walk(repo, headId, head, result.keySet()));
+            } else {
+                missing.addAll(result.keySet());
+                result.clear();
+            }
+        }
+        if (!missing.isEmpty()) {
+            final Map<String, ObjectId> found = walk(repo, headId, null, missing);
+            for (final String path : missing) {
+                result.put(path, found.containsKey(path) ? found.get(path) : ObjectId.zeroId());
+            }
+        }
+
+        head = headId.copy();
+        commits = new TreeMap<String, ObjectId>(result);
+        changed = true;
+        return result;
+    }
+
+    /**
+     * Walks the history back from {@code headId} until the last commit which
+     * changed each path is found.
+     *
+     * <p>A commit changed a path when the path differs from every one of its
+     * parents, so a merge which took the path from one side isn't counted.
+     * The commits are visited newest first.
+     *
+     * @param repo The repository.
+     * @param headId The commit to start from.
+     * @param since The commit to stop at, with its ancestors, {@code null}
+     *              for the whole history.
+     * @param paths The paths to look for.
+     * @return The last commit which changed each path, paths which weren't
+     *         changed in the range are left out.
+     * @throws IOException If the history could not be read.
+     */
+    static Map<String, ObjectId> walk(
+            final Repository repo,
+            final AnyObjectId headId,
+            @Nullable final AnyObjectId since,
+            final Collection<String> paths) throws IOException {
+        final List<String> ordered = new ArrayList<String>(paths);
+        final Set<String> remaining = new LinkedHashSet<String>(ordered);
+        final Map<String, ObjectId> found = new HashMap<String, ObjectId>();
+
+        final RevWalk revWalk = new RevWalk(repo);
+        try {
+            final ObjectReader reader = revWalk.getObjectReader();
+            revWalk.markStart(revWalk.parseCommit(headId));
+            if (since != null) {
+                revWalk.markUninteresting(revWalk.parseCommit(since));
+            }
+
+            // the entries of a parent are kept until the parent itself is visited
+            final Map<RevCommit, ObjectId[]> pending = new HashMap<RevCommit, ObjectId[]>();
+            RevCommit commit;
+            while (!remaining.isEmpty() && (commit = revWalk.next()) != null) {
+                ObjectId[] entries = pending.remove(commit);
+                if (entries == null) {
+                    entries = entries(reader, commit, ordered, remaining);
+                }
+
+                final ObjectId[][] parentEntries = new ObjectId[commit.getParentCount()][];
+                for (int i = 0; i < parentEntries.length; i++) {
+                    final RevCommit parent = commit.getParent(i);
+                    parentEntries[i] = pending.get(parent);
+                    if (parentEntries[i] == null) {
+                        revWalk.parseHeaders(parent);
+                        parentEntries[i] = entries(reader, parent, ordered, remaining);
+                        pending.put(parent, parentEntries[i]);
+                    }
+                }
+
+                for (int i = 0; i < ordered.size(); i++) {
+                    final String path = ordered.get(i);
+                    if (remaining.contains(path) && isChanged(entries[i], parentEntries, i)) {
+                        found.put(path, commit.copy());
+                        remaining.remove(path);
+                    }
+                }
+            }
+        } finally {
+            revWalk.dispose();
+        }
+        return found;
+    }
+
+    /** Whether an entry differs from the same entry in every parent. */
+    private static boolean isChanged(
+            @Nullable final ObjectId entry,
+            final ObjectId[][] parentEntries,
+            final int index) {
+        if (parentEntries.length == 0) {
+            return entry != null;
+        }
+        for (final ObjectId[] parent : parentEntries) {
+            final ObjectId parentEntry = parent[index];
+            if ((entry == null) ? parentEntry == null : entry.equals(parentEntry)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the id of the tree or blob at each of the remaining paths in a
+     * commit, {@code null} where there is none.
+     */
+    private static ObjectId[] entries(
+            final ObjectReader reader,
+            final RevCommit commit,
+            final List<String> ordered,
+            final Set<String> remaining) throws IOException {
+        final ObjectId[] entries = new ObjectId[ordered.size()];
+        for (int i = 0; i < entries.length; i++) {
+            final String path = ordered.get(i);
+            if (!remaining.contains(path)) {
+                continue;
+            }
+            if (path.length() == 0) {
+                entries[i] = commit.getTree().copy();
+            } else {
+                final TreeWalk treeWalk = TreeWalk.forPath(reader, path, commit.getTree());
+                entries[i] = (treeWalk != null) ? treeWalk.getObjectId(0) : null;
+            }
+        }
+        return entries;
+    }
+
+    /** Whether {@code base} is reachable from {@code tip}. */
+    private static boolean isAncestor(final Repository repo, final ObjectId base, final ObjectId tip)
+            throws IOException {
+        final RevWalk revWalk = new RevWalk(repo);
+        try {
+            return revWalk.isMergedInto(revWalk.parseCommit(base), revWalk.parseCommit(tip));
+        } catch (final MissingObjectException e) {
+            // the old HEAD was pruned
+            return false;
+        } finally {
+            revWalk.dispose();
+        }
+    }
+
+    /**
+     * Saves the index to its file if it changed. The file is replaced in one
+     * step so a concurrent build never reads half of it.
+     *
+     * @throws IOException If the index could not be written.
+     */
+    public void save() throws IOException {
+        if (file == null || !changed || head == null) {
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder(64 * (commits.size() + 2));
+        sb.append(HEADER).append('\n');
+        sb.append("head ").append(head.name()).append('\n');
+        for (final Map.Entry<String, ObjectId> commit : commits.entrySet()) {
+            final String path = commit.getKey();
+            sb.append("path ").append(commit.getValue().name()).append(' ')
+                    .append((path.length() == 0) ? ROOT_PATH : path).append('\n');
+        }
+        SCMUtil.writeIfChanged(file, sb.toString().getBytes(UTF_8));
+        changed = false;
+    }
+
+    /** Loads the entries of an index file, an unreadable file is ignored. */
+    private void load(final File file) {
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ", 3);
+                if (fields[0].equals("head") && fields.length == 2) {
+                    head = ObjectId.fromString(fields[1]);
+                } else if (fields[0].equals("path") && fields.length == 3) {
+                    commits.put(ROOT_PATH.equals(fields[2]) ? "" : fields[2], ObjectId.fromString(fields[1]));
+                }
+            }
+            Metrics.current().read(file.length());
+        } catch (final IOException e) {
+            clear();
+        } catch (final IllegalArgumentException e) {
+            // a malformed object id
+            clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException ignored) {
+                    // nothing useful can be done
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        head = null;
+        commits.clear();
+    }
+
+}
@@ -18,30 +18,57 @@ package me.cmoz.gradle.snapshot;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.SneakyThrows;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
-import org.gradle.api.Project;
+import org.eclipse.jgit.util.FS;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * An {@code SCMCommand} for the Git Source Control Management (SCM) tool.
  */
 class GitSCMCommand implements SCMCommand {
 
-    private static final String REPO_DIRNAME = ".git";
+    /** The name of the Git directory, or file in linked worktrees. */
+    static final String REPO_DIRNAME = ".git";
+
+    /** The name of the index file in the Git directory. */
+    private static final String INDEX_FILENAME = "index";
+
+    /** The prefix of the {@code HEAD} file when it refers to a branch. */
+    private static final String SYMREF_PREFIX = "ref: ";
 
     @Getter
     private final File repoDir;
 
-    public GitSCMCommand(final Project project) {
-        repoDir = SCMUtil.scanDir(project, REPO_DIRNAME);
+    /**
+     * Creates a command for the repository with a {@code .git} directory
+     * or file.
+     *
+     * @param dotGit The {@code .git} directory or file found in the working
+     *               copy, may be {@code null}.
+     */
+    public GitSCMCommand(@Nullable final File dotGit) {
+        repoDir = (dotGit != null) ? GitHeadReader.resolveGitDir(dotGit) : null;
     }
 
     @Override
@@ -51,59 +78,445 @@ class GitSCMCommand implements SCMCommand {
     }
 
     @Override
-    @SneakyThrows(IOException.class)
+    @SneakyThrows({IOException.class, ConfigInvalidException.class})
     public Commit getLatestCommit(@NonNull final String dateFormat) {
         if (repoDir == null) {
             throw new IllegalStateException("'.git' folder could not be found.");
         }
 
+        final Metrics metrics = Metrics.current();
+
+        // read HEAD straight from the repository files when it's a loose commit
+        long start = System.nanoTime();
+        final GitHeadReader reader = new GitHeadReader(repoDir);
+        final UserConfig userConf = reader.readConfig().get(UserConfig.KEY);
+        metrics.record(Metrics.Phase.OPEN, start);
+
+        start = System.nanoTime();
+        final Ref head = reader.readHead();
+        metrics.record(Metrics.Phase.REFS, start);
+        if (head == null) {
+            return readRepository(dateFormat);
+        }
+
+        start = System.nanoTime();
+        RevCommit revCommit = reader.readCommit(head.getObjectId());
+        if (revCommit == null) {
+            revCommit = readPackedCommit(reader, head.getObjectId());
+        }
+
+        final String branchName = head.isSymbolic()
+                ? Repository.shortenRefName(head.getTarget().getName())
+                : head.getObjectId().name();
+        final Commit commit = toCommit(revCommit, branchName, userConf, dateFormat);
+        metrics.record(Metrics.Phase.PARSE, start);
+        return commit;
+    }
+
+    /**
+     * Reads the latest commit through a JGit {@code Repository}, this handles
+     * packed objects and any other repository layout.
+     *
+     * @param dateFormat The format of the dates in the commit.
+     * @return The {@code Commit} for the {@code HEAD} of the repository.
+     * @throws IOException If the repository could not be read.
+     */
+    private Commit readRepository(final String dateFormat) throws IOException {
+        final Metrics metrics = Metrics.current();
         final FileRepositoryBuilder builder = new FileRepositoryBuilder();
 
+        long start = System.nanoTime();
         final Repository repo = builder.setGitDir(repoDir)
                 .readEnvironment()
                 .build();
         final StoredConfig conf = repo.getConfig();
+        metrics.record(Metrics.Phase.OPEN, start);
 
-        int abbrev = Commit.ABBREV_LENGTH;
-        if (conf != null) {
-            abbrev = conf.getInt("core", "abbrev", abbrev);
+        start = System.nanoTime();
+        final Ref HEAD = repo.getRef(Constants.HEAD);
+        metrics.record(Metrics.Phase.REFS, start);
+        if (HEAD == null || HEAD.getObjectId() == null) {
+            repo.close();
+            throw new RuntimeException("Could not find any commits from HEAD ref.");
         }
 
+        start = System.nanoTime();
+        final RevWalk revWalk = new RevWalk(repo);
+        try {
+            final RevCommit revCommit = revWalk.parseCommit(HEAD.getObjectId());
+            return toCommit(revCommit, repo.getBranch(), conf.get(UserConfig.KEY), dateFormat);
+        } finally {
+            metrics.record(Metrics.Phase.PARSE, start);
+            revWalk.dispose();
+            repo.close();
+        }
+    }
+
+    /**
+     * Reads a commit which isn't stored as a loose object through the JGit
+     * object database, without resolving any refs.
+     *
+     * @param reader The reader which resolved the commit id.
+     * @param id The id of the commit.
+     * @return The parsed commit.
+     * @throws IOException If the commit could not be read.
+     */
+    private static RevCommit readPackedCommit(final GitHeadReader reader, final ObjectId id)
+            throws IOException {
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(reader.getCommonDir())
+                .readEnvironment()
+                .build();
+
+        final RevWalk revWalk = new RevWalk(repo);
+        try {
+            return revWalk.parseCommit(id);
+        } finally {
+            revWalk.dispose();
+            repo.close();
+        }
+    }
+
+    /**
+     * Creates a {@code Commit} from a parsed Git commit.
+     */
+    private static Commit toCommit(
+            final RevCommit revCommit,
+            final String branchName,
+            final UserConfig userConf,
+            final String dateFormat) {
         final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
 
-        final Ref HEAD = repo.getRef(Constants.HEAD);
-        if (HEAD.getObjectId() == null) {
-            throw new RuntimeException("Could not find any commits from HEAD ref.");
+        // git commit time in sec and java datetime is in ms
+        final Date commitTime = new Date(revCommit.getCommitTime() * 1000L);
+        final PersonIdent ident = revCommit.getAuthorIdent();
+
+        return Commit.builder()
+                .buildTime(sdf.format(new Date()))
+                .buildAuthorName(userConf.getAuthorName())
+                .buildAuthorEmail(userConf.getAuthorEmail())
+                .branchName(branchName)
+                .commitId(revCommit.getName())
+                .commitTime(sdf.format(commitTime))
+                .commitTimestamp(Long.toString(commitTime.getTime()))
+                .commitUserName(ident.getName())
+                .commitUserEmail(ident.getEmailAddress())
+                .commitMessage(revCommit.getFullMessage().trim())
+                .build();
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public Map<File, Commit> getPathCommits(
+            @NonNull final List<File> dirs,
+            @NonNull final String dateFormat,
+            @Nullable final File indexFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.git' folder could not be found.");
         }
 
-        final RevWalk revWalk = new RevWalk(repo);
-        if (HEAD.getObjectId() == null) {
-            throw new RuntimeException("Could not find any commits from HEAD ref.");
+        final Metrics metrics = Metrics.current();
+
+        long start = System.nanoTime();
+        final GitHeadReader reader = new GitHeadReader(repoDir);
+        final File workTree = reader.getWorkTree();
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(repoDir)
+                .readEnvironment()
+                .build();
+        try {
+            final UserConfig userConf = repo.getConfig().get(UserConfig.KEY);
+            metrics.record(Metrics.Phase.OPEN, start);
+
+            start = System.nanoTime();
+            final ObjectId headId = repo.resolve(Constants.HEAD);
+            final String branchName = repo.getBranch();
+            metrics.record(Metrics.Phase.REFS, start);
+            if (headId == null) {
+                throw new RuntimeException("Could not find any commits from HEAD ref.");
+            }
+
+            start = System.nanoTime();
+            final Map<File, String> paths = new LinkedHashMap<File, String>();
+            for (final File dir : dirs) {
+                final String path = SCMUtil.relativePath(workTree, dir);
+                paths.put(dir, (path != null) ? path : "");
+            }
+            final GitPathIndex index = new GitPathIndex(indexFile);
+            final Map<String, ObjectId> commitIds = index.update(repo, headId, new TreeSet<String>(paths.values()));
+            index.save();
+            metrics.record(Metrics.Phase.HISTORY, start);
+
+            start = System.nanoTime();
+            final Map<File, Commit> commits = new LinkedHashMap<File, Commit>();
+            final Map<ObjectId, Commit> parsed = new HashMap<ObjectId, Commit>();
+            final RevWalk revWalk = new RevWalk(repo);
+            try {
+                for (final Map.Entry<File, String> path : paths.entrySet()) {
+                    final ObjectId commitId = commitIds.get(path.getValue());
+                    final ObjectId id = ObjectId.zeroId().equals(commitId) ? headId : commitId;
+                    Commit commit = parsed.get(id);
+                    if (commit == null) {
+                        commit = toCommit(revWalk.parseCommit(id), branchName, userConf, dateFormat);
+                        parsed.put(id, commit);
+                    }
+                    commits.put(path.getKey(), commit);
+                }
+            } finally {
+                revWalk.dispose();
+            }
+            metrics.record(Metrics.Phase.PARSE, start);
+            return commits;
+        } finally {
+            repo.close();
         }
-        final RevCommit revCommit = revWalk.parseCommit(HEAD.getObjectId());
-        revWalk.markStart(revCommit);
+    }
 
+    @Override
+    @SneakyThrows(IOException.class)
+    public WorkingTreeStatus getStatus(@NonNull final DirtyCheck check, @Nullable final File statCacheFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.git' folder could not be found.");
+        }
+        if (check == DirtyCheck.NONE) {
+            throw new IllegalArgumentException("No working copy check was requested.");
+        }
+
+        final long start = System.nanoTime();
+        final GitHeadReader reader = new GitHeadReader(repoDir);
+        final RevCommit head = readHeadCommit(reader);
+
+        final StatCache statCache = new StatCache(statCacheFile);
+        final WorkingTreeStatus status = new GitWorkingTree(reader, statCache)
+                .check((head != null) ? head.getTree().getId() : null, check);
+        statCache.save();
+        Metrics.current().record(Metrics.Phase.STATUS, start);
+        return status;
+    }
+
+    /**
+     * Reads the commit at {@code HEAD}, from the repository files if possible.
+     *
+     * @return The commit or {@code null} if there are no commits yet.
+     */
+    @Nullable
+    private RevCommit readHeadCommit(final GitHeadReader reader) throws IOException {
+        final Ref head = reader.readHead();
+        if (head != null) {
+            final RevCommit revCommit = reader.readCommit(head.getObjectId());
+            return (revCommit != null) ? revCommit : readPackedCommit(reader, head.getObjectId());
+        }
+
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(repoDir)
+                .readEnvironment()
+                .build();
+        try {
+            final ObjectId id = repo.resolve(Constants.HEAD);
+            return (id != null) ? readPackedCommit(reader, id) : null;
+        } finally {
+            repo.close();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public NearestTag getNearestTag(@Nullable final File cacheFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.git' folder could not be found.");
+        }
+
+        final long start = System.nanoTime();
+        final GitHeadReader reader = new GitHeadReader(repoDir);
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(repoDir)
+                .readEnvironment()
+                .build();
+        try {
+            final ObjectId head = repo.resolve(Constants.HEAD);
+            if (head == null) {
+                throw new RuntimeException("Could not find any commits from HEAD ref.");
+            }
+
+            final DescribeCache cache = new DescribeCache(cacheFile);
+            final NearestTag nearestTag = new GitDescribe(repo, reader.getCommonDir(), cache).describe(head);
+            cache.save();
+            Metrics.current().record(Metrics.Phase.DESCRIBE, start);
+            return nearestTag;
+        } finally {
+            repo.close();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public int writeChangelog(
+            @Nullable final String since,
+            final int limit,
+            @NonNull final String dateFormat,
+            @NonNull final File outputFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.git' folder could not be found.");
+        }
+
+        final Metrics metrics = Metrics.current();
+
+        long start = System.nanoTime();
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(repoDir)
+                .readEnvironment()
+                .build();
+        final RevWalk revWalk = new RevWalk(repo);
+        final ChangelogWriter writer = new ChangelogWriter(outputFile, dateFormat, limit);
         try {
-            // git commit time in sec and java datetime is in ms
-            final Date commitTime = new Date(revCommit.getCommitTime() * 1000L);
-            final PersonIdent ident = revCommit.getAuthorIdent();
-            final UserConfig userConf = conf.get(UserConfig.KEY);
-
-            return Commit.builder()
-                    .buildTime(sdf.format(new Date()))
-                    .buildAuthorName(userConf.getAuthorName())
-                    .buildAuthorEmail(userConf.getAuthorEmail())
-                    .branchName(repo.getBranch())
-                    .commitId(revCommit.getName())
-                    .commitTime(sdf.format(commitTime))
-                    .commitUserName(ident.getName())
-                    .commitUserEmail(ident.getEmailAddress())
-                    .commitMessage(revCommit.getFullMessage().trim())
-                    .build();
+            final ObjectId head = repo.resolve(Constants.HEAD);
+            metrics.record(Metrics.Phase.OPEN, start);
+            if (head == null) {
+                return 0;
+            }
+
+            start = System.nanoTime();
+            revWalk.setRetainBody(false);
+            final ObjectId boundary = (since != null) ? repo.resolve(since) : findLastTag(repo, head);
+            if (since != null && boundary == null) {
+                throw new IllegalArgumentException("Could not find '" + since + "' in the Git repository.");
+            }
+            revWalk.markStart(revWalk.parseCommit(head));
+            if (boundary != null) {
+                revWalk.markUninteresting(revWalk.parseCommit(boundary));
+            }
+            metrics.record(Metrics.Phase.REFS, start);
+
+            // the walk keeps only the commit headers, each body is parsed on its own and dropped
+            start = System.nanoTime();
+            final ObjectReader reader = revWalk.getObjectReader();
+            for (final RevCommit revCommit : revWalk) {
+                final byte[] raw = reader.open(revCommit, Constants.OBJ_COMMIT).getCachedBytes();
+                metrics.read(raw.length);
+                final RevCommit entry = RevCommit.parse(raw);
+                writer.write(revCommit.getName(), entry.getFullMessage(),
+                        entry.getAuthorIdent().getName(), entry.getCommitTime() * 1000L);
+                if (writer.isFull()) {
+                    break;
+                }
+            }
+            metrics.record(Metrics.Phase.PARSE, start);
+            return writer.getCount();
         } finally {
+            writer.close();
             revWalk.dispose();
             repo.close();
         }
     }
 
+    /**
+     * Finds the most recent tagged commit reachable from {@code head}, the
+     * commit bodies are not read. The history is walked in topological order
+     * so a tagged commit with a skewed commit time isn't taken before a tag
+     * on one of its descendants, as {@code git describe} would.
+     *
+     * @return The tagged commit or {@code null} if no tag is reachable.
+     */
+    @Nullable
+    private static ObjectId findLastTag(final Repository repo, final ObjectId head) throws IOException {
+        final Set<ObjectId> tagged = new HashSet<ObjectId>();
+        for (final Ref ref : repo.getTags().values()) {
+            final Ref peeled = repo.peel(ref);
+            tagged.add((peeled.getPeeledObjectId() != null) ? peeled.getPeeledObjectId() : peeled.getObjectId());
+        }
+        if (tagged.isEmpty()) {
+            return null;
+        }
+
+        final RevWalk revWalk = new RevWalk(repo);
+        try {
+            revWalk.setRetainBody(false);
+            revWalk.sort(RevSort.TOPO);
+            revWalk.markStart(revWalk.parseCommit(head));
+            for (final RevCommit revCommit : revWalk) {
+                if (tagged.contains(revCommit)) {
+                    return revCommit.copy();
+                }
+            }
+            return null;
+        } finally {
+            revWalk.dispose();
+        }
+    }
+
+    @Override
+    @SneakyThrows({IOException.class, ConfigInvalidException.class})
+    public Map<String, File> getSubmodules() {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.git' folder could not be found.");
+        }
+
+        final GitHeadReader reader = new GitHeadReader(repoDir);
+        final File workTree = reader.getWorkTree();
+        final Set<String> paths = new TreeSet<String>();
+
+        // the gitlinks in the index, as 'git submodule' reads them
+        final File indexFile = new File(repoDir, INDEX_FILENAME);
+        if (indexFile.isFile()) {
+            Metrics.current().read(indexFile.length());
+            final DirCache index = DirCache.read(indexFile, FS.DETECTED);
+            for (int i = 0; i < index.getEntryCount(); i++) {
+                final DirCacheEntry entry = index.getEntry(i);
+                if (entry.getStage() == DirCacheEntry.STAGE_0 && FileMode.GITLINK.equals(entry.getFileMode())) {
+                    paths.add(entry.getPathString());
+                }
+            }
+        }
+
+        // and the submodules in .gitmodules, which may not be staged yet
+        final File gitmodules = new File(workTree, Constants.DOT_GIT_MODULES);
+        if (gitmodules.isFile()) {
+            Metrics.current().read(gitmodules.length());
+            final FileBasedConfig config = new FileBasedConfig(gitmodules, FS.DETECTED);
+            config.load();
+            for (final String name : config.getSubsections(ConfigConstants.CONFIG_SUBMODULE_SECTION)) {
+                final String path = config.getString(
+                        ConfigConstants.CONFIG_SUBMODULE_SECTION, name, ConfigConstants.CONFIG_KEY_PATH);
+                if (path != null && SCMUtil.isRelativePath(path)) {
+                    paths.add(path);
+                }
+            }
+        }
+
+        final Map<String, File> submodules = new LinkedHashMap<String, File>();
+        for (final String path : paths) {
+            final File dotGit = new File(new File(workTree, path), REPO_DIRNAME);
+            if (dotGit.exists()) {
+                submodules.put(path, dotGit);
+            }
+        }
+        return submodules;
+    }
+
+    @Override
+    public List<File> getStateFiles() {
+        final List<File> files = new ArrayList<File>();
+        if (repoDir == null) {
+            return files;
+        }
+
+        final GitHeadReader reader = new GitHeadReader(repoDir);
+        final File head = reader.refFile(Constants.HEAD);
+        files.add(head);
+
+        final String headRef = SCMUtil.readFirstLine(head);
+        if ((headRef != null) && headRef.startsWith(SYMREF_PREFIX)) {
+            files.add(reader.refFile(headRef.substring(SYMREF_PREFIX.length()).trim()));
+        }
+        files.add(new File(reader.getCommonDir(), Constants.PACKED_REFS));
+        files.add(new File(reader.getCommonDir(), Constants.R_TAGS));
+        files.add(new File(reader.getCommonDir(), Constants.CONFIG));
+
+        final File userHome = FS.DETECTED.userHome();
+        if (userHome != null) {
+            files.add(new File(userHome, ".gitconfig"));
+        }
+        return files;
+    }
+
 }
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.errors.UnmergedPathException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.IndexDiff;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.io.EolCanonicalizingInputStream;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Checks a Git working copy for changes which have not been committed, in
+ * the same way as {@code git describe --dirty}: staged changes and changes to
+ * tracked files count, untracked files don't.
+ *
+ * <p>Staged changes are found by comparing the tree of the index, which is
+ * computed from the cached trees in the index without touching the object
+ * database, with the tree of {@code HEAD}. Tracked files are compared with
+ * the stat data in the index, and only the files whose stat data doesn't
+ * match are hashed (once, thanks to the {@code StatCache}).
+ *
+ * <p>A file is hashed as Git would store it, with its line endings converted
+ * when {@code core.autocrlf} is set. JGit 3.6 can't read
+ * {@code .gitattributes}, so the attributes of a file (e.g. a filter) can't
+ * be applied to it: files which may have attributes are left to JGit's
+ * {@code IndexDiff} instead.
+ */
+final class GitWorkingTree {
+
+    /** The name of the index file in the Git directory. */
+    private static final String INDEX_FILENAME = "index";
+
+    /** The name of the files with the attributes of the paths in a directory. */
+    private static final String ATTRIBUTES_FILENAME = ".gitattributes";
+
+    /** The attributes file in the Git directory which applies to every path. */
+    private static final String INFO_ATTRIBUTES_PATH = "info/attributes";
+
+    /** The working copy directory. */
+    private final File workTree;
+
+    /** The Git directory of the working copy. */
+    private final File gitDir;
+
+    /** The directory with the objects of the repository. */
+    private final File commonDir;
+
+    private final GitHeadReader reader;
+
+    private final StatCache statCache;
+
+    /** The modification time of the index, files changed since may be racily clean. */
+    private long indexModified;
+
+    /** How the line endings of the files are converted when Git stores them. */
+    private CoreConfig.AutoCRLF autoCRLF;
+
+    /** Whether the attributes in the Git directory apply to every file. */
+    private boolean infoAttributes;
+
+    /** Whether each directory checked has a {@code .gitattributes} file. */
+    private final ConcurrentMap<File, Boolean> attributesDirs = new ConcurrentHashMap<File, Boolean>();
+
+    /** The paths which may have attributes, they're compared by JGit. */
+    private final Set<String> unknown = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public GitWorkingTree(@NonNull final GitHeadReader reader, @NonNull final StatCache statCache) {
+        this.workTree = reader.getWorkTree();
+        this.gitDir = reader.getGitDir();
+        this.commonDir = reader.getCommonDir();
+        this.reader = reader;
+        this.statCache = statCache;
+    }
+
+    /**
+     * Checks the working copy for changes.
+     *
+     * @param headTree The tree of the {@code HEAD} commit, or {@code null}
+     *                 if there are no commits yet.
+     * @param check Whether to stop at the first change or count them all.
+     * @return The status of the working copy.
+     * @throws IOException If the index or a file could not be read.
+     */
+    @SneakyThrows(ConfigInvalidException.class)
+    public WorkingTreeStatus check(@Nullable final ObjectId headTree, @NonNull final DirtyCheck check)
+            throws IOException {
+        final boolean stopAtFirst = (check != DirtyCheck.COUNT);
+        autoCRLF = reader.readConfig().get(WorkingTreeOptions.KEY).getAutoCRLF();
+        infoAttributes = new File(commonDir, INFO_ATTRIBUTES_PATH).isFile();
+        final File indexFile = new File(gitDir, INDEX_FILENAME);
+        indexModified = indexFile.lastModified();
+        Metrics.current().read(indexFile.length());
+        final DirCache index = DirCache.read(indexFile, FS.DETECTED);
+
+        // paths which are staged (or unmerged) are counted once
+        final Set<String> staged = new HashSet<String>();
+        final List<DirCacheEntry> tracked = new ArrayList<DirCacheEntry>(index.getEntryCount());
+        for (int i = 0; i < index.getEntryCount(); i++) {
+            final DirCacheEntry entry = index.getEntry(i);
+            if (entry.getStage() != DirCacheEntry.STAGE_0) {
+                staged.add(entry.getPathString());
+            } else if (isChecked(entry)) {
+                tracked.add(entry);
+            }
+        }
+        if (!staged.isEmpty() && stopAtFirst) {
+            return status(1, stopAtFirst);
+        }
+
+        final ObjectId indexTree = staged.isEmpty() ? indexTree(index) : null;
+        if (indexTree == null || !indexTree.equals(headTree)) {
+            if (stopAtFirst && (headTree != null || index.getEntryCount() > 0)) {
+                return status(1, stopAtFirst);
+            }
+            staged.addAll(stagedPaths(index, headTree));
+        }
+
+        int modified = WorkingTreeWalk.count(tracked, new WorkingTreeWalk.Check<DirCacheEntry>() {
+            @Override
+            public boolean isModified(final DirCacheEntry entry) throws IOException {
+                return !staged.contains(entry.getPathString()) && isFileModified(entry);
+            }
+        }, stopAtFirst);
+        if (!unknown.isEmpty() && !(stopAtFirst && modified > 0)) {
+            modified += modifiedPaths(headTree, unknown);
+        }
+        return status(staged.size() + modified, stopAtFirst);
+    }
+
+    /** Whether the working copy file of an entry should be compared with it. */
+    private static boolean isChecked(final DirCacheEntry entry) {
+        final FileMode mode = entry.getFileMode();
+        // the target of a symbolic link can't be read on Java 6, submodules have their own status
+        return !entry.isAssumeValid()
+                && !entry.isSkipWorkTree()
+                && mode != FileMode.SYMLINK
+                && mode != FileMode.GITLINK;
+    }
+
+    /**
+     * Computes the id of the tree of the index. Only the trees which aren't
+     * cached in the index are formatted, nothing is written to (or read from)
+     * the object database.
+     */
+    @Nullable
+    private static ObjectId indexTree(final DirCache index) throws IOException {
+        final ObjectInserter formatter = new IdFormatter();
+        try {
+            return index.writeTree(formatter);
+        } catch (final UnmergedPathException e) {
+            return null;
+        } finally {
+            formatter.release();
+        }
+    }
+
+    /**
+     * Lists the paths which differ between the tree of {@code HEAD} and the
+     * index.
+     */
+    private Set<String> stagedPaths(final DirCache index, @Nullable final ObjectId headTree)
+            throws IOException {
+        final Set<String> paths = new HashSet<String>();
+        if (headTree == null) {
+            for (int i = 0; i < index.getEntryCount(); i++) {
+                paths.add(index.getEntry(i).getPathString());
+            }
+            return paths;
+        }
+
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(commonDir)
+                .readEnvironment()
+                .build();
+        final TreeWalk walk = new TreeWalk(repo);
+        try {
+            walk.setRecursive(true);
+            walk.addTree(headTree);
+            walk.addTree(new DirCacheIterator(index));
+            while (walk.next()) {
+                if (walk.getRawMode(0) != walk.getRawMode(1) || !walk.idEqual(0, 1)) {
+                    paths.add(walk.getPathString());
+                }
+            }
+        } finally {
+            walk.release();
+            repo.close();
+        }
+        return paths;
+    }
+
+    /**
+     * Counts the paths which JGit finds modified (or deleted) in the working
+     * copy.
+     */
+    private int modifiedPaths(@Nullable final ObjectId headTree, final Set<String> paths) throws IOException {
+        final Repository repo = new FileRepositoryBuilder()
+                .setGitDir(commonDir)
+                .setIndexFile(new File(gitDir, INDEX_FILENAME))
+                .setWorkTree(workTree)
+                .readEnvironment()
+                .build();
+        try {
+            final IndexDiff diff = new IndexDiff(repo, headTree, new FileTreeIterator(repo));
+            diff.setFilter(PathFilterGroup.createFromStrings(paths));
+            diff.diff();
+
+            int count = 0;
+            for (final String path : paths) {
+                if (diff.getModified().contains(path) || diff.getMissing().contains(path)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            repo.close();
+        }
+    }
+
+    /**
+     * Whether a {@code .gitattributes} file in the directory of a path (or
+     * above it) or in the Git directory may give the path attributes.
+     */
+    private boolean hasAttributes(final String path) {
+        if (infoAttributes) {
+            return true;
+        }
+
+        File dir = workTree;
+        final String[] segments = path.split("/");
+        for (int i = 0; i < segments.length; i++) {
+            Boolean found = attributesDirs.get(dir);
+            if (found == null) {
+                found = new File(dir, ATTRIBUTES_FILENAME).isFile();
+                attributesDirs.put(dir, found);
+            }
+            if (found) {
+                return true;
+            }
+            if (i < segments.length - 1) {
+                dir = new File(dir, segments[i]);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares a tracked file with its entry in the index.
+     */
+    private boolean isFileModified(final DirCacheEntry entry) throws IOException {
+        final String path = entry.getPathString();
+        final File file = new File(workTree, path);
+        final long modified = file.lastModified();
+        if (modified == 0L || !file.isFile()) {
+            return true; // deleted, or replaced by a directory
+        }
+
+        final long length = file.length();
+        // the index only records the lower 32 bits of the size
+        final boolean sameLength = (entry.getLength() == (int) length);
+        if (!sameLength && !entry.isSmudged()) {
+            return true;
+        }
+        if (sameLength && sameTime(entry.getLastModified(), modified) && modified < indexModified) {
+            return false;
+        }
+
+        // the stat data doesn't prove anything, compare the content
+        if (hasAttributes(path)) {
+            unknown.add(path);
+            return false;
+        }
+        String hash = statCache.get(path, modified, length);
+        if (hash == null) {
+            hash = hashBlob(file, length);
+            statCache.put(path, modified, length, hash);
+        }
+        return !hash.equals(entry.getObjectId().name());
+    }
+
+    /** Compares two times, allowing for file systems (or JDKs) without milliseconds. */
+    private static boolean sameTime(final long indexTime, final long fileTime) {
+        return indexTime == fileTime
+                || ((fileTime % 1000 == 0 || indexTime % 1000 == 0) && indexTime / 1000 == fileTime / 1000);
+    }
+
+    private String hashBlob(final File file, final long length) throws IOException {
+        Metrics.current().read(length);
+        final ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        try {
+            if (autoCRLF == CoreConfig.AutoCRLF.FALSE || length > Integer.MAX_VALUE) {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    return formatter.idFor(Constants.OBJ_BLOB, length, in).name();
+                } finally {
+                    in.close();
+                }
+            }
+            return formatter.idFor(Constants.OBJ_BLOB, canonicalize(file, (int) length)).name();
+        } finally {
+            formatter.release();
+        }
+    }
+
+    /**
+     * Reads a file with its line endings converted to {@code LF} in the same
+     * way as JGit does when {@code core.autocrlf} is set, a binary file is
+     * left as it is.
+     */
+    private static byte[] canonicalize(final File file, final int length) throws IOException {
+        final byte[] raw = new byte[length];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(raw);
+        } finally {
+            in.close();
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        final InputStream converted = new EolCanonicalizingInputStream(new ByteArrayInputStream(raw), true);
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = converted.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Computes the id of each object instead of inserting it.
+     */
+    private static final class IdFormatter extends ObjectInserter.Formatter {
+
+        @Override
+        public ObjectId insert(final int type, final long len, final InputStream in) throws IOException {
+            return idFor(type, len, in);
+        }
+
+    }
+
+    private static WorkingTreeStatus status(final int modified, final boolean stopAtFirst) {
+        return WorkingTreeStatus.builder()
+                .dirty(modified > 0)
+                .modifiedCount(stopAtFirst ? WorkingTreeStatus.UNKNOWN : modified)
+                .build();
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A cache of the latest commit of a repository, kept between builds and
+ * valid while the files which record the state of the repository are
+ * unchanged.
+ *
+ * <p>When {@code HEAD} hasn't moved since the last build the commit doesn't
+ * need to be read again: the size and modification time of the state files
+ * (e.g. {@code .git/HEAD}, the ref it points to and the config) are compared
+ * with those recorded with the commit, and if they all match the recorded
+ * commit is used without opening the repository.
+ *
+ * <p>The cache is written as a properties file with the {@code Commit}
+ * properties, except {@code build.time}, and:
+ * <pre>
+ * {@code
+ *   cache.version    = <version of the format>
+ *   cache.dateFormat = <date format of the commit>
+ *   cache.stamp      = <size and modification time of each state file>
+ * }
+ * </pre>
+ * The file is replaced in one step, so builds sharing a workspace never read
+ * half of it; when two of them write it at once either one wins and both
+ * wrote the same commit.
+ */
+final class HeadCache {
+
+    /** The name of this cache in the {@code Metrics}. */
+    static final String CACHE_NAME = "head";
+
+    /** The version of the format, a file with another version is ignored. */
+    private static final String VERSION = "1";
+
+    private static final String VERSION_KEY = "cache.version";
+    private static final String DATE_FORMAT_KEY = "cache.dateFormat";
+    private static final String STAMP_KEY = "cache.stamp";
+
+    /**
+     * How long after a file is modified its stat data can't be trusted. A
+     * change in the same tick of the file system clock, with the same size,
+     * can't be told apart from the recorded state, so a commit read that soon
+     * after a state file changed isn't recorded.
+     */
+    static final long RACY_MILLIS = 2000;
+
+    /**
+     * The environment variables which change the build user or where its
+     * configuration is read from, these are part of the stamp as well.
+     */
+    private static final List<String> ENV_NAMES = Collections.unmodifiableList(Arrays.asList(
+            "GIT_AUTHOR_NAME", "GIT_AUTHOR_EMAIL", "GIT_COMMITTER_NAME", "GIT_COMMITTER_EMAIL",
+            "HGUSER", "EMAIL", "HGRCPATH", "XDG_CONFIG_HOME"));
+
+    /** The file the cache is loaded from and saved to, may be {@code null}. */
+    @Nullable
+    private final File file;
+
+    /** The format of the dates in the commit. */
+    private final String dateFormat;
+
+    /**
+     * Creates a cache backed by {@code file}.
+     *
+     * @param file The cache file, or {@code null} for a cache which is not
+     *             persisted.
+     * @param dateFormat The format of the dates in the commit.
+     */
+    public HeadCache(@Nullable final File file, @NonNull final String dateFormat) {
+        this.file = file;
+        this.dateFormat = dateFormat;
+    }
+
+    /**
+     * Returns the commit recorded with the same state files.
+     *
+     * @param stamp The stamp of the current state files.
+     * @return The recorded commit with the current {@code build.time}, or
+     *         {@code null} if there is none or the repository has changed
+     *         since.
+     */
+    @Nullable
+    public Commit get(@NonNull final String stamp) {
+        final Properties stored = (file != null) ? load(file) : null;
+        if (stored == null
+                || !VERSION.equals(stored.getProperty(VERSION_KEY))
+                || !dateFormat.equals(stored.getProperty(DATE_FORMAT_KEY))
+                || !stamp.equals(stored.getProperty(STAMP_KEY))
+                || stored.getProperty(Commit.ID) == null) {
+            Metrics.current().miss(CACHE_NAME);
+            return null;
+        }
+
+        final Map<String, String> properties = new HashMap<String, String>();
+        for (final String key : Commit.KEYS) {
+            properties.put(key, stored.getProperty(key));
+        }
+        properties.put(Commit.BUILD_TIME, new SimpleDateFormat(dateFormat).format(new Date()));
+        Metrics.current().hit(CACHE_NAME);
+        return Commit.fromMap(properties);
+    }
+
+    /**
+     * Records the commit read with the state files.
+     *
+     * @param stamp The stamp of the state files, taken before the commit was
+     *              read.
+     * @param commit The commit which was read.
+     * @throws IOException If the cache could not be written.
+     */
+    public void put(@NonNull final String stamp, @NonNull final Commit commit) throws IOException {
+        if (file == null) {
+            return;
+        }
+
+        final Map<String, String> properties = new HashMap<String, String>(commit.asMap());
+        properties.remove(Commit.BUILD_TIME);
+        properties.put(VERSION_KEY, VERSION);
+        properties.put(DATE_FORMAT_KEY, dateFormat);
+        properties.put(STAMP_KEY, stamp);
+        SCMUtil.writeIfChanged(file, PropertiesWriter.render(properties, "snapshot head cache"));
+    }
+
+    /**
+     * Returns the stamp of the state files, their paths, sizes and
+     * modification times and the environment variables which change the
+     * build user, or {@code null} if one of the files was modified too
+     * recently for its stat data to be trusted.
+     *
+     * @param stateFiles The files which record the state of the repository.
+     * @param now The current time in milliseconds.
+     * @return The stamp of the files or {@code null}.
+     */
+    @Nullable
+    public static String stamp(@NonNull final List<File> stateFiles, final long now) {
+        final StringBuilder sb = new StringBuilder(64 * stateFiles.size());
+        for (final File stateFile : stateFiles) {
+            final long modified = stateFile.lastModified();
+            if (modified > now - RACY_MILLIS) {
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(stateFile.getAbsolutePath())
+                    .append(',').append(stateFile.length())
+                    .append(',').append(modified);
+        }
+
+        return sb.append(environment()).toString();
+    }
+
+    /**
+     * Returns the environment variables which change the build user or where
+     * its configuration is read from, in the form they're added to the stamp.
+     *
+     * @return The variables which are set, each preceded by {@code ;}.
+     */
+    static String environment() {
+        final StringBuilder sb = new StringBuilder();
+        for (final String name : ENV_NAMES) {
+            final String value = SCMUtil.getenv(name);
+            if (value != null) {
+                sb.append(';').append(name).append('=').append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Loads the cache file, a missing or unreadable file is ignored. */
+    @Nullable
+    private static Properties load(final File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            final Properties properties = new Properties();
+            properties.load(in = new FileInputStream(file));
+            Metrics.current().read(file.length());
+            return properties;
+        } catch (final IOException e) {
+            return null;
+        } catch (final IllegalArgumentException e) {
+            // a malformed escape
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                    // nothing useful can be done
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of a changeset in the Mercurial changelog.
+ *
+ * <p>The text of a changelog revision is:
+ * <pre>
+ * {@code
+ *   <manifest nodeid>
+ *   <user>
+ *   <time> <timezone> [<extra>]
+ *   <file>*
+ *
+ *   <description>
+ * }
+ * </pre>
+ */
+@Data
+final class HgChangelogEntry {
+
+    /** The branch of a changeset without a {@code branch} extra. */
+    static final String DEFAULT_BRANCH = "default";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The node id of the changeset in hex. */
+    private final String nodeid;
+
+    /** The committer in the form {@code Name <email>}. */
+    private final String user;
+
+    /** The commit time in milliseconds since the epoch. */
+    private final long time;
+
+    /** The named branch of the changeset. */
+    private final String branch;
+
+    /** The commit message. */
+    private final String description;
+
+    /** The files changed by the changeset. */
+    private final List<String> files;
+
+    /**
+     * Parses the text of a changelog revision.
+     *
+     * @param nodeid The node id of the revision.
+     * @param text The text of the revision.
+     * @return The parsed changeset.
+     * @throws IOException If the text is not a changeset.
+     */
+    public static HgChangelogEntry parse(@NonNull final byte[] nodeid, @NonNull final byte[] text)
+            throws IOException {
+        final String entry = new String(text, UTF_8);
+        final int manifestEnd = entry.indexOf('\n');
+        final int userEnd = entry.indexOf('\n', manifestEnd + 1);
+        final int timeEnd = entry.indexOf('\n', userEnd + 1);
+        final int descriptionStart = entry.indexOf("\n\n", timeEnd);
+        if (manifestEnd < 0 || userEnd < 0 || timeEnd < 0) {
+            throw new IOException("Malformed changeset " + SCMUtil.toHex(nodeid) + ".");
+        }
+
+        final String user = entry.substring(manifestEnd + 1, userEnd);
+        final String[] time = entry.substring(userEnd + 1, timeEnd).split(" ", 3);
+        final long seconds;
+        try {
+            seconds = (long) Double.parseDouble(time[0]);
+        } catch (final NumberFormatException e) {
+            throw new IOException("Malformed changeset time in " + SCMUtil.toHex(nodeid) + ".", e);
+        }
+
+        final Map<String, String> extras = (time.length > 2)
+                ? parseExtras(time[2])
+                : new HashMap<String, String>();
+        final String branch = extras.containsKey("branch") ? extras.get("branch") : DEFAULT_BRANCH;
+        final String description = (descriptionStart < 0) ? "" : entry.substring(descriptionStart + 2);
+
+        final List<String> files = new ArrayList<String>();
+        final int filesEnd = (descriptionStart < 0) ? entry.length() : descriptionStart;
+        if (filesEnd > timeEnd + 1) {
+            for (final String file : entry.substring(timeEnd + 1, filesEnd).split("\n")) {
+                if (file.length() > 0) {
+                    files.add(file);
+                }
+            }
+        }
+
+        return new HgChangelogEntry(SCMUtil.toHex(nodeid), user, seconds * 1000, branch, description, files);
+    }
+
+    /** Parses the {@code key:value} pairs separated by {@code \0}, with {@code \\}, {@code \n} and {@code \0} escaped. */
+    private static Map<String, String> parseExtras(final String extra) {
+        final Map<String, String> extras = new HashMap<String, String>();
+        for (final String pair : extra.split("\0")) {
+            final String item = unescape(pair);
+            final int sep = item.indexOf(':');
+            if (sep > 0) {
+                extras.put(item.substring(0, sep), item.substring(sep + 1));
+            }
+        }
+        return extras;
+    }
+
+    private static String unescape(final String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                sb.append(c);
+                continue;
+            }
+            final char next = value.charAt(++i);
+            switch (next) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case '0':
+                    sb.append('\0');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    sb.append(next);
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Mercurial configuration of a repository, read from the same layered
+ * {@code hgrc} files as {@code hg} itself: the system files, then the user
+ * files and then the repository's {@code .hg/hgrc}, with later files
+ * overriding earlier ones.
+ *
+ * <p>The parsed configuration is cached for each repository and only read
+ * again when one of its files has changed, so every task in a build which
+ * asks for the same repository shares one parse.
+ */
+final class HgConfig {
+
+    /** The name of the configuration file in a repository and in the system directory. */
+    private static final String HGRC_FILENAME = "hgrc";
+
+    /** The environment variable with a list of configuration files and directories. */
+    private static final String HGRCPATH = "HGRCPATH";
+
+    /** The environment variable which overrides {@code ui.username}. */
+    private static final String HGUSER = "HGUSER";
+
+    /** The environment variable used when {@code ui.username} isn't set. */
+    private static final String EMAIL = "EMAIL";
+
+    private static final Pattern SECTION = Pattern.compile("^\\[([^\\[]+)\\]");
+    private static final Pattern ITEM = Pattern.compile("^([^=\\s][^=]*?)\\s*=\\s*(.*\\S|)");
+    private static final Pattern CONTINUATION = Pattern.compile("^\\s+(\\S|\\S.*\\S)\\s*$");
+    private static final Pattern UNSET = Pattern.compile("^%unset\\s+(\\S+)");
+    private static final Pattern INCLUDE = Pattern.compile("^%include\\s+(\\S|\\S.*\\S)\\s*$");
+
+    /** The configurations read so far, keyed by repository directory and configuration files. */
+    private static final ConcurrentMap<String, HgConfig> CACHE = new ConcurrentHashMap<String, HgConfig>();
+
+    /** The values keyed by {@code section.name}. */
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /** The files the values were read from, including any {@code %include}s. */
+    private final List<File> files = new ArrayList<File>();
+
+    /** The modification times and sizes of {@code files} when they were read. */
+    private final String stamp;
+
+    /**
+     * Reads the configuration files in order, later files override earlier
+     * ones.
+     *
+     * @param layers The configuration files, which may not exist.
+     * @throws IOException If a configuration file could not be read.
+     */
+    HgConfig(@NonNull final List<File> layers) throws IOException {
+        for (final File file : layers) {
+            read(file, new HashSet<File>());
+        }
+        stamp = stamp(files);
+    }
+
+    /**
+     * Returns the configuration of a repository, reading it only if it hasn't
+     * been read yet or one of its files has changed since.
+     *
+     * @param repoDir The {@code .hg} directory of the repository.
+     * @return The configuration of the repository.
+     * @throws IOException If a configuration file could not be read.
+     */
+    public static HgConfig forRepository(@NonNull final File repoDir) throws IOException {
+        final List<File> layers = getFiles(repoDir);
+        final String key = repoDir.getAbsolutePath() + '\n' + layers;
+        final HgConfig cached = CACHE.get(key);
+        if (cached != null && cached.stamp.equals(stamp(cached.files))) {
+            return cached;
+        }
+
+        final HgConfig config = new HgConfig(layers);
+        CACHE.put(key, config);
+        return config;
+    }
+
+    /**
+     * The configuration files of a repository in the order they are read,
+     * whether or not they exist.
+     *
+     * @param repoDir The {@code .hg} directory of the repository.
+     * @return The system and user configuration files and the repository's
+     *         {@code hgrc}.
+     */
+    public static List<File> getFiles(@NonNull final File repoDir) {
+        final List<File> files = new ArrayList<File>();
+
+        final String hgrcPath = System.getenv(HGRCPATH);
+        if (hgrcPath != null) {
+            for (final String path : hgrcPath.split(File.pathSeparator)) {
+                if (path.length() > 0) {
+                    addRcFiles(files, new File(path));
+                }
+            }
+        } else {
+            final File systemDir = new File("/etc/mercurial");
+            files.add(new File(systemDir, HGRC_FILENAME));
+            addRcFiles(files, new File(systemDir, "hgrc.d"));
+
+            final File userHome = new File(System.getProperty("user.home"));
+            files.add(new File(userHome, ".hgrc"));
+            files.add(new File(userHome, "mercurial.ini"));
+            final String configHome = System.getenv("XDG_CONFIG_HOME");
+            files.add(new File((configHome != null) ? new File(configHome) : new File(userHome, ".config"),
+                    "hg/hgrc"));
+        }
+
+        files.add(new File(repoDir, HGRC_FILENAME));
+        return files;
+    }
+
+    /**
+     * The value of a configuration item.
+     *
+     * @param section The section of the item, e.g. {@code ui}.
+     * @param name The name of the item, e.g. {@code username}.
+     * @return The value or {@code null} if the item isn't set.
+     */
+    @Nullable
+    public String get(@NonNull final String section, @NonNull final String name) {
+        return values.get(section + '.' + name);
+    }
+
+    /**
+     * The user name {@code hg} would commit with, from {@code $HGUSER}, then
+     * {@code ui.username} and then {@code $EMAIL}.
+     *
+     * @return The user in the form {@code Name <email>}, or an empty string if
+     *         none is configured.
+     */
+    public String getUsername() {
+        final String hgUser = System.getenv(HGUSER);
+        if (hgUser != null && hgUser.length() > 0) {
+            return hgUser;
+        }
+        final String username = get("ui", "username");
+        if (username != null) {
+            return username;
+        }
+        final String email = System.getenv(EMAIL);
+        return (email != null) ? email : "";
+    }
+
+    /** Adds a configuration file, or the {@code *.rc} files of a directory in name order. */
+    private static void addRcFiles(final List<File> files, final File path) {
+        if (!path.isDirectory()) {
+            files.add(path);
+            return;
+        }
+
+        final File[] rcFiles = path.listFiles();
+        if (rcFiles == null) {
+            return;
+        }
+        Arrays.sort(rcFiles);
+        for (final File rcFile : rcFiles) {
+            if (rcFile.getName().endsWith(".rc") && rcFile.isFile()) {
+                files.add(rcFile);
+            }
+        }
+    }
+
+    private void read(final File file, final Set<File> including) throws IOException {
+        files.add(file);
+        if (!file.isFile() || !including.add(file.getAbsoluteFile())) {
+            return;
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String section = "";
+            String lastKey = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Metrics.current().read(line.length() + 1);
+
+                Matcher m = CONTINUATION.matcher(line);
+                if (lastKey != null && m.matches()) {
+                    values.put(lastKey, values.get(lastKey) + '\n' + m.group(1));
+                    continue;
+                }
+                lastKey = null;
+
+                final String trimmed = line.trim();
+                if (trimmed.length() == 0 || trimmed.startsWith("#") || trimmed.startsWith(";")) {
+                    continue;
+                }
+                if ((m = SECTION.matcher(line)).find()) {
+                    section = m.group(1).trim();
+                } else if ((m = INCLUDE.matcher(line)).matches()) {
+                    File included = new File(expandHome(m.group(1)));
+                    if (!included.isAbsolute()) {
+                        included = new File(file.getParentFile(), m.group(1));
+                    }
+                    read(included, including);
+                } else if ((m = UNSET.matcher(line)).find()) {
+                    values.remove(section + '.' + m.group(1));
+                } else if ((m = ITEM.matcher(line)).find()) {
+                    lastKey = section + '.' + m.group(1);
+                    values.put(lastKey, m.group(2));
+                }
+            }
+        } finally {
+            reader.close();
+            including.remove(file.getAbsoluteFile());
+        }
+    }
+
+    private static String expandHome(final String path) {
+        if (path.equals("~") || path.startsWith("~/")) {
+            return System.getProperty("user.home") + path.substring(1);
+        }
+        return path;
+    }
+
+    /** Records when each file was changed, so a cached configuration can be checked. */
+    private static String stamp(final List<File> files) {
+        final StringBuilder sb = new StringBuilder();
+        for (final File file : files) {
+            sb.append(file.lastModified()).append(':').append(file.length()).append('\n');
+        }
+        return sb.toString();
+    }
+
+}
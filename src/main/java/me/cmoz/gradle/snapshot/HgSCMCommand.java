@@ -17,27 +17,78 @@ package me.cmoz.gradle.snapshot;
 
 import lombok.NonNull;
 import lombok.SneakyThrows;
-import org.gradle.api.Project;
-import org.tmatesoft.hg.core.*;
-import org.tmatesoft.hg.repo.HgRepository;
 
 import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * An {@code SCMCommand} for the Mercurial Source Control Management (SCM) tool.
+ *
+ * <p>The commit the working copy is at is read straight from the changelog
+ * {@code Revlog}, so only the index entries back to it and its data are
+ * touched however long the history is. The build user comes from the
+ * layered {@code HgConfig}.
  */
 class HgSCMCommand implements SCMCommand {
 
-    private static final String REPO_DIRNAME = ".hg";
+    /** The name of the Mercurial repository directory. */
+    static final String REPO_DIRNAME = ".hg";
+
+    /** The files in the repository that record the working copy and history. */
+    private static final String[] STATE_FILENAMES = {
+            "dirstate", "branch", "store/00changelog.i", "00changelog.i"
+    };
+
+    /** The file with the working copy parents and tracked files. */
+    private static final String DIRSTATE_FILENAME = "dirstate";
+
+    /** The tags which are committed, in the working copy. */
+    private static final String TAGS_FILENAME = ".hgtags";
+
+    /** The subrepositories of the working copy. */
+    private static final String SUBREPOS_FILENAME = ".hgsub";
+
+    /** The tags which are only in the repository. */
+    private static final String LOCALTAGS_FILENAME = "localtags";
+
+    /** The null revision, which removes a tag. */
+    private static final String NULL_NODEID = "0000000000000000000000000000000000000000";
+
+    /** The changelog index of a repository with a store. */
+    private static final String CHANGELOG_FILENAME = "store/00changelog.i";
+
+    /** The changelog index of a repository created without a store. */
+    private static final String LEGACY_CHANGELOG_FILENAME = "00changelog.i";
 
-    private File repoDir;
+    private final File repoDir;
 
-    public HgSCMCommand(final Project project) {
-        repoDir = SCMUtil.scanDir(project, REPO_DIRNAME);
+    /**
+     * Creates a command for the repository with a {@code .hg} directory.
+     *
+     * @param repoDir The {@code .hg} directory found in the working copy, may
+     *                be {@code null}.
+     */
+    public HgSCMCommand(@Nullable final File repoDir) {
+        this.repoDir = repoDir;
     }
 
     @Override
@@ -47,51 +98,527 @@ class HgSCMCommand implements SCMCommand {
     }
 
     @Override
-    @SneakyThrows({HgRepositoryNotFoundException.class, HgException.class})
+    @SneakyThrows(IOException.class)
     public Commit getLatestCommit(@NonNull final String dateFormat) {
         if (repoDir == null) {
             throw new IllegalStateException("'.hg' folder could not be found.");
         }
 
-        final HgRepoFacade repo = new HgRepoFacade();
-        repo.initFrom(repoDir);
+        final Metrics metrics = Metrics.current();
+
+        long start = System.nanoTime();
+        final HgConfig config = HgConfig.forRepository(repoDir);
+        final Revlog changelog = Revlog.open(getChangelogFile());
+        try {
+            final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
 
-        final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
+            final int revision = findParent(changelog);
+            metrics.record(Metrics.Phase.OPEN, start);
+            if (revision < 0) {
+                throw new RuntimeException("Could not find any changesets in Hg repository.");
+            }
 
-        final int lastRevision = repo.getRepository().getChangelog().getLastRevision();
-        if (lastRevision == HgRepository.NO_REVISION) {
-            throw new RuntimeException("Could not find any changesets in Hg repository.");
+            start = System.nanoTime();
+            final HgChangelogEntry commit = HgChangelogEntry.parse(
+                    changelog.getNodeid(revision), changelog.getText(revision));
+            final Commit result = toCommit(commit, config.getUsername(), sdf);
+            metrics.record(Metrics.Phase.PARSE, start);
+            return result;
+        } finally {
+            changelog.close();
         }
+    }
 
-        final HgLogCommand hgLogCommand = repo.createLogCommand();
-        hgLogCommand.range(lastRevision, lastRevision);
-        final List<HgChangeset> changesets = hgLogCommand.execute();
-        if (changesets.size() < 1) {
-            throw new RuntimeException("Could not find any changesets in Hg repository.");
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The changelog is read back from the working copy parent, every
+     * changeset lists the files it changed. The index file isn't used, reading
+     * the changelog is cheap enough.
+     */
+    @Override
+    @SneakyThrows(IOException.class)
+    public Map<File, Commit> getPathCommits(
+            @NonNull final List<File> dirs,
+            @NonNull final String dateFormat,
+            @Nullable final File indexFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.hg' folder could not be found.");
+        }
+
+        final Metrics metrics = Metrics.current();
+
+        long start = System.nanoTime();
+        final HgConfig config = HgConfig.forRepository(repoDir);
+        final Revlog changelog = Revlog.open(getChangelogFile());
+        try {
+            final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
+            final int parent = findParent(changelog);
+            metrics.record(Metrics.Phase.OPEN, start);
+            if (parent < 0) {
+                throw new RuntimeException("Could not find any changesets in Hg repository.");
+            }
+
+            start = System.nanoTime();
+            final File workTree = repoDir.getAbsoluteFile().getParentFile();
+            final Map<File, String> paths = new LinkedHashMap<File, String>();
+            for (final File dir : dirs) {
+                final String path = SCMUtil.relativePath(workTree, dir);
+                paths.put(dir, (path != null) ? path : "");
+            }
+
+            // parents have lower revision numbers than their children, so the
+            // first ancestor found which changed a path is the most recent one
+            final Set<String> remaining = new HashSet<String>(paths.values());
+            final Map<String, Integer> found = new HashMap<String, Integer>();
+            final Map<Integer, HgChangelogEntry> entries = new HashMap<Integer, HgChangelogEntry>();
+            final BitSet wanted = new BitSet();
+            wanted.set(parent);
+            for (int rev = parent; rev >= 0 && !remaining.isEmpty(); rev--) {
+                if (!wanted.get(rev)) {
+                    continue;
+                }
+
+                final HgChangelogEntry entry = HgChangelogEntry.parse(changelog.getNodeid(rev), changelog.getText(rev));
+                for (final Iterator<String> it = remaining.iterator(); it.hasNext(); ) {
+                    final String path = it.next();
+                    if (isChanged(entry, path)) {
+                        found.put(path, rev);
+                        entries.put(rev, entry);
+                        it.remove();
+                    }
+                }
+                for (final int p : changelog.getParents(rev)) {
+                    if (p >= 0) {
+                        wanted.set(p);
+                    }
+                }
+            }
+            metrics.record(Metrics.Phase.HISTORY, start);
+
+            start = System.nanoTime();
+            final String username = config.getUsername();
+            final Map<File, Commit> commits = new LinkedHashMap<File, Commit>();
+            final Map<Integer, Commit> parsed = new HashMap<Integer, Commit>();
+            for (final Map.Entry<File, String> path : paths.entrySet()) {
+                final int rev = found.containsKey(path.getValue()) ? found.get(path.getValue()) : parent;
+                Commit commit = parsed.get(rev);
+                if (commit == null) {
+                    final HgChangelogEntry entry = entries.containsKey(rev)
+                            ? entries.get(rev)
+                            : HgChangelogEntry.parse(changelog.getNodeid(rev), changelog.getText(rev));
+                    commit = toCommit(entry, username, sdf);
+                    parsed.put(rev, commit);
+                }
+                commits.put(path.getKey(), commit);
+            }
+            metrics.record(Metrics.Phase.PARSE, start);
+            return commits;
+        } finally {
+            changelog.close();
+        }
+    }
+
+    /** Whether a changeset changed a file in the directory at {@code path}. */
+    private static boolean isChanged(final HgChangelogEntry entry, final String path) {
+        if (path.length() == 0) {
+            return !entry.getFiles().isEmpty();
+        }
+        for (final String file : entry.getFiles()) {
+            if (file.equals(path) || (file.startsWith(path) && file.charAt(path.length()) == '/')) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        final HgChangeset commit = changesets.get(0);
+    /**
+     * Creates a {@code Commit} from a changeset.
+     */
+    private static Commit toCommit(
+            final HgChangelogEntry commit,
+            final String username,
+            final SimpleDateFormat sdf) {
         return Commit.builder()
                 .buildTime(sdf.format(new Date()))
-                .buildAuthorName("")    // TODO: how to get hgrc user name?
-                .buildAuthorEmail("")   // TODO: how to get hgrc email?
+                .buildAuthorName(extractName(username))
+                .buildAuthorEmail(extractEmail(username))
                 .branchName(commit.getBranch())
-                .commitId(commit.getNodeid().toString())
-                .commitTime(sdf.format(new Date(commit.getDate().getRawTime())))
+                .commitId(commit.getNodeid())
+                .commitTime(sdf.format(new Date(commit.getTime())))
+                .commitTimestamp(Long.toString(commit.getTime()))
                 .commitUserName(extractName(commit.getUser()))
                 .commitUserEmail(extractEmail(commit.getUser()))
-                .commitMessage(commit.getComment().trim())
+                .commitMessage(commit.getDescription().trim())
                 .build();
     }
 
     /**
-     * Extracts a name from the {@code HgChangeset#getUser()} string format.
+     * Finds the changeset the working copy was updated to, the first parent
+     * in the dirstate. The working copy is usually at or near the tip so the
+     * changelog is searched back from there.
+     *
+     * @param changelog The changelog of the repository.
+     * @return The revision of the working copy parent, the tip if there is no
+     *         working copy or {@code -1} if there are no changesets.
+     * @throws IOException If the dirstate could not be read or its parent is
+     *         not in the changelog.
+     */
+    private int findParent(final Revlog changelog) throws IOException {
+        final byte[] parent = readDirstateParent();
+        if (parent == null) {
+            return changelog.getRevisionCount() - 1;
+        }
+
+        final int revision = changelog.findRevision(parent);
+        if (revision < 0) {
+            throw new IOException("Working copy parent " + SCMUtil.toHex(parent) + " is not in the changelog.");
+        }
+        return revision;
+    }
+
+    /**
+     * Reads the first parent from the start of the dirstate.
+     *
+     * @return The node id of the parent or {@code null} if there is no
+     *         dirstate or the working copy isn't at any changeset.
+     */
+    @Nullable
+    private byte[] readDirstateParent() throws IOException {
+        final File dirstate = new File(repoDir, DIRSTATE_FILENAME);
+        if (!dirstate.isFile()) {
+            return null;
+        }
+
+        final byte[] parent = new byte[Revlog.NODEID_LENGTH];
+        final DataInputStream in = new DataInputStream(new FileInputStream(dirstate));
+        try {
+            in.readFully(parent);
+        } catch (final EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+        Metrics.current().read(parent.length);
+
+        for (final byte b : parent) {
+            if (b != 0) {
+                return parent;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public WorkingTreeStatus getStatus(@NonNull final DirtyCheck check, @Nullable final File statCacheFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.hg' folder could not be found.");
+        }
+        if (check == DirtyCheck.NONE) {
+            throw new IllegalArgumentException("No working copy check was requested.");
+        }
+
+        final long start = System.nanoTime();
+        final StatCache statCache = new StatCache(statCacheFile);
+        final WorkingTreeStatus status = new HgWorkingTree(repoDir, statCache).check(check);
+        statCache.save();
+        Metrics.current().record(Metrics.Phase.STATUS, start);
+        return status;
+    }
+
+    /**
+     * The index of the changelog, which is kept in the store of repositories
+     * created with the {@code store} requirement.
+     */
+    private File getChangelogFile() throws IOException {
+        final File stored = new File(repoDir, CHANGELOG_FILENAME);
+        if (stored.isFile()) {
+            return stored;
+        }
+        final File legacy = new File(repoDir, LEGACY_CHANGELOG_FILENAME);
+        if (legacy.isFile()) {
+            return legacy;
+        }
+        throw new IOException("Could not find the changelog in '" + repoDir + "'.");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The changelog is walked from the working copy parent with the
+     * revision numbers as generations, which only reads index entries, so no
+     * cache is kept.
+     */
+    @Override
+    @SneakyThrows(IOException.class)
+    public NearestTag getNearestTag(@Nullable final File cacheFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.hg' folder could not be found.");
+        }
+
+        final long start = System.nanoTime();
+        final Revlog changelog = Revlog.open(getChangelogFile());
+        try {
+            final int parent = findParent(changelog);
+            if (parent < 0) {
+                throw new RuntimeException("Could not find any changesets in Hg repository.");
+            }
+
+            // the tag names keyed by node id, the last tag of a node wins
+            final Map<String, String> tagged = new HashMap<String, String>();
+            for (final Map.Entry<String, String> tag : readTags().entrySet()) {
+                tagged.put(tag.getValue(), tag.getKey());
+            }
+
+            final NearestTagWalk.Result result = NearestTagWalk.walk(new NearestTagWalk.Graph() {
+                @Override
+                @SneakyThrows(IOException.class)
+                public int[] getParents(final int rev) {
+                    return changelog.getParents(rev);
+                }
+
+                @Override
+                public int getGeneration(final int rev) {
+                    return rev;
+                }
+
+                @Override
+                @Nullable
+                @SneakyThrows(IOException.class)
+                public String getTag(final int rev) {
+                    return tagged.get(SCMUtil.toHex(changelog.getNodeid(rev)));
+                }
+            }, parent);
+
+            final String abbrevId = SCMUtil.toHex(changelog.getNodeid(parent)).substring(0, Commit.ABBREV_LENGTH);
+            Metrics.current().record(Metrics.Phase.DESCRIBE, start);
+            return NearestTag.of(result.getTagName(), result.getDistance(), abbrevId);
+        } finally {
+            changelog.close();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public int writeChangelog(
+            @Nullable final String since,
+            final int limit,
+            @NonNull final String dateFormat,
+            @NonNull final File outputFile) {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.hg' folder could not be found.");
+        }
+
+        final Metrics metrics = Metrics.current();
+
+        long start = System.nanoTime();
+        final Revlog changelog = Revlog.open(getChangelogFile());
+        final ChangelogWriter writer = new ChangelogWriter(outputFile, dateFormat, limit);
+        try {
+            final int parent = findParent(changelog);
+            metrics.record(Metrics.Phase.OPEN, start);
+            if (parent < 0) {
+                return 0;
+            }
+
+            start = System.nanoTime();
+            final Map<String, String> tags = readTags();
+            final int boundary = (since != null) ? resolveRevision(changelog, tags, since) : -1;
+            final Set<String> tagged = new HashSet<String>();
+            if (since == null) {
+                tagged.addAll(tags.values());
+            }
+            metrics.record(Metrics.Phase.REFS, start);
+
+            // parents always have lower revision numbers than their children, so
+            // one pass down from the working copy parent visits every ancestor
+            // after all of its descendants
+            start = System.nanoTime();
+            final BitSet wanted = new BitSet();
+            final BitSet excluded = new BitSet();
+            wanted.set(parent);
+            int pending = 1;
+            if (boundary >= 0) {
+                excluded.set(boundary);
+            }
+
+            for (int rev = Math.max(parent, boundary); rev >= 0 && pending > 0 && !writer.isFull(); rev--) {
+                final boolean isWanted = wanted.get(rev);
+                if (isWanted) {
+                    pending--;
+                }
+                if (!excluded.get(rev)) {
+                    if (!isWanted) {
+                        continue;
+                    }
+                    final byte[] nodeid = changelog.getNodeid(rev);
+                    if (!tagged.contains(SCMUtil.toHex(nodeid))) {
+                        final HgChangelogEntry entry = HgChangelogEntry.parse(nodeid, changelog.getText(rev));
+                        writer.write(entry.getNodeid(), entry.getDescription(),
+                                extractName(entry.getUser()), entry.getTime());
+                        for (final int p : changelog.getParents(rev)) {
+                            if (p >= 0 && !wanted.get(p)) {
+                                wanted.set(p);
+                                pending++;
+                            }
+                        }
+                        continue;
+                    }
+                    // the most recent tag is the start of the changelog
+                    tagged.clear();
+                }
+
+                for (final int p : changelog.getParents(rev)) {
+                    if (p >= 0) {
+                        excluded.set(p);
+                    }
+                }
+            }
+            metrics.record(Metrics.Phase.PARSE, start);
+            return writer.getCount();
+        } finally {
+            writer.close();
+            changelog.close();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public Map<String, File> getSubmodules() {
+        if (repoDir == null) {
+            throw new IllegalStateException("'.hg' folder could not be found.");
+        }
+
+        final File workTree = repoDir.getAbsoluteFile().getParentFile();
+        final File hgsub = new File(workTree, SUBREPOS_FILENAME);
+        final Map<String, File> submodules = new TreeMap<String, File>();
+        if (!hgsub.isFile()) {
+            return submodules;
+        }
+
+        // 'path = source' lines, until a section such as [subpaths] starts
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(hgsub), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Metrics.current().read(line.length() + 1);
+                final String entry = line.trim();
+                if (entry.startsWith("[")) {
+                    break;
+                }
+
+                final int sep = entry.indexOf('=');
+                if (sep <= 0 || entry.startsWith("#") || entry.startsWith(";")) {
+                    continue;
+                }
+                final String path = entry.substring(0, sep).trim();
+                if (!SCMUtil.isRelativePath(path)) {
+                    continue;
+                }
+
+                // a subrepository may also be a Git repository
+                final File dir = new File(workTree, path);
+                for (final String dirName : new String[] {REPO_DIRNAME, GitSCMCommand.REPO_DIRNAME}) {
+                    if (new File(dir, dirName).exists()) {
+                        submodules.put(path, new File(dir, dirName));
+                        break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return submodules;
+    }
+
+    /**
+     * Reads the tags from {@code .hgtags} in the working copy and the local
+     * tags of the repository, later entries win.
+     *
+     * @return The node ids in hex keyed by tag name.
+     */
+    private Map<String, String> readTags() throws IOException {
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+        final File workTree = repoDir.getAbsoluteFile().getParentFile();
+        for (final File file : new File[] {new File(workTree, TAGS_FILENAME), new File(repoDir, LOCALTAGS_FILENAME)}) {
+            if (!file.isFile()) {
+                continue;
+            }
+
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Metrics.current().read(line.length() + 1);
+                    final int sep = line.indexOf(' ');
+                    if (sep == 2 * Revlog.NODEID_LENGTH) {
+                        final String name = line.substring(sep + 1).trim();
+                        // a tag is removed by tagging the null revision
+                        if (line.startsWith(NULL_NODEID)) {
+                            tags.remove(name);
+                        } else {
+                            tags.put(name, line.substring(0, sep));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Finds a revision by tag name, revision number or node id prefix.
+     *
+     * @return The revision number.
+     * @throws IllegalArgumentException If the revision could not be found.
+     * @throws IOException If the changelog could not be read.
+     */
+    private static int resolveRevision(final Revlog changelog, final Map<String, String> tags, final String since)
+            throws IOException {
+        final String node = tags.containsKey(since) ? tags.get(since) : since.toLowerCase(Locale.ENGLISH);
+        if (node.matches("[0-9]+") && !tags.containsKey(since)) {
+            final int rev = Integer.parseInt(node);
+            if (rev < changelog.getRevisionCount()) {
+                return rev;
+            }
+        }
+        if (node.matches("[0-9a-f]+")) {
+            for (int rev = changelog.getRevisionCount() - 1; rev >= 0; rev--) {
+                if (SCMUtil.toHex(changelog.getNodeid(rev)).startsWith(node)) {
+                    return rev;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Could not find '" + since + "' in the Hg repository.");
+    }
+
+    @Override
+    public List<File> getStateFiles() {
+        final List<File> files = new ArrayList<File>();
+        if (repoDir == null) {
+            return files;
+        }
+
+        for (final String filename : STATE_FILENAMES) {
+            files.add(new File(repoDir, filename));
+        }
+        files.add(new File(repoDir.getAbsoluteFile().getParentFile(), TAGS_FILENAME));
+        files.add(new File(repoDir, LOCALTAGS_FILENAME));
+        files.addAll(HgConfig.getFiles(repoDir));
+        return files;
+    }
+
+    /**
+     * Extracts a name from the user string format of a changeset.
      *
-     * @param user The user string obtained from {@code HgChangeset#getUser()}.
+     * @param user The user string of a changeset.
      * @return The name from the user string or an empty string if one could not
      *         be found.
      */
-    private static String extractName(@NonNull final String user) {
+    static String extractName(@NonNull final String user) {
         final int endIndex = (user.indexOf('<') != -1)
                 ? user.indexOf('<')
                 : user.length();
@@ -100,8 +627,8 @@ class HgSCMCommand implements SCMCommand {
     }
 
     /**
-     * Extracts an email address from the {@code HgChangeset#getUser()} string
-     * format.
+     * Extracts an email address from the user string format of a
+     * changeset.
      *
      * <p>This method attempts to handle the following malformed string formats:
      * <pre>
@@ -115,11 +642,11 @@ class HgSCMCommand implements SCMCommand {
      * }
      * </pre>
      *
-     * @param user The user string obtained from {@code HgChangeset#getUser()}.
+     * @param user The user string of a changeset.
      * @return The email address from the user string or an empty string if one
      *         could not be found.
      */
-    private static String extractEmail(@NonNull final String user) {
+    static String extractEmail(@NonNull final String user) {
         final int beginIndex = ((user.indexOf('<') + 1) < user.length())
                 ? (user.indexOf('<') + 1)
                 : user.length();
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Data;
+import lombok.NonNull;
+import org.tmatesoft.hg.core.HgRepoFacade;
+import org.tmatesoft.hg.core.HgStatus;
+import org.tmatesoft.hg.core.HgStatusCommand;
+import org.tmatesoft.hg.core.HgStatusHandler;
+import org.tmatesoft.hg.util.Outcome;
+import org.tmatesoft.hg.util.Path;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks a Mercurial working copy for changes which have not been committed,
+ * in the same way as {@code hg status} without unknown files.
+ *
+ * <p>The stat data in {@code .hg/dirstate} settles almost every file. The
+ * few files that Mercurial would have to read (because they were touched, or
+ * written in the same second as the dirstate) are checked by Hg4J, and the
+ * result is kept in the {@code StatCache} until the file or the working copy
+ * parent changes.
+ */
+final class HgWorkingTree {
+
+    /** The name of the dirstate file in the repository directory. */
+    private static final String DIRSTATE_FILENAME = "dirstate";
+
+    /** The length of a node id in the dirstate. */
+    private static final int NODEID_LENGTH = 20;
+
+    /** The length of the fixed part of a dirstate entry. */
+    private static final int ENTRY_HEADER_LENGTH = 17;
+
+    /** The size of a file which comes from the second merge parent. */
+    private static final int SIZE_FROM_P2 = -2;
+
+    /** The dirstate entry states. */
+    private static final char NORMAL = 'n';
+
+    /** The prefixes of the cached verdicts for files checked by Hg4J. */
+    private static final String CLEAN = "clean:";
+    private static final String DIRTY = "dirty:";
+
+    /** The {@code .hg} directory of the repository. */
+    private final File repoDir;
+
+    private final StatCache statCache;
+
+    public HgWorkingTree(@NonNull final File repoDir, @NonNull final StatCache statCache) {
+        this.repoDir = repoDir;
+        this.statCache = statCache;
+    }
+
+    /**
+     * Checks the working copy for changes.
+     *
+     * @param check Whether to stop at the first change or count them all.
+     * @return The status of the working copy.
+     * @throws IOException If the dirstate or a file could not be read.
+     */
+    public WorkingTreeStatus check(@NonNull final DirtyCheck check) throws IOException {
+        final boolean stopAtFirst = (check != DirtyCheck.COUNT);
+        final byte[] dirstate = readFile(new File(repoDir, DIRSTATE_FILENAME));
+        if (dirstate.length < 2 * NODEID_LENGTH) {
+            return status(0, stopAtFirst);
+        }
+
+        // an uncommitted merge makes the working copy dirty
+        final boolean merging = !isNull(dirstate, NODEID_LENGTH);
+        if (merging && stopAtFirst) {
+            return status(1, stopAtFirst);
+        }
+
+        final String parent = hex(dirstate, 0);
+        final File workTree = repoDir.getAbsoluteFile().getParentFile();
+        final Set<String> lookups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        int modified = WorkingTreeWalk.count(parse(dirstate), new WorkingTreeWalk.Check<Entry>() {
+            @Override
+            public boolean isModified(final Entry entry) {
+                return isFileModified(workTree, entry, parent, lookups);
+            }
+        }, stopAtFirst);
+        if (modified > 0 && stopAtFirst) {
+            return status(modified, stopAtFirst);
+        }
+
+        if (!lookups.isEmpty()) {
+            modified += lookup(workTree, lookups, parent);
+        }
+        return status(merging ? modified + 1 : modified, stopAtFirst);
+    }
+
+    /**
+     * Compares a tracked file with its dirstate entry. Files which may have
+     * changed are added to {@code lookups}, unless the result of an earlier
+     * lookup is cached.
+     */
+    private boolean isFileModified(
+            final File workTree,
+            final Entry entry,
+            final String parent,
+            final Set<String> lookups) {
+        if (entry.getState() != NORMAL || entry.getSize() == SIZE_FROM_P2) {
+            return true; // added, removed or merged
+        }
+
+        final File file = new File(workTree, entry.getPath());
+        final long modified = file.lastModified();
+        if (modified == 0L || !file.isFile()) {
+            return true; // deleted, or replaced by a directory
+        }
+
+        // the dirstate records the lower 31 bits of the size and time in seconds
+        final long length = file.length();
+        if (entry.getSize() >= 0 && entry.getSize() != (int) (length & 0x7fffffff)) {
+            return true;
+        }
+        if (entry.getSize() >= 0 && entry.getTime() == (int) ((modified / 1000) & 0x7fffffff)) {
+            return false;
+        }
+
+        final String verdict = statCache.get(entry.getPath(), modified, length);
+        if ((CLEAN + parent).equals(verdict)) {
+            return false;
+        }
+        if ((DIRTY + parent).equals(verdict)) {
+            return true;
+        }
+        lookups.add(entry.getPath());
+        return false;
+    }
+
+    /**
+     * Asks Hg4J for the status of the files which couldn't be settled from
+     * their stat data, and caches the result.
+     *
+     * @return The number of the files which are modified.
+     */
+    private int lookup(final File workTree, final Set<String> paths, final String parent) {
+        final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        try {
+            final HgRepoFacade repo = new HgRepoFacade();
+            repo.initFrom(repoDir);
+
+            final HgStatusCommand status = repo.createStatusCommand()
+                    .modified(true).added(true).removed(true).deleted(true)
+                    .unknown(false).ignored(false).clean(false)
+                    .match(new Path.Matcher() {
+                        @Override
+                        public boolean accept(final Path path) {
+                            return paths.contains(path.toString());
+                        }
+                    });
+            status.execute(new HgStatusHandler() {
+                @Override
+                public void status(final HgStatus s) {
+                    dirty.add(s.getPath().toString());
+                }
+
+                @Override
+                public void error(final Path file, final Outcome s) {
+                    dirty.add(file.toString());
+                }
+            });
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not read the status of the Hg working copy.", e);
+        }
+
+        for (final String path : paths) {
+            final File file = new File(workTree, path);
+            statCache.put(path, file.lastModified(), file.length(),
+                    (dirty.contains(path) ? DIRTY : CLEAN) + parent);
+        }
+        return dirty.size();
+    }
+
+    /**
+     * Parses the entries of a version 1 dirstate file.
+     *
+     * <pre>
+     * {@code <p1:20><p2:20>(<state:1><mode:4><size:4><mtime:4><length:4><name[\0copy]:length>)*}
+     * </pre>
+     */
+    private static List<Entry> parse(final byte[] dirstate) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(dirstate);
+        buf.position(2 * NODEID_LENGTH);
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        while (buf.remaining() >= ENTRY_HEADER_LENGTH) {
+            final char state = (char) buf.get();
+            buf.getInt(); // mode
+            final int size = buf.getInt();
+            final int time = buf.getInt();
+            final int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                throw new IOException("Invalid entry in the Hg dirstate.");
+            }
+
+            final byte[] name = new byte[length];
+            buf.get(name);
+            int end = 0;
+            while (end < length && name[end] != 0) {
+                end++;
+            }
+            entries.add(new Entry(state, size, time, new String(name, 0, end, "UTF-8")));
+        }
+        return entries;
+    }
+
+    private static boolean isNull(final byte[] bytes, final int offset) {
+        for (int i = offset; i < offset + NODEID_LENGTH; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String hex(final byte[] bytes, final int offset) {
+        final StringBuilder hex = new StringBuilder(2 * NODEID_LENGTH);
+        for (int i = offset; i < offset + NODEID_LENGTH; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        if (!file.isFile()) {
+            return new byte[0];
+        }
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            Metrics.current().read(out.size());
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static WorkingTreeStatus status(final int modified, final boolean stopAtFirst) {
+        return WorkingTreeStatus.builder()
+                .dirty(modified > 0)
+                .modifiedCount(stopAtFirst ? WorkingTreeStatus.UNKNOWN : modified)
+                .build();
+    }
+
+    /**
+     * A tracked file in the dirstate.
+     */
+    @Data
+    private static final class Entry {
+        private final char state;
+        private final int size;
+        private final int time;
+        private final String path;
+    }
+
+}
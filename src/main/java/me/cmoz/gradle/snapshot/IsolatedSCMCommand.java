@@ -0,0 +1,563 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.gradle.api.Project;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An {@code SCMCommand} which reads the repository with a copy of the plugin
+ * and the SCM libraries loaded in an isolated classloader.
+ *
+ * <p>The SCM libraries are bundled in the plugin jar rather than being
+ * dependencies of the plugin, so they're not on the buildscript classpath
+ * unless a build adds them itself. They're extracted once to a cache
+ * directory and only loaded by the isolated classloader.
+ *
+ * <p>Only JDK types cross the classloader boundary, the commit is returned as
+ * the map of its properties and the {@code Metrics} recorded by the copy of
+ * the plugin are added to the current ones of the caller.
+ */
+final class IsolatedSCMCommand implements SCMCommand {
+
+    /** The class which locates the jar (or directory) of the plugin. */
+    private static final String PLUGIN_RESOURCE = "me/cmoz/gradle/snapshot/SnapshotPlugin.class";
+
+    /** The classes which locate the SCM libraries when they're on the classpath instead. */
+    private static final String[] LIBRARY_RESOURCES = {
+            "org/eclipse/jgit/lib/Repository.class",
+            "com/googlecode/javaewah/EWAHCompressedBitmap.class",
+            "org/tmatesoft/hg/core/HgRepoFacade.class"
+    };
+
+    /** The directory in the plugin jar with the bundled SCM libraries. */
+    private static final String LIBRARY_DIR = "META-INF/snapshot-plugin/lib/";
+
+    /**
+     * The isolated classloader of the buildscript classloader which loaded
+     * this class. It's created on first use in a build and closed when the
+     * build finishes.
+     */
+    private static final Loader LOADER = new Loader();
+
+    /** The class name of the {@code SCMCommand} used in the isolated classloader. */
+    private final String commandType;
+
+    /** The repository directory as the command resolved it. */
+    @Nullable
+    private final File resolvedDir;
+
+    /** The directory the bundled SCM libraries are extracted to. */
+    private final File libraryCache;
+
+    /**
+     * Creates a command which reads a repository with the isolated
+     * classloader.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The {@code .git} or {@code .hg} of the repository.
+     * @param libraryCache The directory to extract the bundled SCM libraries
+     *                     to.
+     */
+    public IsolatedSCMCommand(
+            @NonNull final String commandType,
+            @Nullable final File repoDir,
+            @NonNull final File libraryCache) {
+        this.commandType = commandType;
+        this.libraryCache = libraryCache;
+
+        final String resolved = (String) invoke("readRepositoryDir", commandType, path(repoDir));
+        this.resolvedDir = (resolved != null) ? new File(resolved) : null;
+    }
+
+    /**
+     * Whether the SCM libraries are on the classpath of the plugin, i.e. the
+     * build has added them to its buildscript classpath.
+     *
+     * @return {@code true} if the plugin can read repositories without the
+     *         isolated classloader.
+     */
+    public static boolean isOnClasspath() {
+        final ClassLoader buildscript = IsolatedSCMCommand.class.getClassLoader();
+        for (final String resource : LIBRARY_RESOURCES) {
+            if (buildscript.getResource(resource) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the isolated classloader of this copy of the plugin, e.g. when
+     * the build finishes. The next read creates a new one.
+     *
+     * @throws IOException If the classloader could not be closed.
+     */
+    public static void close() throws IOException {
+        LOADER.close();
+    }
+
+    /**
+     * Creates a command which reads another repository, e.g. a submodule,
+     * with the same isolated classloader.
+     *
+     * @param otherType The class name of the {@code SCMCommand} for the other
+     *                  repository.
+     * @param otherDir The {@code .git} or {@code .hg} of the other repository.
+     * @return The isolated command.
+     */
+    public IsolatedSCMCommand isolate(@NonNull final String otherType, @NonNull final File otherDir) {
+        return new IsolatedSCMCommand(otherType, otherDir, libraryCache);
+    }
+
+    @Override
+    public File getRepositoryDir() {
+        return resolvedDir;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Commit getLatestCommit(@NonNull final String dateFormat) {
+        return Commit.fromMap((Map<String, String>) invoke("read",
+                commandType,
+                path(resolvedDir),
+                dateFormat));
+    }
+
+    @Override
+    public List<File> getStateFiles() {
+        final List<File> files = new ArrayList<File>();
+        for (final String file : ((String) invoke("readStateFiles", commandType, path(resolvedDir))).split("\n")) {
+            if (file.length() > 0) {
+                files.add(new File(file));
+            }
+        }
+        return files;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public WorkingTreeStatus getStatus(@NonNull final DirtyCheck check, @Nullable final File statCacheFile) {
+        return WorkingTreeStatus.fromMap((Map<String, String>) invoke("readStatus",
+                commandType,
+                path(resolvedDir),
+                check.name(),
+                (statCacheFile != null) ? statCacheFile.getPath() : null));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, File> getSubmodules() {
+        final Map<String, String> paths = (Map<String, String>) invoke("readSubmodules",
+                commandType,
+                path(resolvedDir));
+
+        final Map<String, File> submodules = new LinkedHashMap<String, File>();
+        for (final Map.Entry<String, String> path : paths.entrySet()) {
+            submodules.put(path.getKey(), new File(path.getValue()));
+        }
+        return submodules;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public NearestTag getNearestTag(@Nullable final File cacheFile) {
+        return NearestTag.fromMap((Map<String, String>) invoke("readNearestTag",
+                commandType,
+                path(resolvedDir),
+                (cacheFile != null) ? cacheFile.getPath() : null));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<File, Commit> getPathCommits(
+            @NonNull final List<File> dirs,
+            @NonNull final String dateFormat,
+            @Nullable final File indexFile) {
+        final StringBuilder paths = new StringBuilder();
+        for (final File dir : dirs) {
+            paths.append(dir.getPath()).append('\n');
+        }
+        final Map<String, Map<String, String>> commits = (Map<String, Map<String, String>>) invoke(
+                "readPathCommits",
+                commandType,
+                path(resolvedDir),
+                paths.toString(),
+                dateFormat,
+                (indexFile != null) ? indexFile.getPath() : null);
+
+        final Map<File, Commit> result = new LinkedHashMap<File, Commit>();
+        for (final File dir : dirs) {
+            result.put(dir, Commit.fromMap(commits.get(dir.getPath())));
+        }
+        return result;
+    }
+
+    @Override
+    public int writeChangelog(
+            @Nullable final String since,
+            final int limit,
+            @NonNull final String dateFormat,
+            @NonNull final File outputFile) {
+        return (Integer) invoke("writeChangelog",
+                commandType,
+                path(resolvedDir),
+                since,
+                String.valueOf(limit),
+                dateFormat,
+                outputFile.getPath());
+    }
+
+    /**
+     * Calls a static entry point of the copy of this class in the isolated
+     * classloader, all the arguments are strings. The metrics it records are
+     * added to the current metrics.
+     */
+    @SneakyThrows({ClassNotFoundException.class, NoSuchMethodException.class, IllegalAccessException.class})
+    private Object invoke(final String methodName, final String... args) {
+        final Class<?> type = LOADER.get(libraryCache).loadClass(IsolatedSCMCommand.class.getName());
+        final Method method = type.getDeclaredMethod("call", String.class, String[].class, Map.class);
+        method.setAccessible(true);
+
+        final Map<String, String> metrics = new HashMap<String, String>();
+        try {
+            return method.invoke(null, methodName, args, metrics);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not read the SCM repository.", e.getCause());
+        } finally {
+            Metrics.current().add(metrics);
+        }
+    }
+
+    @Nullable
+    private static String path(@Nullable final File file) {
+        return (file != null) ? file.getPath() : null;
+    }
+
+    /**
+     * Calls an entry point inside the isolated classloader with metrics of
+     * its own, the copy of {@code Metrics} there isn't the caller's.
+     *
+     * @param methodName The name of the entry point.
+     * @param args The arguments of the entry point.
+     * @param metrics The map to add the recorded metrics to.
+     * @return The result of the entry point.
+     * @throws Exception If the entry point failed.
+     */
+    static Object call(final String methodName, final String[] args, final Map<String, String> metrics)
+            throws Exception {
+        final Class<?>[] argTypes = new Class<?>[args.length];
+        Arrays.fill(argTypes, String.class);
+        final Method method = IsolatedSCMCommand.class.getDeclaredMethod(methodName, argTypes);
+
+        final Metrics recorded = new Metrics();
+        final Metrics previous = recorded.enter();
+        try {
+            return method.invoke(null, (Object[]) args);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw (Error) e.getCause();
+        } finally {
+            Metrics.exit(previous);
+            metrics.putAll(recorded.asMap());
+        }
+    }
+
+    /**
+     * The entry point inside the isolated classloader to resolve the
+     * repository directory.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @return The repository directory as the command resolved it.
+     */
+    static String readRepositoryDir(final String commandType, final String repoDir) {
+        return path(newCommand(commandType, repoDir).getRepositoryDir());
+    }
+
+    /**
+     * The entry point inside the isolated classloader to list the files which
+     * change with the state of the repository.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @return The paths of the state files, one per line.
+     */
+    static String readStateFiles(final String commandType, final String repoDir) {
+        final StringBuilder paths = new StringBuilder();
+        for (final File file : newCommand(commandType, repoDir).getStateFiles()) {
+            paths.append(file.getPath()).append('\n');
+        }
+        return paths.toString();
+    }
+
+    /**
+     * The entry point inside the isolated classloader.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @param dateFormat The format of the dates in the commit.
+     * @return The properties of the latest commit.
+     */
+    static Map<String, String> read(final String commandType, final String repoDir, final String dateFormat) {
+        return newCommand(commandType, repoDir).getLatestCommit(dateFormat).asMap();
+    }
+
+    /**
+     * The entry point inside the isolated classloader to check the working
+     * copy.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @param check The name of the {@code DirtyCheck}.
+     * @param statCacheFile The path of the stat cache file, may be {@code null}.
+     * @return The properties of the working copy status.
+     */
+    static Map<String, String> readStatus(
+            final String commandType,
+            final String repoDir,
+            final String check,
+            final String statCacheFile) {
+        return newCommand(commandType, repoDir)
+                .getStatus(DirtyCheck.valueOf(check), (statCacheFile != null) ? new File(statCacheFile) : null)
+                .asMap();
+    }
+
+    /**
+     * The entry point inside the isolated classloader to find the submodules.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @return The paths of the {@code .git} or {@code .hg} of each submodule.
+     */
+    static Map<String, String> readSubmodules(final String commandType, final String repoDir) {
+        final Map<String, String> paths = new LinkedHashMap<String, String>();
+        for (final Map.Entry<String, File> submodule : newCommand(commandType, repoDir).getSubmodules().entrySet()) {
+            paths.put(submodule.getKey(), submodule.getValue().getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * The entry point inside the isolated classloader to find the nearest
+     * tag.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @param cacheFile The path of the describe cache file, may be {@code null}.
+     * @return The properties of the nearest tag.
+     */
+    static Map<String, String> readNearestTag(final String commandType, final String repoDir, final String cacheFile) {
+        return newCommand(commandType, repoDir)
+                .getNearestTag((cacheFile != null) ? new File(cacheFile) : null)
+                .asMap();
+    }
+
+    /**
+     * The entry point inside the isolated classloader to find the last commit
+     * which changed each directory.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @param dirs The paths of the directories, one per line.
+     * @param dateFormat The format of the dates in the commits.
+     * @param indexFile The path of the path index file, may be {@code null}.
+     * @return The properties of the commit of each directory, by path.
+     */
+    static Map<String, Map<String, String>> readPathCommits(
+            final String commandType,
+            final String repoDir,
+            final String dirs,
+            final String dateFormat,
+            final String indexFile) {
+        final List<File> files = new ArrayList<File>();
+        for (final String dir : dirs.split("\n")) {
+            if (dir.length() > 0) {
+                files.add(new File(dir));
+            }
+        }
+
+        final Map<String, Map<String, String>> commits = new LinkedHashMap<String, Map<String, String>>();
+        final Map<File, Commit> found = newCommand(commandType, repoDir)
+                .getPathCommits(files, dateFormat, (indexFile != null) ? new File(indexFile) : null);
+        for (final Map.Entry<File, Commit> commit : found.entrySet()) {
+            commits.put(commit.getKey().getPath(), commit.getValue().asMap());
+        }
+        return commits;
+    }
+
+    /**
+     * The entry point inside the isolated classloader to write a changelog.
+     *
+     * @param commandType The class name of the {@code SCMCommand} to use.
+     * @param repoDir The repository directory given to the command.
+     * @param since The revision the changelog starts after, may be {@code null}.
+     * @param limit The most commits to write.
+     * @param dateFormat The format of the commit times.
+     * @param outputFile The path of the changelog file.
+     * @return The number of commits written.
+     */
+    static Integer writeChangelog(
+            final String commandType,
+            final String repoDir,
+            final String since,
+            final String limit,
+            final String dateFormat,
+            final String outputFile) {
+        return newCommand(commandType, repoDir)
+                .writeChangelog(since, Integer.parseInt(limit), dateFormat, new File(outputFile));
+    }
+
+    @SneakyThrows({ClassNotFoundException.class, NoSuchMethodException.class,
+            InstantiationException.class, IllegalAccessException.class, InvocationTargetException.class})
+    private static SCMCommand newCommand(final String commandType, final String repoDir) {
+        return (SCMCommand) Class.forName(commandType)
+                .getDeclaredConstructor(File.class)
+                .newInstance((repoDir != null) ? new File(repoDir) : null);
+    }
+
+    /**
+     * Creates the isolated classloader on first use in a build, it's closed
+     * when the build finishes.
+     */
+    static final class Loader {
+
+        private URLClassLoader classLoader;
+
+        synchronized ClassLoader get(final File libraryCache) {
+            if (classLoader == null) {
+                final ClassLoader buildscript = IsolatedSCMCommand.class.getClassLoader();
+                final URL plugin = classpathEntry(buildscript, PLUGIN_RESOURCE);
+                final List<URL> urls = new ArrayList<URL>();
+                urls.add(plugin);
+                urls.addAll(extractLibraries(plugin, libraryCache));
+                if (urls.size() == 1) {
+                    // not the plugin jar, e.g. the classes of the plugin in its own tests
+                    for (final String resource : LIBRARY_RESOURCES) {
+                        final URL url = classpathEntry(buildscript, resource);
+                        if (url != null) {
+                            urls.add(url);
+                        }
+                    }
+                }
+                // share only the Gradle API with the build
+                classLoader = new URLClassLoader(urls.toArray(new URL[urls.size()]),
+                        Project.class.getClassLoader());
+            }
+            return classLoader;
+        }
+
+        /** Closes the isolated classloader, which can be closed from Java 7. */
+        synchronized void close() throws IOException {
+            if (classLoader instanceof Closeable) {
+                ((Closeable) classLoader).close();
+            }
+            classLoader = null;
+        }
+
+        /**
+         * Extracts the SCM libraries bundled in the plugin jar, unless an
+         * earlier build already did.
+         *
+         * @return The extracted jars, none if {@code plugin} isn't a jar.
+         */
+        @SneakyThrows({IOException.class, URISyntaxException.class})
+        private static List<URL> extractLibraries(final URL plugin, final File libraryCache) {
+            final List<URL> urls = new ArrayList<URL>();
+            final File pluginFile = new File(plugin.toURI());
+            if (!pluginFile.isFile()) {
+                return urls;
+            }
+
+            final JarFile jar = new JarFile(pluginFile);
+            try {
+                final Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    final JarEntry entry = entries.nextElement();
+                    final String name = entry.getName();
+                    if (!name.startsWith(LIBRARY_DIR) || !name.endsWith(".jar")) {
+                        continue;
+                    }
+
+                    // a library with other contents, e.g. a snapshot, is extracted to another directory
+                    final File dir = new File(libraryCache, Long.toHexString(entry.getCrc()));
+                    final File file = new File(dir, name.substring(LIBRARY_DIR.length()));
+                    if (!file.isFile() || file.length() != entry.getSize()) {
+                        final byte[] contents = new byte[(int) entry.getSize()];
+                        final DataInputStream in = new DataInputStream(jar.getInputStream(entry));
+                        try {
+                            in.readFully(contents);
+                        } finally {
+                            in.close();
+                        }
+                        SCMUtil.writeIfChanged(file, contents);
+                    }
+                    urls.add(file.toURI().toURL());
+                }
+            } finally {
+                jar.close();
+            }
+            return urls;
+        }
+
+        /**
+         * Returns the jar or directory on the classpath of {@code loader}
+         * which contains {@code resource}.
+         */
+        @SneakyThrows(MalformedURLException.class)
+        private static URL classpathEntry(final ClassLoader loader, final String resource) {
+            final URL url = loader.getResource(resource);
+            if (url == null) {
+                return null;
+            }
+
+            final String location = url.toString();
+            if (location.startsWith("jar:")) {
+                return new URL(location.substring("jar:".length(), location.indexOf("!/")));
+            }
+            return new URL(location.substring(0, location.length() - resource.length()));
+        }
+
+    }
+
+}
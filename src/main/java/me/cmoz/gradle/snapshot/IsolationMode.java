@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * Controls which classloader the SCM libraries are loaded in when the
+ * repository is read.
+ */
+public enum IsolationMode {
+
+    /**
+     * The SCM libraries are loaded by the buildscript classloader when the
+     * build has put them on its buildscript classpath, otherwise the copies
+     * bundled with the plugin are loaded as with {@code CLASSLOADER}.
+     */
+    NONE,
+
+    /**
+     * The SCM libraries are loaded by a classloader of their own, which only
+     * shares the Gradle API with the build.
+     */
+    CLASSLOADER
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Applies a Mercurial binary delta to a text.
+ *
+ * <p>A delta is a list of hunks, each replaces the bytes of the text from
+ * {@code start} to {@code end} with {@code data}:
+ * <pre>
+ * {@code (<start:4><end:4><length:4><data:length>)*}
+ * </pre>
+ * The hunks are sorted and don't overlap.
+ */
+final class MPatch {
+
+    private MPatch() {}
+
+    /**
+     * Applies a delta.
+     *
+     * @param text The text the delta was made against.
+     * @param delta The delta.
+     * @return The patched text.
+     * @throws IOException If the delta is invalid for the text.
+     */
+    public static byte[] apply(final byte[] text, final byte[] delta) throws IOException {
+        final ByteBuffer hunks = ByteBuffer.wrap(delta);
+
+        // work out the length of the result before copying anything
+        int length = text.length;
+        while (hunks.remaining() >= 12) {
+            final int start = hunks.getInt();
+            final int end = hunks.getInt();
+            final int dataLength = hunks.getInt();
+            if (start < 0 || end < start || end > text.length || dataLength < 0 || dataLength > hunks.remaining()) {
+                throw new IOException("Invalid revlog delta.");
+            }
+            length += dataLength - (end - start);
+            hunks.position(hunks.position() + dataLength);
+        }
+        if (hunks.hasRemaining()) {
+            throw new IOException("Truncated revlog delta.");
+        }
+
+        final byte[] result = new byte[length];
+        int textPos = 0;
+        int resultPos = 0;
+        hunks.rewind();
+        while (hunks.hasRemaining()) {
+            final int start = hunks.getInt();
+            final int end = hunks.getInt();
+            final int dataLength = hunks.getInt();
+            if (start < textPos) {
+                throw new IOException("Overlapping revlog delta.");
+            }
+
+            System.arraycopy(text, textPos, result, resultPos, start - textPos);
+            resultPos += start - textPos;
+            hunks.get(result, resultPos, dataLength);
+            resultPos += dataLength;
+            textPos = end;
+        }
+        System.arraycopy(text, textPos, result, resultPos, text.length - textPos);
+        return result;
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time spent in each phase of reading a snapshot, with the bytes read
+ * from the repository and the hits and misses of the plugin's caches.
+ *
+ * <p>The code that reads the repository records into the {@code current()}
+ * metrics of its thread, so metrics don't have to be passed through every
+ * {@code SCMCommand}. A task makes its metrics current with {@code enter()}
+ * and restores the previous ones with {@code exit(Metrics)}. When nothing
+ * is current the measurements are discarded.
+ *
+ * <p>All the methods are thread-safe.
+ */
+final class Metrics {
+
+    /** The phases of reading a snapshot, in the order they happen. */
+    enum Phase {
+        /** Finding the SCM repository above the project directory. */
+        DISCOVERY,
+        /** Opening the repository and reading its configuration. */
+        OPEN,
+        /** Resolving {@code HEAD} to a commit id. */
+        REFS,
+        /** Reading and parsing the commit. */
+        PARSE,
+        /** Checking the working copy for changes. */
+        STATUS,
+        /** Finding the nearest tag of the commit. */
+        DESCRIBE,
+        /** Finding the last commit which changed each project directory. */
+        HISTORY,
+        /** Writing the snapshot file. */
+        WRITE;
+
+        /** The name of the phase in reports. */
+        public String key() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /** The key prefix of the phase times in {@code asMap()}. */
+    private static final String NANOS_PREFIX = "nanos.";
+
+    /** The key of the bytes read in {@code asMap()}. */
+    private static final String BYTES_KEY = "bytes";
+
+    /** The key prefix of the cache hits in {@code asMap()}. */
+    private static final String HIT_PREFIX = "hit.";
+
+    /** The key prefix of the cache misses in {@code asMap()}. */
+    private static final String MISS_PREFIX = "miss.";
+
+    /** The metrics of the current thread, if any. */
+    private static final ThreadLocal<Metrics> CURRENT = new ThreadLocal<Metrics>();
+
+    /** Discards everything recorded when no metrics are current. */
+    private static final Metrics DISCARD = new Metrics(false);
+
+    private final boolean enabled;
+
+    private final ConcurrentMap<Phase, AtomicLong> nanos = new ConcurrentHashMap<Phase, AtomicLong>();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> hits = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ConcurrentMap<String, AtomicLong> misses = new ConcurrentHashMap<String, AtomicLong>();
+
+    public Metrics() {
+        this(true);
+    }
+
+    private Metrics(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the metrics to record into on the current thread.
+     *
+     * @return The current metrics, never {@code null}.
+     */
+    public static Metrics current() {
+        final Metrics metrics = CURRENT.get();
+        return (metrics != null) ? metrics : DISCARD;
+    }
+
+    /**
+     * Makes these metrics current on this thread.
+     *
+     * @return The previously current metrics, to pass to {@code exit}.
+     */
+    public Metrics enter() {
+        final Metrics previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * Restores the metrics which were current before {@code enter()}.
+     *
+     * @param previous The value returned by {@code enter()}.
+     */
+    public static void exit(final Metrics previous) {
+        if (previous != null) {
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Records the time spent in a phase.
+     *
+     * @param phase The phase which finished.
+     * @param startNanos The value of {@code System.nanoTime()} when the phase
+     *                   started.
+     */
+    public void record(@NonNull final Phase phase, final long startNanos) {
+        addNanos(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds time to a phase.
+     *
+     * @param phase The phase to add to.
+     * @param elapsedNanos The time in nanoseconds.
+     */
+    void addNanos(@NonNull final Phase phase, final long elapsedNanos) {
+        if (enabled) {
+            counter(nanos, phase).addAndGet(elapsedNanos);
+        }
+    }
+
+    /**
+     * Records bytes read from the repository (or a previous snapshot).
+     *
+     * @param bytes The number of bytes read.
+     */
+    public void read(final long bytes) {
+        if (enabled) {
+            bytesRead.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Records a hit in one of the plugin's caches.
+     *
+     * @param cache The name of the cache.
+     */
+    public void hit(@NonNull final String cache) {
+        if (enabled) {
+            counter(hits, cache).incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a miss in one of the plugin's caches.
+     *
+     * @param cache The name of the cache.
+     */
+    public void miss(@NonNull final String cache) {
+        if (enabled) {
+            counter(misses, cache).incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds everything recorded by {@code other} to these metrics.
+     *
+     * @param other The metrics to add.
+     */
+    public void add(@NonNull final Metrics other) {
+        if (!enabled) {
+            return;
+        }
+        for (final Map.Entry<Phase, AtomicLong> entry : other.nanos.entrySet()) {
+            counter(nanos, entry.getKey()).addAndGet(entry.getValue().get());
+        }
+        bytesRead.addAndGet(other.bytesRead.get());
+        for (final Map.Entry<String, AtomicLong> entry : other.hits.entrySet()) {
+            counter(hits, entry.getKey()).addAndGet(entry.getValue().get());
+        }
+        for (final Map.Entry<String, AtomicLong> entry : other.misses.entrySet()) {
+            counter(misses, entry.getKey()).addAndGet(entry.getValue().get());
+        }
+    }
+
+    /**
+     * Adds the values of {@code asMap()} of other metrics, e.g. those of the
+     * copy of the plugin in an isolated classloader, to these metrics.
+     *
+     * @param values The metrics as strings.
+     */
+    public void add(@NonNull final Map<String, String> values) {
+        if (!enabled) {
+            return;
+        }
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            final long value = Long.parseLong(entry.getValue());
+            if (key.startsWith(NANOS_PREFIX)) {
+                final String phase = key.substring(NANOS_PREFIX.length()).toUpperCase(Locale.ENGLISH);
+                counter(nanos, Phase.valueOf(phase)).addAndGet(value);
+            } else if (key.startsWith(HIT_PREFIX)) {
+                counter(hits, key.substring(HIT_PREFIX.length())).addAndGet(value);
+            } else if (key.startsWith(MISS_PREFIX)) {
+                counter(misses, key.substring(MISS_PREFIX.length())).addAndGet(value);
+            } else if (BYTES_KEY.equals(key)) {
+                bytesRead.addAndGet(value);
+            }
+        }
+    }
+
+    /**
+     * Returns everything recorded as strings, so only JDK types cross a
+     * classloader boundary.
+     *
+     * @return The recorded values keyed by kind and name.
+     */
+    public Map<String, String> asMap() {
+        final Map<String, String> values = new LinkedHashMap<String, String>();
+        for (final Map.Entry<String, Long> entry : getPhaseNanos().entrySet()) {
+            values.put(NANOS_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        values.put(BYTES_KEY, String.valueOf(getBytesRead()));
+        for (final Map.Entry<String, Long> entry : getHits().entrySet()) {
+            values.put(HIT_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        for (final Map.Entry<String, Long> entry : getMisses().entrySet()) {
+            values.put(MISS_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * The time spent in each phase that was recorded.
+     *
+     * @return The nanoseconds keyed by phase name, in phase order.
+     */
+    public Map<String, Long> getPhaseNanos() {
+        final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        for (final Phase phase : Phase.values()) {
+            final AtomicLong value = nanos.get(phase);
+            if (value != null) {
+                phases.put(phase.key(), value.get());
+            }
+        }
+        return Collections.unmodifiableMap(phases);
+    }
+
+    /**
+     * The total time of all the recorded phases.
+     *
+     * @return The total time in nanoseconds.
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (final AtomicLong value : nanos.values()) {
+            total += value.get();
+        }
+        return total;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * The cache hits.
+     *
+     * @return The number of hits keyed by cache name.
+     */
+    public Map<String, Long> getHits() {
+        return snapshot(hits);
+    }
+
+    /**
+     * The cache misses.
+     *
+     * @return The number of misses keyed by cache name.
+     */
+    public Map<String, Long> getMisses() {
+        return snapshot(misses);
+    }
+
+    private static <K> AtomicLong counter(final ConcurrentMap<K, AtomicLong> counters, final K key) {
+        final AtomicLong counter = counters.get(key);
+        if (counter != null) {
+            return counter;
+        }
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong existing = counters.putIfAbsent(key, created);
+        return (existing != null) ? existing : created;
+    }
+
+    private static Map<String, Long> snapshot(final Map<String, AtomicLong> counters) {
+        final Map<String, Long> values = new TreeMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Builder;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most recent tag reachable from the checked out commit and the number
+ * of commits since, in the style of {@code git describe --tags}.
+ */
+@Data
+@Builder
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class NearestTag {
+
+    /** Property key names for the nearest tag. */
+    public static final String DESCRIBE = "commit.describe";
+    public static final String NEAREST = "tag.nearest";
+    public static final String DISTANCE = "tag.distance";
+
+    /** All the property keys of the nearest tag. */
+    public static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(DESCRIBE, NEAREST, DISTANCE));
+
+    /** The distance when no tag is reachable. */
+    static final int NONE = -1;
+
+    /**
+     * The value for the {@code commit.describe} key, {@code <tag>} on a tagged
+     * commit, {@code <tag>-<distance>-<abbrev id>} after one or just the
+     * abbreviated id if no tag is reachable.
+     */
+    private final String describe;
+
+    /** The value for the {@code tag.nearest} key, empty if no tag is reachable. */
+    private final String tagName;
+
+    /** The value for the {@code tag.distance} key, or {@code NONE}. */
+    private final int distance;
+
+    /**
+     * Creates the nearest tag of a commit.
+     *
+     * @param tagName The name of the tag, or {@code null} if none is
+     *                reachable.
+     * @param distance The number of commits since the tag.
+     * @param abbrevId The abbreviated id of the commit, as it should appear
+     *                 in {@code commit.describe}.
+     * @return The nearest tag.
+     */
+    public static NearestTag of(@Nullable final String tagName, final int distance, @NonNull final String abbrevId) {
+        if (tagName == null) {
+            return new NearestTag(abbrevId, "", NONE);
+        }
+        final String describe = (distance == 0) ? tagName : tagName + '-' + distance + '-' + abbrevId;
+        return new NearestTag(describe, tagName, distance);
+    }
+
+    public Map<String, String> asMap() {
+        final Map<String, String> map = new HashMap<String, String>();
+        map.put(DESCRIBE, getDescribe());
+        map.put(NEAREST, getTagName());
+        if (getDistance() != NONE) {
+            map.put(DISTANCE, String.valueOf(getDistance()));
+        }
+        return map;
+    }
+
+    /**
+     * Creates a {@code NearestTag} from the properties produced by {@code
+     * asMap()}.
+     *
+     * @param map The nearest tag properties.
+     * @return The {@code NearestTag} with the values from the properties.
+     */
+    public static NearestTag fromMap(final Map<String, String> map) {
+        final String distance = map.get(DISTANCE);
+        return NearestTag.builder()
+                .describe(map.get(DESCRIBE))
+                .tagName(map.get(NEAREST))
+                .distance((distance != null) ? Integer.parseInt(distance) : NONE)
+                .build();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the nearest tag of a commit and counts the commits since it in one
+ * pass over a commit graph whose commits are numbered, e.g. the positions in
+ * a Git commit-graph or the revisions of a Mercurial changelog.
+ *
+ * <p>The commits are visited in descending generation order, so every commit
+ * is visited after all of its descendants. The first tagged commit visited
+ * is the nearest tag, its ancestors are excluded from then on and every other
+ * commit visited counts towards the distance. The walk stops as soon as only
+ * excluded commits are left to visit.
+ */
+final class NearestTagWalk {
+
+    /** A commit graph with the commits numbered from {@code 0}. */
+    interface Graph {
+
+        /** The numbers of the parents of a commit. */
+        int[] getParents(int commit);
+
+        /** The generation of a commit, which is greater than that of each of its parents. */
+        int getGeneration(int commit);
+
+        /** The name of the tag on a commit, or {@code null} if it isn't tagged. */
+        @Nullable
+        String getTag(int commit);
+
+    }
+
+    /** The nearest tag of a commit. */
+    @Data
+    static final class Result {
+
+        /** The name of the tag, or {@code null} if no tag is reachable. */
+        @Nullable
+        private final String tagName;
+
+        /** The number of commits since the tag, or {@code NearestTag.NONE}. */
+        private final int distance;
+
+    }
+
+    private NearestTagWalk() {}
+
+    /**
+     * Finds the nearest tag of a commit.
+     *
+     * @param graph The commit graph.
+     * @param start The number of the commit.
+     * @return The nearest tag and the number of commits since it.
+     */
+    public static Result walk(@NonNull final Graph graph, final int start) {
+        final PriorityQueue<Integer> queue = new PriorityQueue<Integer>(64, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                final int ga = graph.getGeneration(a);
+                final int gb = graph.getGeneration(b);
+                return (ga != gb) ? (ga > gb ? -1 : 1) : b.compareTo(a);
+            }
+        });
+        final BitSet queued = new BitSet();
+        final BitSet excluded = new BitSet();
+
+        queue.add(start);
+        queued.set(start);
+        // the queued commits which aren't excluded
+        int pending = 1;
+        String tagName = null;
+        int distance = 0;
+
+        while (pending > 0) {
+            final int commit = queue.poll();
+            boolean isExcluded = excluded.get(commit);
+            if (!isExcluded) {
+                pending--;
+                if (tagName == null) {
+                    tagName = graph.getTag(commit);
+                    isExcluded = (tagName != null);
+                }
+                if (!isExcluded) {
+                    distance++;
+                }
+            }
+
+            for (final int parent : graph.getParents(commit)) {
+                if (parent < 0) {
+                    continue;
+                }
+                // parents are always visited after their children, so a queued parent hasn't been visited yet
+                if (isExcluded && !excluded.get(parent)) {
+                    excluded.set(parent);
+                    if (queued.get(parent)) {
+                        pending--;
+                    }
+                }
+                if (!queued.get(parent)) {
+                    queued.set(parent);
+                    queue.add(parent);
+                    if (!excluded.get(parent)) {
+                        pending++;
+                    }
+                }
+            }
+        }
+
+        return (tagName != null) ? new Result(tagName, distance) : new Result(null, NearestTag.NONE);
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * Controls the form in which the {@code SnapshotTask} packages the build
+ * information with the project.
+ */
+public enum OutputFormat {
+
+    /**
+     * A {@code .properties} file is added to the resources of the {@code main}
+     * source set, to be read at runtime.
+     */
+    PROPERTIES,
+
+    /**
+     * A Java class with a {@code static final} constant for each property is
+     * added to the sources of the {@code main} source set, javac inlines the
+     * constants where they're used.
+     */
+    JAVA
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * The format of an additional output of the {@code SnapshotTask}, each is
+ * rendered from the same properties as the {@code .properties} file.
+ */
+public enum OutputType {
+
+    /** A {@code .properties} file, the same as the one the task always writes. */
+    PROPERTIES(".properties"),
+
+    /** A JSON object with a string member for each property, e.g. for a web frontend. */
+    JSON(".json"),
+
+    /** A YAML mapping with a string value for each property. */
+    YAML(".yml"),
+
+    /**
+     * A jar manifest with a main attribute for each property, e.g. {@code
+     * commit.id} as {@code Commit-Id}, which is merged into the manifest of a
+     * {@code Jar} task.
+     */
+    MANIFEST(".mf");
+
+    /** The extension of the file when it's named after the output. */
+    private final String extension;
+
+    OutputType(final String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+}
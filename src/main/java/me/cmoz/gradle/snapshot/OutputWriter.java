@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders build information in each {@code OutputType}, the same way on
+ * every build.
+ *
+ * <p>As with the {@code PropertiesWriter} the keys are sorted and nothing
+ * but the properties goes into the output, so the same properties always
+ * give the same bytes and the tasks which package the files stay
+ * up-to-date. Every value is written as a string.
+ */
+final class OutputWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** The longest name of a manifest attribute. */
+    static final int MAX_ATTRIBUTE_NAME = 70;
+
+    /** The longest line of a manifest in bytes, without the line break. */
+    private static final int MAX_MANIFEST_LINE = 72;
+
+    private OutputWriter() {}
+
+    /**
+     * Renders the properties in a format.
+     *
+     * @param type The format of the output.
+     * @param properties The properties to render.
+     * @param comment A comment for the top of the output, where the format
+     *                has comments.
+     * @return The contents of the output file.
+     */
+    public static byte[] render(
+            @NonNull final OutputType type,
+            @NonNull final Map<String, String> properties,
+            @NonNull final String comment) {
+        switch (type) {
+            case PROPERTIES:
+                return PropertiesWriter.render(properties, comment);
+            case JSON:
+                return renderJson(properties);
+            case YAML:
+                return renderYaml(properties, comment);
+            case MANIFEST:
+                return renderManifest(properties);
+            default:
+                throw new IllegalArgumentException("Unknown output type " + type + ".");
+        }
+    }
+
+    /** Renders the properties as a JSON object of strings. */
+    static byte[] renderJson(final Map<String, String> properties) {
+        final StringBuilder sb = new StringBuilder(64 * (properties.size() + 1));
+        sb.append('{');
+        String separator = "\n";
+        for (final Map.Entry<String, String> property : new TreeMap<String, String>(properties).entrySet()) {
+            sb.append(separator).append("  ");
+            quote(sb, property.getKey(), false);
+            sb.append(": ");
+            quote(sb, property.getValue(), false);
+            separator = ",\n";
+        }
+        sb.append(properties.isEmpty() ? "}\n" : "\n}\n");
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Renders the properties as a YAML mapping. The keys and values are
+     * double-quoted, so a value like {@code yes} or {@code 1.0} stays a
+     * string.
+     */
+    static byte[] renderYaml(final Map<String, String> properties, final String comment) {
+        final StringBuilder sb = new StringBuilder(64 * (properties.size() + 1));
+        for (final String line : comment.split("\r\n|\r|\n")) {
+            sb.append("# ").append(line).append('\n');
+        }
+        if (properties.isEmpty()) {
+            sb.append("{}\n");
+        }
+        for (final Map.Entry<String, String> property : new TreeMap<String, String>(properties).entrySet()) {
+            quote(sb, property.getKey(), true);
+            sb.append(": ");
+            quote(sb, property.getValue(), true);
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Renders the properties as the main attributes of a jar manifest. A
+     * property whose name can't be made into an attribute name of at most
+     * {@value #MAX_ATTRIBUTE_NAME} characters is left out.
+     */
+    static byte[] renderManifest(final Map<String, String> properties) {
+        final Map<String, String> attributes = new TreeMap<String, String>();
+        for (final Map.Entry<String, String> property : properties.entrySet()) {
+            final String name = attributeName(property.getKey());
+            if (name.length() > 0 && name.length() <= MAX_ATTRIBUTE_NAME) {
+                attributes.put(name, property.getValue());
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder(64 * (attributes.size() + 1));
+        sb.append("Manifest-Version: 1.0\r\n");
+        for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+            // a line break can't be kept in a manifest value
+            appendManifestLine(sb, attribute.getKey() + ": "
+                    + attribute.getValue().replace("\r\n", " ").replace('\r', ' ').replace('\n', ' '));
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Returns the manifest attribute name for a property: each run of
+     * letters and digits is capitalized and the runs are joined with {@code
+     * -}, e.g. {@code commit.user.name} gives {@code Commit-User-Name}.
+     *
+     * @param key The name of the property.
+     * @return The attribute name, empty if the key has no letters or digits.
+     */
+    static String attributeName(@NonNull final String key) {
+        final StringBuilder sb = new StringBuilder(key.length() + 8);
+        boolean start = true;
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                if (start && sb.length() > 0) {
+                    sb.append('-');
+                }
+                sb.append(start ? Character.toUpperCase(c) : c);
+                start = false;
+            } else {
+                start = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a manifest line, continued on lines starting with a space so
+     * that none is longer than {@value #MAX_MANIFEST_LINE} bytes. A line is
+     * never broken inside a character.
+     */
+    private static void appendManifestLine(final StringBuilder sb, final String line) {
+        int length = 0;
+        for (int i = 0; i < line.length(); ) {
+            final int c = line.codePointAt(i);
+            final int bytes = new String(Character.toChars(c)).getBytes(UTF_8).length;
+            if (length + bytes > MAX_MANIFEST_LINE) {
+                sb.append("\r\n ");
+                length = 1;
+            }
+            sb.appendCodePoint(c);
+            length += bytes;
+            i += Character.charCount(c);
+        }
+        sb.append("\r\n");
+    }
+
+    /**
+     * Appends a double-quoted string with the escapes of JSON, which YAML
+     * reads the same way. In YAML the characters it doesn't allow unescaped
+     * are escaped as well.
+     */
+    private static void quote(final StringBuilder sb, final String text, final boolean yaml) {
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    sb.append('\\').append(c);
+                    continue;
+                case '\t':
+                    sb.append("\\t");
+                    continue;
+                case '\n':
+                    sb.append("\\n");
+                    continue;
+                case '\r':
+                    sb.append("\\r");
+                    continue;
+                default:
+                    break;
+            }
+
+            // the line separators break JavaScript which embeds the JSON, YAML doesn't allow the rest
+            final boolean escape = yaml
+                    ? (c < 0x20 || (c >= 0x7f && c <= 0x9f) || c == '\u2028' || c == '\u2029' || c == '\uFEFF')
+                    : (c < 0x20 || c == '\u2028' || c == '\u2029');
+            if (escape) {
+                sb.append("\\u")
+                        .append(HEX_DIGITS[(c >> 12) & 0xf])
+                        .append(HEX_DIGITS[(c >> 8) & 0xf])
+                        .append(HEX_DIGITS[(c >> 4) & 0xf])
+                        .append(HEX_DIGITS[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+}
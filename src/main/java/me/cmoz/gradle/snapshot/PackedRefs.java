@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Looks up refs in a Git {@code packed-refs} file.
+ *
+ * <p>Git writes the file sorted by ref name and records this in the header
+ * line, so a ref can be found with a binary search over blocks read from the
+ * file rather than by reading every line. This matters in repositories with
+ * a very large number of tags where the file can be many megabytes. Files
+ * without the {@code sorted} trait, or in which the search meets a line it
+ * can't parse, are read line by line.
+ *
+ * <p>The file isn't memory mapped: a mapping is only released when it's
+ * garbage collected and until then it stops Git from replacing the file on
+ * Windows.
+ */
+final class PackedRefs {
+
+    /** The prefix of the header line which lists the traits of the file. */
+    private static final String HEADER_PREFIX = "# pack-refs with:";
+
+    /** The trait written by Git when the refs in the file are sorted. */
+    private static final String SORTED_TRAIT = "sorted";
+
+    /** The length of a hex object id at the start of each ref line. */
+    private static final int ID_LENGTH = Constants.OBJECT_ID_STRING_LENGTH;
+
+    /** The number of bytes read from the file at a time by the search. */
+    private static final int BLOCK_SIZE = 4096;
+
+    private PackedRefs() {}
+
+    /**
+     * Finds the object id of a ref in a {@code packed-refs} file.
+     *
+     * @param file The {@code packed-refs} file of the repository.
+     * @param refName The full name of the ref, e.g. {@code refs/heads/master}.
+     * @return The object id the ref points to or {@code null} if the ref is
+     *         not in the file or the file does not exist.
+     * @throws IOException If the file could not be read.
+     */
+    @Nullable
+    public static ObjectId find(@NonNull final File file, @NonNull final String refName)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long size = raf.length();
+            if (size > Integer.MAX_VALUE) {
+                return scan(file, refName);
+            }
+
+            final Blocks buf = new Blocks(raf.getChannel(), (int) size);
+            final int start = (size > 0 && buf.get(0) == '#') ? lineEnd(buf, 0) + 1 : 0;
+            if (!isSorted(readLine(buf, 0))) {
+                return scan(file, refName);
+            }
+            return search(buf, start, Constants.encode(refName), file, refName);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Binary searches the ref lines in {@code buf} from {@code start} to the
+     * end of the file, falls back to a {@link #scan} of the file when a line
+     * can't be parsed.
+     */
+    @Nullable
+    private static ObjectId search(final Blocks buf, final int start, final byte[] name,
+                                   final File file, final String refName) throws IOException {
+        int lo = start;
+        int hi = buf.limit();
+        while (lo < hi) {
+            int line = lineStart(buf, (lo + hi) >>> 1);
+            // skip back over the peeled value of an annotated tag
+            while (line > lo && buf.get(line) == '^') {
+                line = lineStart(buf, line - 1);
+            }
+
+            final int end = lineEnd(buf, line);
+            Metrics.current().read(end - line + 1);
+            if (!isRefLine(buf, line, end)) {
+                return scan(file, refName);
+            }
+
+            final int cmp = compare(buf, line + ID_LENGTH + 1, end, name);
+            if (cmp == 0) {
+                return ObjectId.fromString(readId(buf, line));
+            } else if (cmp < 0) {
+                lo = end + 1;
+                while (lo < hi && buf.get(lo) == '^') {
+                    lo = lineEnd(buf, lo) + 1;
+                }
+            } else {
+                hi = line;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads every line of an unsorted {@code packed-refs} file.
+     */
+    @Nullable
+    private static ObjectId scan(final File file, final String refName) throws IOException {
+        Metrics.current().read(file.length());
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), Constants.CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > ID_LENGTH
+                        && line.charAt(ID_LENGTH) == ' '
+                        && line.regionMatches(ID_LENGTH + 1, refName, 0, refName.length())
+                        && line.length() == ID_LENGTH + 1 + refName.length()
+                        && ObjectId.isId(line.substring(0, ID_LENGTH))) {
+                    return ObjectId.fromString(line.substring(0, ID_LENGTH));
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isSorted(final String header) {
+        if (!header.startsWith(HEADER_PREFIX)) {
+            return false;
+        }
+
+        for (final String trait : header.substring(HEADER_PREFIX.length()).trim().split(" +")) {
+            if (SORTED_TRAIT.equals(trait)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether the line from {@code from} to {@code to} is an object id, a space and a ref name. */
+    private static boolean isRefLine(final Blocks buf, final int from, final int to)
+            throws IOException {
+        return to - from >= ID_LENGTH + 2
+                && buf.get(from + ID_LENGTH) == ' '
+                && ObjectId.isId(readId(buf, from));
+    }
+
+    /** Compares the bytes in {@code buf} from {@code from} to {@code to} with {@code name}. */
+    private static int compare(final Blocks buf, final int from, final int to, final byte[] name)
+            throws IOException {
+        final int len = Math.min(to - from, name.length);
+        for (int i = 0; i < len; i++) {
+            final int cmp = (buf.get(from + i) & 0xff) - (name[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return (to - from) - name.length;
+    }
+
+    private static int lineStart(final Blocks buf, final int pos) throws IOException {
+        int i = pos;
+        while (i > 0 && buf.get(i - 1) != '\n') {
+            i--;
+        }
+        return i;
+    }
+
+    private static int lineEnd(final Blocks buf, final int pos) throws IOException {
+        int i = pos;
+        while (i < buf.limit() && buf.get(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static String readLine(final Blocks buf, final int pos) throws IOException {
+        return readString(buf, pos, lineEnd(buf, pos));
+    }
+
+    private static String readId(final Blocks buf, final int pos) throws IOException {
+        return readString(buf, pos, pos + ID_LENGTH);
+    }
+
+    private static String readString(final Blocks buf, final int from, final int to)
+            throws IOException {
+        final byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(from + i);
+        }
+        return new String(bytes, Constants.CHARSET);
+    }
+
+    /**
+     * The bytes of a file, read a block at a time with positional reads. Only
+     * the last block read is kept, which is enough for a binary search.
+     */
+    private static final class Blocks {
+
+        private final FileChannel channel;
+
+        private final int limit;
+
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        /** The position in the file of the first byte in {@code block}. */
+        private int offset = -1;
+
+        Blocks(final FileChannel channel, final int limit) {
+            this.channel = channel;
+            this.limit = limit;
+        }
+
+        int limit() {
+            return limit;
+        }
+
+        byte get(final int pos) throws IOException {
+            if (offset < 0 || pos < offset || pos >= offset + block.limit()) {
+                load(pos - (pos % BLOCK_SIZE));
+            }
+            return block.get(pos - offset);
+        }
+
+        private void load(final int position) throws IOException {
+            block.clear();
+            block.limit(Math.min(BLOCK_SIZE, limit - position));
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) {
+                    throw new IOException("Unexpected end of packed-refs file.");
+                }
+            }
+            block.flip();
+            offset = position;
+        }
+
+    }
+
+}
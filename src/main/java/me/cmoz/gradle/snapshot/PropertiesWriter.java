@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders build information in the {@code .properties} format, the same way
+ * on every build.
+ *
+ * <p>Unlike {@code Properties.store} the keys are sorted and there is no
+ * date comment, so the same properties always give the same bytes and the
+ * tasks which package the file stay up-to-date. The escaping is the same as
+ * {@code Properties.store(OutputStream)}: anything outside printable ASCII
+ * is written as a {@code \}{@code uXXXX} escape, so the file can be read with
+ * {@code Properties.load(InputStream)}.
+ */
+final class PropertiesWriter {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private PropertiesWriter() {}
+
+    /**
+     * Renders the properties, sorted by key.
+     *
+     * @param properties The properties to render.
+     * @param comment A comment for the top of the file.
+     * @return The contents of the properties file.
+     */
+    public static byte[] render(@NonNull final Map<String, String> properties, @NonNull final String comment) {
+        final StringBuilder sb = new StringBuilder(64 * (properties.size() + 1));
+        sb.append('#');
+        escape(sb, comment, false, true);
+        sb.append('\n');
+
+        for (final Map.Entry<String, String> property : new TreeMap<String, String>(properties).entrySet()) {
+            escape(sb, property.getKey(), true, false);
+            sb.append('=');
+            escape(sb, property.getValue(), false, false);
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Appends a key, value or comment with the escapes {@code
+     * Properties.load} expects.
+     */
+    private static void escape(final StringBuilder sb, final String text, final boolean key, final boolean comment) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (comment) {
+                if (c == '\n' || c == '\r') {
+                    sb.append("\n#");
+                    if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                        i++;
+                    }
+                    continue;
+                }
+            } else {
+                switch (c) {
+                    case ' ':
+                        // a leading space in a value would be skipped when it's read
+                        if (key || i == 0) {
+                            sb.append('\\');
+                        }
+                        sb.append(c);
+                        continue;
+                    case '\t':
+                        sb.append("\\t");
+                        continue;
+                    case '\n':
+                        sb.append("\\n");
+                        continue;
+                    case '\r':
+                        sb.append("\\r");
+                        continue;
+                    case '\f':
+                        sb.append("\\f");
+                        continue;
+                    case '=':
+                    case ':':
+                    case '#':
+                    case '!':
+                    case '\\':
+                        sb.append('\\').append(c);
+                        continue;
+                    default:
+                        break;
+                }
+            }
+
+            if (c < 0x20 || c > 0x7e) {
+                sb.append("\\u")
+                        .append(HEX_DIGITS[(c >> 12) & 0xf])
+                        .append(HEX_DIGITS[(c >> 8) & 0xf])
+                        .append(HEX_DIGITS[(c >> 4) & 0xf])
+                        .append(HEX_DIGITS[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+}
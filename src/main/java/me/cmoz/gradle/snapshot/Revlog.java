@@ -0,0 +1,352 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads revisions from a Mercurial revlog, e.g. the changelog, without
+ * loading the rest of it.
+ *
+ * <p>The index ({@code .i}) file is read a block of entries at a time with
+ * positional reads, so looking up the tip or any other revision only reads
+ * the block of its 64 byte index entry. The text of a revision is rebuilt
+ * from the chunks of its delta chain, which are read from the data
+ * ({@code .d}) file one at a time. An inline revlog, which Mercurial only
+ * keeps while it's small, is read whole.
+ *
+ * <p>The files aren't memory mapped: a mapping is only released when it's
+ * garbage collected and until then it stops Mercurial from replacing the
+ * file on Windows. A {@code Revlog} isn't thread-safe.
+ *
+ * <p>Only version 1 revlogs with zlib compressed (or uncompressed) chunks are
+ * supported, with or without {@code generaldelta}.
+ */
+final class Revlog implements Closeable {
+
+    /** The length of an index entry. */
+    private static final int ENTRY_LENGTH = 64;
+
+    /** The length of a node id. */
+    static final int NODEID_LENGTH = 20;
+
+    /** The flag in the version header of a revlog with its data in the index file. */
+    private static final int FLAG_INLINE_DATA = 1 << 16;
+
+    /** The flag in the version header of a revlog with deltas against any revision. */
+    private static final int FLAG_GENERALDELTA = 1 << 17;
+
+    /** The revlog format this reader supports. */
+    private static final int REVLOGV1 = 1;
+
+    /** The markers of how a chunk is stored. */
+    private static final byte CHUNK_ZLIB = 'x';
+    private static final byte CHUNK_UNCOMPRESSED = 'u';
+    private static final byte CHUNK_RAW = 0;
+
+    /** The number of index entries read at a time. */
+    private static final int BLOCK_ENTRIES = 64;
+
+    private final RandomAccessFile indexFile;
+
+    /** The length of the index file. */
+    private final long indexLength;
+
+    /** The whole index file of an inline revlog, or {@code null}. */
+    private final ByteBuffer inlineIndex;
+
+    /** The last block of index entries read. */
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_ENTRIES * ENTRY_LENGTH);
+
+    /** The position in the index file of {@code block}, {@code -1} before the first read. */
+    private long blockPosition = -1;
+
+    /** The data file, or {@code null} for an inline revlog. */
+    private final RandomAccessFile dataFile;
+
+    private final boolean generalDelta;
+
+    /** The positions of the index entries of an inline revlog. */
+    private final int[] inlinePositions;
+
+    private Revlog(final File file) throws IOException {
+        indexFile = new RandomAccessFile(file, "r");
+        try {
+            indexLength = indexFile.length();
+            final int header;
+            if (indexLength >= ENTRY_LENGTH) {
+                final ByteBuffer first = ByteBuffer.allocate(4);
+                read(indexFile.getChannel(), first, 0);
+                header = first.getInt(0);
+            } else {
+                header = REVLOGV1;
+            }
+            if ((header & 0xffff) != REVLOGV1) {
+                throw new IOException("Unsupported revlog format " + (header & 0xffff) + " in " + file + ".");
+            }
+            generalDelta = (header & FLAG_GENERALDELTA) != 0;
+
+            if ((header & FLAG_INLINE_DATA) != 0) {
+                if (indexLength > Integer.MAX_VALUE) {
+                    throw new IOException("Revlog index " + file + " is too large.");
+                }
+                inlineIndex = ByteBuffer.allocate((int) indexLength);
+                read(indexFile.getChannel(), inlineIndex, 0);
+                inlinePositions = inlinePositions(inlineIndex);
+                dataFile = null;
+            } else {
+                inlineIndex = null;
+                inlinePositions = null;
+                final String name = file.getName();
+                final File data = new File(file.getParentFile(), name.substring(0, name.length() - 2) + ".d");
+                dataFile = data.isFile() ? new RandomAccessFile(data, "r") : null;
+            }
+        } catch (final IOException e) {
+            indexFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a revlog from its index file.
+     *
+     * @param file The {@code .i} file of the revlog.
+     * @return The revlog, which must be closed.
+     * @throws IOException If the index could not be read.
+     */
+    public static Revlog open(@NonNull final File file) throws IOException {
+        return new Revlog(file);
+    }
+
+    /**
+     * The number of revisions in the revlog.
+     *
+     * @return The number of revisions, the tip is one less.
+     */
+    public int getRevisionCount() {
+        return (inlinePositions != null) ? inlinePositions.length : (int) (indexLength / ENTRY_LENGTH);
+    }
+
+    /**
+     * The node id of a revision.
+     *
+     * @param rev The revision number.
+     * @return The 20 byte node id.
+     * @throws IOException If the index could not be read.
+     */
+    public byte[] getNodeid(final int rev) throws IOException {
+        final byte[] nodeid = new byte[NODEID_LENGTH];
+        final ByteBuffer entry = entry(rev);
+        entry.position(entry.position() + 32);
+        entry.get(nodeid);
+        return nodeid;
+    }
+
+    /**
+     * The parents of a revision.
+     *
+     * @param rev The revision number.
+     * @return The revision numbers of the first and second parent, {@code -1}
+     *         for no parent.
+     * @throws IOException If the index could not be read.
+     */
+    public int[] getParents(final int rev) throws IOException {
+        final ByteBuffer entry = entry(rev);
+        return new int[] {entry.getInt(24), entry.getInt(28)};
+    }
+
+    /**
+     * Finds a revision by node id, searching back from the tip.
+     *
+     * @param nodeid The 20 byte node id.
+     * @return The revision number or {@code -1} if the node is not in the
+     *         revlog.
+     * @throws IOException If the index could not be read.
+     */
+    public int findRevision(@NonNull final byte[] nodeid) throws IOException {
+        for (int rev = getRevisionCount() - 1; rev >= 0; rev--) {
+            if (Arrays.equals(nodeid, getNodeid(rev))) {
+                return rev;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuilds the text of a revision from its delta chain.
+     *
+     * @param rev The revision number.
+     * @return The text of the revision.
+     * @throws IOException If a chunk could not be read or decompressed.
+     */
+    public byte[] getText(final int rev) throws IOException {
+        if (rev < 0 || rev >= getRevisionCount()) {
+            throw new IllegalArgumentException("No revision " + rev + " in revlog.");
+        }
+
+        // walk back to the full text at the start of the chain
+        final List<Integer> chain = new ArrayList<Integer>();
+        int current = rev;
+        while (true) {
+            chain.add(current);
+            final int base = entry(current).getInt(16);
+            if (base == current || base < 0) {
+                break;
+            }
+            current = generalDelta ? base : current - 1;
+            if (!generalDelta && current < base) {
+                break;
+            }
+        }
+
+        byte[] text = chunk(chain.get(chain.size() - 1));
+        for (int i = chain.size() - 2; i >= 0; i--) {
+            text = MPatch.apply(text, chunk(chain.get(i)));
+        }
+        return text;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            indexFile.close();
+        } finally {
+            if (dataFile != null) {
+                dataFile.close();
+            }
+        }
+    }
+
+    /** Returns the index entry of a revision, positioned at its start. */
+    private ByteBuffer entry(final int rev) throws IOException {
+        if (inlineIndex != null) {
+            final ByteBuffer entry = inlineIndex.duplicate();
+            entry.position(inlinePositions[rev]);
+            return entry.slice();
+        }
+
+        final long position = (long) rev * ENTRY_LENGTH;
+        if (blockPosition < 0 || position < blockPosition || position >= blockPosition + block.limit()) {
+            blockPosition = position - (position % block.capacity());
+            block.clear();
+            block.limit((int) Math.min(block.capacity(), indexLength - blockPosition));
+            read(indexFile.getChannel(), block, blockPosition);
+        }
+        final ByteBuffer entry = block.duplicate();
+        entry.position((int) (position - blockPosition));
+        return entry.slice();
+    }
+
+    /** Fills the remaining bytes of {@code buf} from {@code position} in the file. */
+    private static void read(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        final int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position() - start) < 0) {
+                throw new IOException("Unexpected end of revlog.");
+            }
+        }
+        buf.flip();
+        buf.position(start);
+    }
+
+    /** Reads and decompresses the chunk of a revision. */
+    private byte[] chunk(final int rev) throws IOException {
+        final ByteBuffer entry = entry(rev);
+        // the first entry's offset is overlaid by the version header
+        final long offset = (rev == 0) ? 0 : (entry.getLong(0) >>> 16);
+        final int length = entry.getInt(8);
+        final int textLength = entry.getInt(12);
+        Metrics.current().read(ENTRY_LENGTH + length);
+
+        final byte[] chunk = new byte[length];
+        if (inlineIndex != null) {
+            final ByteBuffer data = inlineIndex.duplicate();
+            data.position(inlinePositions[rev] + ENTRY_LENGTH);
+            data.get(chunk);
+        } else {
+            if (dataFile == null) {
+                throw new IOException("Revlog data file is missing.");
+            }
+            read(dataFile.getChannel(), ByteBuffer.wrap(chunk), offset);
+        }
+        return decompress(chunk, textLength);
+    }
+
+    private static byte[] decompress(final byte[] chunk, final int textLength) throws IOException {
+        if (chunk.length == 0 || chunk[0] == CHUNK_RAW) {
+            return chunk;
+        }
+        if (chunk[0] == CHUNK_UNCOMPRESSED) {
+            return Arrays.copyOfRange(chunk, 1, chunk.length);
+        }
+        if (chunk[0] != CHUNK_ZLIB) {
+            throw new IOException("Unsupported revlog compression '" + (char) chunk[0] + "'.");
+        }
+
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(chunk);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(textLength, 64));
+            final byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated revlog chunk.");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            throw new IOException("Invalid revlog chunk.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Finds the index entries of an inline revlog, which are followed by their data. */
+    private static int[] inlinePositions(final ByteBuffer index) throws IOException {
+        final List<Integer> positions = new ArrayList<Integer>();
+        int pos = 0;
+        while (pos + ENTRY_LENGTH <= index.capacity()) {
+            positions.add(pos);
+            pos += ENTRY_LENGTH + index.getInt(pos + 8);
+        }
+        if (pos != index.capacity()) {
+            throw new IOException("Truncated inline revlog.");
+        }
+
+        final int[] result = new int[positions.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = positions.get(i);
+        }
+        return result;
+    }
+
+}
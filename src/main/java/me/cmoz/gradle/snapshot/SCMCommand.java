@@ -17,6 +17,8 @@ package me.cmoz.gradle.snapshot;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A command to access a Source Control Management (SCM) Repository.
@@ -43,4 +45,79 @@ public interface SCMCommand {
      */
     Commit getLatestCommit(final String dateFormat);
 
+    /**
+     * Finds the most recent commit reachable from the checked out commit
+     * which changed a file in each of the directories. The directories are
+     * all looked for at once, so this is called with every directory which is
+     * needed rather than once for each.
+     *
+     * @param dirs The directories in the working copy.
+     * @param dateFormat The format of the dates in the commits.
+     * @param indexFile The file to keep the commits in between builds, so
+     *                  only the commits made since need to be read, may be
+     *                  {@code null}.
+     * @return The {@code Commit} for each directory. A directory which no
+     *         commit has changed, or which is outside the working copy, has
+     *         the checked out commit.
+     */
+    Map<File, Commit> getPathCommits(final List<File> dirs, final String dateFormat, @Nullable final File indexFile);
+
+    /**
+     * Returns the files in the SCM repository (and the user's SCM
+     * configuration) which determine the result of {@code getLatestCommit}.
+     * These are small files which change whenever a commit is made or the
+     * checked out revision changes, so they are cheap to use as task inputs.
+     *
+     * @return The files that describe the current state of the repository,
+     *         some of these files may not exist.
+     */
+    List<File> getStateFiles();
+
+    /**
+     * Checks the working copy for changes which have not been committed.
+     *
+     * @param check Whether to stop at the first change or count them all, it
+     *              must not be {@code NONE}.
+     * @param statCacheFile The file to keep the hashes of the working copy
+     *                      files in between builds, may be {@code null}.
+     * @return The {@code WorkingTreeStatus} of the working copy.
+     */
+    WorkingTreeStatus getStatus(final DirtyCheck check, @Nullable final File statCacheFile);
+
+    /**
+     * Finds the submodules (Git) or subrepositories (Mercurial) which are
+     * checked out in the working copy. Nested ones are found with the
+     * command of their parent.
+     *
+     * @return The {@code .git} or {@code .hg} directory (or file) in each
+     *         one, keyed by its path relative to the working copy and in path
+     *         order. The ones which are not checked out are left out.
+     */
+    Map<String, File> getSubmodules();
+
+    /**
+     * Finds the most recent tag reachable from the checked out commit and the
+     * number of commits since.
+     *
+     * @param cacheFile The file to keep the tags and recently described
+     *                  commits in between builds, may be {@code null}.
+     * @return The {@code NearestTag} of the checked out commit.
+     */
+    NearestTag getNearestTag(@Nullable final File cacheFile);
+
+    /**
+     * Writes a changelog of the commits from the checked out revision back to
+     * (but not including) {@code since}, newest first. The commits are
+     * written as they're read so the length of the range doesn't affect the
+     * memory used.
+     *
+     * @param since The tag, branch or revision the changelog starts after, or
+     *              {@code null} to start after the most recent tag.
+     * @param limit The most commits to write, {@code 0} for no limit.
+     * @param dateFormat The format of the commit times.
+     * @param outputFile The file to write the changelog to.
+     * @return The number of commits written.
+     */
+    int writeChangelog(@Nullable final String since, final int limit, final String dateFormat, final File outputFile);
+
 }
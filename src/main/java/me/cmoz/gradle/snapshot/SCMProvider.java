@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+/**
+ * Controls where the commit of the build is read from.
+ */
+public enum SCMProvider {
+
+    /**
+     * The commit is read from the environment when it has the commit id,
+     * time and message and nothing else is needed from the repository,
+     * otherwise from the repository.
+     */
+    AUTO,
+
+    /** The commit is read from the SCM repository. */
+    REPOSITORY,
+
+    /**
+     * The commit is read from environment variables and system properties,
+     * the repository is never opened.
+     */
+    ENVIRONMENT
+
+}
@@ -15,44 +15,400 @@
  */
 package me.cmoz.gradle.snapshot;
 
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.eclipse.jgit.util.SystemReader;
 import org.gradle.api.Project;
 import org.gradle.api.logging.Logger;
+import org.gradle.api.plugins.ExtraPropertiesExtension;
 
 import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A helper class with utility methods to integrate with an SCM repository.
  */
 final class SCMUtil {
 
+    /** Marks a directory which has no SCM repository above it. */
+    private static final File NOT_FOUND = new File("");
+
+    /** The name of the {@code ScanCache} in the {@code Metrics}. */
+    static final String SCAN_CACHE_NAME = "scan";
+
+    /** The directory in the Gradle user home the SCM libraries bundled with the plugin are extracted to. */
+    private static final String LIBRARY_CACHE_DIRNAME = "caches/snapshot-plugin";
+
     /**
-     * Recursively walks up the directory tree starting from {@code
-     * Project#getProjectDir()} looking for the {@code repoDirName}. This code
-     * mirrors the lookup strategy used by most SCM tools.
+     * Walks up the directory tree starting from {@code
+     * Project#getProjectDir()} looking for any of the {@code dirNames}. This
+     * code mirrors the lookup strategy used by most SCM tools: the nearest
+     * directory that contains one of the names wins, and if a directory
+     * contains more than one the first of {@code dirNames} wins.
+     *
+     * <p>The directories are searched in a single pass and the result is
+     * remembered for every directory that was searched, so the projects in a
+     * multi-project build only search the directories they don't share.
      *
      * @param project The Gradle project for this plugin.
-     * @param dirName The name of the configuration folder for SCM metadata.
+     * @param dirNames The names of the configuration folders (or files) for
+     *                 SCM metadata, in order of precedence.
      * @return The file with the location of the repository or {@code null} if
      *         one cannot be found.
      */
     @Nullable
-    public static File scanDir(final Project project, final String dirName) {
+    public static File scanDir(final Project project, final String... dirNames) {
+        final long start = System.nanoTime();
         final Logger logger = project.getLogger();
+        final Map<String, File> scanned = forBuild(project, ScanCache.class).getDirs();
+        final String names = Arrays.toString(dirNames);
 
-        File repoDir;
+        final List<String> searched = new ArrayList<String>();
+        File repoDir = null;
         File baseDir = project.getProjectDir();
         do {
-            repoDir = new File(baseDir, dirName);
-            logger.info("Searching '{}' for a '{}' directory.", baseDir, dirName);
-            if (repoDir.exists()) {
-                return repoDir;
+            final String key = names + baseDir.getPath();
+            repoDir = scanned.get(key);
+            if (repoDir != null) {
+                break;
+            }
+
+            searched.add(key);
+            logger.debug("Searching '{}' for a '{}' directory.", baseDir, names);
+            for (final String dirName : dirNames) {
+                final File dir = new File(baseDir, dirName);
+                if (dir.exists()) {
+                    repoDir = dir;
+                    break;
+                }
             }
             baseDir = baseDir.getParentFile();
-        } while (baseDir != null);
+        } while (repoDir == null && baseDir != null);
+
+        if (repoDir == null) {
+            repoDir = NOT_FOUND;
+        }
+        for (final String key : searched) {
+            scanned.put(key, repoDir);
+        }
+
+        final Metrics metrics = Metrics.current();
+        if (searched.isEmpty()) {
+            metrics.hit(SCAN_CACHE_NAME);
+        } else {
+            metrics.miss(SCAN_CACHE_NAME);
+        }
+        metrics.record(Metrics.Phase.DISCOVERY, start);
+
+        if (repoDir == NOT_FOUND) {
+            logger.info("Could not locate a '{}' directory.", names);
+            return null;
+        }
+        logger.info("Using the SCM repository in '{}'.", repoDir);
+        return repoDir;
+    }
+
+    /**
+     * Searches the project directory for a repository directory that belongs
+     * to a supported SCM tool and creates the {@code SCMCommand} for it.
+     *
+     * @param project The Gradle project for this plugin.
+     * @param isolation Which classloader the command reads the repository with.
+     * @return The {@code SCMCommand} to interact with the SCM repository for
+     *         the project, or {@code null} if none could be found.
+     */
+    @Nullable
+    public static SCMCommand findCommand(@NonNull final Project project, @NonNull final IsolationMode isolation) {
+        final File repoDir = scanDir(project, HgSCMCommand.REPO_DIRNAME, GitSCMCommand.REPO_DIRNAME);
+        if (repoDir == null) {
+            return null; // no supported SCM directory could be located
+        }
+
+        if (isolation == IsolationMode.NONE && IsolatedSCMCommand.isOnClasspath()) {
+            return newCommand(repoDir);
+        }
+        if (isolation == IsolationMode.NONE) {
+            project.getLogger().debug("The SCM libraries aren't on the buildscript classpath, using the plugin's own.");
+        }
+        return new IsolatedSCMCommand(commandType(repoDir), repoDir,
+                new File(project.getGradle().getGradleUserHomeDir(), LIBRARY_CACHE_DIRNAME));
+    }
+
+    /**
+     * Creates the {@code SCMCommand} for a submodule of the repository of
+     * {@code parent}, in the same classloader as {@code parent}.
+     *
+     * @param parent The command of the repository with the submodule.
+     * @param repoDir The {@code .git} or {@code .hg} of the submodule.
+     * @return The {@code SCMCommand} for the submodule.
+     */
+    public static SCMCommand newSubmoduleCommand(@NonNull final SCMCommand parent, @NonNull final File repoDir) {
+        return (parent instanceof IsolatedSCMCommand)
+                ? ((IsolatedSCMCommand) parent).isolate(commandType(repoDir), repoDir)
+                : newCommand(repoDir);
+    }
+
+    private static SCMCommand newCommand(final File repoDir) {
+        return HgSCMCommand.REPO_DIRNAME.equals(repoDir.getName())
+                ? new HgSCMCommand(repoDir)
+                : new GitSCMCommand(repoDir);
+    }
+
+    /** The name of the {@code SCMCommand} class for a repository, without loading the SCM libraries. */
+    private static String commandType(final File repoDir) {
+        return HgSCMCommand.REPO_DIRNAME.equals(repoDir.getName())
+                ? HgSCMCommand.class.getName()
+                : GitSCMCommand.class.getName();
+    }
+
+    /**
+     * Reads an environment variable in the same way as JGit when it's loaded
+     * by the same classloader as the plugin, so the values agree with the
+     * ones JGit reads the user's configuration with.
+     *
+     * @param name The name of the variable.
+     * @return The value of the variable or {@code null} if it isn't set.
+     */
+    @Nullable
+    public static String getenv(@NonNull final String name) {
+        return IsolatedSCMCommand.isOnClasspath()
+                ? JGitEnvironment.getenv(name)
+                : System.getenv(name);
+    }
+
+    /**
+     * Returns the instance of {@code type} shared by every project in the
+     * build, creating it on first use. The instance is held by the root
+     * project so it lives exactly as long as the build.
+     *
+     * @param project Any project in the build.
+     * @param type The type of the shared object, it must have a no-args
+     *             constructor.
+     * @return The instance of {@code type} for the build.
+     */
+    public static <T> T forBuild(@NonNull final Project project, @NonNull final Class<T> type) {
+        final ExtraPropertiesExtension props =
+                project.getRootProject().getExtensions().getExtraProperties();
+        // the plugin may be loaded by more than one buildscript classloader
+        final String name = "snapshot." + type.getName()
+                + "@" + System.identityHashCode(type.getClassLoader());
+
+        synchronized (props) {
+            if (props.has(name)) {
+                final Object instance = props.get(name);
+                if (type.isInstance(instance)) {
+                    return type.cast(instance);
+                }
+                project.getLogger().debug("Replacing the {} held by another classloader.", type.getName());
+            }
+
+            final T instance = newInstance(type);
+            props.set(name, instance);
+            return instance;
+        }
+    }
+
+    @SneakyThrows({InstantiationException.class, IllegalAccessException.class})
+    private static <T> T newInstance(final Class<T> type) {
+        return type.newInstance();
+    }
+
+    /**
+     * Reads the first line of a (small) text file in the SCM repository.
+     *
+     * @param file The file to read.
+     * @return The first line of the file or {@code null} if the file does not
+     *         exist or cannot be read.
+     */
+    @Nullable
+    public static String readFirstLine(final File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            final String line = reader.readLine();
+            if (line != null) {
+                Metrics.current().read(line.length() + 1);
+            }
+            return line;
+        } catch (final IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException ignored) {
+                    // nothing useful can be done
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the path of a directory in the working copy, as the SCM tools
+     * write it.
+     *
+     * @param workTree The top of the working copy.
+     * @param dir The directory.
+     * @return The path relative to the working copy with {@code /}
+     *         separators, {@code ""} for the top itself or {@code null} if the
+     *         directory is outside the working copy.
+     * @throws IOException If a path could not be resolved.
+     */
+    @Nullable
+    public static String relativePath(@NonNull final File workTree, @NonNull final File dir) throws IOException {
+        final String base = workTree.getCanonicalPath();
+        final String path = dir.getCanonicalPath();
+        if (path.equals(base)) {
+            return "";
+        }
+
+        final String prefix = base.endsWith(File.separator) ? base : base + File.separator;
+        return path.startsWith(prefix)
+                ? path.substring(prefix.length()).replace(File.separatorChar, '/')
+                : null;
+    }
+
+    /**
+     * Whether a path from a file in the repository, e.g. of a submodule, is
+     * relative and stays inside the working copy.
+     *
+     * @param path The path, with {@code /} separators.
+     * @return {@code true} if the path can be resolved in the working copy.
+     */
+    public static boolean isRelativePath(@NonNull final String path) {
+        if (path.length() == 0 || path.startsWith("/") || new File(path).isAbsolute()) {
+            return false;
+        }
+        for (final String segment : path.split("[/\\\\]")) {
+            if ("..".equals(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes a directory and everything in it, e.g. generated sources.
+     *
+     * @param dir The directory to delete, it may not exist.
+     * @throws IOException If a file could not be deleted.
+     */
+    public static void deleteDir(@NonNull final File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                deleteDir(file);
+            }
+        }
+        if (dir.exists() && !dir.delete()) {
+            throw new IOException("Could not delete " + dir);
+        }
+    }
+
+    /**
+     * Replaces the contents of a file, unless it already has exactly those
+     * contents. The new contents are written to a temporary file in the same
+     * directory which is then renamed over the file, so a reader never sees
+     * a partly written file and an unchanged file keeps its timestamp.
+     *
+     * @param file The file to write.
+     * @param contents The new contents of the file.
+     * @return {@code true} if the file was written, {@code false} if it
+     *         already had the contents.
+     * @throws IOException If the file could not be written.
+     */
+    public static boolean writeIfChanged(@NonNull final File file, @NonNull final byte[] contents)
+            throws IOException {
+        if (file.isFile() && file.length() == contents.length) {
+            final byte[] existing = new byte[contents.length];
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(existing);
+            } finally {
+                in.close();
+            }
+            Metrics.current().read(existing.length);
+            if (Arrays.equals(existing, contents)) {
+                return false;
+            }
+        }
+
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            final OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(contents);
+            } finally {
+                out.close();
+            }
+            // a rename can't replace an existing file on every platform
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Could not replace " + file);
+            }
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Formats bytes, e.g. a node id, as lower case hex.
+     *
+     * @param bytes The bytes to format.
+     * @return The hex string.
+     */
+    public static String toHex(@NonNull final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Refers to JGit's {@code SystemReader}, so it's only loaded when JGit is
+     * on the classpath.
+     */
+    private static final class JGitEnvironment {
+
+        static String getenv(final String name) {
+            return SystemReader.getInstance().getenv(name);
+        }
+
+    }
+
+    /**
+     * The results of {@code scanDir} for each directory searched in a build.
+     */
+    static final class ScanCache {
+
+        @Getter
+        private final Map<String, File> dirs = new ConcurrentHashMap<String, File>();
 
-        logger.info("Could not locate a '{}' directory.", dirName);
-        return null;
     }
 
 }
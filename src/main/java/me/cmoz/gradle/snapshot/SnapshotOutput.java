@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Data;
+import lombok.NonNull;
+import org.gradle.api.plugins.JavaPlugin;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * An additional output of the {@code SnapshotTask}, configured in the {@code
+ * outputs} of the {@code snapshot} extension, e.g.
+ * <pre>
+ * {@code
+ *   snapshot {
+ *     outputs {
+ *       frontend {
+ *         type = "json"
+ *         destinationDir = file("src/main/webapp/generated")
+ *       }
+ *     }
+ *   }
+ * }
+ * </pre>
+ *
+ * <p>Every output is rendered from the properties of the one commit the task
+ * reads, so adding one never reads the repository again.
+ */
+@Data
+public class SnapshotOutput {
+
+    /** The default format of an output. */
+    public static final OutputType DEFAULT_TYPE = OutputType.PROPERTIES;
+    /** The default {@code Jar} task a {@code MANIFEST} output is merged into. */
+    public static final String DEFAULT_JAR_TASK = JavaPlugin.JAR_TASK_NAME;
+
+    /** The name of the output. */
+    private final String name;
+    /** The format of the output, defaults to {@code PROPERTIES}. */
+    private OutputType type;
+    /** The name of the file, defaults to the name of the output with the extension of its type. */
+    @Nullable
+    private String filename;
+    /** The directory of the file, defaults to {@code build/snapshot/<name>}. */
+    @Nullable
+    private File destinationDir;
+    /** The source set the file is added to the resources of, {@code null} for none. */
+    @Nullable
+    private String sourceSet;
+    /** The {@code Jar} task the attributes of a {@code MANIFEST} output are merged into. */
+    private String jarTask;
+
+    public SnapshotOutput(@NonNull final String name) {
+        this.name = name;
+        setType(DEFAULT_TYPE);
+        setJarTask(DEFAULT_JAR_TASK);
+    }
+
+    public void setType(@NonNull final OutputType type) {
+        this.type = type;
+    }
+
+    public void setType(@NonNull final String type) {
+        setType(OutputType.valueOf(type.toUpperCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * Returns the name of the file, the one which is set or else the name of
+     * the output with the extension of its type.
+     */
+    public String getFilename() {
+        return (filename != null) ? filename : name + type.getExtension();
+    }
+
+    public void setJarTask(@NonNull final String jarTask) {
+        this.jarTask = jarTask;
+    }
+
+}
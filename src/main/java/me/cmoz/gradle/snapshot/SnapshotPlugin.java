@@ -16,28 +16,84 @@
 package me.cmoz.gradle.snapshot;
 
 import lombok.NonNull;
+import lombok.SneakyThrows;
+import org.gradle.BuildAdapter;
+import org.gradle.BuildResult;
 import org.gradle.api.Action;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.execution.TaskExecutionAdapter;
+import org.gradle.api.execution.TaskExecutionGraph;
+import org.gradle.api.execution.TaskExecutionGraphListener;
 import org.gradle.api.plugins.JavaPlugin;
-import org.gradle.api.tasks.Copy;
+import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.SourceSetContainer;
 import org.gradle.api.tasks.TaskContainer;
+import org.gradle.api.tasks.TaskState;
+import org.gradle.api.tasks.bundling.Jar;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 public final class SnapshotPlugin implements Plugin<Project> {
 
     /** The name of the snapshot task exposed to Gradle. */
     public static final String SNAPSHOT_TASK_NAME = "snapshot";
 
+    /** The name of the changelog task exposed to Gradle. */
+    public static final String CHANGELOG_TASK_NAME = "changelog";
+
     @Override
     public void apply(final Project project) {
         final SnapshotPluginExtension ext = project
                 .getExtensions()
-                .create("snapshot", SnapshotPluginExtension.class);
+                .create("snapshot", SnapshotPluginExtension.class, project.container(SnapshotOutput.class));
         configureSnapshotTask(project, ext);
+        configureChangelogTask(project);
+        configureReport(project);
+    }
+
+    /**
+     * Writes the {@code SnapshotReport} for the build when it finishes, and
+     * closes the isolated classloader if the build used one. The report is
+     * shared by every project so only the first one that applies the plugin
+     * adds the listener.
+     */
+    private void configureReport(@NonNull final Project project) {
+        final SnapshotReport report = SnapshotReport.forBuild(project);
+        if (!report.listen()) {
+            return;
+        }
+
+        final Project rootProject = project.getRootProject();
+        project.getGradle().addBuildListener(new BuildAdapter() {
+            @Override
+            @SneakyThrows(IOException.class)
+            public void buildFinished(final BuildResult result) {
+                try {
+                    report.finish(rootProject, rootProject.getLogger());
+                } finally {
+                    IsolatedSCMCommand.close();
+                }
+            }
+        });
+    }
+
+    private void configureChangelogTask(@NonNull final Project project) {
+        final ChangelogTask task = project.getTasks().create(CHANGELOG_TASK_NAME, ChangelogTask.class);
+        task.setDescription("Generate a changelog of the commits since the last tag from an SCM repository.");
+
+        project.getGradle().getTaskGraph().addTaskExecutionGraphListener(new TaskExecutionGraphListener() {
+            @Override
+            public void graphPopulated(final TaskExecutionGraph graph) {
+                task.configured();
+            }
+        });
     }
 
     private void configureSnapshotTask(
@@ -48,18 +104,168 @@ public final class SnapshotPlugin implements Plugin<Project> {
         final SnapshotTask task = tasks.create(SNAPSHOT_TASK_NAME, SnapshotTask.class);
         task.setDescription("Generate build information from an SCM repository.");
 
+        // expose the build information lazily from the extension, the repository is read on first use
+        final List<String> keys = new ArrayList<String>(Commit.KEYS);
+        keys.addAll(WorkingTreeStatus.KEYS);
+        keys.addAll(NearestTag.KEYS);
+        for (final String key : keys) {
+            ext.addValue(new SnapshotValue(key, task));
+        }
+        // the project properties stay plain strings, set when the task runs or is skipped
+        task.publishTo(project.getExtensions().getExtraProperties());
+
+        project.getGradle().getTaskGraph().addTaskExecutionGraphListener(new TaskExecutionGraphListener() {
+            @Override
+            public void graphPopulated(final TaskExecutionGraph graph) {
+                // the configuration is complete, overlap reading the repository with the tasks that run first
+                task.configured();
+                if (graph.hasTask(task)) {
+                    task.prefetch();
+                }
+            }
+        });
+
+        project.getGradle().getTaskGraph().addTaskExecutionListener(new TaskExecutionAdapter() {
+            @Override
+            public void afterExecute(final Task t, final TaskState state) {
+                // the task action doesn't run when it's up-to-date
+                if ((t == task) && state.getSkipped()) {
+                    task.useOutputFile();
+                }
+            }
+        });
+
         project.getPlugins().withType(JavaPlugin.class, new Action<JavaPlugin>() {
             @Override
             public void execute(final JavaPlugin plugin) {
-                final File outputDir = new File(project.getBuildDir(), "snapshot");
                 final SourceSetContainer sourceSets =
                         (SourceSetContainer) project.getProperties().get("sourceSets");
-                sourceSets.getByName("main").getResources().srcDir(outputDir);
+                final SourceSet main = sourceSets.getByName(SourceSet.MAIN_SOURCE_SET_NAME);
+
+                // the output format is only known once the build script has configured the extension
+                main.getResources().srcDir(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return (ext.getOutputFormat() == OutputFormat.PROPERTIES)
+                                ? SnapshotSettings.getOutputDir(project, ext)
+                                : Collections.emptyList();
+                    }
+                });
+                main.getJava().srcDir(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return (ext.getOutputFormat() == OutputFormat.JAVA)
+                                ? SnapshotSettings.getSourceDir(project)
+                                : Collections.emptyList();
+                    }
+                });
+
+                tasks.getByName(JavaPlugin.PROCESS_RESOURCES_TASK_NAME).dependsOn(task);
+                tasks.getByName(JavaPlugin.COMPILE_JAVA_TASK_NAME).dependsOn(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return (ext.getOutputFormat() == OutputFormat.JAVA)
+                                ? task
+                                : Collections.emptyList();
+                    }
+                });
+
+                sourceSets.all(new Action<SourceSet>() {
+                    @Override
+                    public void execute(final SourceSet sourceSet) {
+                        configureSourceSetOutputs(project, ext, task, sourceSet);
+                    }
+                });
+            }
+        });
 
-                final Task t = tasks.getByName(JavaPlugin.PROCESS_RESOURCES_TASK_NAME);
-                t.dependsOn(task);
+        project.getTasks().withType(Jar.class, new Action<Jar>() {
+            @Override
+            public void execute(final Jar jar) {
+                configureManifestOutputs(project, ext, task, jar);
             }
         });
     }
 
+    /**
+     * Adds the directory of each output for a source set to its resources.
+     * The outputs are only known once the build script has configured the
+     * extension.
+     */
+    private void configureSourceSetOutputs(
+            final Project project,
+            final SnapshotPluginExtension ext,
+            final SnapshotTask task,
+            final SourceSet sourceSet) {
+        sourceSet.getResources().srcDir(new Callable<Object>() {
+            @Override
+            public Object call() {
+                final List<File> dirs = new ArrayList<File>();
+                for (final SnapshotOutput output : ext.getOutputs()) {
+                    if (sourceSet.getName().equals(output.getSourceSet())) {
+                        dirs.add(SnapshotSettings.getOutputDir(project, output));
+                    }
+                }
+                return dirs;
+            }
+        });
+        project.getTasks().getByName(sourceSet.getProcessResourcesTaskName()).dependsOn(new Callable<Object>() {
+            @Override
+            public Object call() {
+                for (final SnapshotOutput output : ext.getOutputs()) {
+                    if (sourceSet.getName().equals(output.getSourceSet())) {
+                        return task;
+                    }
+                }
+                return Collections.emptyList();
+            }
+        });
+    }
+
+    /**
+     * Merges the attributes of each {@code MANIFEST} output into the manifest
+     * of its {@code Jar} task. The files are only merged when the jar runs,
+     * after the {@code snapshot} task has written them.
+     */
+    private void configureManifestOutputs(
+            final Project project,
+            final SnapshotPluginExtension ext,
+            final SnapshotTask task,
+            final Jar jar) {
+        jar.dependsOn(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return getManifestFiles(project, ext, jar).isEmpty() ? Collections.emptyList() : task;
+            }
+        });
+        jar.getInputs().files(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return getManifestFiles(project, ext, jar);
+            }
+        });
+        jar.doFirst(new Action<Task>() {
+            @Override
+            public void execute(final Task t) {
+                for (final File manifest : getManifestFiles(project, ext, jar)) {
+                    jar.getManifest().from(manifest);
+                }
+            }
+        });
+    }
+
+    /** The files of the {@code MANIFEST} outputs merged into a {@code Jar} task. */
+    private static List<File> getManifestFiles(
+            final Project project,
+            final SnapshotPluginExtension ext,
+            final Jar jar) {
+        final List<File> files = new ArrayList<File>();
+        for (final SnapshotOutput output : ext.getOutputs()) {
+            if (output.getType() == OutputType.MANIFEST && jar.getName().equals(output.getJarTask())) {
+                files.add(new File(SnapshotSettings.getOutputDir(project, output), output.getFilename()));
+            }
+        }
+        return files;
+    }
+
 }
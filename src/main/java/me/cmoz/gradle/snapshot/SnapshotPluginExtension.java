@@ -16,14 +16,26 @@
 package me.cmoz.gradle.snapshot;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NonNull;
+import lombok.ToString;
+import org.gradle.api.Action;
+import org.gradle.api.NamedDomainObjectContainer;
 
+import javax.annotation.Nullable;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * An extension object to configure the {@code SnapshotTask}.
  */
 @Data
+@ToString(exclude = {"values", "outputs"})
+@EqualsAndHashCode(exclude = {"values", "outputs"})
 public class SnapshotPluginExtension {
 
     /** The validator used to verify a user supplied date format. */
@@ -35,6 +47,32 @@ public class SnapshotPluginExtension {
     public static final String DEFAULT_DATEFORMAT = "dd.MM.yyyy '@' HH:mm:ss z";
     /** The default logging mode for plugin output. */
     public static final boolean DEFAULT_VERBOSE = Boolean.FALSE;
+    /** The default policy for refreshing the build time. */
+    public static final BuildTimePolicy DEFAULT_BUILD_TIME_POLICY = BuildTimePolicy.ALWAYS;
+    /** The default source of the commit. */
+    public static final SCMProvider DEFAULT_SCM_PROVIDER = SCMProvider.AUTO;
+    /** The default classloader isolation for the SCM libraries. */
+    public static final IsolationMode DEFAULT_ISOLATION = IsolationMode.NONE;
+    /** The default check of the working copy for uncommitted changes. */
+    public static final DirtyCheck DEFAULT_DIRTY_CHECK = DirtyCheck.NONE;
+    /** The default form of the build information. */
+    public static final OutputFormat DEFAULT_OUTPUT_FORMAT = OutputFormat.PROPERTIES;
+    /** The default package of the generated build information class. */
+    public static final String DEFAULT_BUILD_INFO_PACKAGE = "snapshot";
+    /** The default name of the generated build information class. */
+    public static final String DEFAULT_BUILD_INFO_CLASS_NAME = "BuildInfo";
+    /** The default for writing the same file for the same commit on every machine. */
+    public static final boolean DEFAULT_REPRODUCIBLE = false;
+    /** The default commit recorded for each project. */
+    public static final CommitScope DEFAULT_COMMIT_SCOPE = CommitScope.REPOSITORY;
+    /** The default for reading the submodules. */
+    public static final boolean DEFAULT_SUBMODULES = false;
+    /** The default for recording the nearest tag. */
+    public static final boolean DEFAULT_DESCRIBE = Boolean.FALSE;
+    /** The default filename for the changelog. */
+    public static final String DEFAULT_CHANGELOG_FILENAME = "changelog.txt";
+    /** The default number of commits in the changelog, {@code 0} for no limit. */
+    public static final int DEFAULT_CHANGELOG_LIMIT = 0;
 
     /** The filename used when generating the build information file. */
     private String filename;
@@ -42,11 +80,69 @@ public class SnapshotPluginExtension {
     private String dateFormat;
     /** Whether to run the plugin in verbose mode, defaults to {@code false}. */
     private boolean verbose;
+    /** When to refresh {@code build.time}, defaults to {@code ALWAYS}. */
+    private BuildTimePolicy buildTimePolicy;
+    /**
+     * A fixed {@code build.time} in milliseconds since the epoch, defaults to
+     * {@code null} for the {@code SOURCE_DATE_EPOCH} environment variable or
+     * the time of the build.
+     */
+    private Long buildTimestamp;
+    /** Whether to write the same file for the same commit on every machine, defaults to {@code false}. */
+    private boolean reproducible;
+    /** Where the commit is read from, defaults to {@code AUTO}. */
+    private SCMProvider scmProvider;
+    /**
+     * The environment variables or system properties read for each property
+     * with the {@code ENVIRONMENT} provider, separated by commas.
+     */
+    private Map<String, String> scmEnvironment;
+    /** Which classloader reads the SCM repository, defaults to {@code NONE}. */
+    private IsolationMode isolation;
+    /** Whether to check the working copy for changes, defaults to {@code NONE}. */
+    private DirtyCheck dirtyCheck;
+    /** The form of the build information, defaults to {@code PROPERTIES}. */
+    private OutputFormat outputFormat;
+    /** The package of the class generated with the {@code JAVA} format. */
+    private String buildInfoPackage;
+    /** The simple name of the class generated with the {@code JAVA} format. */
+    private String buildInfoClassName;
+    /** Whether to record the nearest tag and the commits since, defaults to {@code false}. */
+    private boolean describe;
+    /** Which commit is recorded for the project, defaults to {@code REPOSITORY}. */
+    private CommitScope commitScope;
+    /** Whether to record the commit of each submodule, defaults to {@code false}. */
+    private boolean submodules;
+    /** The filename used when generating the changelog. */
+    private String changelogFilename;
+    /** The tag, branch or revision the changelog starts after, the most recent tag if {@code null}. */
+    private String changelogSince;
+    /** The most commits to write to the changelog, defaults to {@code 0} for no limit. */
+    private int changelogLimit;
+    /** The build information values, which are read when first used. */
+    private final Map<String, SnapshotValue> values = new LinkedHashMap<String, SnapshotValue>();
+    /** The outputs written besides the properties file, from the same commit. */
+    private final NamedDomainObjectContainer<SnapshotOutput> outputs;
 
-    public SnapshotPluginExtension() {
+    public SnapshotPluginExtension(@NonNull final NamedDomainObjectContainer<SnapshotOutput> outputs) {
+        this.outputs = outputs;
         setFilename(DEFAULT_FILENAME);
         setDateFormat(DEFAULT_DATEFORMAT);
         setVerbose(DEFAULT_VERBOSE);
+        setBuildTimePolicy(DEFAULT_BUILD_TIME_POLICY);
+        setReproducible(DEFAULT_REPRODUCIBLE);
+        setScmProvider(DEFAULT_SCM_PROVIDER);
+        setScmEnvironment(EnvSCMCommand.DEFAULT_NAMES);
+        setIsolation(DEFAULT_ISOLATION);
+        setDirtyCheck(DEFAULT_DIRTY_CHECK);
+        setOutputFormat(DEFAULT_OUTPUT_FORMAT);
+        setBuildInfoPackage(DEFAULT_BUILD_INFO_PACKAGE);
+        setBuildInfoClassName(DEFAULT_BUILD_INFO_CLASS_NAME);
+        setDescribe(DEFAULT_DESCRIBE);
+        setCommitScope(DEFAULT_COMMIT_SCOPE);
+        setSubmodules(DEFAULT_SUBMODULES);
+        setChangelogFilename(DEFAULT_CHANGELOG_FILENAME);
+        setChangelogLimit(DEFAULT_CHANGELOG_LIMIT);
     }
 
     public void setDateFormat(@NonNull final String format) {
@@ -54,4 +150,113 @@ public class SnapshotPluginExtension {
         this.dateFormat = format;
     }
 
+    /**
+     * Returns the build information values by property name, e.g. {@code
+     * snapshot.values['commit.id']}. The SCM repository is not read until a
+     * value is used.
+     */
+    public Map<String, SnapshotValue> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Returns a build information value, e.g. {@code snapshot.value('commit.id')}.
+     *
+     * @param name The name of the property.
+     * @return The value, which is read from the SCM repository when first used.
+     */
+    public SnapshotValue value(@NonNull final String name) {
+        final SnapshotValue value = values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Unknown snapshot property '" + name + "'.");
+        }
+        return value;
+    }
+
+    /**
+     * Configures the outputs written besides the properties file, e.g.
+     * {@code outputs { frontend { type = "json" } }}.
+     *
+     * @param action The action which configures the outputs.
+     */
+    public void outputs(@NonNull final Action<? super NamedDomainObjectContainer<SnapshotOutput>> action) {
+        action.execute(outputs);
+    }
+
+    void addValue(@NonNull final SnapshotValue value) {
+        values.put(value.getName(), value);
+    }
+
+    public void setBuildTimePolicy(@NonNull final BuildTimePolicy policy) {
+        this.buildTimePolicy = policy;
+    }
+
+    public void setBuildTimePolicy(@NonNull final String policy) {
+        setBuildTimePolicy(BuildTimePolicy.valueOf(policy.toUpperCase(Locale.ENGLISH)));
+    }
+
+    public void setBuildTimestamp(@Nullable final Long timestamp) {
+        this.buildTimestamp = timestamp;
+    }
+
+    public void setBuildTimestamp(@NonNull final Date time) {
+        setBuildTimestamp(time.getTime());
+    }
+
+    public void setScmProvider(@NonNull final SCMProvider provider) {
+        this.scmProvider = provider;
+    }
+
+    public void setScmProvider(@NonNull final String provider) {
+        setScmProvider(SCMProvider.valueOf(provider.toUpperCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * Sets the names read for each property, e.g. {@code scmEnvironment =
+     * ['commit.id': 'BUILD_VCS_NUMBER']}. A single name can be changed with
+     * {@code scmEnvironment['commit.id'] = 'BUILD_VCS_NUMBER'}.
+     */
+    public void setScmEnvironment(@NonNull final Map<String, String> names) {
+        this.scmEnvironment = new LinkedHashMap<String, String>(names);
+    }
+
+    public void setIsolation(@NonNull final IsolationMode isolation) {
+        this.isolation = isolation;
+    }
+
+    public void setIsolation(@NonNull final String isolation) {
+        setIsolation(IsolationMode.valueOf(isolation.toUpperCase(Locale.ENGLISH)));
+    }
+
+    public void setDirtyCheck(@NonNull final DirtyCheck check) {
+        this.dirtyCheck = check;
+    }
+
+    public void setDirtyCheck(@NonNull final String check) {
+        setDirtyCheck(DirtyCheck.valueOf(check.toUpperCase(Locale.ENGLISH)));
+    }
+
+    public void setOutputFormat(@NonNull final OutputFormat format) {
+        this.outputFormat = format;
+    }
+
+    public void setOutputFormat(@NonNull final String format) {
+        setOutputFormat(OutputFormat.valueOf(format.toUpperCase(Locale.ENGLISH)));
+    }
+
+    public void setCommitScope(@NonNull final CommitScope scope) {
+        this.commitScope = scope;
+    }
+
+    public void setCommitScope(@NonNull final String scope) {
+        setCommitScope(CommitScope.valueOf(scope.toUpperCase(Locale.ENGLISH)));
+    }
+
+    public void setChangelogLimit(final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The changelog limit must not be negative.");
+        }
+        this.changelogLimit = limit;
+    }
+
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A build-scoped collection of the {@code Metrics} of every
+ * {@code SnapshotTask} that ran in the build.
+ *
+ * <p>When the build finishes the metrics of each task, and their total, are
+ * written as JSON to {@code build/reports/snapshot/metrics.json} in the root
+ * project so the cost of the plugin can be tracked across builds. Durations
+ * are in nanoseconds.
+ */
+final class SnapshotReport {
+
+    /** The location of the report in the root project's build directory. */
+    static final String REPORT_PATH = "reports/snapshot/metrics.json";
+
+    /** The metrics of each task, keyed by task path. */
+    private final ConcurrentMap<String, Metrics> tasks = new ConcurrentHashMap<String, Metrics>();
+
+    /** Whether any of the tasks logs verbosely. */
+    private final AtomicBoolean verbose = new AtomicBoolean();
+
+    /** Whether a listener has been added to finish the report. */
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    /**
+     * Returns the report for the build the {@code project} belongs to,
+     * creating it on first use.
+     *
+     * @param project Any project in the build.
+     * @return The {@code SnapshotReport} shared by all projects in the build.
+     */
+    public static SnapshotReport forBuild(@NonNull final Project project) {
+        return SCMUtil.forBuild(project, SnapshotReport.class);
+    }
+
+    /**
+     * Claims the job of finishing the report at the end of the build, so that
+     * only one project adds a listener for it.
+     *
+     * @return {@code true} for the first caller only.
+     */
+    public boolean listen() {
+        return listening.compareAndSet(false, true);
+    }
+
+    /**
+     * Adds the metrics of a task execution to the report.
+     *
+     * @param taskPath The path of the task.
+     * @param metrics The metrics recorded by the task.
+     * @param verbose Whether the task logs verbosely.
+     */
+    public void add(@NonNull final String taskPath, @NonNull final Metrics metrics, final boolean verbose) {
+        tasks.put(taskPath, metrics);
+        if (verbose) {
+            this.verbose.set(true);
+        }
+    }
+
+    /**
+     * The metrics of the task executions, sorted by task path.
+     *
+     * @return The metrics keyed by task path.
+     */
+    public Map<String, Metrics> getTasks() {
+        return new TreeMap<String, Metrics>(tasks);
+    }
+
+    /**
+     * The metrics of all the task executions added together.
+     *
+     * @return The total metrics of the build.
+     */
+    public Metrics getTotal() {
+        final Metrics total = new Metrics();
+        for (final Metrics metrics : tasks.values()) {
+            total.add(metrics);
+        }
+        return total;
+    }
+
+    /**
+     * Writes the report for the build, and logs a summary when a task is
+     * verbose. Nothing is written if no task ran.
+     *
+     * @param rootProject The root project of the build.
+     * @param logger The logger for the summary.
+     * @throws IOException If the report could not be written.
+     */
+    public void finish(@NonNull final Project rootProject, @NonNull final Logger logger)
+            throws IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        final File reportFile = new File(rootProject.getBuildDir(), REPORT_PATH);
+        write(reportFile);
+        if (verbose.get()) {
+            logger.quiet("{} Report written to {}.", summary(), reportFile);
+        }
+        tasks.clear();
+    }
+
+    /**
+     * Writes the report as JSON.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file could not be written.
+     */
+    public void write(@NonNull final File file) throws IOException {
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * A one line summary of the total metrics.
+     *
+     * @return The summary.
+     */
+    public String summary() {
+        final Metrics total = getTotal();
+        final StringBuilder summary = new StringBuilder("Snapshot took ")
+                .append(millis(total.getTotalNanos()))
+                .append(" ms in ").append(tasks.size()).append(" task(s) (");
+        String separator = "";
+        for (final Map.Entry<String, Long> phase : total.getPhaseNanos().entrySet()) {
+            summary.append(separator).append(phase.getKey()).append(' ').append(millis(phase.getValue())).append(" ms");
+            separator = ", ";
+        }
+        return summary.append("), read ").append(total.getBytesRead()).append(" bytes, ")
+                .append(sum(total.getHits())).append(" cache hit(s) and ")
+                .append(sum(total.getMisses())).append(" miss(es).")
+                .toString();
+    }
+
+    String toJson() {
+        final StringBuilder json = new StringBuilder("{\n  \"tasks\": {");
+        String separator = "\n";
+        for (final Map.Entry<String, Metrics> task : getTasks().entrySet()) {
+            json.append(separator).append("    ").append(quote(task.getKey())).append(": ");
+            appendMetrics(json, task.getValue(), "    ");
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"total\": ");
+        appendMetrics(json, getTotal(), "  ");
+        return json.append("\n}\n").toString();
+    }
+
+    private static void appendMetrics(final StringBuilder json, final Metrics metrics, final String indent) {
+        json.append("{\n");
+        json.append(indent).append("  \"phaseNanos\": ");
+        appendCounts(json, metrics.getPhaseNanos());
+        json.append(",\n").append(indent).append("  \"totalNanos\": ").append(metrics.getTotalNanos());
+        json.append(",\n").append(indent).append("  \"bytesRead\": ").append(metrics.getBytesRead());
+        json.append(",\n").append(indent).append("  \"cacheHits\": ");
+        appendCounts(json, metrics.getHits());
+        json.append(",\n").append(indent).append("  \"cacheMisses\": ");
+        appendCounts(json, metrics.getMisses());
+        json.append('\n').append(indent).append('}');
+    }
+
+    private static void appendCounts(final StringBuilder json, final Map<String, Long> counts) {
+        json.append('{');
+        String separator = "";
+        for (final Map.Entry<String, Long> count : counts.entrySet()) {
+            json.append(separator).append(quote(count.getKey())).append(": ").append(count.getValue());
+            separator = ", ";
+        }
+        json.append('}');
+    }
+
+    private static String quote(final String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String millis(final long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static long sum(final Map<String, Long> counts) {
+        long sum = 0;
+        for (final Long count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Builder;
+import org.gradle.api.Project;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The configuration of a {@code SnapshotTask} or {@code ChangelogTask},
+ * taken from the {@code snapshot} extension and the project once the build
+ * script has been evaluated.
+ *
+ * <p>The task only reads these values when it runs, never the project or the
+ * extension, so its action depends on nothing but its own state and the
+ * build-scoped caches it was given.
+ */
+@Data
+@Builder
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class SnapshotSettings {
+
+    /** The environment variable with the time of a reproducible build. */
+    static final String SOURCE_DATE_EPOCH = "SOURCE_DATE_EPOCH";
+
+    /** The date format of {@code commit.time} and {@code build.time}. */
+    private final String dateFormat;
+
+    /** Whether to print the properties and the metrics summary. */
+    private final boolean verbose;
+
+    /** When to refresh {@code build.time}. */
+    private final BuildTimePolicy buildTimePolicy;
+
+    /**
+     * The fixed {@code build.time} in milliseconds since the epoch, {@code
+     * null} for the time of the build.
+     */
+    @Nullable
+    private final Long buildTimestamp;
+
+    /** Whether to write the same file for the same commit on every machine. */
+    private final boolean reproducible;
+
+    /** Where the commit is read from. */
+    private final SCMProvider scmProvider;
+
+    /** The values read from the environment for each property which is set. */
+    private final Map<String, String> scmValues;
+
+    /** The root directory of the build. */
+    private final File rootDir;
+
+    /** Which classloader reads the SCM repository. */
+    private final IsolationMode isolation;
+
+    /** Whether to check the working copy for changes. */
+    private final DirtyCheck dirtyCheck;
+
+    /** Whether to record the nearest tag. */
+    private final boolean describe;
+
+    /** Which commit is recorded for the project. */
+    private final CommitScope commitScope;
+
+    /** The directory of the project. */
+    private final File projectDir;
+
+    /**
+     * The directories of every project in the build, sorted, read together
+     * with the {@code PROJECT} scope. Empty with the {@code REPOSITORY} scope.
+     */
+    private final List<File> projectDirs;
+
+    /** Whether to record the commit of each submodule. */
+    private final boolean submodules;
+
+    /** The form of the build information. */
+    private final OutputFormat outputFormat;
+
+    /** The package of the class generated with the {@code JAVA} format. */
+    private final String buildInfoPackage;
+
+    /** The simple name of the class generated with the {@code JAVA} format. */
+    private final String buildInfoClassName;
+
+    /** The properties file with the build information. */
+    private final File outputFile;
+
+    /** The source directory of the class generated with the {@code JAVA} format. */
+    private final File sourceDir;
+
+    /** The format of each of the outputs written besides the properties file, by file. */
+    private final Map<File, OutputType> outputs;
+
+    /** The revision the changelog starts after, {@code null} for the most recent tag. */
+    @Nullable
+    private final String changelogSince;
+
+    /** The most commits to write to the changelog, {@code 0} for no limit. */
+    private final int changelogLimit;
+
+    /** The changelog file. */
+    private final File changelogFile;
+
+    /** The directory of the caches kept by the root project. */
+    private final File buildCacheDir;
+
+    /** The directory of the caches kept in the Gradle user home. */
+    private final File userCacheDir;
+
+    /**
+     * Takes the current configuration of a project.
+     *
+     * @param project The project of the task.
+     * @param ext The {@code snapshot} extension of the project.
+     * @return The {@code SnapshotSettings} for the task.
+     */
+    public static SnapshotSettings of(@NonNull final Project project, @NonNull final SnapshotPluginExtension ext) {
+        return SnapshotSettings.builder()
+                .dateFormat(ext.getDateFormat())
+                .verbose(ext.isVerbose())
+                .buildTimePolicy(ext.getBuildTimePolicy())
+                .buildTimestamp(getBuildTimestamp(ext.getBuildTimestamp(), System.getenv(SOURCE_DATE_EPOCH)))
+                .reproducible(ext.isReproducible())
+                .scmProvider(ext.getScmProvider())
+                .scmValues(EnvSCMCommand.read(ext.getScmEnvironment()))
+                .rootDir(project.getRootDir())
+                .isolation(ext.getIsolation())
+                .dirtyCheck(ext.getDirtyCheck())
+                .describe(ext.isDescribe())
+                .commitScope(ext.getCommitScope())
+                .projectDir(project.getProjectDir())
+                .projectDirs(getProjectDirs(project, ext.getCommitScope()))
+                .submodules(ext.isSubmodules())
+                .outputFormat(ext.getOutputFormat())
+                .buildInfoPackage(ext.getBuildInfoPackage())
+                .buildInfoClassName(ext.getBuildInfoClassName())
+                .outputFile(new File(getOutputDir(project, ext), ext.getFilename()))
+                .sourceDir(getSourceDir(project))
+                .outputs(getOutputs(project, ext))
+                .changelogSince(ext.getChangelogSince())
+                .changelogLimit(ext.getChangelogLimit())
+                .changelogFile(new File(new File(project.getBuildDir(), "changelog"), ext.getChangelogFilename()))
+                .buildCacheDir(new File(project.getRootProject().getBuildDir(), "tmp/snapshot"))
+                .userCacheDir(new File(project.getGradle().getGradleUserHomeDir(), "caches/snapshot"))
+                .build();
+    }
+
+    /**
+     * Whether the commit is read from the environment. With {@code AUTO} it
+     * is when the environment has the whole commit and none of the options
+     * which need the repository are used.
+     *
+     * @return {@code true} for the environment, {@code false} for the
+     *         repository.
+     */
+    public boolean usesEnvironment() {
+        switch (scmProvider) {
+            case ENVIRONMENT:
+                return true;
+            case REPOSITORY:
+                return false;
+            default:
+                return EnvSCMCommand.isComplete(scmValues)
+                        && dirtyCheck == DirtyCheck.NONE
+                        && !describe
+                        && !submodules
+                        && commitScope == CommitScope.REPOSITORY;
+        }
+    }
+
+    /**
+     * Returns the fixed {@code build.time}, the one in the configuration or
+     * else the one in the {@code SOURCE_DATE_EPOCH} environment variable.
+     *
+     * @param configured The {@code buildTimestamp} of the extension, may be
+     *                   {@code null}.
+     * @param sourceDateEpoch The value of {@code SOURCE_DATE_EPOCH}, in
+     *                        seconds since the epoch, may be {@code null}.
+     * @return The fixed build time in milliseconds or {@code null} if there
+     *         is none.
+     */
+    @Nullable
+    static Long getBuildTimestamp(@Nullable final Long configured, @Nullable final String sourceDateEpoch) {
+        if (configured != null) {
+            return configured;
+        }
+        if (sourceDateEpoch == null || sourceDateEpoch.trim().length() == 0) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(sourceDateEpoch.trim()) * 1000L;
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    SOURCE_DATE_EPOCH + " must be a number of seconds, not '" + sourceDateEpoch + "'.", e);
+        }
+    }
+
+    /**
+     * The directories of every project in the build, the same for each of
+     * them so they can share one walk of the history.
+     */
+    static List<File> getProjectDirs(final Project project, final CommitScope scope) {
+        if (scope != CommitScope.PROJECT) {
+            return Collections.emptyList();
+        }
+
+        final List<File> dirs = new ArrayList<File>();
+        for (final Project other : project.getRootProject().getAllprojects()) {
+            dirs.add(other.getProjectDir());
+        }
+        Collections.sort(dirs);
+        return Collections.unmodifiableList(dirs);
+    }
+
+    /**
+     * The directory of the properties file. With the {@code JAVA} format it's
+     * kept out of the resources, it only records the properties for the next
+     * build.
+     */
+    static File getOutputDir(final Project project, final SnapshotPluginExtension ext) {
+        return (ext.getOutputFormat() == OutputFormat.JAVA)
+                ? new File(project.getBuildDir(), "tmp/snapshot")
+                : new File(project.getBuildDir(), "snapshot");
+    }
+
+    /**
+     * The file of each of the outputs, sorted so the task writes them in the
+     * same order on every build.
+     *
+     * @throws IllegalArgumentException If two outputs have the same file.
+     */
+    static Map<File, OutputType> getOutputs(final Project project, final SnapshotPluginExtension ext) {
+        final Map<File, OutputType> outputs = new TreeMap<File, OutputType>();
+        for (final SnapshotOutput output : ext.getOutputs()) {
+            final File file = new File(getOutputDir(project, output), output.getFilename());
+            if (outputs.put(file, output.getType()) != null) {
+                throw new IllegalArgumentException(
+                        "The snapshot output '" + output.getName() + "' has the same file as another: " + file);
+            }
+        }
+        return Collections.unmodifiableMap(outputs);
+    }
+
+    /**
+     * The directory of an output, its own directory by default so that a
+     * source set it's added to gets only its file.
+     */
+    static File getOutputDir(final Project project, final SnapshotOutput output) {
+        return (output.getDestinationDir() != null)
+                ? project.file(output.getDestinationDir())
+                : new File(project.getBuildDir(), "snapshot-outputs/" + output.getName());
+    }
+
+    /** The source directory of the class generated with the {@code JAVA} format. */
+    static File getSourceDir(final Project project) {
+        return new File(project.getBuildDir(), "generated-src/snapshot");
+    }
+
+}
@@ -15,25 +15,49 @@
  */
 package me.cmoz.gradle.snapshot;
 
+import lombok.NonNull;
 import lombok.SneakyThrows;
 import org.gradle.api.DefaultTask;
-import org.gradle.api.plugins.ExtensionContainer;
+import org.gradle.api.Task;
+import org.gradle.api.plugins.ExtraPropertiesExtension;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.OutputDirectory;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.OutputFiles;
 
 import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
 
 /**
  * A task to extract build information from an SCM repository and generate a
  * file with the most recent commit data.
+ *
+ * <p>The configuration of the task, the SCM repository and the build-scoped
+ * caches are resolved once, as soon as the task graph is ready. A value
+ * which is needed before then is read with the configuration of the moment,
+ * which isn't kept, so a later {@code snapshot} block still applies. The
+ * action only reads this state, it doesn't look up the project or the
+ * {@code snapshot} extension. The properties it read or wrote are set as the
+ * project's extra properties, and the lazy {@code SnapshotValue}s of the
+ * extension return them too.
  */
 public class SnapshotTask extends DefaultTask {
 
@@ -43,11 +67,249 @@ public class SnapshotTask extends DefaultTask {
             + SnapshotTask.class.getPackage().getImplementationVersion()
             + ")";
 
+    /** The {@code workingTreeStatus} input when the working copy isn't checked. */
+    private static final String UNCHECKED_STATUS = "unchecked";
+
+    /** The build information read for the project. */
+    private Map<String, String> snapshot;
+
+    /** The time spent and data read by this task, for the {@code SnapshotReport}. */
+    private final Metrics metrics = new Metrics();
+
+    /** The configuration of the task, once it's final. */
+    private SnapshotSettings settings;
+
+    /** Whether the build script can no longer change the configuration. */
+    private boolean configured;
+
+    /** The command for the SCM repository of the project, {@code null} if there is none. */
+    private SCMCommand scmCmd;
+
+    /** The commits read in this build, shared by every project. */
+    private CommitCache commitCache;
+
+    /** The metrics of this build, shared by every project. */
+    private SnapshotReport report;
+
+    /** The extra properties of the project, given the build information once it's known. */
+    @Nullable
+    private ExtraPropertiesExtension extraProperties;
+
+    public SnapshotTask() {
+        getOutputs().upToDateWhen(new Spec<Task>() {
+            @Override
+            public boolean isSatisfiedBy(final Task task) {
+                return getBuildTimePolicy() != BuildTimePolicy.ALWAYS;
+            }
+        });
+    }
+
+    /**
+     * Resolves the configuration of the task from the project, together with
+     * the SCM repository and the caches of the build. Once the configuration
+     * is final this is done only the first time it's needed, before then it's
+     * done every time, since the build script may still change it.
+     *
+     * @return The {@code SnapshotSettings} of the task.
+     */
+    synchronized SnapshotSettings resolve() {
+        if (settings != null) {
+            return settings;
+        }
+
+        final SnapshotPluginExtension ext = getProject().getExtensions().getByType(SnapshotPluginExtension.class);
+        final SnapshotSettings resolved = SnapshotSettings.of(getProject(), ext);
+
+        // the repository is often first searched for when the inputs are read
+        final Metrics previous = metrics.enter();
+        try {
+            scmCmd = resolved.usesEnvironment()
+                    ? new EnvSCMCommand(resolved.getRootDir(), resolved.getScmValues())
+                    : SCMUtil.findCommand(getProject(), resolved.getIsolation());
+        } finally {
+            Metrics.exit(previous);
+        }
+        commitCache = CommitCache.forBuild(getProject());
+        report = SnapshotReport.forBuild(getProject());
+        if (configured) {
+            settings = resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * Takes the configuration as final, it's resolved the next time it's
+     * needed and kept from then on. This is called when the task graph is
+     * ready, or when the task runs without one.
+     */
+    synchronized void configured() {
+        if (!configured) {
+            configured = true;
+            // anything read before now may have used an earlier configuration
+            snapshot = null;
+        }
+    }
+
+    @Input
+    public String getDateFormat() {
+        return resolve().getDateFormat();
+    }
+
+    @Input
+    public BuildTimePolicy getBuildTimePolicy() {
+        return resolve().getBuildTimePolicy();
+    }
+
+    /** The fixed {@code build.time}, in milliseconds since the epoch. */
+    @Input
+    @Optional
+    @Nullable
+    public Long getBuildTimestamp() {
+        return resolve().getBuildTimestamp();
+    }
+
+    @Input
+    public boolean isReproducible() {
+        return resolve().isReproducible();
+    }
+
+    @Input
+    public SCMProvider getScmProvider() {
+        return resolve().getScmProvider();
+    }
+
+    /**
+     * The values read from the environment when the commit is, the task is
+     * up-to-date unless these change.
+     */
+    @Input
+    @Optional
+    @Nullable
+    public Map<String, String> getScmValues() {
+        final SnapshotSettings settings = resolve();
+        return settings.usesEnvironment() ? settings.getScmValues() : null;
+    }
+
+    @Input
+    public DirtyCheck getDirtyCheck() {
+        return resolve().getDirtyCheck();
+    }
+
+    @Input
+    public boolean isDescribe() {
+        return resolve().isDescribe();
+    }
+
+    @Input
+    public CommitScope getCommitScope() {
+        return resolve().getCommitScope();
+    }
+
+    @Input
+    public boolean isSubmodules() {
+        return resolve().isSubmodules();
+    }
+
+    /**
+     * The status of the working copy when it's checked for changes, the task
+     * is up-to-date unless this changes too. The status is read once in the
+     * build, the action uses the same one.
+     */
+    @Input
+    public String getWorkingTreeStatus() {
+        final SnapshotSettings settings = resolve();
+        if (scmCmd == null || settings.getDirtyCheck() == DirtyCheck.NONE) {
+            return UNCHECKED_STATUS;
+        }
+
+        final Metrics previous = metrics.enter();
+        try {
+            final WorkingTreeStatus status =
+                    commitCache.getStatus(scmCmd, settings.getDirtyCheck(), getStatCacheFile());
+            return status.isDirty() + "," + status.getModifiedCount();
+        } finally {
+            Metrics.exit(previous);
+        }
+    }
+
+    /**
+     * The files which record the state of the SCM repository, the task is
+     * up-to-date unless one of these changes.
+     */
+    @InputFiles
+    public List<File> getStateFiles() {
+        final SnapshotSettings settings = resolve();
+        if (scmCmd == null) {
+            return Collections.emptyList();
+        }
+
+        final List<File> files = new ArrayList<File>(scmCmd.getStateFiles());
+        if (settings.isSubmodules()) {
+            files.addAll(commitCache.getSubmodules(scmCmd, settings.getDateFormat()).getStateFiles());
+        }
+        return files;
+    }
+
+    @Input
+    public OutputFormat getOutputFormat() {
+        return resolve().getOutputFormat();
+    }
+
+    /**
+     * The fully qualified name of the class generated with the {@code JAVA}
+     * format.
+     */
+    @Input
+    @Optional
+    @Nullable
+    public String getBuildInfoClass() {
+        final SnapshotSettings settings = resolve();
+        if (settings.getOutputFormat() != OutputFormat.JAVA) {
+            return null;
+        }
+
+        return settings.getBuildInfoPackage().length() > 0
+                ? settings.getBuildInfoPackage() + "." + settings.getBuildInfoClassName()
+                : settings.getBuildInfoClassName();
+    }
+
+    /**
+     * The properties file with the build information. With the {@code JAVA}
+     * format it's kept out of the resources, it only records the properties
+     * for the next build.
+     */
     @OutputFile
     public File getOutputFile() {
-        final SnapshotPluginExtension ext = this.getProject().getExtensions().getByType(SnapshotPluginExtension.class);
-        final File outputDir = new File(this.getProject().getBuildDir(), "snapshot");
-        return new File(outputDir, ext.getFilename());
+        return resolve().getOutputFile();
+    }
+
+    /**
+     * The source directory of the class generated with the {@code JAVA}
+     * format, which is added to the {@code main} source set.
+     */
+    public File getSourceDir() {
+        return resolve().getSourceDir();
+    }
+
+    @OutputDirectory
+    @Optional
+    @Nullable
+    public File getGeneratedSourceDir() {
+        return (getOutputFormat() == OutputFormat.JAVA) ? getSourceDir() : null;
+    }
+
+    /**
+     * The format of each of the outputs written besides the properties file,
+     * by file.
+     */
+    @Input
+    public Map<File, OutputType> getAdditionalOutputs() {
+        return resolve().getOutputs();
+    }
+
+    @OutputFiles
+    public List<File> getAdditionalOutputFiles() {
+        return new ArrayList<File>(getAdditionalOutputs().keySet());
     }
 
     /**
@@ -60,74 +322,309 @@ public class SnapshotTask extends DefaultTask {
     @TaskAction
     @SneakyThrows(IOException.class)
     public void action() {
-        final ExtensionContainer extensions = getProject().getExtensions();
-        final SnapshotPluginExtension ext = extensions.getByType(SnapshotPluginExtension.class);
+        configured();
+        final SnapshotSettings settings = resolve();
+        final Metrics previous = metrics.enter();
+        try {
+            final Map<String, String> properties = new HashMap<String, String>(readSnapshot());
 
-        final SCMCommand scmCmd = getSCMCommand();
-        final Properties properties = new Properties();
-        final File outputFile = this.getOutputFile();
+            /* always set build.time as this is not scm-related */
+            properties.put(Commit.BUILD_TIME, getBuildTime(properties));
+
+            // the same properties give the same file, so the tasks which package it stay up-to-date
+            final long start = System.nanoTime();
+            final byte[] contents = PropertiesWriter.render(properties, BUILD_LABEL);
+            if (!SCMUtil.writeIfChanged(settings.getOutputFile(), contents)) {
+                this.getLogger().info("Output file {} is unchanged.", settings.getOutputFile());
+            }
+            if (settings.getOutputFormat() == OutputFormat.JAVA) {
+                writeBuildInfo(properties);
+            }
+            // every output is rendered from the same properties, none of them reads the repository
+            for (final Map.Entry<File, OutputType> output : settings.getOutputs().entrySet()) {
+                if (!SCMUtil.writeIfChanged(output.getKey(),
+                        OutputWriter.render(output.getValue(), properties, BUILD_LABEL))) {
+                    this.getLogger().info("Output file {} is unchanged.", output.getKey());
+                }
+            }
+            metrics.record(Metrics.Phase.WRITE, start);
+
+            useProperties(properties);
+        } finally {
+            Metrics.exit(previous);
+        }
+
+        report.add(getPath(), metrics, settings.isVerbose());
+    }
+
+    /**
+     * Generates the build information class, unless it's unchanged. A class
+     * generated by an earlier build with another name is deleted.
+     *
+     * @param properties The build information.
+     * @throws IOException If the source file could not be written.
+     */
+    private void writeBuildInfo(final Map<String, String> properties) throws IOException {
+        final SnapshotSettings settings = resolve();
+        final BuildInfoWriter writer = new BuildInfoWriter(
+                settings.getBuildInfoPackage(), settings.getBuildInfoClassName());
 
+        if (!writer.getSourceFile(settings.getSourceDir()).isFile()) {
+            SCMUtil.deleteDir(settings.getSourceDir());
+        }
+        writer.write(settings.getSourceDir(), properties, BUILD_LABEL);
+    }
+
+    /**
+     * Reads the build information for the project from the SCM repository,
+     * or from the output of a previous execution if there is no repository.
+     * Once the configuration is final the result is read at most once per
+     * project.
+     *
+     * @return The build information properties.
+     */
+    @SneakyThrows(IOException.class)
+    synchronized Map<String, String> readSnapshot() {
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        final SnapshotSettings settings = resolve();
+        final File outputFile = settings.getOutputFile();
+
+        final Map<String, String> properties = new HashMap<String, String>();
         if (scmCmd != null) {
-            final Map<String, String> commitMap = scmCmd.getLatestCommit(ext.getDateFormat()).asMap();
-            properties.putAll(commitMap);
+            properties.putAll(commitCache.get(scmCmd, settings.getDateFormat(), getHeadCacheFile()).asMap());
+            if (settings.getCommitScope() == CommitScope.PROJECT) {
+                final Commit commit = commitCache.getPathCommits(scmCmd, settings.getDateFormat(),
+                        settings.getProjectDirs(), getPathIndexFile()).get(settings.getProjectDir());
+                for (final Map.Entry<String, String> property : commit.asMap().entrySet()) {
+                    // the build information comes from the read of the repository
+                    if (!Commit.BUILD_KEYS.contains(property.getKey())) {
+                        properties.put(property.getKey(), property.getValue());
+                    }
+                }
+            }
+
+            final DirtyCheck check = settings.getDirtyCheck();
+            if (check != DirtyCheck.NONE) {
+                properties.putAll(commitCache.getStatus(scmCmd, check, getStatCacheFile()).asMap());
+            }
+            if (settings.isDescribe()) {
+                properties.putAll(commitCache.getNearestTag(scmCmd, getDescribeCacheFile()).asMap());
+            }
+            if (settings.isSubmodules()) {
+                properties.putAll(commitCache.getSubmodules(scmCmd, settings.getDateFormat()).getProperties());
+            }
+            stabilize(properties);
         } else {
             this.getLogger().warn("No supported SCM repository found.");
             if (outputFile.canRead()) {
-                FileReader reader = null;
-                try {
-                    properties.load(reader = new FileReader(outputFile));
-                    this.getLogger().info("Properties loaded from output file {}.", outputFile);
-                } finally {
-                    if (reader != null) {
-                        reader.close();
-                    }
+                final Properties stored = loadOutputFile();
+                for (final String propertyName : stored.stringPropertyNames()) {
+                    properties.put(propertyName, stored.getProperty(propertyName));
                 }
+                this.getLogger().info("Properties loaded from output file {}.", outputFile);
             }
         }
 
-        /* always set build.time as this is not scm-related */
-        properties.setProperty(Commit.BUILD_TIME, new SimpleDateFormat(ext.getDateFormat()).format(new Date()));
+        final Map<String, String> result = Collections.unmodifiableMap(properties);
+        if (configured) {
+            snapshot = result;
+        }
+        return result;
+    }
 
-        for (final String propertyName : properties.stringPropertyNames()) {
-            final String propertyValue = properties.getProperty(propertyName);
-            // make the build information available to the project properties
-            extensions.getExtraProperties().set(propertyName, propertyValue);
-            if (ext.isVerbose()) {
-                this.getLogger().quiet("Property {}: {}", propertyName, propertyValue);
+    /**
+     * Makes the properties the same on every machine when the build time is
+     * fixed or the build is reproducible: the dates are written in UTC and
+     * the build user, which depends on the machine, is left out.
+     *
+     * @param properties The properties read from the SCM repository.
+     */
+    private void stabilize(final Map<String, String> properties) {
+        final SnapshotSettings settings = resolve();
+        if (settings.isReproducible()) {
+            properties.keySet().removeAll(Commit.BUILD_KEYS);
+        }
+        if (settings.getBuildTimestamp() == null && !settings.isReproducible()) {
+            return;
+        }
+
+        // the commit times were written in the time zone of this machine
+        final String suffix = '.' + Commit.TIMESTAMP;
+        for (final Map.Entry<String, String> property : new HashMap<String, String>(properties).entrySet()) {
+            final String key = property.getKey();
+            if (key.equals(Commit.TIMESTAMP) || key.endsWith(suffix)) {
+                final String prefix = key.substring(0, key.length() - Commit.TIMESTAMP.length());
+                properties.put(prefix + Commit.TIME, formatTime(Long.parseLong(property.getValue())));
+            }
+        }
+        properties.put(Commit.BUILD_TIME, getBuildTime(properties));
+    }
+
+    /**
+     * Returns the {@code build.time}: the fixed build time if there is one,
+     * the commit time in a reproducible build, otherwise the current time.
+     *
+     * @param properties The properties read from the SCM repository.
+     * @return The formatted build time.
+     */
+    private String getBuildTime(final Map<String, String> properties) {
+        final SnapshotSettings settings = resolve();
+        if (settings.getBuildTimestamp() != null) {
+            return formatTime(settings.getBuildTimestamp());
+        }
+        if (settings.isReproducible() && properties.get(Commit.TIMESTAMP) != null) {
+            return formatTime(Long.parseLong(properties.get(Commit.TIMESTAMP)));
+        }
+        return formatTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Formats a time with the date format. When the output is to be the same
+     * on every machine it's written in UTC and with the root locale.
+     */
+    private String formatTime(final long time) {
+        final SnapshotSettings settings = resolve();
+        if (settings.getBuildTimestamp() == null && !settings.isReproducible()) {
+            return new SimpleDateFormat(settings.getDateFormat()).format(new Date(time));
+        }
+
+        final SimpleDateFormat sdf = new SimpleDateFormat(settings.getDateFormat(), Locale.ROOT);
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf.format(new Date(time));
+    }
+
+    /**
+     * Starts reading the SCM repository in the background so the commit is
+     * ready (or nearly so) when the task runs.
+     */
+    void prefetch() {
+        final SnapshotSettings settings = resolve();
+        if (scmCmd != null) {
+            commitCache.prefetch(scmCmd, settings.getDateFormat(), getHeadCacheFile());
+        }
+    }
+
+    /**
+     * Makes the properties from the last execution of this task the values of
+     * the project. This is used when the task is skipped because it's
+     * up-to-date, so that e.g. {@code build.time} is the time in the file.
+     */
+    @SneakyThrows(IOException.class)
+    void useOutputFile() {
+        if (resolve().getOutputFile().canRead()) {
+            final Properties stored = loadOutputFile();
+            final Map<String, String> properties = new HashMap<String, String>();
+            for (final String propertyName : stored.stringPropertyNames()) {
+                properties.put(propertyName, stored.getProperty(propertyName));
             }
+            useProperties(properties);
         }
+    }
+
+    /**
+     * Reads the properties stored in the output file by a previous execution.
+     *
+     * @return The properties from the output file.
+     * @throws IOException If the output file could not be read.
+     */
+    private Properties loadOutputFile() throws IOException {
+        final File outputFile = resolve().getOutputFile();
+        final Properties properties = new Properties();
+        Metrics.current().read(outputFile.length());
 
-        FileWriter writer = null;
+        InputStream in = null;
         try {
-            properties.store(writer = new FileWriter(outputFile), BUILD_LABEL);
+            properties.load(in = new FileInputStream(outputFile));
         } finally {
-            if (writer != null) {
-                writer.close();
+            if (in != null) {
+                in.close();
             }
         }
+        return properties;
     }
 
     /**
-     * Searches the project directory for a repository directory that belongs
-     * to a supported SCM tool. If one is found the associated {@code SCMCommand}
-     * will be returned to interact with it.
+     * Makes the build information the values of the project's {@code
+     * SnapshotValue}s and extra properties.
      *
-     * @return The {@code SCMCommand} to interact with the SCM repository for
-     *         the project, if one could be found.
+     * @param properties The build information to use.
      */
-    @Nullable
-    private SCMCommand getSCMCommand() {
-        SCMCommand scmCmd = new HgSCMCommand(getProject());
-        if (scmCmd.getRepositoryDir() != null) {
-            return scmCmd;
+    private synchronized void useProperties(final Map<String, String> properties) {
+        final boolean verbose = resolve().isVerbose();
+        for (final Map.Entry<String, String> property : new TreeMap<String, String>(properties).entrySet()) {
+            // make the build information available to the project properties
+            if (extraProperties != null) {
+                extraProperties.set(property.getKey(), property.getValue());
+            }
+            if (verbose) {
+                this.getLogger().quiet("Property {}: {}", property.getKey(), property.getValue());
+            }
         }
+        snapshot = Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * Sets the build information as the extra properties of the project each
+     * time the task runs or is skipped, as plain strings.
+     *
+     * @param extraProperties The extra properties of the project.
+     */
+    void publishTo(@NonNull final ExtraPropertiesExtension extraProperties) {
+        this.extraProperties = extraProperties;
+    }
+
+    /**
+     * Returns the file which keeps the hashes of the working copy files
+     * between builds. It's in the root project so that every project in the
+     * build shares it.
+     */
+    private File getStatCacheFile() {
+        return new File(resolve().getBuildCacheDir(), "stat-" + getRepositoryName() + ".cache");
+    }
 
-        scmCmd = new GitSCMCommand(getProject());
-        if (scmCmd.getRepositoryDir() != null) {
-            return scmCmd;
+    /**
+     * Returns the file which keeps the tags of the repository between builds.
+     * It's in the Gradle user home so that it outlives {@code clean} and is
+     * shared by every checkout of the repository in the same place.
+     */
+    private File getDescribeCacheFile() {
+        return new File(resolve().getUserCacheDir(), "describe-" + getRepositoryName() + ".cache");
+    }
+
+    /**
+     * Returns the file which keeps the latest commit of the repository
+     * between builds. It's in the Gradle user home so that a build after
+     * {@code clean} doesn't read the repository again either. There's no
+     * need for one when the commit is read from the environment.
+     */
+    @Nullable
+    private File getHeadCacheFile() {
+        if (resolve().usesEnvironment()) {
+            return null;
         }
+        final String dateFormat = resolve().getDateFormat();
+        return new File(resolve().getUserCacheDir(),
+                "head-" + getRepositoryName() + "-" + Integer.toHexString(dateFormat.hashCode()) + ".cache");
+    }
+
+    /**
+     * Returns the file which keeps the last commit which changed each project
+     * directory between builds, so the next build only walks the commits made
+     * since.
+     */
+    private File getPathIndexFile() {
+        return new File(resolve().getUserCacheDir(), "paths-" + getRepositoryName() + ".cache");
+    }
 
-        return null; // no supported SCM directory could be located
+    /** A short name for the repository of the project in the names of cache files. */
+    private String getRepositoryName() {
+        final File repoDir = (scmCmd != null) ? scmCmd.getRepositoryDir() : null;
+        return (repoDir != null)
+                ? Integer.toHexString(repoDir.getAbsolutePath().hashCode())
+                : "default";
     }
 
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Callable;
+
+/**
+ * A build information property which is read from the SCM repository only
+ * when its value is first used.
+ *
+ * <p>The value is a {@code Callable} so it can be given directly to APIs that
+ * Gradle evaluates lazily, for example {@code task.inputs.property(name,
+ * value)}, and its {@code toString()} returns the value so it can be used in
+ * a {@code GString}.
+ */
+public final class SnapshotValue implements Callable<String> {
+
+    /** The name of the property, e.g. {@code commit.id}. */
+    @Getter
+    private final String name;
+
+    /** The task of the project which reads the build information. */
+    private final SnapshotTask task;
+
+    SnapshotValue(@NonNull final String name, @NonNull final SnapshotTask task) {
+        this.name = name;
+        this.task = task;
+    }
+
+    /**
+     * Returns the value of the property, reading the SCM repository if no
+     * other value has been read from it in this build.
+     *
+     * @return The value of the property or {@code null} if no value could be
+     *         found for it.
+     */
+    @Override
+    @Nullable
+    public String call() {
+        return task.readSnapshot().get(name);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(call());
+    }
+
+}
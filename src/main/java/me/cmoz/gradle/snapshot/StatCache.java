@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of the content hash of the files in a working copy, keyed by path
+ * and valid while the size and modification time of the file are unchanged.
+ *
+ * <p>The SCM tools only record stat data for each file when it's checked out
+ * or committed. When the stat data no longer matches, e.g. after the file is
+ * touched or the SCM tool hasn't refreshed its index, the file has to be read
+ * to tell whether it has really changed. This cache is kept between builds
+ * so each such file is only read once.
+ *
+ * <p>The cache is written as text, one file per line:
+ * <pre>
+ * {@code <modified> <size> <hash> <path>}
+ * </pre>
+ */
+final class StatCache {
+
+    /** The name of this cache in the {@code Metrics}. */
+    static final String CACHE_NAME = "stat";
+
+    /** The first line of the cache file, a file with another header is ignored. */
+    private static final String HEADER = "# snapshot stat cache v1";
+
+    /** The file the cache is loaded from and saved to, may be {@code null}. */
+    @Nullable
+    private final File file;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Whether an entry changed since the cache was loaded. */
+    private volatile boolean changed;
+
+    /**
+     * Creates a cache backed by {@code file}, loading any entries in it.
+     *
+     * @param file The cache file, or {@code null} for a cache which is not
+     *             persisted.
+     */
+    public StatCache(@Nullable final File file) {
+        this.file = file;
+        if (file != null) {
+            load(file);
+        }
+    }
+
+    /**
+     * Returns the hash recorded for a file, if its stat data is unchanged.
+     *
+     * @param path The path of the file in the working copy.
+     * @param modified The modification time of the file.
+     * @param size The size of the file.
+     * @return The recorded hash or {@code null} if there is none or the file
+     *         has changed since.
+     */
+    @Nullable
+    public String get(@NonNull final String path, final long modified, final long size) {
+        final Entry entry = entries.get(path);
+        if (entry != null && entry.getModified() == modified && entry.getSize() == size) {
+            Metrics.current().hit(CACHE_NAME);
+            return entry.getHash();
+        }
+        Metrics.current().miss(CACHE_NAME);
+        return null;
+    }
+
+    /**
+     * Records the hash of a file.
+     *
+     * @param path The path of the file in the working copy.
+     * @param modified The modification time of the file.
+     * @param size The size of the file.
+     * @param hash The hash of the content of the file.
+     */
+    public void put(@NonNull final String path, final long modified, final long size, @NonNull final String hash) {
+        entries.put(path, new Entry(modified, size, hash));
+        changed = true;
+    }
+
+    /**
+     * Saves the cache to its file if any entries changed. The file is
+     * replaced in one step so a concurrent build never reads half of it.
+     *
+     * @throws IOException If the cache could not be written.
+     */
+    public void save() throws IOException {
+        if (file == null || !changed) {
+            return;
+        }
+
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+
+        final File tmp = new File(dir, file.getName() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                final Entry value = entry.getValue();
+                writer.write(value.getModified() + " " + value.getSize() + " " + value.getHash() + " ");
+                writer.write(entry.getKey());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+        changed = false;
+    }
+
+    /** Loads the entries of a cache file, an unreadable file is ignored. */
+    private void load(final File file) {
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[3], new Entry(
+                            Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+            Metrics.current().read(file.length());
+        } catch (final IOException e) {
+            entries.clear();
+        } catch (final NumberFormatException e) {
+            entries.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException ignored) {
+                    // nothing useful can be done
+                }
+            }
+        }
+    }
+
+    @Data
+    private static final class Entry {
+        private final long modified;
+        private final long size;
+        private final String hash;
+    }
+
+}
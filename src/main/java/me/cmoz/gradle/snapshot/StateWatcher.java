@@ -0,0 +1,528 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the latest commit of each repository in memory for as long as the
+ * plugin stays loaded, e.g. in a Gradle daemon or a continuous build, until
+ * one of the files which record the state of the repository changes.
+ *
+ * <p>The directories of the state files are watched with the {@code
+ * WatchService} of the file system, so a build in which {@code HEAD} hasn't
+ * moved doesn't look at the repository at all. The watch service is only
+ * used where the platform has a native one, since the polling one can miss
+ * a change for seconds; elsewhere, and when a directory can't be watched,
+ * the size and modification time of the state files are compared instead,
+ * the same way as the {@code HeadCache}. The home directory is never
+ * watched, it changes all the time, so a state file in it such as
+ * {@code ~/.gitconfig} is always compared.
+ *
+ * <p>At most {@value #MAX_ENTRIES} commits are kept, the least recently
+ * used is dropped first. The directories of a commit stop being watched
+ * when it's dropped or replaced, unless another commit needs them, so a
+ * long-lived daemon doesn't collect watches for every repository it has
+ * built. The watch service is opened when a directory is first watched and
+ * closed again once none is.
+ *
+ * <p>The plugin is built for Java 6, so the {@code java.nio.file} API is
+ * called reflectively when it's there.
+ */
+final class StateWatcher {
+
+    /** The name of this cache in the {@code Metrics}. */
+    static final String CACHE_NAME = "memory";
+
+    /** The most commits kept, one for each repository and date format. */
+    static final int MAX_ENTRIES = 32;
+
+    /** The watcher of the classloader the plugin is loaded in. */
+    private static final StateWatcher INSTANCE = new StateWatcher(true, null);
+
+    /** Whether directories are watched, {@code false} if the state files are always compared. */
+    private boolean watching;
+
+    /** The watch service, {@code null} while no directory is watched. */
+    @Nullable
+    private NioWatch watch;
+
+    /** The directory of each watch key. */
+    private final Map<Object, File> keys = new HashMap<Object, File>();
+
+    /** The commit of each repository and date format, the least recently used first. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Creates a watcher which uses {@code watch} until no directory is
+     * watched, and then the native watch service.
+     *
+     * @param watch The watch service, or {@code null} to always compare the
+     *              state files.
+     */
+    StateWatcher(@Nullable final NioWatch watch) {
+        this(watch != null, watch);
+    }
+
+    private StateWatcher(final boolean watching, @Nullable final NioWatch watch) {
+        this.watching = watching;
+        this.watch = watch;
+    }
+
+    /**
+     * Returns the watcher shared by every build the plugin is loaded for.
+     *
+     * @return The {@code StateWatcher}.
+     */
+    public static StateWatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the commit kept for a repository if none of its state files
+     * has changed since it was read. When there is none the state files are
+     * watched (or their stamp taken) from now on, so a change while the commit
+     * is read isn't missed; the commit read is then given to {@code put}.
+     *
+     * @param key The repository and date format of the commit.
+     * @param stateFiles The state files of the repository.
+     * @param dateFormat The format of the dates in the commit.
+     * @return The commit with the current {@code build.time}, or {@code null}
+     *         if it has to be read.
+     */
+    @Nullable
+    public synchronized Commit get(
+            @NonNull final String key,
+            @NonNull final List<File> stateFiles,
+            @NonNull final String dateFormat) {
+        poll();
+
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.commit != null && entry.isCurrent(stateFiles)) {
+            final Map<String, String> properties = new HashMap<String, String>(entry.commit.asMap());
+            properties.put(Commit.BUILD_TIME, new SimpleDateFormat(dateFormat).format(new Date()));
+            Metrics.current().hit(CACHE_NAME);
+            return Commit.fromMap(properties);
+        }
+
+        Metrics.current().miss(CACHE_NAME);
+        final Set<Object> watchKeys = new HashSet<Object>();
+        final Entry replaced = entries.put(key, new Entry(stateFiles, register(stateFiles, watchKeys), watchKeys));
+        if (replaced != null) {
+            release(replaced);
+        }
+        while (entries.size() > MAX_ENTRIES) {
+            final Iterator<Entry> eldest = entries.values().iterator();
+            final Entry evicted = eldest.next();
+            eldest.remove();
+            release(evicted);
+        }
+        return null;
+    }
+
+    /** The number of commits kept, or being read. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** The number of directories watched. */
+    synchronized int watchedDirs() {
+        return keys.size();
+    }
+
+    /**
+     * Keeps the commit read after a call to {@code get} which returned
+     * {@code null}, unless a state file changed in the meantime.
+     *
+     * @param key The repository and date format of the commit.
+     * @param commit The commit which was read.
+     */
+    public synchronized void put(@NonNull final String key, @NonNull final Commit commit) {
+        poll();
+
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        if (entry.valid && entry.stamp != null) {
+            entry.commit = commit;
+        } else {
+            entries.remove(key);
+            release(entry);
+        }
+    }
+
+    /**
+     * Watches the directories of the state files, returns whether all of
+     * them could be.
+     *
+     * @param stateFiles The state files of a repository.
+     * @param watchKeys Given the watch key of each directory which is watched.
+     */
+    private boolean register(final List<File> stateFiles, final Set<Object> watchKeys) {
+        if (!watching) {
+            return false;
+        }
+        if (watch == null) {
+            watch = NioWatch.open();
+            if (watch == null) {
+                watching = false;
+                return false;
+            }
+        }
+
+        final File home = homeDir();
+        for (final File stateFile : stateFiles) {
+            final File file = stateFile.getAbsoluteFile();
+            if (home.equals(file.getParentFile())) {
+                continue;
+            }
+            // a directory, e.g. refs/tags, changes with its contents
+            final boolean watched = register(file.getParentFile(), watchKeys)
+                    && (!file.isDirectory() || register(file, watchKeys));
+            if (!watched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean register(@Nullable final File dir, final Set<Object> watchKeys) {
+        if (dir == null || !dir.isDirectory()) {
+            return false;
+        }
+
+        // a directory which is already watched gives the same key
+        final Object watchKey = watch.register(dir);
+        if (watchKey == null) {
+            return false;
+        }
+        keys.put(watchKey, dir);
+        watchKeys.add(watchKey);
+        return true;
+    }
+
+    /**
+     * Stops watching the directories of a commit which has been dropped,
+     * except those which another commit still needs.
+     */
+    private void release(final Entry released) {
+        for (final Object watchKey : released.watchKeys) {
+            boolean used = false;
+            for (final Entry entry : entries.values()) {
+                if (entry.watchKeys.contains(watchKey)) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used && keys.remove(watchKey) != null) {
+                watch.cancel(watchKey);
+            }
+        }
+        closeIfUnused();
+    }
+
+    /** Closes the watch service when no directory is watched, it's opened again when one is. */
+    private void closeIfUnused() {
+        if (watch != null && keys.isEmpty()) {
+            watch.close();
+            watch = null;
+        }
+    }
+
+    /** Takes the changes reported since the last call and forgets the commits they affect. */
+    private void poll() {
+        Object watchKey;
+        while (watch != null && (watchKey = watch.poll()) != null) {
+            // forgetting a commit may close the watch service, the key is then invalid
+            final NioWatch current = watch;
+            final File dir = keys.get(watchKey);
+            final List<String> names = current.pollEvents(watchKey);
+            if (names == null) {
+                // events were lost
+                invalidate(null, false);
+            } else if (dir != null) {
+                final Set<File> changed = new HashSet<File>();
+                for (final String name : names) {
+                    changed.add(new File(dir, name));
+                }
+                // a state file which is a directory changes with its contents
+                changed.add(dir);
+                invalidate(changed, false);
+            }
+
+            if (!current.reset(watchKey) && keys.remove(watchKey) != null) {
+                invalidate(Collections.singleton(dir), true);
+                closeIfUnused();
+            }
+        }
+    }
+
+    /** The home directory, which isn't watched. */
+    private static File homeDir() {
+        return new File(System.getProperty("user.home")).getAbsoluteFile();
+    }
+
+    /**
+     * Forgets the commits with a changed state file, or a directory which is
+     * no longer watched, or all of them if {@code changed} is {@code null}.
+     */
+    private void invalidate(@Nullable final Set<File> changed, final boolean dirs) {
+        final List<Entry> removed = new ArrayList<Entry>();
+        for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (!entry.watched) {
+                continue;
+            }
+            if (changed == null || !Collections.disjoint(dirs ? entry.dirs : entry.files, changed)) {
+                // a read in progress is kept out of the cache by put
+                entry.valid = false;
+                if (entry.commit != null) {
+                    it.remove();
+                    removed.add(entry);
+                }
+            }
+        }
+        for (final Entry entry : removed) {
+            release(entry);
+        }
+    }
+
+    /**
+     * A commit and what it was read with.
+     */
+    private static final class Entry {
+
+        /** The state files. */
+        private final Set<File> files = new HashSet<File>();
+
+        /** The directories watched for the state files. */
+        private final Set<File> dirs = new HashSet<File>();
+
+        /** Whether the state files are watched, or their stamp compared. */
+        private final boolean watched;
+
+        /** The watch keys of the directories watched for the state files. */
+        private final Set<Object> watchKeys;
+
+        /** The state files in the home directory, which are compared even when the others are watched. */
+        private final List<File> homeFiles = new ArrayList<File>();
+
+        /**
+         * The stamp of the state files taken before the commit was read,
+         * {@code null} if one of them had just changed. Such a commit isn't
+         * kept even when the files are watched, an event for the change
+         * could still be on its way.
+         */
+        @Nullable
+        private final String stamp;
+
+        /** The stamp of the state files in the home directory. */
+        @Nullable
+        private final String homeStamp;
+
+        /** The environment variables the commit was read with. */
+        private final String environment;
+
+        /** Whether no state file changed since the commit was read. */
+        private boolean valid = true;
+
+        @Nullable
+        private Commit commit;
+
+        Entry(final List<File> stateFiles, final boolean watched, final Set<Object> watchKeys) {
+            final File home = homeDir();
+            for (final File stateFile : stateFiles) {
+                final File file = stateFile.getAbsoluteFile();
+                files.add(file);
+                dirs.add(file.getParentFile());
+                dirs.add(file);
+                if (home.equals(file.getParentFile())) {
+                    homeFiles.add(file);
+                }
+            }
+            this.watched = watched;
+            this.watchKeys = watchKeys;
+            final long now = System.currentTimeMillis();
+            this.stamp = HeadCache.stamp(stateFiles, now);
+            this.homeStamp = HeadCache.stamp(homeFiles, now);
+            this.environment = HeadCache.environment();
+        }
+
+        boolean isCurrent(final List<File> stateFiles) {
+            if (!valid || !environment.equals(HeadCache.environment())) {
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            if (watched) {
+                return homeStamp != null && homeStamp.equals(HeadCache.stamp(homeFiles, now));
+            }
+            return stamp != null && stamp.equals(HeadCache.stamp(stateFiles, now));
+        }
+
+    }
+
+    /**
+     * The {@code java.nio.file} watch service, called reflectively.
+     */
+    static final class NioWatch {
+
+        private final Object service;
+        private final Object kinds;
+        private final Method toPath;
+        private final Method register;
+        private final Method poll;
+        private final Method pollEvents;
+        private final Method kind;
+        private final Method context;
+        private final Method reset;
+        private final Method cancel;
+        private final Object overflow;
+
+        private NioWatch(final Object service)
+                throws ClassNotFoundException, NoSuchFieldException, NoSuchMethodException, IllegalAccessException {
+            this.service = service;
+            final Class<?> watchService = Class.forName("java.nio.file.WatchService");
+            final Class<?> watchKey = Class.forName("java.nio.file.WatchKey");
+            final Class<?> watchEvent = Class.forName("java.nio.file.WatchEvent");
+            final Class<?> kind = Class.forName("java.nio.file.WatchEvent$Kind");
+            final Class<?> standardKinds = Class.forName("java.nio.file.StandardWatchEventKinds");
+
+            final Object kindArray = Array.newInstance(kind, 3);
+            Array.set(kindArray, 0, standardKinds.getField("ENTRY_CREATE").get(null));
+            Array.set(kindArray, 1, standardKinds.getField("ENTRY_DELETE").get(null));
+            Array.set(kindArray, 2, standardKinds.getField("ENTRY_MODIFY").get(null));
+            this.kinds = kindArray;
+            this.overflow = standardKinds.getField("OVERFLOW").get(null);
+
+            this.toPath = File.class.getMethod("toPath");
+            this.register = Class.forName("java.nio.file.Path").getMethod("register", watchService, kindArray.getClass());
+            this.poll = watchService.getMethod("poll");
+            this.pollEvents = watchKey.getMethod("pollEvents");
+            this.kind = watchEvent.getMethod("kind");
+            this.context = watchEvent.getMethod("context");
+            this.reset = watchKey.getMethod("reset");
+            this.cancel = watchKey.getMethod("cancel");
+        }
+
+        /**
+         * Opens the watch service of the default file system.
+         *
+         * @return The {@code NioWatch}, or {@code null} if there's no native
+         *         watch service.
+         */
+        @Nullable
+        static NioWatch open() {
+            try {
+                final Object fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault").invoke(null);
+                final Object service = Class.forName("java.nio.file.FileSystem")
+                        .getMethod("newWatchService").invoke(fileSystem);
+                if (service.getClass().getName().endsWith("PollingWatchService")) {
+                    ((Closeable) service).close();
+                    return null;
+                }
+                return new NioWatch(service);
+            } catch (final Exception e) {
+                // before Java 7, or the file system can't be watched
+                return null;
+            }
+        }
+
+        /** Watches a directory, returns its watch key or {@code null} if it can't be watched. */
+        @Nullable
+        Object register(final File dir) {
+            try {
+                return register.invoke(toPath.invoke(dir), service, kinds);
+            } catch (final IllegalAccessException e) {
+                return null;
+            } catch (final InvocationTargetException e) {
+                return null;
+            }
+        }
+
+        /** Returns a watch key with events, or {@code null} if there's none. */
+        @Nullable
+        Object poll() {
+            return invoke(poll, service);
+        }
+
+        /**
+         * Returns the names of the entries changed in the directory of a
+         * watch key, or {@code null} if events were lost.
+         */
+        @Nullable
+        List<String> pollEvents(final Object watchKey) {
+            final List<String> names = new ArrayList<String>();
+            for (final Object event : (List<?>) invoke(pollEvents, watchKey)) {
+                if (overflow.equals(invoke(kind, event))) {
+                    return null;
+                }
+                names.add(String.valueOf(invoke(context, event)));
+            }
+            return names;
+        }
+
+        /** Re-arms a watch key, returns {@code false} if its directory can no longer be watched. */
+        boolean reset(final Object watchKey) {
+            return (Boolean) invoke(reset, watchKey);
+        }
+
+        /** Stops watching the directory of a watch key. */
+        void cancel(final Object watchKey) {
+            invoke(cancel, watchKey);
+        }
+
+        /** Closes the watch service, every watch key is cancelled. */
+        void close() {
+            try {
+                ((Closeable) service).close();
+            } catch (final IOException ignored) {
+                // nothing useful can be done
+            }
+        }
+
+        private static Object invoke(final Method method, final Object target) {
+            try {
+                return method.invoke(target);
+            } catch (final IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (final InvocationTargetException e) {
+                throw new IllegalStateException("Could not watch the SCM repository.", e.getCause());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the latest commit of every submodule (or subrepository) of a
+ * working copy, and of their submodules in turn, on a bounded pool of
+ * threads.
+ *
+ * <p>Each submodule is a separate repository, so reading them one after the
+ * other would cost the time of one read for each of them. The reads are
+ * independent and mostly wait on small files, so they run side by side.
+ */
+final class SubmoduleReader {
+
+    /** The prefix of the properties of the submodules. */
+    static final String PREFIX = "submodule.";
+
+    /** The most submodules read at the same time. */
+    static final int MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The commits of the submodules of a working copy.
+     */
+    @Data
+    static final class Result {
+
+        /** The properties of each submodule, e.g. {@code submodule.lib/core.commit.id}. */
+        private final Map<String, String> properties;
+
+        /** The state files of every submodule. */
+        private final List<File> stateFiles;
+
+    }
+
+    private SubmoduleReader() {}
+
+    /**
+     * Reads the commits of the submodules of {@code scmCmd}.
+     *
+     * @param scmCmd The command of the repository with the submodules.
+     * @param dateFormat The format of the dates in the commits.
+     * @return The properties and the state files of the submodules.
+     */
+    public static Result read(@NonNull final SCMCommand scmCmd, @NonNull final String dateFormat) {
+        final Map<String, String> properties = new TreeMap<String, String>();
+        final List<File> stateFiles = new ArrayList<File>();
+        final Map<String, File> submodules = scmCmd.getSubmodules();
+        if (submodules.isEmpty()) {
+            return new Result(properties, stateFiles);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_THREADS, submodules.size()), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "snapshot-submodule-reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            // the workers record into the metrics of the caller
+            final Metrics metrics = Metrics.current();
+            final CompletionService<Submodule> reads = new ExecutorCompletionService<Submodule>(executor);
+            int pending = submit(reads, scmCmd, "", submodules, dateFormat, metrics);
+            while (pending > 0) {
+                final Submodule submodule = reads.take().get();
+                pending--;
+
+                for (final Map.Entry<String, String> property : submodule.getCommit().asMap().entrySet()) {
+                    // the build information is the same for every submodule
+                    if (!Commit.BUILD_KEYS.contains(property.getKey())) {
+                        properties.put(PREFIX + submodule.getPath() + '.' + property.getKey(), property.getValue());
+                    }
+                }
+                stateFiles.addAll(submodule.getStateFiles());
+                pending += submit(reads, submodule.getScmCmd(), submodule.getPath() + '/',
+                        submodule.getSubmodules(), dateFormat, metrics);
+            }
+            return new Result(properties, stateFiles);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the submodules.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not read the submodules.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Starts reading the submodules of one repository, returns how many. */
+    private static int submit(
+            final CompletionService<Submodule> reads,
+            final SCMCommand parent,
+            final String prefix,
+            final Map<String, File> submodules,
+            final String dateFormat,
+            final Metrics metrics) {
+        for (final Map.Entry<String, File> submodule : submodules.entrySet()) {
+            final String path = prefix + submodule.getKey();
+            final SCMCommand scmCmd = SCMUtil.newSubmoduleCommand(parent, submodule.getValue());
+            reads.submit(new Callable<Submodule>() {
+                @Override
+                public Submodule call() {
+                    final Metrics previous = metrics.enter();
+                    try {
+                        return new Submodule(path, scmCmd, scmCmd.getLatestCommit(dateFormat),
+                                scmCmd.getStateFiles(), scmCmd.getSubmodules());
+                    } finally {
+                        Metrics.exit(previous);
+                    }
+                }
+            });
+        }
+        return submodules.size();
+    }
+
+    /**
+     * A submodule which has been read.
+     */
+    @Data
+    private static final class Submodule {
+
+        /** The path of the submodule from the top of the working copy. */
+        private final String path;
+
+        private final SCMCommand scmCmd;
+
+        private final Commit commit;
+
+        private final List<File> stateFiles;
+
+        /** The submodules of the submodule. */
+        private final Map<String, File> submodules;
+
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Builder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whether the working copy has changes which have not been committed.
+ */
+@Data
+@Builder
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class WorkingTreeStatus {
+
+    /** Property key names for the working copy. */
+    public static final String DIRTY = "commit.dirty";
+    public static final String DIRTY_COUNT = "commit.dirty.count";
+
+    /** All the property keys of the working copy. */
+    public static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(DIRTY, DIRTY_COUNT));
+
+    /** The marker for a count which wasn't computed. */
+    static final int UNKNOWN = -1;
+
+    /** The value for the {@code commit.dirty} key. */
+    private final boolean dirty;
+
+    /**
+     * The value for the {@code commit.dirty.count} key, the number of added,
+     * modified and deleted files or {@code UNKNOWN} when the check stopped at
+     * the first one.
+     */
+    private final int modifiedCount;
+
+    public Map<String, String> asMap() {
+        final Map<String, String> map = new HashMap<String, String>();
+        map.put(DIRTY, String.valueOf(isDirty()));
+        if (getModifiedCount() != UNKNOWN) {
+            map.put(DIRTY_COUNT, String.valueOf(getModifiedCount()));
+        }
+        return map;
+    }
+
+    /**
+     * Creates a {@code WorkingTreeStatus} from the properties produced by
+     * {@code asMap()}.
+     *
+     * @param map The working copy properties.
+     * @return The {@code WorkingTreeStatus} with the values from the
+     *         properties.
+     */
+    public static WorkingTreeStatus fromMap(final Map<String, String> map) {
+        final String count = map.get(DIRTY_COUNT);
+        return WorkingTreeStatus.builder()
+                .dirty(Boolean.parseBoolean(map.get(DIRTY)))
+                .modifiedCount((count != null) ? Integer.parseInt(count) : UNKNOWN)
+                .build();
+    }
+
+}
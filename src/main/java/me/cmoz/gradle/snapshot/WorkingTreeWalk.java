@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks the tracked files of a working copy for modifications, spreading
+ * the work of large working copies over the available cores.
+ *
+ * <p>Most of the cost of the check is the {@code stat} of each file, which
+ * the operating system can serve for several threads at once.
+ */
+final class WorkingTreeWalk {
+
+    /** The smallest number of files that's checked in parallel. */
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * Checks whether a single tracked file is modified.
+     *
+     * @param <E> The type of the tracked file entries.
+     */
+    interface Check<E> {
+
+        /**
+         * @param entry The entry of the file in the SCM's index.
+         * @return {@code true} if the file in the working copy differs from
+         *         the entry.
+         * @throws IOException If the file could not be read.
+         */
+        boolean isModified(E entry) throws IOException;
+
+    }
+
+    private WorkingTreeWalk() {}
+
+    /**
+     * Counts the modified files among {@code entries}.
+     *
+     * @param entries The entries of the tracked files.
+     * @param check The check for each file.
+     * @param stopAtFirst Whether to stop at the first modified file.
+     * @return The number of modified files, at most {@code 1} when {@code
+     *         stopAtFirst} is set.
+     * @throws IOException If a file could not be read.
+     */
+    public static <E> int count(
+            @NonNull final List<E> entries,
+            @NonNull final Check<E> check,
+            final boolean stopAtFirst) throws IOException {
+        final int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                entries.size() / PARALLEL_THRESHOLD);
+        final AtomicBoolean stop = new AtomicBoolean();
+        if (threads < 2) {
+            return countRange(entries, 0, entries.size(), check, stopAtFirst, stop);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "snapshot-status-walk");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // the workers record into the metrics of the caller
+            final Metrics metrics = Metrics.current();
+            final List<Future<Integer>> counts = new ArrayList<Future<Integer>>(threads);
+            final int chunk = (entries.size() + threads - 1) / threads;
+            for (int from = 0; from < entries.size(); from += chunk) {
+                final int start = from;
+                final int end = Math.min(from + chunk, entries.size());
+                counts.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        final Metrics previous = metrics.enter();
+                        try {
+                            return countRange(entries, start, end, check, stopAtFirst, stop);
+                        } finally {
+                            Metrics.exit(previous);
+                        }
+                    }
+                }));
+            }
+
+            int modified = 0;
+            for (final Future<Integer> count : counts) {
+                modified += count.get();
+            }
+            return stopAtFirst ? Math.min(modified, 1) : modified;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking the working copy.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not check the working copy.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <E> int countRange(
+            final List<E> entries,
+            final int start,
+            final int end,
+            final Check<E> check,
+            final boolean stopAtFirst,
+            final AtomicBoolean stop) throws IOException {
+        int modified = 0;
+        for (int i = start; i < end && !stop.get(); i++) {
+            if (check.isModified(entries.get(i))) {
+                modified++;
+                if (stopAtFirst) {
+                    stop.set(true);
+                }
+            }
+        }
+        return modified;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import javax.tools.ToolProvider
+
+import static org.junit.Assert.*
+
+class BuildInfoWriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Property names become constant names"() {
+        assertEquals('COMMIT_ID_ABBREV', BuildInfoWriter.constantName('commit.id.abbrev'))
+        assertEquals('BUILD_USER_EMAIL', BuildInfoWriter.constantName('build-user.email'))
+        assertEquals('_1_X', BuildInfoWriter.constantName('1.x'))
+    }
+
+    @Test
+    void "Values are escaped as Java string literals"() {
+        assertEquals('"a \\"b\\" c\\\\d"', BuildInfoWriter.literal('a "b" c\\d'))
+        assertEquals('"line\\nnext\\ttab"', BuildInfoWriter.literal('line\nnext\ttab'))
+        assertEquals('"caf\\u00e9"', BuildInfoWriter.literal('caf\u00e9'))
+    }
+
+    @Test
+    void "Class is written below the directory of its package"() {
+        def writer = new BuildInfoWriter('com.example.app', 'BuildInfo')
+        writer.write(tmp.root, ['commit.id': 'abc'], 'label')
+
+        def file = new File(tmp.root, 'com/example/app/BuildInfo.java')
+        assertEquals(file, writer.getSourceFile(tmp.root))
+        def source = file.getText('UTF-8')
+        assertTrue(source.contains('package com.example.app;'))
+        assertTrue(source.contains('public static final String COMMIT_ID = "abc";'))
+    }
+
+    @Test
+    void "Generated class compiles and holds the values"() {
+        def compiler = ToolProvider.systemJavaCompiler
+        org.junit.Assume.assumeNotNull(compiler)
+
+        def values = ['commit.id': '7c25255', 'commit.message': 'Fix "quotes"\nand \\ slashes \u2603']
+        new BuildInfoWriter('snapshot', 'BuildInfo').write(tmp.root, values, 'label')
+        def source = new File(tmp.root, 'snapshot/BuildInfo.java')
+        assertEquals(0, compiler.run(null, null, null, '-encoding', 'UTF-8', source.path))
+
+        def loader = new URLClassLoader([tmp.root.toURI().toURL()] as URL[], (ClassLoader) null)
+        def type = loader.loadClass('snapshot.BuildInfo')
+        assertEquals('7c25255', type.getField('COMMIT_ID').get(null))
+        assertEquals(values['commit.message'], type.getField('COMMIT_MESSAGE').get(null))
+    }
+
+    @Test(expected = IllegalArgumentException)
+    void "Invalid class name is rejected"() {
+        new BuildInfoWriter('snapshot', 'Build-Info')
+    }
+
+    @Test(expected = IllegalArgumentException)
+    void "Properties with the same constant name are rejected"() {
+        new BuildInfoWriter('', 'BuildInfo').write(tmp.root, ['a.b': '1', 'a_b': '2'], 'label')
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.gradle.api.Project
+import org.gradle.testfixtures.ProjectBuilder
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.junit.Assert.*
+
+class CommitCacheTest {
+
+    private Project root
+
+    private Project child
+
+    @Before
+    void setUp() {
+        root = new ProjectBuilder().build()
+        child = new ProjectBuilder().withParent(root).withName('child').build()
+    }
+
+    @Test
+    void "Cache is shared by all projects in a build"() {
+        assertSame(CommitCache.forBuild(root), CommitCache.forBuild(child))
+    }
+
+    @Test
+    void "Repository is read once for concurrent requests"() {
+        def scmCmd = new CountingSCMCommand()
+        def cache = CommitCache.forBuild(child)
+
+        def pool = Executors.newFixedThreadPool(8)
+        try {
+            def results = pool.invokeAll((1..32).collect {
+                { -> cache.get(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, null) } as Callable<Commit>
+            })
+            def commits = results*.get()
+            assertTrue(commits.every { it.is(commits[0]) })
+        } finally {
+            pool.shutdown()
+        }
+        assertEquals(1, scmCmd.reads.get())
+    }
+
+    @Test
+    void "Prefetched read is used by later requests"() {
+        def scmCmd = new CountingSCMCommand()
+        def cache = CommitCache.forBuild(root)
+
+        cache.prefetch(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, null)
+        cache.prefetch(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, null)
+        def commit = cache.get(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, null)
+
+        assertEquals('master', commit.branchName)
+        assertEquals(1, scmCmd.reads.get())
+    }
+
+    @Test
+    void "Repository is read again for a different date format"() {
+        def scmCmd = new CountingSCMCommand()
+        def cache = CommitCache.forBuild(root)
+
+        cache.get(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, null)
+        cache.get(scmCmd, "dd.MM.yyyy", null)
+
+        assertEquals(2, scmCmd.reads.get())
+    }
+
+    @Test
+    void "Commit is kept between builds while the state files are unchanged"() {
+        def headCacheFile = File.createTempFile('head', '.cache')
+        def stateFile = File.createTempFile('HEAD', '')
+        try {
+            stateFile.lastModified = System.currentTimeMillis() - 60000
+            def scmCmd = new CountingSCMCommand(stateFiles: [stateFile])
+
+            // each build in a new daemon
+            new CommitCache(new StateWatcher(null)).get(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, headCacheFile)
+            def commit = new CommitCache(new StateWatcher(null))
+                    .get(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, headCacheFile)
+            assertEquals('7c252556ba9471b42ec648fb2d27df464e5d4ad8', commit.commitId)
+            assertEquals(1, scmCmd.reads.get())
+
+            stateFile.lastModified = System.currentTimeMillis() - 30000
+            new CommitCache(new StateWatcher(null)).get(scmCmd, SnapshotPluginExtension.DEFAULT_DATEFORMAT, headCacheFile)
+            assertEquals(2, scmCmd.reads.get())
+        } finally {
+            headCacheFile.delete()
+            stateFile.delete()
+        }
+    }
+
+    @Test
+    void "Working copy is checked once for each kind of check"() {
+        def scmCmd = new CountingSCMCommand()
+        def cache = CommitCache.forBuild(root)
+
+        cache.getStatus(scmCmd, DirtyCheck.FLAG, null)
+        def status = cache.getStatus(scmCmd, DirtyCheck.FLAG, null)
+        cache.getStatus(scmCmd, DirtyCheck.COUNT, null)
+
+        assertTrue(status.dirty)
+        assertEquals(2, scmCmd.statusReads.get())
+    }
+
+    static class CountingSCMCommand implements SCMCommand {
+
+        final AtomicInteger reads = new AtomicInteger()
+
+        final AtomicInteger statusReads = new AtomicInteger()
+
+        List<File> stateFiles = []
+
+        @Override
+        File getRepositoryDir() {
+            new File('.git')
+        }
+
+        @Override
+        Commit getLatestCommit(final String dateFormat) {
+            reads.incrementAndGet()
+            Commit.builder()
+                    .buildTime('')
+                    .buildAuthorName('')
+                    .buildAuthorEmail('')
+                    .branchName('master')
+                    .commitId('7c252556ba9471b42ec648fb2d27df464e5d4ad8')
+                    .commitTime('')
+                    .commitUserName('')
+                    .commitUserEmail('')
+                    .commitMessage('')
+                    .build()
+        }
+
+        @Override
+        List<File> getStateFiles() {
+            stateFiles
+        }
+
+        @Override
+        WorkingTreeStatus getStatus(final DirtyCheck check, final File statCacheFile) {
+            statusReads.incrementAndGet()
+            WorkingTreeStatus.builder()
+                    .dirty(true)
+                    .modifiedCount(WorkingTreeStatus.UNKNOWN)
+                    .build()
+        }
+
+        @Override
+        NearestTag getNearestTag(final File cacheFile) {
+            NearestTag.of('v1.0', 0, 'g7c25255')
+        }
+
+        @Override
+        Map<String, File> getSubmodules() {
+            [:]
+        }
+
+        @Override
+        Map<File, Commit> getPathCommits(final List<File> dirs, final String dateFormat, final File indexFile) {
+            dirs.collectEntries { [it, getLatestCommit(dateFormat)] }
+        }
+
+        @Override
+        int writeChangelog(final String since, final int limit, final String dateFormat, final File outputFile) {
+            0
+        }
+    }
+
+}
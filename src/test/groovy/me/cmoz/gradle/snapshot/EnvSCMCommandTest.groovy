@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.After
+import org.junit.Test
+
+import static org.junit.Assert.*
+
+class EnvSCMCommandTest {
+
+    private static final Map<String, String> NAMES = [
+            (Commit.ID)          : 'SNAPSHOT_TEST_SHA,SNAPSHOT_TEST_COMMIT',
+            (Commit.BRANCH)      : 'SNAPSHOT_TEST_BRANCH',
+            (Commit.TIMESTAMP)   : 'SNAPSHOT_TEST_TIME',
+            (Commit.MESSAGE_FULL): 'SNAPSHOT_TEST_MESSAGE',
+            (Commit.USER_NAME)   : 'SNAPSHOT_TEST_AUTHOR'
+    ]
+
+    @After
+    void tearDown() {
+        ['SNAPSHOT_TEST_SHA', 'SNAPSHOT_TEST_COMMIT', 'SNAPSHOT_TEST_BRANCH', 'SNAPSHOT_TEST_TIME',
+         'SNAPSHOT_TEST_MESSAGE', 'SNAPSHOT_TEST_AUTHOR'].each { System.clearProperty(it) }
+    }
+
+    @Test
+    void "Commit is read from the environment"() {
+        System.setProperty('SNAPSHOT_TEST_COMMIT', '7c252556ba9471b42ec648fb2d27df464e5d4ad8')
+        System.setProperty('SNAPSHOT_TEST_BRANCH', 'refs/heads/master')
+        System.setProperty('SNAPSHOT_TEST_TIME', '1416484800')
+        System.setProperty('SNAPSHOT_TEST_MESSAGE', 'Fix a bug. With a longer description.\n')
+        System.setProperty('SNAPSHOT_TEST_AUTHOR', 'Chris Molozian')
+
+        def values = EnvSCMCommand.read(NAMES)
+        def commit = new EnvSCMCommand(new File('.'), values).getLatestCommit(SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertTrue(EnvSCMCommand.isComplete(values))
+        assertEquals('7c252556ba9471b42ec648fb2d27df464e5d4ad8', commit.commitId)
+        assertEquals('master', commit.branchName)
+        assertEquals('1416484800000', commit.commitTimestamp)
+        assertEquals('Fix a bug. With a longer description.', commit.commitMessage)
+        assertEquals('Chris Molozian', commit.commitUserName)
+        assertEquals('', commit.commitUserEmail)
+    }
+
+    @Test
+    void "First name which is set is used"() {
+        System.setProperty('SNAPSHOT_TEST_SHA', '0123456789abcdef')
+        System.setProperty('SNAPSHOT_TEST_COMMIT', '7c252556ba9471b42ec648fb2d27df464e5d4ad8')
+
+        def values = EnvSCMCommand.read(NAMES)
+
+        assertEquals('0123456789abcdef', values[Commit.ID])
+        assertFalse(EnvSCMCommand.isComplete(values))
+    }
+
+    @Test(expected = IllegalStateException)
+    void "Commit id is required"() {
+        new EnvSCMCommand(new File('.'), [:]).getLatestCommit(SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+    }
+
+    @Test(expected = UnsupportedOperationException)
+    void "Working copy can't be checked without the repository"() {
+        new EnvSCMCommand(new File('.'), [:]).getStatus(DirtyCheck.FLAG, null)
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.eclipse.jgit.api.Git
+import org.eclipse.jgit.lib.CommitBuilder
+import org.eclipse.jgit.lib.Constants
+import org.eclipse.jgit.lib.ObjectId
+import org.eclipse.jgit.lib.PersonIdent
+import org.eclipse.jgit.revwalk.RevWalk
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class GitChangelogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File workTree
+
+    private Git git
+
+    private File changelog
+
+    @Before
+    void setUp() {
+        workTree = tmp.newFolder('work')
+        git = Git.init().setDirectory(workTree).call()
+        changelog = new File(tmp.root, 'out/changelog.txt')
+
+        commit('First release')
+        git.tag().setName('v1.0').setMessage('Release 1.0').call()
+        commit('Fix a bug\n\nWith a longer description.')
+        git.tag().setName('v1.1').setAnnotated(false).call()
+        commit('Add a feature')
+        commit('Add another feature')
+    }
+
+    @Test
+    void "Changelog starts after the most recent tag"() {
+        assertEquals(2, write(null, 0))
+
+        def lines = changelog.readLines()
+        assertEquals(2, lines.size())
+        assertTrue(lines[0].startsWith('* Add another feature ('))
+        assertTrue(lines[1].startsWith('* Add a feature ('))
+        assertTrue(lines[1].contains(', Chris Molozian, '))
+    }
+
+    @Test
+    void "Changelog starts after a named revision"() {
+        assertEquals(3, write('v1.0', 0))
+
+        assertTrue(changelog.readLines()[2].startsWith('* Fix a bug ('))
+    }
+
+    @Test
+    void "Changelog is limited to a number of commits"() {
+        assertEquals(1, write('v1.0', 1))
+
+        assertEquals(1, changelog.readLines().size())
+    }
+
+    @Test(expected = IllegalArgumentException)
+    void "Unknown revision is rejected"() {
+        write('no-such-tag', 0)
+    }
+
+    @Test
+    void "Changelog starts after the nearest tag when commit times are skewed"() {
+        // v1.0 has the latest time but it's an ancestor of v2.0, which is nearer
+        def v1 = commit(3000, 'Skewed release')
+        def v2 = commit(400, 'Second release', v1)
+        def merge = commit(5000, 'Merge', commit(1000, 'Feature', v2), commit(500, 'Other feature', v1))
+        def revWalk = new RevWalk(git.repository)
+        git.tag().setName('v1.0').setObjectId(revWalk.parseCommit(v1)).setForceUpdate(true).call()
+        git.tag().setName('v2.0').setObjectId(revWalk.parseCommit(v2)).call()
+        revWalk.dispose()
+        def update = git.repository.updateRef(Constants.HEAD)
+        update.setNewObjectId(merge)
+        update.forceUpdate()
+
+        assertEquals(3, write(null, 0))
+    }
+
+    @Test
+    void "Only a full commit id is a stable start"() {
+        assertTrue(ChangelogTask.isCommitId('7c252556ba9471b42ec648fb2d27df464e5d4ad8'))
+        assertFalse(ChangelogTask.isCommitId('7c25255'))
+        assertFalse(ChangelogTask.isCommitId('master'))
+        assertFalse(ChangelogTask.isCommitId('HEAD~10'))
+        assertFalse(ChangelogTask.isCommitId(null))
+    }
+
+    private void commit(final String message) {
+        new File(workTree, 'file.txt') << "${message}\n"
+        git.add().addFilepattern('.').call()
+        git.commit().setMessage(message).setAuthor('Chris Molozian', 'chris@cmoz.me').call()
+    }
+
+    private ObjectId commit(final int time, final String message, final ObjectId... parents) {
+        def inserter = git.repository.newObjectInserter()
+        try {
+            def ident = new PersonIdent('Chris Molozian', 'chris@cmoz.me', new Date(time * 1000L), TimeZone.getTimeZone('UTC'))
+            def builder = new CommitBuilder()
+            builder.setTreeId(inserter.insert(Constants.OBJ_TREE, new byte[0]))
+            builder.setParentIds(parents)
+            builder.setAuthor(ident)
+            builder.setCommitter(ident)
+            builder.setMessage(message)
+            def id = inserter.insert(builder)
+            inserter.flush()
+            return id
+        } finally {
+            inserter.release()
+        }
+    }
+
+    private int write(final String since, final int limit) {
+        new GitSCMCommand(new File(workTree, '.git'))
+                .writeChangelog(since, limit, SnapshotPluginExtension.DEFAULT_DATEFORMAT, changelog)
+    }
+
+}
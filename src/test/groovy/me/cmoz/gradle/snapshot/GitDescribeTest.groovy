@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.eclipse.jgit.api.Git
+import org.eclipse.jgit.lib.ObjectId
+import org.eclipse.jgit.lib.PersonIdent
+import org.eclipse.jgit.revwalk.RevCommit
+import org.eclipse.jgit.revwalk.RevWalk
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.nio.ByteBuffer
+
+import static org.junit.Assert.*
+
+class GitDescribeTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File workTree
+
+    private Git git
+
+    private File cacheFile
+
+    private long time = 1400000000L
+
+    @Before
+    void setUp() {
+        workTree = tmp.newFolder('work')
+        git = Git.init().setDirectory(workTree).call()
+        cacheFile = new File(tmp.root, 'describe.cache')
+    }
+
+    @Test
+    void "Commit without a reachable tag is described by its id"() {
+        def head = commit('First')
+
+        def tag = describe()
+
+        assertEquals('g' + head.name().substring(0, 7), tag.describe)
+        assertEquals('', tag.tagName)
+        assertEquals(NearestTag.NONE, tag.distance)
+    }
+
+    @Test
+    void "Tagged commit is described by its tag"() {
+        commit('First')
+        git.tag().setName('v1.0').call()
+
+        assertEquals('v1.0', describe().describe)
+    }
+
+    @Test
+    void "Commits since the tag are counted"() {
+        commit('First')
+        git.tag().setName('v1.0').setAnnotated(false).call()
+        commit('Second')
+        def head = commit('Third')
+
+        def tag = describe()
+
+        assertEquals("v1.0-2-g${head.name().substring(0, 7)}".toString(), tag.describe)
+        assertEquals('v1.0', tag.tagName)
+        assertEquals(2, tag.distance)
+    }
+
+    @Test
+    void "Most recent tag of a merge is found"() {
+        mergeHistory()
+
+        def tag = describe()
+
+        assertEquals('v1.1', tag.tagName)
+        assertEquals(2, tag.distance)
+    }
+
+    @Test
+    void "Commit-graph gives the same result as walking the commits"() {
+        mergeHistory()
+        writeCommitGraph()
+        def graph = CommitGraph.open(new File(workTree, '.git/objects'))
+        try {
+            def merge = graph.findCommit(git.repository.resolve('HEAD'))
+            assertEquals(3, graph.getGeneration(merge))
+            assertEquals(2, graph.getParents(merge).length)
+        } finally {
+            graph.close()
+        }
+        commit('After the graph was written')
+
+        def tag = describe()
+
+        assertEquals('v1.1', tag.tagName)
+        assertEquals(3, tag.distance)
+    }
+
+    @Test
+    void "Commit-graph larger than a block is read"() {
+        commit('First')
+        git.tag().setName('v1.0').call()
+        (1..150).each { commit("Commit ${it}") }
+        writeCommitGraph()
+        def graph = CommitGraph.open(new File(workTree, '.git/objects'))
+        try {
+            assertEquals(151, graph.commitCount)
+            (0..<graph.commitCount).each { position ->
+                assertEquals(position, graph.findCommit(graph.getId(position)))
+            }
+        } finally {
+            graph.close()
+        }
+
+        assertEquals(150, describe().distance)
+    }
+
+    @Test
+    void "Tag positions in the commit-graph are cached with the tags"() {
+        mergeHistory()
+        writeCommitGraph()
+        commit('After the graph was written')
+        describe()
+
+        def lines = cacheFile.readLines()
+        assertEquals(1, lines.count { it.startsWith('graph ') })
+        assertEquals(2, lines.count { it.startsWith('position ') })
+        assertTrue(lines.any { it ==~ /position \d+ v1\.1/ })
+
+        commit('Another commit')
+        cacheFile.write(cacheFile.text.replaceAll(/(?m)^describe .*\n/, ''))
+        assertEquals(4, describe().distance)
+    }
+
+    @Test
+    void "Cached result is extended along the first-parent chain"() {
+        commit('First')
+        git.tag().setName('v1.0').call()
+        def described = commit('Second')
+        describe()
+        assertTrue(cacheFile.readLines().contains("describe ${described.name()} 1 v1.0".toString()))
+
+        commit('Third')
+        commit('Fourth')
+
+        assertEquals(3, describe().distance)
+    }
+
+    @Test
+    void "New tags are found although the refs were cached"() {
+        commit('First')
+        git.tag().setName('v1.0').call()
+        commit('Second')
+        assertEquals('v1.0', describe().tagName)
+
+        git.tag().setName('v1.1').call()
+        new File(workTree, '.git/refs/tags/v1.1').lastModified = System.currentTimeMillis() + 5000
+
+        def tag = describe()
+        assertEquals('v1.1', tag.tagName)
+        assertEquals(0, tag.distance)
+    }
+
+    /** v1.0 on the first commit, v1.1 on a branch from it and a merge after one more commit on master. */
+    private void mergeHistory() {
+        commit('First')
+        git.tag().setName('v1.0').call()
+        git.branchCreate().setName('side').call()
+        commit('Second')
+        git.checkout().setName('side').call()
+        commit('Side', 'side.txt')
+        git.tag().setName('v1.1').call()
+        git.checkout().setName('master').call()
+        git.merge().include(git.repository.resolve('side')).setCommit(false).call()
+        commit('Merge')
+    }
+
+    private RevCommit commit(final String message, final String filename = 'file.txt') {
+        new File(workTree, filename) << "${message}\n"
+        git.add().addFilepattern('.').call()
+        def ident = new PersonIdent('Chris Molozian', 'chris@cmoz.me', new Date(1000L * time++), TimeZone.getTimeZone('UTC'))
+        git.commit().setMessage(message).setAuthor(ident).setCommitter(ident).call()
+    }
+
+    private NearestTag describe() {
+        new GitSCMCommand(new File(workTree, '.git')).getNearestTag(cacheFile)
+    }
+
+    /** Writes a version 1 commit-graph of every commit reachable from HEAD. */
+    private void writeCommitGraph() {
+        def repo = git.repository
+        def revWalk = new RevWalk(repo)
+        revWalk.markStart(revWalk.parseCommit(repo.resolve('HEAD')))
+        def commits = revWalk.toList().sort { a, b -> a.compareTo(b) }
+        def positions = [:]
+        commits.eachWithIndex { c, i -> positions[c.name()] = i }
+
+        def generations = [:]
+        def generation
+        generation = { RevCommit c ->
+            if (!generations.containsKey(c.name())) {
+                generations[c.name()] = 1 + (c.parents.collect { generation(revWalk.parseCommit(it)) }.max() ?: 0)
+            }
+            generations[c.name()]
+        }
+
+        def n = commits.size()
+        def buffer = ByteBuffer.allocate(8 + 4 * 12 + 1024 + n * 20 + n * 36)
+        buffer.putInt(0x43475048).put((byte) 1).put((byte) 1).put((byte) 3).put((byte) 0)
+        def offset = 8 + 4 * 12
+        [[0x4f494446, 1024], [0x4f49444c, n * 20], [0x43444154, n * 36]].each { chunk ->
+            buffer.putInt(chunk[0]).putLong(offset)
+            offset += chunk[1]
+        }
+        buffer.putInt(0).putLong(offset)
+
+        (0..255).each { b -> buffer.putInt(commits.count { it.firstByte <= b }) }
+        commits.each { c -> c.copyRawTo(buffer) }
+        commits.each { c ->
+            c.tree.copyRawTo(buffer)
+            def parents = c.parents.collect { positions[it.name()] }
+            buffer.putInt(parents.size() > 0 ? parents[0] : 0x70000000)
+            buffer.putInt(parents.size() > 1 ? parents[1] : 0x70000000)
+            buffer.putInt(generation(c) << 2).putInt(c.commitTime)
+        }
+
+        def graphFile = new File(workTree, '.git/objects/info/commit-graph')
+        graphFile.parentFile.mkdirs()
+        graphFile.bytes = buffer.array()
+        revWalk.dispose()
+    }
+
+}
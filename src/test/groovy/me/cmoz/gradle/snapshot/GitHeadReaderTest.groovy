@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.eclipse.jgit.lib.ObjectId
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class GitHeadReaderTest {
+
+    private static final String HEAD_ID = '7c252556ba9471b42ec648fb2d27df464e5d4ad8'
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File gitDir
+
+    private GitHeadReader reader
+
+    @Before
+    void setUp() {
+        // workaround because Git won't version control a '.git' folder.
+        def source = new File('src/test/resources/testGit/_git')
+        gitDir = tmp.newFolder('.git')
+        source.eachFileRecurse { final File file ->
+            def target = new File(gitDir, source.toURI().relativize(file.toURI()).path)
+            if (file.isDirectory()) {
+                target.mkdirs()
+            } else {
+                target.parentFile.mkdirs()
+                target.bytes = file.bytes
+            }
+        }
+        reader = new GitHeadReader(gitDir)
+    }
+
+    @Test
+    void "HEAD is resolved through a loose branch ref"() {
+        def head = reader.readHead()
+
+        assertTrue(head.symbolic)
+        assertEquals('refs/heads/master', head.target.name)
+        assertEquals(HEAD_ID, head.objectId.name())
+    }
+
+    @Test
+    void "HEAD is resolved through a packed branch ref"() {
+        new File(gitDir, 'refs/heads/master').delete()
+        writePackedRefs(true)
+
+        assertEquals(HEAD_ID, reader.readHead().objectId.name())
+    }
+
+    @Test
+    void "Detached HEAD is resolved"() {
+        new File(gitDir, 'HEAD').text = HEAD_ID + '\n'
+        def head = reader.readHead()
+
+        assertFalse(head.symbolic)
+        assertEquals(HEAD_ID, head.objectId.name())
+    }
+
+    @Test
+    void "Linked worktree is read through its common directory"() {
+        def worktreeGitDir = new File(gitDir, 'worktrees/feature')
+        worktreeGitDir.mkdirs()
+        new File(worktreeGitDir, 'HEAD').text = 'ref: refs/heads/master\n'
+        new File(worktreeGitDir, 'commondir').text = '../..\n'
+        def dotGit = new File(tmp.newFolder('feature'), '.git')
+        dotGit.text = "gitdir: ${worktreeGitDir.absolutePath}\n"
+
+        def worktreeReader = new GitHeadReader(GitHeadReader.resolveGitDir(dotGit))
+
+        assertEquals(worktreeGitDir, worktreeReader.gitDir)
+        assertEquals(gitDir.canonicalFile, worktreeReader.commonDir.canonicalFile)
+        assertEquals(HEAD_ID, worktreeReader.readHead().objectId.name())
+        assertNotNull(worktreeReader.readCommit(ObjectId.fromString(HEAD_ID)))
+    }
+
+    @Test
+    void "Loose commit is read"() {
+        def commit = reader.readCommit(ObjectId.fromString(HEAD_ID))
+
+        assertEquals(HEAD_ID, commit.name)
+        assertEquals('Test commit. Updated README', commit.fullMessage.trim())
+        assertEquals('Chris Molozian', commit.authorIdent.name)
+        assertEquals('chris@cmoz.me', commit.authorIdent.emailAddress)
+    }
+
+    @Test
+    void "Packed commit is left to JGit"() {
+        new File(gitDir, "objects/7c/${HEAD_ID.substring(2)}").delete()
+
+        assertNull(reader.readCommit(ObjectId.fromString(HEAD_ID)))
+    }
+
+    @Test
+    void "Refs are found in a sorted packed-refs file"() {
+        def packedRefs = writePackedRefs(true)
+
+        assertEquals(HEAD_ID, PackedRefs.find(packedRefs, 'refs/heads/master').name())
+        assertEquals(tagId(0), PackedRefs.find(packedRefs, 'refs/tags/v00000').name())
+        assertEquals(tagId(4999), PackedRefs.find(packedRefs, 'refs/tags/v04999').name())
+        assertEquals(tagId(2500), PackedRefs.find(packedRefs, 'refs/tags/v02500').name())
+        assertNull(PackedRefs.find(packedRefs, 'refs/tags/v05000'))
+        assertNull(PackedRefs.find(packedRefs, 'refs/heads/develop'))
+    }
+
+    @Test
+    void "Refs are found in an unsorted packed-refs file"() {
+        def packedRefs = writePackedRefs(false)
+
+        assertEquals(HEAD_ID, PackedRefs.find(packedRefs, 'refs/heads/master').name())
+        assertEquals(tagId(1234), PackedRefs.find(packedRefs, 'refs/tags/v01234').name())
+        assertNull(PackedRefs.find(packedRefs, 'refs/tags/v0123'))
+    }
+
+    @Test
+    void "Refs are found in a sorted packed-refs file with invalid lines"() {
+        def packedRefs = new File(gitDir, 'packed-refs')
+        packedRefs.withWriter('UTF-8') { out ->
+            out.write("# pack-refs with: peeled fully-peeled sorted \n")
+            out.write("$HEAD_ID refs/heads/master\n")
+            (0..<100).each { final int i ->
+                out.write(['\n', 'short\n', "${'z' * 40} refs/invalid/r$i\n"][i % 3])
+            }
+            out.write("${tagId(1)} refs/tags/v00001\n")
+        }
+
+        assertEquals(HEAD_ID, PackedRefs.find(packedRefs, 'refs/heads/master').name())
+        assertEquals(tagId(1), PackedRefs.find(packedRefs, 'refs/tags/v00001').name())
+        assertNull(PackedRefs.find(packedRefs, 'refs/invalid/r2'))
+        assertNull(PackedRefs.find(packedRefs, 'refs/tags/v00002'))
+    }
+
+    private File writePackedRefs(final boolean sorted) {
+        def packedRefs = new File(gitDir, 'packed-refs')
+        packedRefs.withWriter('UTF-8') { out ->
+            out.write("# pack-refs with: peeled fully-peeled${sorted ? ' sorted' : ''} \n")
+            out.write("$HEAD_ID refs/heads/master\n")
+            def tags = (0..<5000).toList()
+            if (!sorted) {
+                Collections.reverse(tags)
+            }
+            tags.each { final int i ->
+                out.write("${tagId(i)} refs/tags/v${String.format('%05d', i)}\n")
+                if (i % 3 == 0) {
+                    out.write("^$HEAD_ID\n")
+                }
+            }
+        }
+        packedRefs
+    }
+
+    private static String tagId(final int i) {
+        String.format('%040x', i)
+    }
+
+}
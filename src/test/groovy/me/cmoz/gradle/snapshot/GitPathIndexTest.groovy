@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.eclipse.jgit.api.Git
+import org.eclipse.jgit.lib.ObjectId
+import org.eclipse.jgit.revwalk.RevCommit
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class GitPathIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File workTree
+
+    private Git git
+
+    private File indexFile
+
+    @Before
+    void setUp() {
+        workTree = tmp.newFolder('work')
+        git = Git.init().setDirectory(workTree).call()
+        indexFile = new File(tmp.root, 'paths.cache')
+    }
+
+    @Test
+    void "Last commit which changed each path is found in one walk"() {
+        def first = commit('a/file.txt', 'b/file.txt')
+        def second = commit('a/file.txt')
+        def third = commit('c.txt')
+
+        def commits = new GitPathIndex(null).update(git.repository, third, ['', 'a', 'b', 'c.txt', 'd'])
+
+        assertEquals(third, commits[''])
+        assertEquals(second, commits['a'])
+        assertEquals(first, commits['b'])
+        assertEquals(third, commits['c.txt'])
+        assertEquals(ObjectId.zeroId(), commits['d'])
+    }
+
+    @Test
+    void "Index is updated from the commits since the last build"() {
+        def first = commit('a/file.txt', 'b/file.txt')
+        def index = new GitPathIndex(indexFile)
+        index.update(git.repository, first, ['a', 'b'])
+        index.save()
+        def second = commit('a/file.txt')
+
+        def metrics = new Metrics()
+        def previous = metrics.enter()
+        def commits
+        try {
+            commits = new GitPathIndex(indexFile).update(git.repository, second, ['a', 'b'])
+        } finally {
+            Metrics.exit(previous)
+        }
+
+        assertEquals(second, commits['a'])
+        assertEquals(first, commits['b'])
+        assertEquals(1L, metrics.misses[GitPathIndex.CACHE_NAME])
+    }
+
+    @Test
+    void "Index is used while HEAD is unchanged"() {
+        def first = commit('a/file.txt')
+        def index = new GitPathIndex(indexFile)
+        index.update(git.repository, first, ['a'])
+        index.save()
+
+        def metrics = new Metrics()
+        def previous = metrics.enter()
+        try {
+            assertEquals(first, new GitPathIndex(indexFile).update(git.repository, first, ['a'])['a'])
+        } finally {
+            Metrics.exit(previous)
+        }
+
+        assertEquals(1L, metrics.hits[GitPathIndex.CACHE_NAME])
+    }
+
+    @Test
+    void "Commit of each project directory is read"() {
+        def first = commit('a/file.txt')
+        def second = commit('b/file.txt')
+        def dirs = [workTree, new File(workTree, 'a'), new File(workTree, 'd'), tmp.root]
+
+        def commits = new GitSCMCommand(new File(workTree, '.git'))
+                .getPathCommits(dirs, SnapshotPluginExtension.DEFAULT_DATEFORMAT, indexFile)
+
+        assertEquals(second.name(), commits[workTree].commitId)
+        assertEquals(first.name(), commits[dirs[1]].commitId)
+        // a directory no commit changed, or outside the working copy, has the checked out commit
+        assertEquals(second.name(), commits[dirs[2]].commitId)
+        assertEquals(second.name(), commits[tmp.root].commitId)
+        assertTrue(indexFile.isFile())
+    }
+
+    @Test
+    void "Malformed index is ignored"() {
+        def first = commit('a/file.txt')
+        indexFile.text = '# snapshot path index v1\nhead not-an-id\n'
+
+        assertEquals(first, new GitPathIndex(indexFile).update(git.repository, first, ['a'])['a'])
+    }
+
+    private RevCommit commit(final String... paths) {
+        for (final String path : paths) {
+            def file = new File(workTree, path)
+            file.parentFile.mkdirs()
+            file << "${System.nanoTime()}\n"
+        }
+        git.add().addFilepattern('.').call()
+        git.commit().setMessage("Change ${paths.join(', ')}").call()
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.eclipse.jgit.api.Git
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class GitWorkingTreeTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File workTree
+
+    private Git git
+
+    @Before
+    void setUp() {
+        workTree = tmp.newFolder('work')
+        git = Git.init().setDirectory(workTree).call()
+        (1..3).each { new File(workTree, "file${it}.txt").text = "content ${it}\n" }
+        git.add().addFilepattern('.').call()
+        git.commit().setMessage('Initial commit').setAuthor('Chris Molozian', 'chris@cmoz.me').call()
+        // let the index become older than the files, so they aren't racily clean
+        new File(workTree, '.git/index').lastModified = System.currentTimeMillis() + 5000
+    }
+
+    @Test
+    void "Clean working copy is not dirty"() {
+        def status = check(DirtyCheck.COUNT)
+
+        assertFalse(status.dirty)
+        assertEquals(0, status.modifiedCount)
+    }
+
+    @Test
+    void "Modified and deleted files are counted"() {
+        new File(workTree, 'file1.txt').text = 'changed and longer\n'
+        new File(workTree, 'file2.txt').delete()
+        new File(workTree, 'untracked.txt').text = 'ignored by the check\n'
+
+        def status = check(DirtyCheck.COUNT)
+
+        assertTrue(status.dirty)
+        assertEquals(2, status.modifiedCount)
+    }
+
+    @Test
+    void "Flag check does not count the modified files"() {
+        new File(workTree, 'file1.txt').text = 'changed and longer\n'
+
+        def status = check(DirtyCheck.FLAG)
+
+        assertTrue(status.dirty)
+        assertEquals(WorkingTreeStatus.UNKNOWN, status.modifiedCount)
+    }
+
+    @Test
+    void "Staged changes are counted once"() {
+        new File(workTree, 'file1.txt').text = 'staged\n'
+        new File(workTree, 'file4.txt').text = 'added\n'
+        git.add().addFilepattern('.').call()
+        new File(workTree, 'file1.txt').text = 'staged and then modified\n'
+
+        assertEquals(2, check(DirtyCheck.COUNT).modifiedCount)
+    }
+
+    @Test
+    void "Touched file with the same content is clean and its hash is cached"() {
+        def file = new File(workTree, 'file3.txt')
+        file.lastModified = file.lastModified() - 60000
+        def cacheFile = new File(tmp.root, 'stat.cache')
+
+        assertFalse(check(DirtyCheck.COUNT, cacheFile).dirty)
+        assertTrue(cacheFile.text.contains('file3.txt'))
+
+        def cache = new StatCache(cacheFile)
+        assertEquals(git.repository.resolve('HEAD:file3.txt').name(),
+                cache.get('file3.txt', file.lastModified(), file.length()))
+    }
+
+    @Test
+    void "Touched file with other content of the same size is modified"() {
+        def file = new File(workTree, 'file3.txt')
+        def modified = file.lastModified()
+        file.text = 'content X\n'
+        file.lastModified = modified - 60000
+
+        assertTrue(check(DirtyCheck.FLAG).dirty)
+    }
+
+    @Test
+    void "Large working copy is checked in parallel"() {
+        (1..WorkingTreeWalk.PARALLEL_THRESHOLD * 2).each { new File(workTree, "many${it}.txt").text = "${it}\n" }
+        git.add().addFilepattern('.').call()
+        git.commit().setMessage('Many files').call()
+        new File(workTree, '.git/index').lastModified = System.currentTimeMillis() + 5000
+        new File(workTree, 'many7.txt').text = 'changed and longer\n'
+        new File(workTree, 'many8000.txt').delete()
+
+        assertEquals(2, check(DirtyCheck.COUNT).modifiedCount)
+        assertTrue(check(DirtyCheck.FLAG).dirty)
+    }
+
+    @Test
+    void "Touched file with CRLF line endings is clean with autocrlf set"() {
+        def config = git.repository.config
+        config.setString('core', null, 'autocrlf', 'true')
+        config.save()
+        def file = new File(workTree, 'crlf.txt')
+        file.text = 'line 1\r\nline 2\r\n'
+        git.add().addFilepattern('crlf.txt').call()
+        git.commit().setMessage('CRLF file').call()
+        new File(workTree, '.git/index').lastModified = System.currentTimeMillis() + 5000
+        file.lastModified = file.lastModified() - 60000
+
+        assertFalse(check(DirtyCheck.COUNT).dirty)
+
+        file.text = 'line 1\r\nline 3\r\n'
+        file.lastModified = file.lastModified() - 60000
+        assertEquals(1, check(DirtyCheck.COUNT).modifiedCount)
+    }
+
+    @Test
+    void "Touched files with attributes are compared by JGit"() {
+        new File(workTree, '.gitattributes').text = '*.txt text\n'
+        git.add().addFilepattern('.gitattributes').call()
+        git.commit().setMessage('Attributes').call()
+        new File(workTree, '.git/index').lastModified = System.currentTimeMillis() + 5000
+        def same = new File(workTree, 'file1.txt')
+        same.lastModified = same.lastModified() - 60000
+        def changed = new File(workTree, 'file2.txt')
+        def modified = changed.lastModified()
+        changed.text = 'content X\n'
+        changed.lastModified = modified - 60000
+        def cacheFile = new File(tmp.root, 'stat.cache')
+
+        assertEquals(1, check(DirtyCheck.COUNT, cacheFile).modifiedCount)
+        assertTrue(check(DirtyCheck.FLAG, cacheFile).dirty)
+        assertFalse(cacheFile.exists() && cacheFile.text.contains('file1.txt'))
+    }
+
+    private WorkingTreeStatus check(final DirtyCheck check, final File cacheFile = null) {
+        new GitSCMCommand(new File(workTree, '.git')).getStatus(check, cacheFile)
+    }
+
+}
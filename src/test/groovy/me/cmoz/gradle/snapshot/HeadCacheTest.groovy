@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class HeadCacheTest {
+
+    private static final String DATE_FORMAT = SnapshotPluginExtension.DEFAULT_DATEFORMAT
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Commit is read back with the same stamp"() {
+        def file = new File(tmp.root, 'head.cache')
+        new HeadCache(file, DATE_FORMAT).put('stamp', commit('Add a feature.\nWith a description.'))
+
+        def cached = new HeadCache(file, DATE_FORMAT).get('stamp')
+
+        assertEquals(commit('Add a feature.\nWith a description.').commitId, cached.commitId)
+        assertEquals('Add a feature.\nWith a description.', cached.commitMessage)
+        assertEquals('Build User', cached.buildAuthorName)
+        assertEquals('1416484800000', cached.commitTimestamp)
+        assertNotEquals('old', cached.buildTime)
+    }
+
+    @Test
+    void "Commit is not used with another stamp or date format"() {
+        def file = new File(tmp.root, 'head.cache')
+        new HeadCache(file, DATE_FORMAT).put('stamp', commit('message'))
+
+        assertNull(new HeadCache(file, DATE_FORMAT).get('other'))
+        assertNull(new HeadCache(file, 'dd.MM.yyyy').get('stamp'))
+        assertNull(new HeadCache(new File(tmp.root, 'missing.cache'), DATE_FORMAT).get('stamp'))
+    }
+
+    @Test
+    void "Unreadable cache file is ignored"() {
+        def file = new File(tmp.root, 'head.cache')
+        file.text = 'cache.version=1\ncache.stamp=\\u00zz\n'
+
+        assertNull(new HeadCache(file, DATE_FORMAT).get('stamp'))
+    }
+
+    @Test
+    void "Stamp changes with the state files"() {
+        def stateFile = tmp.newFile('HEAD')
+        def now = System.currentTimeMillis()
+        stateFile.lastModified = now - 60000
+
+        def stamp = HeadCache.stamp([stateFile, new File(tmp.root, 'missing')], now)
+        stateFile.text = 'ref: refs/heads/feature\n'
+        stateFile.lastModified = now - 30000
+
+        assertNotNull(stamp)
+        assertNotEquals(stamp, HeadCache.stamp([stateFile, new File(tmp.root, 'missing')], now))
+    }
+
+    @Test
+    void "Stamp changes with the build user in the environment"() {
+        def stateFile = tmp.newFile('HEAD')
+        def now = System.currentTimeMillis()
+        stateFile.lastModified = now - 60000
+
+        def stamp = HeadCache.stamp([stateFile], now)
+        SnapshotTaskGitTest.CustomEnv.withenv('GIT_AUTHOR_NAME', 'Another User') {
+            assertNotEquals(stamp, HeadCache.stamp([stateFile], now))
+        }
+    }
+
+    @Test
+    void "Recently modified state file gives no stamp"() {
+        def stateFile = tmp.newFile('HEAD')
+        def now = System.currentTimeMillis()
+        stateFile.lastModified = now - 100
+
+        assertNull(HeadCache.stamp([stateFile], now))
+    }
+
+    private static Commit commit(final String message) {
+        Commit.builder()
+                .buildTime('old')
+                .buildAuthorName('Build User')
+                .buildAuthorEmail('build@example.com')
+                .branchName('master')
+                .commitId('7c252556ba9471b42ec648fb2d27df464e5d4ad8')
+                .commitTime('20.11.2014 @ 12:00:00 GMT')
+                .commitTimestamp('1416484800000')
+                .commitUserName('Commit User')
+                .commitUserEmail('commit@example.com')
+                .commitMessage(message)
+                .build()
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class HgConfigTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Later files override earlier ones"() {
+        def system = tmp.newFile('system.rc')
+        system.text = '[ui]\nusername = System User <system@example.com>\nverbose = true\n'
+        def repo = tmp.newFile('hgrc')
+        repo.text = '# repository settings\n[ui]\nusername = Repo User <repo@example.com>\n'
+
+        def config = new HgConfig([system, new File(tmp.root, 'missing'), repo])
+
+        assertEquals('Repo User <repo@example.com>', config.get('ui', 'username'))
+        assertEquals('true', config.get('ui', 'verbose'))
+    }
+
+    @Test
+    void "Continuations, includes and unsets are applied"() {
+        new File(tmp.root, 'included.rc').text = '[ui]\nusername = Included User\n'
+        def hgrc = tmp.newFile('hgrc')
+        hgrc.text = '[ui]\nverbose = true\n%include included.rc\n' +
+                '[paths]\ndefault = first\n  second\n[ui]\n%unset verbose\n'
+
+        def config = new HgConfig([hgrc])
+
+        assertEquals('Included User', config.get('ui', 'username'))
+        assertEquals('first\nsecond', config.get('paths', 'default'))
+        assertNull(config.get('ui', 'verbose'))
+    }
+
+    @Test
+    void "Configuration is read again when a file changes"() {
+        def repoDir = tmp.newFolder('.hg')
+        def hgrc = new File(repoDir, 'hgrc')
+        hgrc.text = '[ui]\nusername = First\n'
+
+        def first = HgConfig.forRepository(repoDir)
+        assertSame(first, HgConfig.forRepository(repoDir))
+
+        hgrc.text = '[ui]\nusername = Second User\n'
+        assertEquals('Second User', HgConfig.forRepository(repoDir).get('ui', 'username'))
+    }
+
+}
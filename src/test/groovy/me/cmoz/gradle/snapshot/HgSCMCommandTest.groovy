@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static me.cmoz.gradle.snapshot.RevlogTest.*
+import static org.junit.Assert.*
+
+class HgSCMCommandTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File repoDir
+
+    @Before
+    void setUp() {
+        repoDir = new File(tmp.root, '.hg')
+        new File(repoDir, 'store').mkdirs()
+        new File(repoDir, 'hgrc').text = '[ui]\nusername = Build User <build@example.com>\n'
+
+        // two full text revisions, the tip on another branch
+        def first = changeset('first', 'default')
+        def second = changeset('second', 'feature')
+        def chunks = [compress(first), compress(second)]
+        new File(repoDir, 'store/00changelog.d').bytes = (chunks[0] as List) + (chunks[1] as List) as byte[]
+        new File(repoDir, 'store/00changelog.i').bytes = (entry(0, chunks[0].length, first.length, 0, 0) as List) +
+                (entry(chunks[0].length, chunks[1].length, second.length, 1, 1) as List) as byte[]
+    }
+
+    @Test
+    void "Working copy parent is read rather than the tip"() {
+        new File(repoDir, 'dirstate').bytes = ((1..20) as List) + [0] * 20 as byte[]
+
+        def commit = new HgSCMCommand(repoDir).getLatestCommit(SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertEquals('0102030405060708090a0b0c0d0e0f1011121314', commit.commitId)
+        assertEquals('default', commit.branchName)
+        assertEquals('first', commit.commitMessage)
+    }
+
+    @Test
+    void "Tip is read without a working copy"() {
+        def commit = new HgSCMCommand(repoDir).getLatestCommit(SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertEquals('feature', commit.branchName)
+        assertEquals('second', commit.commitMessage)
+    }
+
+    @Test
+    void "Build user is read from the repository hgrc"() {
+        def commit = new HgSCMCommand(repoDir).getLatestCommit(SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertEquals('Build User', commit.buildAuthorName)
+        assertEquals('build@example.com', commit.buildAuthorEmail)
+    }
+
+    @Test
+    void "Changelog starts after the most recent tag"() {
+        new File(tmp.root, '.hgtags').text = '0102030405060708090a0b0c0d0e0f1011121314 v1.0\n'
+        def changelog = new File(tmp.root, 'changelog.txt')
+
+        def count = new HgSCMCommand(repoDir).writeChangelog(
+                null, 0, SnapshotPluginExtension.DEFAULT_DATEFORMAT, changelog)
+
+        assertEquals(1, count)
+        assertTrue(changelog.text.startsWith('* second (0203040, Test User, '))
+    }
+
+    @Test
+    void "Changelog of the whole history is written without tags"() {
+        def changelog = new File(tmp.root, 'changelog.txt')
+
+        def count = new HgSCMCommand(repoDir).writeChangelog(
+                null, 0, SnapshotPluginExtension.DEFAULT_DATEFORMAT, changelog)
+
+        assertEquals(2, count)
+        assertEquals(['second', 'first'], changelog.readLines().collect { it.split(' ')[1] })
+    }
+
+    @Test
+    void "Last commit which changed each directory is found"() {
+        def first = changeset('first', 'default', ['README', 'lib/Main.java'])
+        def second = changeset('second', 'default', ['README', 'library.txt'])
+        def chunks = [compress(first), compress(second)]
+        new File(repoDir, 'store/00changelog.d').bytes = (chunks[0] as List) + (chunks[1] as List) as byte[]
+        new File(repoDir, 'store/00changelog.i').bytes = (entry(0, chunks[0].length, first.length, 0, 0) as List) +
+                (entry(chunks[0].length, chunks[1].length, second.length, 1, 1) as List) as byte[]
+        def lib = new File(tmp.root, 'lib')
+        def docs = new File(tmp.root, 'docs')
+
+        def commits = new HgSCMCommand(repoDir).getPathCommits(
+                [tmp.root, lib, docs], SnapshotPluginExtension.DEFAULT_DATEFORMAT, null)
+
+        assertEquals('second', commits[tmp.root].commitMessage)
+        assertEquals('0102030405060708090a0b0c0d0e0f1011121314', commits[lib].commitId)
+        // no changeset changed the directory
+        assertEquals('second', commits[docs].commitMessage)
+    }
+
+    @Test
+    void "Nearest tag of the working copy parent is found"() {
+        new File(tmp.root, '.hgtags').text = '0102030405060708090a0b0c0d0e0f1011121314 v1.0\n'
+
+        def tag = new HgSCMCommand(repoDir).getNearestTag(null)
+
+        assertEquals('v1.0', tag.tagName)
+        assertEquals(1, tag.distance)
+        assertEquals('v1.0-1-0203040', tag.describe)
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.nio.ByteBuffer
+
+import static org.junit.Assert.*
+
+class HgWorkingTreeTest {
+
+    private static final byte[] PARENT = (1..20) as byte[]
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File workTree
+
+    private File repoDir
+
+    @Before
+    void setUp() {
+        workTree = tmp.newFolder('work')
+        repoDir = new File(workTree, '.hg')
+        repoDir.mkdirs()
+        (1..3).each { new File(workTree, "file${it}.txt").text = "content ${it}\n" }
+    }
+
+    @Test
+    void "Files matching the dirstate are clean"() {
+        writeDirstate(PARENT, null, normal('file1.txt'), normal('file2.txt'))
+
+        def status = check(DirtyCheck.COUNT)
+
+        assertFalse(status.dirty)
+        assertEquals(0, status.modifiedCount)
+    }
+
+    @Test
+    void "Added, removed, resized and deleted files are counted"() {
+        def resized = normal('file3.txt')
+        new File(workTree, 'file3.txt').text = 'changed and longer\n'
+        new File(workTree, 'file2.txt').delete()
+        writeDirstate(PARENT, null,
+                normal('file1.txt'),
+                normal('file2.txt'),
+                resized,
+                [state: 'a', path: 'new.txt', size: -1, time: -1],
+                [state: 'r', path: 'old.txt', size: 0, time: 0])
+
+        def status = check(DirtyCheck.COUNT)
+
+        assertTrue(status.dirty)
+        assertEquals(4, status.modifiedCount)
+    }
+
+    @Test
+    void "Uncommitted merge is dirty"() {
+        writeDirstate(PARENT, (21..40) as byte[], normal('file1.txt'))
+
+        assertTrue(check(DirtyCheck.FLAG).dirty)
+        assertEquals(1, check(DirtyCheck.COUNT).modifiedCount)
+    }
+
+    @Test
+    void "Touched file uses the cached result for the same parent"() {
+        def entry = normal('file1.txt')
+        entry.time = entry.time - 60
+        writeDirstate(PARENT, null, entry)
+
+        def file = new File(workTree, 'file1.txt')
+        def cacheFile = new File(tmp.root, 'stat.cache')
+        def cache = new StatCache(cacheFile)
+        cache.put('file1.txt', file.lastModified(), file.length(), 'clean:' + PARENT.encodeHex())
+        cache.save()
+
+        assertFalse(check(DirtyCheck.FLAG, cacheFile).dirty)
+    }
+
+    private Map normal(final String path) {
+        def file = new File(workTree, path)
+        [state: 'n', path: path, size: (int) file.length(), time: (int) (file.lastModified() / 1000)]
+    }
+
+    private void writeDirstate(final byte[] p1, final byte[] p2, final Map... entries) {
+        def buf = ByteBuffer.allocate(4096)
+        buf.put(p1)
+        buf.put(p2 ?: new byte[20])
+        entries.each { entry ->
+            def name = entry.path.getBytes('UTF-8')
+            buf.put((byte) entry.state.charAt(0))
+            buf.putInt(0644)
+            buf.putInt(entry.size)
+            buf.putInt(entry.time)
+            buf.putInt(name.length)
+            buf.put(name)
+        }
+        new File(repoDir, 'dirstate').bytes = Arrays.copyOf(buf.array(), buf.position())
+    }
+
+    private WorkingTreeStatus check(final DirtyCheck check, final File cacheFile = null) {
+        new HgSCMCommand(repoDir).getStatus(check, cacheFile)
+    }
+
+}
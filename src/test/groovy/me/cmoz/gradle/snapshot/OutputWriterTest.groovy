@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import groovy.json.JsonSlurper
+import org.junit.Test
+
+import java.util.jar.Attributes
+import java.util.jar.Manifest
+
+import static org.junit.Assert.*
+
+class OutputWriterTest {
+
+    private static final Map<String, String> VALUES = [
+            (Commit.ID): '7c25255',
+            (Commit.BRANCH): 'master',
+            'commit.message': 'Fix "quotes": a\\b\n\tand \u00e9\u2603\u2028']
+
+    @Test
+    void "JSON is read back with the same values"() {
+        def bytes = OutputWriter.render(OutputType.JSON, VALUES, 'label')
+
+        assertEquals(VALUES, new JsonSlurper().parseText(new String(bytes, 'UTF-8')))
+        assertTrue(new String(bytes, 'UTF-8').contains('\\u2028'))
+    }
+
+    @Test
+    void "YAML has a sorted mapping of quoted strings"() {
+        def text = new String(OutputWriter.render(OutputType.YAML, ['b': 'yes', 'a': '1.0'], 'label'), 'UTF-8')
+
+        assertEquals('# label\n"a": "1.0"\n"b": "yes"\n', text)
+    }
+
+    @Test
+    void "Manifest attributes are read back by Manifest"() {
+        def values = new HashMap(VALUES)
+        values['commit.long'] = 'x' * 100 + '\u00e9' * 50
+        def bytes = OutputWriter.render(OutputType.MANIFEST, values, 'label')
+
+        def attributes = new Manifest(new ByteArrayInputStream(bytes)).mainAttributes
+        assertEquals('1.0', attributes.getValue(Attributes.Name.MANIFEST_VERSION))
+        assertEquals('7c25255', attributes.getValue('Commit-Id'))
+        assertEquals('master', attributes.getValue('Branch'))
+        assertEquals('Fix "quotes": a\\b \tand \u00e9\u2603\u2028', attributes.getValue('Commit-Message'))
+        assertEquals(values['commit.long'], attributes.getValue('Commit-Long'))
+        assertTrue(new String(bytes, 'UTF-8').split('\r\n').every { it.getBytes('UTF-8').length <= 72 })
+    }
+
+    @Test
+    void "Attribute names are made from the property names"() {
+        assertEquals('Commit-User-Name', OutputWriter.attributeName('commit.user.name'))
+        assertEquals('Submodule-Lib-Core-Commit-Id', OutputWriter.attributeName('submodule.lib/core.commit.id'))
+        assertEquals('', OutputWriter.attributeName('..'))
+    }
+
+    @Test
+    void "Same properties give the same bytes"() {
+        def reversed = new LinkedHashMap(VALUES.entrySet().toList().reverse().collectEntries { [it.key, it.value] })
+
+        for (type in OutputType.values()) {
+            assertArrayEquals(OutputWriter.render(type, VALUES, 'label'), OutputWriter.render(type, reversed, 'label'))
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Test
+
+import static org.junit.Assert.*
+
+class PropertiesWriterTest {
+
+    @Test
+    void "Properties are sorted without a date comment"() {
+        def text = new String(PropertiesWriter.render(['b': '2', 'a': '1', 'c': '3'], 'label'), 'ISO-8859-1')
+
+        assertEquals('#label\na=1\nb=2\nc=3\n', text)
+    }
+
+    @Test
+    void "Same properties give the same bytes"() {
+        def first = [(Commit.ID): '7c25255', (Commit.BRANCH): 'master', (Commit.TIME): '01.12.2014']
+        def second = new LinkedHashMap(first.entrySet().toList().reverse().collectEntries { [it.key, it.value] })
+
+        assertArrayEquals(PropertiesWriter.render(first, 'label'), PropertiesWriter.render(second, 'label'))
+    }
+
+    @Test
+    void "Values are read back by Properties"() {
+        def values = [
+                'key with spaces': ' leading space',
+                'commit.message': 'Fix #1: a=b!\n\tand \\ more \u00e9\u2603',
+                'empty': '']
+        def bytes = PropertiesWriter.render(values, 'multi\nline \u00e9 comment')
+
+        def properties = new Properties()
+        properties.load(new ByteArrayInputStream(bytes))
+        assertEquals(values, new HashMap(properties))
+        assertTrue(bytes.every { it >= 0 })
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+
+import static org.junit.Assert.*
+
+class RevlogTest {
+
+    private static final File CHANGELOG = new File('src/test/resources/testHg/.hg/store/00changelog.i')
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Tip of an inline changelog is read"() {
+        def changelog = Revlog.open(CHANGELOG)
+        try {
+            def tip = changelog.revisionCount - 1
+            def entry = HgChangelogEntry.parse(changelog.getNodeid(tip), changelog.getText(tip))
+
+            assertEquals(2, changelog.revisionCount)
+            assertEquals('d621db9ccbd09b18b2f4f424a247d6aab303e1bb', entry.nodeid)
+            assertEquals('Chris Molozian <chris@cmoz.me>', entry.user)
+            assertEquals(HgChangelogEntry.DEFAULT_BRANCH, entry.branch)
+            assertEquals('Test commit. Updated README', entry.description.trim())
+            assertEquals(tip, changelog.findRevision(changelog.getNodeid(tip)))
+        } finally {
+            changelog.close()
+        }
+    }
+
+    @Test
+    void "Delta chain of a revlog with a data file is applied"() {
+        def base = changeset('first', 'stable')
+        def next = changeset('second', 'stable')
+        def delta = hunk(0, base.length, next)
+        def index = tmp.newFile('00changelog.i')
+        def data = new File(tmp.root, '00changelog.d')
+        def chunks = [compress(base), ([(byte) 'u'] + (delta as List)) as byte[]]
+        data.bytes = (chunks[0] as List) + (chunks[1] as List) as byte[]
+        index.bytes = (entry(0, chunks[0].length, base.length, 0, 0) as List) +
+                (entry(chunks[0].length, chunks[1].length, next.length, 0, 1) as List) as byte[]
+
+        def changelog = Revlog.open(index)
+        try {
+            def entry = HgChangelogEntry.parse(changelog.getNodeid(1), changelog.getText(1))
+
+            assertEquals(2, changelog.revisionCount)
+            assertEquals('stable', entry.branch)
+            assertEquals('second', entry.description)
+            assertEquals(1234567890000L, entry.time)
+        } finally {
+            changelog.close()
+        }
+    }
+
+    @Test
+    void "Entries of a large revlog are read in blocks"() {
+        def index = tmp.newFile('00changelog.i')
+        def data = new File(tmp.root, '00changelog.d')
+        def chunks = (0..<200).collect { final int rev -> compress(changeset("change ${rev}", 'default')) }
+        data.bytes = chunks.sum { it as List } as byte[]
+        def offset = 0L
+        def entries = []
+        chunks.eachWithIndex { final byte[] chunk, final int rev ->
+            def textLength = changeset("change ${rev}", 'default').length
+            entries.addAll(entry(offset, chunk.length, textLength, rev, rev) as List)
+            offset += chunk.length
+        }
+        index.bytes = entries as byte[]
+
+        def changelog = Revlog.open(index)
+        try {
+            assertEquals(200, changelog.revisionCount)
+            [199, 0, 130, 64, 63].each { final int rev ->
+                assertEquals([rev - 1, -1], changelog.getParents(rev) as List)
+                assertEquals(rev, changelog.findRevision(changelog.getNodeid(rev)))
+                assertEquals("change ${rev}".toString(),
+                        HgChangelogEntry.parse(changelog.getNodeid(rev), changelog.getText(rev)).description)
+            }
+        } finally {
+            changelog.close()
+        }
+    }
+
+    @Test
+    void "Delta hunks replace ranges of the text"() {
+        def text = 'hello big world'.bytes
+        def delta = (hunk(0, 5, 'goodbye'.bytes) as List) + (hunk(6, 9, 'small'.bytes) as List)
+
+        assertEquals('goodbye small world', new String(MPatch.apply(text, delta as byte[])))
+    }
+
+    @Test(expected = IOException)
+    void "Delta past the end of the text is rejected"() {
+        MPatch.apply('short'.bytes, hunk(2, 10, 'x'.bytes))
+    }
+
+    static byte[] changeset(final String description, final String branch) {
+        changeset(description, branch, ['README'])
+    }
+
+    static byte[] changeset(final String description, final String branch, final List<String> files) {
+        ("${'0' * 40}\nTest User <test@example.com>\n1234567890 0 branch:${branch}\n${files.join('\n')}\n\n${description}")
+                .getBytes('UTF-8')
+    }
+
+    static byte[] hunk(final int start, final int end, final byte[] data) {
+        ByteBuffer.allocate(12 + data.length).putInt(start).putInt(end).putInt(data.length).put(data).array()
+    }
+
+    static byte[] compress(final byte[] text) {
+        def deflater = new Deflater()
+        deflater.setInput(text)
+        deflater.finish()
+        def buf = new byte[text.length + 64]
+        def length = deflater.deflate(buf)
+        deflater.end()
+        Arrays.copyOf(buf, length)
+    }
+
+    static byte[] entry(final long offset, final int length, final int textLength, final int base,
+                                final int rev) {
+        def buffer = ByteBuffer.allocate(64)
+        buffer.putLong((rev == 0) ? 1L << 32 : offset << 16)
+        buffer.putInt(length).putInt(textLength).putInt(base).putInt(rev).putInt(rev - 1).putInt(-1)
+        buffer.put(((rev + 1)..(rev + 20)) as byte[])
+        buffer.array()
+    }
+
+}
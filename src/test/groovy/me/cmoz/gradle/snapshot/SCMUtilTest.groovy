@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.gradle.api.Project
+import org.gradle.testfixtures.ProjectBuilder
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class SCMUtilTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    private File rootDir
+
+    private Project root
+
+    @Before
+    void setUp() {
+        rootDir = tmp.newFolder('root')
+        root = new ProjectBuilder().withProjectDir(rootDir).build()
+    }
+
+    private Project subproject(final String path) {
+        def dir = new File(rootDir, path)
+        dir.mkdirs()
+        new ProjectBuilder().withParent(root).withName(dir.name).withProjectDir(dir).build()
+    }
+
+    @Test
+    void "Nearest repository is found"() {
+        new File(rootDir, '.hg').mkdirs()
+        new File(rootDir, 'lib/.git').mkdirs()
+        def lib = subproject('lib/core')
+
+        assertEquals(new File(rootDir, 'lib/.git'),
+                SCMUtil.scanDir(lib, HgSCMCommand.REPO_DIRNAME, GitSCMCommand.REPO_DIRNAME))
+    }
+
+    @Test
+    void "First name wins within a directory"() {
+        new File(rootDir, '.hg').mkdirs()
+        new File(rootDir, '.git').mkdirs()
+
+        assertEquals(new File(rootDir, '.hg'),
+                SCMUtil.scanDir(root, HgSCMCommand.REPO_DIRNAME, GitSCMCommand.REPO_DIRNAME))
+    }
+
+    @Test
+    void "Git file of a linked worktree is found"() {
+        new File(rootDir, '.git').text = 'gitdir: /somewhere/.git/worktrees/root\n'
+
+        assertEquals(new File(rootDir, '.git'), SCMUtil.scanDir(root, GitSCMCommand.REPO_DIRNAME))
+    }
+
+    @Test
+    void "Searched directories are remembered for the build"() {
+        new File(rootDir, '.git').mkdirs()
+        def app = subproject('app')
+        assertEquals(new File(rootDir, '.git'), SCMUtil.scanDir(app, GitSCMCommand.REPO_DIRNAME))
+
+        // a sibling reuses the answer for the shared parent directory
+        new File(rootDir, '.git').deleteDir()
+        def web = subproject('web')
+        assertEquals(new File(rootDir, '.git'), SCMUtil.scanDir(web, GitSCMCommand.REPO_DIRNAME))
+    }
+
+    @Test
+    void "Unchanged file is not rewritten"() {
+        def file = new File(tmp.root, 'out/snapshot.properties')
+        assertTrue(SCMUtil.writeIfChanged(file, 'a=1\n'.bytes))
+        file.lastModified = 1000L
+
+        assertFalse(SCMUtil.writeIfChanged(file, 'a=1\n'.bytes))
+        assertEquals(1000L, file.lastModified())
+    }
+
+    @Test
+    void "Changed file is replaced"() {
+        def file = new File(tmp.root, 'snapshot.properties')
+        file.text = 'a=1\n'
+
+        assertTrue(SCMUtil.writeIfChanged(file, 'a=2\n'.bytes))
+        assertEquals('a=2\n', file.text)
+        assertEquals([file.name], tmp.root.list().findAll { it.startsWith('snapshot') })
+    }
+
+}
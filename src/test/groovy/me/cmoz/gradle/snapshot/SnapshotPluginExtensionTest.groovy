@@ -43,6 +43,48 @@ class SnapshotPluginExtensionTest {
         assertEquals(DEFAULT_FILENAME, ext.filename)
         assertEquals(DEFAULT_DATEFORMAT, ext.dateFormat)
         assertEquals(DEFAULT_VERBOSE, ext.verbose)
+        assertEquals(DEFAULT_BUILD_TIME_POLICY, ext.buildTimePolicy)
+        assertNull(ext.buildTimestamp)
+        assertEquals(DEFAULT_REPRODUCIBLE, ext.reproducible)
+        assertEquals(DEFAULT_SCM_PROVIDER, ext.scmProvider)
+        assertEquals(EnvSCMCommand.DEFAULT_NAMES, ext.scmEnvironment)
+        assertEquals(DEFAULT_DIRTY_CHECK, ext.dirtyCheck)
+        assertEquals(DEFAULT_DESCRIBE, ext.describe)
+        assertEquals(DEFAULT_COMMIT_SCOPE, ext.commitScope)
+        assertEquals(DEFAULT_SUBMODULES, ext.submodules)
+        assertEquals(DEFAULT_OUTPUT_FORMAT, ext.outputFormat)
+        assertEquals(DEFAULT_BUILD_INFO_PACKAGE, ext.buildInfoPackage)
+        assertEquals(DEFAULT_BUILD_INFO_CLASS_NAME, ext.buildInfoClassName)
+        assertEquals(DEFAULT_CHANGELOG_FILENAME, ext.changelogFilename)
+        assertEquals(DEFAULT_CHANGELOG_LIMIT, ext.changelogLimit)
+        assertNull(ext.changelogSince)
+        assertTrue(ext.outputs.isEmpty())
+    }
+
+    @Test
+    void "Build time policy can be set by name"() {
+        def ext = project.extensions.getByType(SnapshotPluginExtension.class)
+        ext.buildTimePolicy = 'on_change'
+        assertEquals(BuildTimePolicy.ON_CHANGE, ext.buildTimePolicy)
+    }
+
+    @Test
+    void "Output format can be set by name"() {
+        def ext = project.extensions.getByType(SnapshotPluginExtension.class)
+        ext.outputFormat = 'java'
+        assertEquals(OutputFormat.JAVA, ext.outputFormat)
+    }
+
+    @Test
+    void "Outputs are named after their type by default"() {
+        def ext = project.extensions.getByType(SnapshotPluginExtension.class)
+        ext.outputs.create('frontend').type = 'json'
+        ext.outputs.create('manifest').type = 'manifest'
+
+        assertEquals('frontend.json', ext.outputs.getByName('frontend').filename)
+        assertEquals(SnapshotOutput.DEFAULT_JAR_TASK, ext.outputs.getByName('manifest').jarTask)
+        assertEquals(new File(project.buildDir, 'snapshot-outputs/frontend/frontend.json'),
+                SnapshotSettings.of(project, ext).outputs.keySet().first())
     }
 
     @Test
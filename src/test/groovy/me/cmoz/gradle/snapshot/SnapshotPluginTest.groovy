@@ -50,4 +50,10 @@ class SnapshotPluginTest {
         assertThat(task, instanceOf(SnapshotTask.class))
     }
 
+    @Test
+    void "Changelog task is added to project"() {
+        def task = project.tasks.getByName(SnapshotPlugin.CHANGELOG_TASK_NAME)
+        assertThat(task, instanceOf(ChangelogTask.class))
+    }
+
 }
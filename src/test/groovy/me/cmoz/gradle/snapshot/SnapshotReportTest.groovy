@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class SnapshotReportTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Total adds up the metrics of every task"() {
+        def report = new SnapshotReport()
+        report.add(':a:snapshot', metrics(1000, 10, true), false)
+        report.add(':b:snapshot', metrics(2000, 20, false), false)
+
+        def total = report.total
+        assertEquals(3000L, total.phaseNanos['discovery'])
+        assertEquals(30L, total.bytesRead)
+        assertEquals(1L, total.hits[CommitCache.CACHE_NAME])
+        assertEquals(1L, total.misses[CommitCache.CACHE_NAME])
+    }
+
+    @Test
+    void "Report is written as JSON sorted by task path"() {
+        def report = new SnapshotReport()
+        report.add(':b:snapshot', metrics(2000, 20, false), false)
+        report.add(':a:snapshot', metrics(1000, 10, true), true)
+
+        def file = new File(tmp.root, SnapshotReport.REPORT_PATH)
+        report.write(file)
+
+        def json = new groovy.json.JsonSlurper().parse(file)
+        assertEquals([':a:snapshot', ':b:snapshot'], json.tasks.keySet() as List)
+        assertEquals(1000, json.tasks[':a:snapshot'].phaseNanos.discovery)
+        assertEquals(10, json.tasks[':a:snapshot'].bytesRead)
+        assertEquals(1, json.tasks[':b:snapshot'].cacheMisses.commit)
+        assertEquals(30, json.total.bytesRead)
+    }
+
+    @Test
+    void "Summary lists the time of each phase"() {
+        def report = new SnapshotReport()
+        report.add(':snapshot', metrics(1500000, 42, true), true)
+
+        assertEquals('Snapshot took 1.5 ms in 1 task(s) (discovery 1.5 ms), read 42 bytes, ' +
+                '1 cache hit(s) and 0 miss(es).', report.summary())
+    }
+
+    @Test
+    void "Measurements are discarded when no metrics are current"() {
+        def metrics = new Metrics()
+        Metrics.current().read(100)
+
+        def previous = metrics.enter()
+        try {
+            Metrics.current().read(10)
+        } finally {
+            Metrics.exit(previous)
+        }
+        assertEquals(10L, metrics.bytesRead)
+        assertEquals(0L, Metrics.current().bytesRead)
+    }
+
+    private static Metrics metrics(final long nanos, final long bytes, final boolean hit) {
+        def metrics = new Metrics()
+        metrics.addNanos(Metrics.Phase.DISCOVERY, nanos)
+        metrics.read(bytes)
+        if (hit) {
+            metrics.hit(CommitCache.CACHE_NAME)
+        } else {
+            metrics.miss(CommitCache.CACHE_NAME)
+        }
+        metrics
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Test
+
+import static org.junit.Assert.*
+
+class SnapshotSettingsTest {
+
+    @Test
+    void "Build time is read from SOURCE_DATE_EPOCH in seconds"() {
+        assertEquals(1416484800000L, SnapshotSettings.getBuildTimestamp(null, '1416484800'))
+        assertEquals(1416484800000L, SnapshotSettings.getBuildTimestamp(null, ' 1416484800\n'))
+        assertNull(SnapshotSettings.getBuildTimestamp(null, null))
+        assertNull(SnapshotSettings.getBuildTimestamp(null, ''))
+    }
+
+    @Test
+    void "Configured build time is used over SOURCE_DATE_EPOCH"() {
+        assertEquals(1000L, SnapshotSettings.getBuildTimestamp(1000L, '1416484800'))
+    }
+
+    @Test(expected = IllegalArgumentException)
+    void "Malformed SOURCE_DATE_EPOCH is rejected"() {
+        SnapshotSettings.getBuildTimestamp(null, '2014-11-20')
+    }
+
+    @Test
+    void "Environment is used automatically when it has the whole commit"() {
+        def complete = [(Commit.ID): '7c25255', (Commit.TIMESTAMP): '1416484800', (Commit.MESSAGE_FULL): 'Fix']
+
+        assertTrue(settings(SCMProvider.AUTO, complete, DirtyCheck.NONE).usesEnvironment())
+        assertFalse(settings(SCMProvider.AUTO, [(Commit.ID): '7c25255'], DirtyCheck.NONE).usesEnvironment())
+        assertFalse(settings(SCMProvider.AUTO, complete, DirtyCheck.FLAG).usesEnvironment())
+        assertFalse(settings(SCMProvider.REPOSITORY, complete, DirtyCheck.NONE).usesEnvironment())
+        assertTrue(settings(SCMProvider.ENVIRONMENT, [:], DirtyCheck.NONE).usesEnvironment())
+    }
+
+    private static SnapshotSettings settings(
+            final SCMProvider provider, final Map<String, String> values, final DirtyCheck check) {
+        SnapshotSettings.builder()
+                .scmProvider(provider)
+                .scmValues(values)
+                .dirtyCheck(check)
+                .commitScope(CommitScope.REPOSITORY)
+                .build()
+    }
+
+}
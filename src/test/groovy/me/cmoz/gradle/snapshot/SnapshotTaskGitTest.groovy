@@ -24,6 +24,8 @@ import org.junit.Before
 import org.junit.Ignore
 import org.junit.Test
 
+import java.text.SimpleDateFormat
+
 import static org.junit.Assert.*
 
 class SnapshotTaskGitTest {
@@ -111,6 +113,121 @@ class SnapshotTaskGitTest {
         assertEquals("Chris Molozian", properties.get(Commit.BUILD_USER_NAME))
     }
 
+    @Test
+    void "Task reads Git project in an isolated classloader"() {
+        project.snapshot.isolation = 'classloader'
+        project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME).execute()
+
+        assertEquals("7c25255", project.properties.get(Commit.ID_ABBREV))
+        assertEquals("master", project.properties.get(Commit.BRANCH))
+    }
+
+    @Test
+    void "Task records uncommitted changes with Git project"() {
+        project.snapshot.dirtyCheck = 'count'
+        project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME).execute()
+
+        // the README from the fixture's commit isn't in the working copy
+        assertEquals("true", project.properties.get(WorkingTreeStatus.DIRTY))
+        assertEquals("1", project.properties.get(WorkingTreeStatus.DIRTY_COUNT))
+    }
+
+    @Test
+    void "Reproducible build writes the same file on every machine"() {
+        project.snapshot.reproducible = true
+        def task = project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME)
+        task.execute()
+        def first = task.outputFile.bytes
+
+        def properties = new Properties()
+        properties.load(new ByteArrayInputStream(first))
+        def sdf = new SimpleDateFormat(SnapshotPluginExtension.DEFAULT_DATEFORMAT, Locale.ROOT)
+        sdf.timeZone = TimeZone.getTimeZone('UTC')
+        def commitTime = sdf.format(new Date(Long.parseLong(properties.get(Commit.TIMESTAMP))))
+
+        assertEquals(commitTime, properties.get(Commit.TIME))
+        assertEquals(commitTime, properties.get(Commit.BUILD_TIME))
+        assertNull(properties.get(Commit.BUILD_USER_NAME))
+        assertNull(properties.get(Commit.BUILD_USER_EMAIL))
+
+        task.outputFile.delete()
+        task.execute()
+        assertArrayEquals(first, task.outputFile.bytes)
+    }
+
+    @Test
+    void "Fixed build time is used for build.time"() {
+        project.snapshot.buildTimestamp = 1416484800000L
+        project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME).execute()
+
+        assertEquals('20.11.2014 @ 12:00:00 UTC', project.properties.get(Commit.BUILD_TIME))
+    }
+
+    @Test
+    void "Properties are available before the task runs"() {
+        def ext = project.extensions.getByType(SnapshotPluginExtension.class)
+
+        assertFalse(project.hasProperty(Commit.ID))
+        assertEquals("7c252556ba9471b42ec648fb2d27df464e5d4ad8", ext.value(Commit.ID).toString())
+        assertEquals("7c25255", ext.value(Commit.ID_ABBREV).call())
+        assertEquals("master", "${ext.values[Commit.BRANCH]}")
+    }
+
+    @Test
+    void "Properties can be used as lazy task inputs"() {
+        def ext = project.extensions.getByType(SnapshotPluginExtension.class)
+        def task = project.task('consumer')
+        task.inputs.property('commit', ext.value(Commit.ID))
+
+        assertEquals("7c252556ba9471b42ec648fb2d27df464e5d4ad8", task.inputs.properties['commit'])
+    }
+
+    @Test
+    void "Configuration after a value is read still applies"() {
+        def ext = project.extensions.getByType(SnapshotPluginExtension.class)
+        def task = project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME)
+        ext.value(Commit.TIME).call()
+
+        ext.dateFormat = 'yyyy'
+        task.execute()
+
+        assertEquals('yyyy', task.dateFormat)
+        assertTrue(project.properties.get(Commit.TIME) ==~ /\d{4}/)
+    }
+
+    @Test
+    void "Task inputs include the Git state files"() {
+        def task = project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME)
+        def files = task.inputs.files.files
+
+        assertTrue(files.contains(project.file('.git/HEAD')))
+        assertTrue(files.contains(project.file('.git/refs/heads/master')))
+        assertTrue(files.contains(project.file('.git/config')))
+    }
+
+    @Test
+    void "Task records metrics in the build report"() {
+        def task = project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME)
+        task.execute()
+
+        def metrics = SnapshotReport.forBuild(project).tasks[task.path]
+        assertNotNull(metrics)
+        assertTrue(metrics.phaseNanos.keySet().containsAll(['discovery', 'open', 'refs', 'parse', 'write']))
+        assertTrue(metrics.bytesRead > 0)
+        assertEquals(1L, metrics.misses[CommitCache.CACHE_NAME])
+    }
+
+    @Test
+    void "Task records metrics of an isolated classloader in the build report"() {
+        project.snapshot.isolation = 'classloader'
+        def task = project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME)
+        task.execute()
+
+        def metrics = SnapshotReport.forBuild(project).tasks[task.path]
+        assertTrue(metrics.phaseNanos.keySet().containsAll(['open', 'refs', 'parse']))
+        assertTrue(metrics.bytesRead > 0)
+    }
+
     static class CustomEnv extends SystemReader {
         @Delegate
         def SystemReader delegate
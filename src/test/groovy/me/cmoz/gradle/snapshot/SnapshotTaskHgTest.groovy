@@ -41,6 +41,11 @@ class SnapshotTaskHgTest {
         project.delete(project.buildDir)
     }
 
+    /** The build user hg would use here, HGUSER and EMAIL take part as well as the hgrc files. */
+    private String buildUser() {
+        HgConfig.forRepository(new File(project.projectDir, ".hg")).getUsername()
+    }
+
     @Test
     void "Task generates snapshot file with Hg project"() {
         def task = project.tasks.getByName(SnapshotPlugin.SNAPSHOT_TASK_NAME)
@@ -60,8 +65,8 @@ class SnapshotTaskHgTest {
         assertEquals("Test commit", properties.get(Commit.MESSAGE_SHORT))
         assertEquals("Chris Molozian", properties.get(Commit.USER_NAME))
         assertEquals("default", properties.get(Commit.BRANCH))
-        assertEquals("", properties.get(Commit.BUILD_USER_EMAIL))
-        assertEquals("", properties.get(Commit.BUILD_USER_NAME))
+        assertEquals(HgSCMCommand.extractEmail(buildUser()), properties.get(Commit.BUILD_USER_EMAIL))
+        assertEquals(HgSCMCommand.extractName(buildUser()), properties.get(Commit.BUILD_USER_NAME))
     }
 
     @Test
@@ -79,8 +84,8 @@ class SnapshotTaskHgTest {
         assertEquals("Test commit", properties.get(Commit.MESSAGE_SHORT))
         assertEquals("Chris Molozian", properties.get(Commit.USER_NAME))
         assertEquals("default", properties.get(Commit.BRANCH))
-        assertEquals("", properties.get(Commit.BUILD_USER_EMAIL))
-        assertEquals("", properties.get(Commit.BUILD_USER_NAME))
+        assertEquals(HgSCMCommand.extractEmail(buildUser()), properties.get(Commit.BUILD_USER_EMAIL))
+        assertEquals(HgSCMCommand.extractName(buildUser()), properties.get(Commit.BUILD_USER_NAME))
     }
 
 }
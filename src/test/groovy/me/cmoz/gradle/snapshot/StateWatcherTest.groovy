@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Assume
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class StateWatcherTest {
+
+    private static final String DATE_FORMAT = SnapshotPluginExtension.DEFAULT_DATEFORMAT
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Commit is kept while the state files are unchanged"() {
+        def stateFile = newStateFile('HEAD')
+        def watcher = new StateWatcher(null)
+
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+        watcher.put('repo', commit())
+        def kept = watcher.get('repo', [stateFile], DATE_FORMAT)
+
+        assertEquals(commit().commitId, kept.commitId)
+        assertNotEquals('old', kept.buildTime)
+
+        stateFile.lastModified = System.currentTimeMillis() - 30000
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+    }
+
+    @Test
+    void "Commit read just after a state file changed is not kept"() {
+        def stateFile = tmp.newFile('HEAD')
+        def watcher = new StateWatcher(null)
+
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+        watcher.put('repo', commit())
+
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+    }
+
+    @Test
+    void "Change is reported by the watch service"() {
+        def watch = StateWatcher.NioWatch.open()
+        Assume.assumeTrue(watch != null)
+        def stateFile = newStateFile('HEAD')
+        def otherFile = newStateFile('index')
+        def watcher = new StateWatcher(watch)
+
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+        watcher.put('repo', commit())
+        assertNotNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+
+        // a file next to a state file changes often, e.g. the Git index
+        otherFile.text = 'changed'
+        Thread.sleep(200)
+        assertNotNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+
+        stateFile.text = 'ref: refs/heads/feature\n'
+        def deadline = System.currentTimeMillis() + 5000
+        while (watcher.get('repo', [stateFile], DATE_FORMAT) != null) {
+            assertTrue('The change was not reported.', System.currentTimeMillis() < deadline)
+            watcher.put('repo', commit())
+            Thread.sleep(50)
+        }
+    }
+
+    @Test
+    void "Least recently used commits are dropped"() {
+        def stateFile = newStateFile('HEAD')
+        def watcher = new StateWatcher(null)
+
+        for (i in 0..StateWatcher.MAX_ENTRIES) {
+            assertNull(watcher.get("repo${i}", [stateFile], DATE_FORMAT))
+            watcher.put("repo${i}", commit())
+        }
+
+        assertEquals(StateWatcher.MAX_ENTRIES, watcher.size())
+        assertNull(watcher.get('repo0', [stateFile], DATE_FORMAT))
+    }
+
+    @Test
+    void "Directories of dropped commits are no longer watched"() {
+        def watch = StateWatcher.NioWatch.open()
+        Assume.assumeTrue(watch != null)
+        def watcher = new StateWatcher(watch)
+        try {
+            for (i in 0..StateWatcher.MAX_ENTRIES) {
+                def stateFile = newStateFile("repo${i}/HEAD")
+                assertNull(watcher.get("repo${i}", [stateFile], DATE_FORMAT))
+                watcher.put("repo${i}", commit())
+            }
+            assertEquals(StateWatcher.MAX_ENTRIES, watcher.watchedDirs())
+
+            // the same directories are watched again for another date format
+            def stateFile = new File(tmp.root, 'repo1/HEAD')
+            assertNull(watcher.get('repo1-other', [stateFile], 'yyyy'))
+            assertEquals(StateWatcher.MAX_ENTRIES, watcher.watchedDirs())
+        } finally {
+            watch.close()
+        }
+    }
+
+    @Test
+    void "Watch service is closed when no directory is watched"() {
+        def watch = StateWatcher.NioWatch.open()
+        Assume.assumeTrue(watch != null)
+        def stateFile = newStateFile('HEAD')
+        def watcher = new StateWatcher(watch)
+
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+        watcher.put('repo', commit())
+        assertEquals(1, watcher.watchedDirs())
+
+        stateFile.text = 'ref: refs/heads/feature\n'
+        def deadline = System.currentTimeMillis() + 5000
+        while (watcher.watchedDirs() > 0) {
+            assertTrue('The change was not reported.', System.currentTimeMillis() < deadline)
+            Thread.sleep(50)
+            watcher.put('repo', commit())
+        }
+        assertEquals(0, watcher.size())
+
+        // another watch service is opened for the next commit
+        assertNull(watcher.get('repo', [stateFile], DATE_FORMAT))
+        assertEquals(1, watcher.watchedDirs())
+    }
+
+    @Test
+    void "State files in the home directory are compared instead of watched"() {
+        def watch = StateWatcher.NioWatch.open()
+        Assume.assumeTrue(watch != null)
+        def userHome = System.getProperty('user.home')
+        System.setProperty('user.home', tmp.newFolder('home').path)
+        try {
+            def stateFile = newStateFile('repo/HEAD')
+            def gitconfig = newStateFile('home/.gitconfig')
+            def watcher = new StateWatcher(watch)
+
+            assertNull(watcher.get('repo', [stateFile, gitconfig], DATE_FORMAT))
+            watcher.put('repo', commit())
+            assertEquals(1, watcher.watchedDirs())
+            assertNotNull(watcher.get('repo', [stateFile, gitconfig], DATE_FORMAT))
+
+            gitconfig.text = '[user]\n\tname = Other User\n'
+            gitconfig.lastModified = System.currentTimeMillis() - 30000
+            assertNull(watcher.get('repo', [stateFile, gitconfig], DATE_FORMAT))
+        } finally {
+            System.setProperty('user.home', userHome)
+            watch.close()
+        }
+    }
+
+    private File newStateFile(final String name) {
+        def file = new File(tmp.root, name)
+        file.parentFile.mkdirs()
+        file.text = 'ref: refs/heads/master\n'
+        file.lastModified = System.currentTimeMillis() - 60000
+        file
+    }
+
+    private static Commit commit() {
+        Commit.builder()
+                .buildTime('old')
+                .buildAuthorName('Build User')
+                .buildAuthorEmail('build@example.com')
+                .branchName('master')
+                .commitId('7c252556ba9471b42ec648fb2d27df464e5d4ad8')
+                .commitTime('20.11.2014 @ 12:00:00 GMT')
+                .commitTimestamp('1416484800000')
+                .commitUserName('Commit User')
+                .commitUserEmail('commit@example.com')
+                .commitMessage('message')
+                .build()
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.gradle.snapshot
+
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.*
+
+class SubmoduleReaderTest {
+
+    private static final String HEAD_ID = '7c252556ba9471b42ec648fb2d27df464e5d4ad8'
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder()
+
+    @Test
+    void "Submodules listed in gitmodules are read"() {
+        def top = copyRepo(new File(tmp.root, '.git'))
+        copyRepo(new File(tmp.root, 'lib/core/.git'))
+        copyRepo(new File(tmp.root, 'lib/util/.git'))
+        new File(tmp.root, '.gitmodules').text = '''[submodule "core"]
+            path = lib/core
+            url = ../core.git
+        [submodule "util"]
+            path = lib/util
+            url = ../util.git
+        [submodule "missing"]
+            path = lib/missing
+            url = ../missing.git
+        [submodule "outside"]
+            path = ../outside
+            url = ../outside.git
+        '''
+
+        def result = SubmoduleReader.read(new GitSCMCommand(top), SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertEquals(HEAD_ID, result.properties['submodule.lib/core.commit.id'])
+        assertEquals(HEAD_ID, result.properties['submodule.lib/util.commit.id'])
+        assertNull(result.properties['submodule.lib/core.build.time'])
+        assertFalse(result.properties.keySet().any { it.startsWith('submodule.lib/missing.') })
+        assertFalse(result.properties.keySet().any { it.startsWith('submodule.../') })
+        assertFalse(result.stateFiles.isEmpty())
+    }
+
+    @Test
+    void "Submodule kept in the parent Git directory is read with its own submodules"() {
+        def top = copyRepo(new File(tmp.root, '.git'))
+        new File(tmp.root, '.gitmodules').text = '[submodule "core"]\n\tpath = lib/core\n'
+
+        // 'git submodule' keeps the Git directory in the parent's
+        def moduleDir = copyRepo(new File(top, 'modules/core'))
+        def config = new File(moduleDir, 'config')
+        config.text = config.text + '[core]\n\tworktree = ../../../lib/core\n'
+        new File(tmp.root, 'lib/core').mkdirs()
+        new File(tmp.root, 'lib/core/.git').text = 'gitdir: ../../.git/modules/core\n'
+
+        copyRepo(new File(tmp.root, 'lib/core/nested/.git'))
+        new File(tmp.root, 'lib/core/.gitmodules').text = '[submodule "nested"]\n\tpath = nested\n'
+
+        def result = SubmoduleReader.read(new GitSCMCommand(top), SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertEquals(HEAD_ID, result.properties['submodule.lib/core.commit.id'])
+        assertEquals(HEAD_ID, result.properties['submodule.lib/core/nested.commit.id'])
+    }
+
+    @Test
+    void "No submodules gives no properties"() {
+        def top = copyRepo(new File(tmp.root, '.git'))
+
+        def result = SubmoduleReader.read(new GitSCMCommand(top), SnapshotPluginExtension.DEFAULT_DATEFORMAT)
+
+        assertTrue(result.properties.isEmpty())
+        assertTrue(result.stateFiles.isEmpty())
+    }
+
+    /** Copies the test repository, Git won't version control a '.git' folder. */
+    private static File copyRepo(final File gitDir) {
+        def source = new File('src/test/resources/testGit/_git')
+        gitDir.mkdirs()
+        source.eachFileRecurse { final File file ->
+            def target = new File(gitDir, source.toURI().relativize(file.toURI()).path)
+            if (file.isDirectory()) {
+                target.mkdirs()
+            } else {
+                target.parentFile.mkdirs()
+                target.bytes = file.bytes
+            }
+        }
+        gitDir
+    }
+
+}